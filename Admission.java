@@ -0,0 +1,263 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+// คิวรับงานส่งไฟล์ (DOWNLOAD / SYNC / UPLOAD) แทน Semaphore(5) + tryAcquire 5 วินาทีแล้วตอบ "Server busy"
+// - งานที่รอเรียงตามจำนวน byte ที่ต้องส่ง (shortest-job-first) พร้อม aging: ทุก AGING_MS ที่รอ
+//   ขนาดที่ใช้จัดลำดับลดลงครึ่งหนึ่ง → ไฟล์เล็กไม่ต้องรอหลังไฟล์ใหญ่ แต่ไฟล์ใหญ่ที่รอนานพอจะขึ้นหน้างานใหม่เสมอ
+// - fast lane: งานไม่เกิน Bandwidth.INTERACTIVE_BYTES มีช่องของตัวเอง FAST_SLOTS ช่อง ไม่ต้องรอช่องของงานใหญ่
+// - ผู้รอรู้ลำดับของตัวเองในคิว (position) ไว้แจ้ง client ด้วย QUEUED — ตอบ Server busy เฉพาะเมื่อคิวเต็ม
+// - จำนวนช่องของงานใหญ่ปรับเอง (hill climbing) ทุก TUNE_MS เมื่อมีงานรอ: ลองเพิ่มทีละช่องแล้วดู throughput
+//   ที่ส่งออกจริง ถ้าเร็วขึ้นก็เพิ่มต่อ ถ้าไม่เร็วขึ้น (disk / network อิ่มตัว) ก็หยุด ถ้าช้าลงก็ถอยกลับ
+final class Admission {
+    private static final int FAST_SLOTS = 16;
+    private static final long REQUEST_COST = 64 * 1024; // ค่าใช้จ่ายคงที่ต่องาน (header / เปิดไฟล์) — ช่วงว่างก็ไม่ฟรี
+    private static final long AGING_NANOS = TimeUnit.MILLISECONDS.toNanos(1000);
+    private static final long TICK_MS = 1000;          // อัปเดตลำดับในคิวทุก 1 วินาที
+    private static final int TUNE_TICKS = 2;           // ปรับจำนวนช่องทุก 2 วินาที
+    private static final int HOLD_TUNES = 5;           // หลังเจอจุดอิ่มตัวหรือถอยกลับ พักการลองกี่รอบ
+    private static final double GAIN = 1.05;           // throughput ต้องเปลี่ยนเกิน 5% จึงนับว่าต่าง
+
+    private final int minSlots;
+    private final int maxSlots;
+    private final int maxQueue;
+    private final LongSupplier sentBytes;              // byte ที่ส่งออกจริงทั้ง server (Bandwidth)
+
+    private final List<Ticket> waiting = new ArrayList<>(); // guarded by this
+    private int slots;        // guarded by this — ช่องของงานใหญ่ตอนนี้
+    private int running;      // guarded by this
+    private int fastRunning;  // guarded by this
+    private long arrivals;    // guarded by this
+
+    // สถานะของการปรับช่อง (ใช้บน thread admission-tuner เท่านั้น)
+    private long lastSent = -1;
+    private double lastRate;
+    private int lastStep;
+    private int hold;
+    private volatile double rate;
+
+    Admission(int slots, int maxSlots, int maxQueue, LongSupplier sentBytes) {
+        this.minSlots = Math.max(1, Math.min(2, slots));
+        this.slots = Math.max(1, slots);
+        this.maxSlots = Math.max(this.slots, maxSlots);
+        this.maxQueue = Math.max(1, maxQueue);
+        this.sentBytes = sentBytes;
+    }
+
+    // -Dadmission.slots=5 (ช่องเริ่มต้นของงานใหญ่) -Dadmission.maxSlots=32 -Dadmission.queue=1000
+    static Admission fromSystemProperties(LongSupplier sentBytes) {
+        return new Admission(Integer.getInteger("admission.slots", 5),
+                Integer.getInteger("admission.maxSlots", 32),
+                Integer.getInteger("admission.queue", 1000), sentBytes);
+    }
+
+    // เริ่ม thread ที่อัปเดตลำดับในคิวและปรับจำนวนช่อง
+    void start() {
+        Thread tuner = new Thread(() -> {
+            for (long n = 1; ServerMain.running; n++) {
+                try {
+                    Thread.sleep(TICK_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                tick(n % TUNE_TICKS == 0);
+            }
+        }, "admission-tuner");
+        tuner.setDaemon(true);
+        tuner.start();
+    }
+
+    // ขอช่องสำหรับส่ง bytes byte — ได้ทันทีถ้ามีช่องว่าง (ticket.admitted()) นอกนั้นรอในคิว
+    // แล้วเรียก onAdmit (บน thread ที่คืนช่อง ห้าม block) เมื่อได้ช่อง; คืน null ถ้าคิวเต็ม
+    // ต้องเรียก release(ticket) เสมอเมื่อส่งเสร็จหรือเลิกรอ
+    Ticket enqueue(long bytes, Runnable onAdmit) {
+        synchronized (this) {
+            Ticket ticket = new Ticket(Math.max(0, bytes) + REQUEST_COST, onAdmit, arrivals++);
+            if (tryStart(ticket)) return ticket;
+            if (waiting.size() >= maxQueue) return null;
+
+            long now = System.nanoTime();
+            int ahead = 0;
+            for (Ticket t : waiting) {
+                if (t.score(now) <= ticket.score(now)) ahead++;
+            }
+            ticket.position = ahead + 1;
+            waiting.add(ticket);
+            return ticket;
+        }
+    }
+
+    // ส่งเสร็จ (คืนช่องให้งานถัดไป) หรือเลิกรอ (ออกจากคิว) — เรียกซ้ำได้
+    void release(Ticket ticket) {
+        List<Ticket> started;
+        synchronized (this) {
+            if (ticket.released) return;
+            ticket.released = true;
+            if (!ticket.admitted()) {
+                waiting.remove(ticket);
+                return;
+            }
+            if (ticket.fast) {
+                fastRunning--;
+            } else {
+                running--;
+            }
+            started = dispatch();
+        }
+        admitted(started);
+    }
+
+    synchronized int waiting() {
+        return waiting.size();
+    }
+
+    synchronized int running() {
+        return running + fastRunning;
+    }
+
+    synchronized int slots() {
+        return slots;
+    }
+
+    synchronized String describe() {
+        return "slots " + slots + " (max " + maxSlots + "), running " + running + " + " + fastRunning + " fast, waiting "
+                + waiting.size() + ", throughput " + ClientMain.formatBytes((long) rate) + "/s";
+    }
+
+    // ---------------- ภายใน (ถือ lock ของ this) ----------------
+
+    private boolean tryStart(Ticket ticket) {
+        if (ticket.small && fastRunning < FAST_SLOTS) {
+            ticket.fast = true;
+            fastRunning++;
+        } else if (running < slots) {
+            running++;
+        } else {
+            return false;
+        }
+        ticket.position = 0;
+        ticket.latch.countDown();
+        return true;
+    }
+
+    // ให้ช่องที่ว่างกับงานที่คะแนนดีที่สุดในคิว (งานใหญ่ใช้ได้เฉพาะช่องปกติ) — คืนงานที่เพิ่งได้ช่อง
+    private List<Ticket> dispatch() {
+        List<Ticket> started = new ArrayList<>();
+        long now = System.nanoTime();
+        while (!waiting.isEmpty()) {
+            boolean anyFree = running < slots;
+            boolean fastFree = fastRunning < FAST_SLOTS;
+            Ticket best = null;
+            for (Ticket t : waiting) {
+                if ((anyFree || (fastFree && t.small)) && (best == null || t.before(best, now))) best = t;
+            }
+            if (best == null || !tryStart(best)) break;
+            waiting.remove(best);
+            started.add(best);
+        }
+        return started;
+    }
+
+    // ทุก TICK_MS: เรียงคิวใหม่ตามคะแนน (aging เปลี่ยนลำดับ) เพื่ออัปเดต position แล้วปรับจำนวนช่องตามรอบ
+    private void tick(boolean tune) {
+        List<Ticket> started;
+        synchronized (this) {
+            if (tune) tune();
+            started = dispatch(); // เผื่อเพิ่มช่อง
+            long now = System.nanoTime();
+            List<Ticket> order = new ArrayList<>(waiting);
+            order.sort(Comparator.comparingDouble(t -> t.score(now)));
+            for (int i = 0; i < order.size(); i++) {
+                order.get(i).position = i + 1;
+            }
+        }
+        admitted(started);
+    }
+
+    private void tune() {
+        long sent = sentBytes.getAsLong();
+        if (lastSent < 0) {
+            lastSent = sent;
+            return;
+        }
+        double current = (sent - lastSent) * 1000.0 / (TICK_MS * TUNE_TICKS);
+        lastSent = sent;
+        rate = current;
+
+        boolean demand = !waiting.isEmpty() && running >= slots; // มีงานรอช่องของงานใหญ่
+        int before = slots;
+        if (lastStep != 0 && current * GAIN < lastRate) {
+            slots = Math.max(minSlots, slots - lastStep); // ปรับครั้งก่อนแล้วช้าลง → ถอยกลับ
+            lastStep = 0;
+            hold = HOLD_TUNES;
+        } else if (hold > 0) {
+            hold--;
+        } else if (demand && lastStep > 0 && current < lastRate * GAIN) {
+            lastStep = 0; // เพิ่มช่องแล้วไม่เร็วขึ้น: อิ่มตัวแล้ว อยู่ที่เดิมสักพัก
+            hold = HOLD_TUNES;
+        } else if (demand && slots < maxSlots) {
+            slots++;
+            lastStep = 1;
+        } else {
+            lastStep = 0;
+        }
+        lastRate = current;
+
+        if (slots != before) {
+            System.out.println("[QUEUE] Transfer slots " + before + " -> " + slots + " (throughput "
+                    + ClientMain.formatBytes((long) current) + "/s, " + waiting.size() + " waiting)");
+        }
+    }
+
+    private static void admitted(List<Ticket> started) {
+        for (Ticket t : started) {
+            if (t.onAdmit != null) t.onAdmit.run();
+        }
+    }
+
+    // สิทธิ์ส่งงาน 1 ชิ้น — รอในคิวจนกว่า admitted()
+    static final class Ticket {
+        final long cost;
+        final boolean small;
+        private final long since = System.nanoTime();
+        private final long order;            // ลำดับที่มา ใช้ตัดสินเมื่อคะแนนเท่ากัน
+        private final Runnable onAdmit;
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile int position = -1;  // ลำดับในคิว (1 = คิวถัดไป), 0 = ได้ช่องแล้ว
+        private boolean fast;                // guarded by Admission
+        private boolean released;            // guarded by Admission
+
+        private Ticket(long cost, Runnable onAdmit, long order) {
+            this.cost = cost;
+            this.small = cost - REQUEST_COST <= Bandwidth.INTERACTIVE_BYTES;
+            this.onAdmit = onAdmit;
+            this.order = order;
+        }
+
+        boolean admitted() {
+            return position == 0;
+        }
+
+        int position() {
+            return position;
+        }
+
+        // รอช่องไม่เกิน millis — คืน true ถ้าได้แล้ว
+        boolean await(long millis) throws InterruptedException {
+            return latch.await(millis, TimeUnit.MILLISECONDS);
+        }
+
+        // log2(cost) ลดลง 1 ทุก AGING_NANOS ที่รอ — ยิ่งน้อยยิ่งได้ก่อน
+        private double score(long now) {
+            return Math.log(cost) / Math.log(2) - (double) (now - since) / AGING_NANOS;
+        }
+
+        private boolean before(Ticket other, long now) {
+            int c = Double.compare(score(now), other.score(now));
+            return c != 0 ? c < 0 : order < other.order;
+        }
+    }
+}
@@ -0,0 +1,483 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
+
+// MGET <glob>: ส่งหลายไฟล์ต่อกันเป็น stream เดียวแบบ archive บน connection เดียว (แทน DOWNLOAD ทีละไฟล์)
+// - server ตอบ ARCHIVE <count> <bytes> (binary: frame ARCHIVE) แล้วตามด้วย record แบบ raw ทั้งสองโปรโตคอล:
+//     MEMBER: [op][ชื่อ: ความยาว 2 byte + UTF-8][size i64][mtime i64][crc32c i64 (-1 = ยังไม่มี)] ตามด้วยข้อมูล size byte
+//     END:    [op][จำนวนไฟล์ที่ส่งจริง i32]
+//   count / bytes ใน ARCHIVE เป็นค่าตอนรับคำสั่ง (ไฟล์ที่ถูกลบระหว่างส่งจะถูกข้าม ไม่มี record)
+// - ไฟล์เล็ก (ไม่เกิน SMALL) อ่านต่อกันลง direct buffer จาก BufferPool พร้อม header แล้วเขียนออกทีละ buffer ใหญ่
+//   ไฟล์ใหญ่ส่ง header ไปกับ buffer แล้วส่งข้อมูลด้วย transferTo
+// - client แยก record จาก buffer ที่อ่านทีละก้อนใหญ่ ไฟล์เล็กรวมเป็น batch ให้ worker หลายตัวสร้าง/เขียนไฟล์พร้อมกัน
+//   ไฟล์ใหญ่รับด้วย transferFrom บน thread ที่อ่าน socket (ต้องตามลำดับของ stream)
+final class Archive {
+    static final int MEMBER = 1;
+    static final int END = 0;
+    static final int SMALL = 64 * 1024;          // ไฟล์ที่ไม่เกินนี้รวมลง buffer เดียวกัน
+    static final int MAX_MEMBERS = 100_000;      // จำนวนไฟล์สูงสุดต่อคำสั่ง
+    private static final int FIXED_HEADER = 1 + 2 + 24; // op + ความยาวชื่อ + size / mtime / crc
+
+    private static final int WRITERS = Integer.getInteger("archive.writers", 4);
+    private static final AtomicInteger writerId = new AtomicInteger();
+    private static final ExecutorService writers = Executors.newFixedThreadPool(WRITERS, r -> {
+        Thread t = new Thread(r, "archive-writer-" + writerId.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+
+    private Archive() {}
+
+    // ขนาดรวมของข้อมูลไฟล์ (ใช้กับ Admission / Bandwidth และบอก client ใน ARCHIVE)
+    static long totalBytes(List<FileIndex.Entry> members) {
+        long total = 0;
+        for (FileIndex.Entry e : members) {
+            total += e.size;
+        }
+        return total;
+    }
+
+    // ---------------- server ----------------
+
+    // ไฟล์ที่ตรงกับ glob จากดัชนี — null ถ้าเกิน MAX_MEMBERS (โยน IllegalArgumentException ถ้า glob ผิด)
+    static List<FileIndex.Entry> select(String glob) {
+        FileIndex.Page page = ServerMain.fileIndex.list(glob, null, MAX_MEMBERS);
+        return page.next != null ? null : page.entries;
+    }
+
+    // สร้าง stream ทีละ buffer — ใช้ได้ทั้งแบบ blocking (ClientHandler) และบน event loop (NioServer)
+    // ลำดับการใช้: fill() → ส่ง buffer() จนหมด → ถ้า remaining() > 0 ส่ง large() ตั้งแต่ position() แล้ว advance() → fill() ใหม่
+    static final class Sender {
+        private final List<FileIndex.Entry> members;
+        private final long totalBytes;
+        private ByteBuffer buffer;      // โหมดอ่าน: header + ข้อมูลไฟล์เล็กที่ยังไม่ได้ส่ง
+        private FileChannel large;      // ไฟล์ใหญ่ที่ header อยู่ท้าย buffer แล้ว
+        private long position;
+        private long remaining;
+        private int next;
+        private int sent;
+        private long sentBytes;
+        private boolean ended;
+
+        Sender(List<FileIndex.Entry> members) {
+            this.members = members;
+            this.totalBytes = Archive.totalBytes(members);
+        }
+
+        int count() {
+            return members.size();
+        }
+
+        long totalBytes() {
+            return totalBytes;
+        }
+
+        int sent() {
+            return sent;
+        }
+
+        long sentBytes() {
+            return sentBytes;
+        }
+
+        ByteBuffer buffer() {
+            return buffer;
+        }
+
+        FileChannel large() {
+            return large;
+        }
+
+        long position() {
+            return position;
+        }
+
+        long remaining() {
+            return remaining;
+        }
+
+        // ส่งข้อมูลของไฟล์ใหญ่ไปแล้ว n byte
+        void advance(long n) throws IOException {
+            position += n;
+            remaining -= n;
+            if (remaining == 0) closeLarge();
+        }
+
+        // เตรียม buffer ถัดไป — คืน false เมื่อส่ง END ไปแล้ว (ต้องส่ง buffer และไฟล์ใหญ่ของรอบก่อนให้หมดก่อนเรียก)
+        boolean fill() throws IOException {
+            if (ended) return false;
+            if (buffer == null) buffer = BufferPool.SHARED.take();
+            buffer.clear();
+            int small = Math.min(SMALL, buffer.capacity() / 2);
+            while (next < members.size()) {
+                String name = members.get(next).name;
+                byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+                if (buffer.remaining() < FIXED_HEADER + encoded.length) break; // header ไม่พอที่ → buffer ถัดไป
+
+                FileChannel fc;
+                try {
+                    fc = FileChannel.open(new File(ServerMain.FILE_DIR, name).toPath(), StandardOpenOption.READ);
+                } catch (IOException e) {
+                    next++; // ถูกลบไปหลังรับคำสั่ง → ข้าม
+                    continue;
+                }
+                long size = fc.size();
+                if (size <= small && buffer.remaining() < FIXED_HEADER + encoded.length + size) {
+                    fc.close(); // ไฟล์เล็กที่ไม่พอที่ → ต้นของ buffer ถัดไป
+                    break;
+                }
+                next++;
+
+                // checksum / mtime จากดัชนีปัจจุบันเฉพาะเมื่อขนาดตรงกับไฟล์ที่เปิด (ไม่งั้นไฟล์เปลี่ยนระหว่างนั้น)
+                FileIndex.Entry entry = ServerMain.fileIndex.get(name);
+                boolean current = entry != null && entry.size == size;
+                buffer.put((byte) MEMBER).putShort((short) encoded.length).put(encoded).putLong(size)
+                        .putLong(current ? entry.mtime : new File(ServerMain.FILE_DIR, name).lastModified())
+                        .putLong(current ? entry.checksum : Crc32c.UNKNOWN);
+                sent++;
+                sentBytes += size;
+
+                if (size > small) { // ไฟล์ใหญ่: header ออกไปกับ buffer นี้ ข้อมูลส่งด้วย transferTo
+                    large = fc;
+                    position = 0;
+                    remaining = size;
+                    break;
+                }
+                int limit = buffer.limit();
+                buffer.limit(buffer.position() + (int) size);
+                try {
+                    long read = 0;
+                    while (buffer.hasRemaining()) {
+                        int n = fc.read(buffer, read);
+                        if (n == -1) throw new IOException("File shrank during MGET: " + name);
+                        read += n;
+                    }
+                    Metrics.READ.record(size);
+                } finally {
+                    buffer.limit(limit);
+                    fc.close();
+                }
+            }
+            if (large == null && next == members.size() && buffer.remaining() >= 5) {
+                buffer.put((byte) END).putInt(sent);
+                ended = true;
+            }
+            buffer.flip();
+            return true;
+        }
+
+        private void closeLarge() throws IOException {
+            if (large == null) return;
+            large.close();
+            large = null;
+        }
+
+        // จบหรือยกเลิก — ปิดไฟล์ที่ค้างและคืน buffer
+        void close() {
+            try {
+                closeLarge();
+            } catch (IOException ignored) {}
+            BufferPool.SHARED.give(buffer);
+            buffer = null;
+        }
+    }
+
+    // ---------------- client ----------------
+
+    // mget <glob>: โหลดทุกไฟล์ที่ตรงกับ glob ลง downloads/ ผ่าน connection เดียว
+    static void mget(String glob) {
+        long startTime = System.currentTimeMillis();
+        try (SocketChannel channel = ClientMain.connect()) {
+            long requested = System.nanoTime();
+            requestMget(channel, glob);
+            long[] preamble = readPreamble(channel);
+            Metrics.CLIENT_TTFB.recordMicrosSince(requested);
+            System.out.println("[MGET] " + preamble[0] + " file(s), " + ClientMain.formatBytes(preamble[1]));
+
+            new File(ClientMain.DOWNLOAD_DIR).mkdirs();
+            Receiver receiver = new Receiver(channel, preamble[1]);
+            receiver.run();
+
+            long duration = Math.max(1, System.currentTimeMillis() - startTime);
+            System.out.println("\n[MGET] ✅ Completed: " + receiver.files + " file(s), " + ClientMain.formatBytes(receiver.bytes)
+                    + " in " + duration + " ms");
+            System.out.printf("[MGET] %.0f files/s, %.2f MB/s\n", receiver.files * 1000.0 / duration,
+                    (receiver.bytes / 1024.0 / 1024.0) / (duration / 1000.0));
+            if (receiver.mismatches.get() > 0) {
+                System.err.println("[VERIFY] ❌ " + receiver.mismatches.get() + " file(s) failed crc32c check (e.g. "
+                        + receiver.firstMismatch + "), download them again");
+            } else {
+                System.out.println("[VERIFY] ✅ crc32c matched for " + (receiver.files - receiver.unverified.get())
+                        + " file(s), " + receiver.unverified.get() + " without checksum");
+            }
+            System.out.println("[MGET] Saved to: " + new File(ClientMain.DOWNLOAD_DIR).getAbsolutePath() + "\n");
+
+        } catch (ClientMain.ServerError e) {
+            System.err.println(e.getMessage());
+        } catch (IOException | InterruptedException e) {
+            System.err.println("Error during MGET: " + e.getMessage());
+        }
+    }
+
+    private static void requestMget(SocketChannel channel, String glob) throws IOException {
+        if (ClientMain.binaryProtocol) {
+            ByteBuffer buf = ClientMain.FRAME_BUFFER.get();
+            buf.clear();
+            Wire.putMget(buf, glob);
+            buf.flip();
+            Wire.writeFully(channel, buf);
+        } else {
+            ClientMain.writeLine(channel, "MGET " + glob);
+        }
+    }
+
+    // ARCHIVE <count> <bytes> — คืน { count, bytes }
+    private static long[] readPreamble(SocketChannel channel) throws IOException {
+        if (ClientMain.binaryProtocol) {
+            ByteBuffer buf = ClientMain.FRAME_BUFFER.get();
+            int op = ClientMain.readFrameAfterQueue(channel, buf, ClientMain.CONSOLE);
+            if (op != Wire.OP_ARCHIVE) throw ClientMain.frameError(op, buf);
+            return new long[] { buf.getInt(), buf.getLong() };
+        }
+        String response = ClientMain.readLineAfterQueue(channel, ClientMain.CONSOLE);
+        if (response != null && response.startsWith("ERROR")) {
+            throw new ClientMain.ServerError("Server error: " + response);
+        }
+        String[] parts = response == null ? new String[0] : response.split(" ");
+        if (parts.length != 3 || !parts[0].equals("ARCHIVE")) {
+            throw new IOException("Invalid response from server: " + response);
+        }
+        try {
+            return new long[] { Long.parseLong(parts[1]), Long.parseLong(parts[2]) };
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid response from server: " + response);
+        }
+    }
+
+    // อ่าน record จาก socket ทีละก้อนใหญ่ — ไฟล์เล็กรวมเป็น batch ส่งให้ worker, ไฟล์ใหญ่รับด้วย transferFrom
+    // อ่านเกิน END ได้ (buffer ก้อนใหญ่) จึงใช้กับ connection ที่ไม่มีคำสั่งอื่นตามหลัง MGET
+    private static final class Receiver {
+        private final SocketChannel channel;
+        private final long expectedBytes;
+        private final ByteBuffer rx = BufferPool.SHARED.take(); // โหมดอ่าน
+        private final Semaphore inFlight = new Semaphore(WRITERS * 2); // จำกัด batch ที่รอเขียน (หน่วยความจำ)
+        private final List<Future<?>> pending = new ArrayList<>();
+        private final AtomicInteger mismatches = new AtomicInteger();
+        private final AtomicInteger unverified = new AtomicInteger();
+        private final Tuning.Tuner tuner;
+        private final int small = Math.min(SMALL, rx.capacity() / 2); // ไฟล์ที่ copy ลง batch ได้ (ที่เหลือรับแบบไฟล์ใหญ่)
+        private volatile String firstMismatch;
+        private Batch batch;
+        private int files;
+        private long bytes;
+
+        Receiver(SocketChannel channel, long expectedBytes) {
+            this.channel = channel;
+            this.expectedBytes = expectedBytes;
+            this.tuner = Tuning.tuner(channel, false);
+            rx.flip();
+        }
+
+        void run() throws IOException, InterruptedException {
+            try {
+                tuner.begin();
+                while (true) {
+                    ensure(1);
+                    int op = rx.get();
+                    if (op == END) {
+                        ensure(4);
+                        int count = rx.getInt();
+                        if (count != files) throw new IOException("Archive ended after " + files + " of " + count + " file(s)");
+                        break;
+                    }
+                    if (op != MEMBER) throw new IOException("Invalid archive record: " + op);
+                    ensure(2);
+                    int nameLength = rx.getShort() & 0xFFFF;
+                    ensure(nameLength + 24);
+                    byte[] encoded = new byte[nameLength];
+                    rx.get(encoded);
+                    String name = new String(encoded, StandardCharsets.UTF_8);
+                    long size = rx.getLong();
+                    long mtime = rx.getLong();
+                    long checksum = rx.getLong();
+                    File target = target(name);
+                    if (size < 0 || target == null) throw new IOException("Invalid archive member: " + name);
+
+                    if (size <= small) {
+                        ensure((int) size);
+                        addSmall(target, size, mtime, checksum);
+                    } else {
+                        receiveLarge(target, size, mtime, checksum);
+                    }
+                    files++;
+                    bytes += size;
+                    ClientMain.printProgress(bytes, expectedBytes);
+                }
+                submit();
+                for (Future<?> f : pending) {
+                    try {
+                        f.get();
+                    } catch (java.util.concurrent.ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                    }
+                }
+            } finally {
+                BufferPool.SHARED.give(rx);
+                if (batch != null) BufferPool.SHARED.give(batch.data);
+            }
+        }
+
+        // ชื่อใน archive ต้องเป็นไฟล์ตรง ๆ ใน downloads/ (ไม่มีโฟลเดอร์ / ไม่ออกนอกโฟลเดอร์)
+        private static File target(String name) {
+            if (name.isEmpty() || name.equals(".") || name.equals("..") || name.indexOf('/') >= 0
+                    || name.indexOf('\\') >= 0 || name.indexOf('\0') >= 0) {
+                return null;
+            }
+            return new File(ClientMain.DOWNLOAD_DIR, name);
+        }
+
+        // ให้มีอย่างน้อย n byte ใน rx (n ไม่เกินขนาดของ rx)
+        private void ensure(int n) throws IOException {
+            while (rx.remaining() < n) {
+                rx.compact();
+                int read = channel.read(rx);
+                rx.flip();
+                if (read == -1) throw new IOException("Connection closed unexpectedly");
+            }
+        }
+
+        // copy ข้อมูลไฟล์เล็กจาก rx ลง batch ปัจจุบัน (ส่ง batch ให้ worker เมื่อเต็ม)
+        private void addSmall(File target, long size, long mtime, long checksum) throws InterruptedException {
+            if (batch != null && batch.data.remaining() < size) submit();
+            if (batch == null) batch = new Batch(BufferPool.SHARED.take());
+            int start = batch.data.position();
+            int limit = rx.limit();
+            rx.limit(rx.position() + (int) size);
+            batch.data.put(rx);
+            rx.limit(limit);
+            batch.members.add(new Member(target, start, (int) size, mtime, checksum));
+        }
+
+        private void submit() throws InterruptedException {
+            if (batch == null) return;
+            Batch b = batch;
+            batch = null;
+            inFlight.acquire();
+            pending.add(writers.submit(() -> {
+                try {
+                    write(b);
+                } finally {
+                    BufferPool.SHARED.give(b.data);
+                    inFlight.release();
+                }
+                return null;
+            }));
+        }
+
+        // บน worker: สร้างไฟล์ เขียนข้อมูล ตั้ง mtime และตรวจ CRC32C ของแต่ละไฟล์ใน batch
+        private void write(Batch b) throws IOException {
+            CRC32C crc = new CRC32C();
+            for (Member m : b.members) {
+                ByteBuffer data = b.data.duplicate();
+                data.limit(m.offset + m.size).position(m.offset);
+                try (FileChannel out = FileChannel.open(m.target.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                    while (data.hasRemaining()) {
+                        out.write(data);
+                    }
+                }
+                finish(m.target, m.mtime, m.checksum, m.checksum == Crc32c.UNKNOWN ? Crc32c.UNKNOWN : crc32c(crc, b.data, m));
+            }
+        }
+
+        private static long crc32c(CRC32C crc, ByteBuffer data, Member m) {
+            ByteBuffer view = data.duplicate();
+            view.limit(m.offset + m.size).position(m.offset);
+            crc.reset();
+            crc.update(view);
+            return crc.getValue();
+        }
+
+        // ไฟล์ใหญ่: ส่วนที่อยู่ใน rx แล้วเขียนก่อน ที่เหลือรับด้วย transferFrom ทีละ slice — CRC คำนวณตามหลังบน thread แยก
+        private void receiveLarge(File target, long size, long mtime, long checksum)
+                throws IOException, InterruptedException {
+            try (FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE, StandardOpenOption.READ)) {
+                Crc32c.Follower follower = checksum != Crc32c.UNKNOWN ? new Crc32c.Follower(out, 0) : null;
+                try {
+                    long position = 0;
+                    if (rx.hasRemaining()) {
+                        int limit = rx.limit();
+                        rx.limit(rx.position() + (int) Math.min(rx.remaining(), size));
+                        while (rx.hasRemaining()) {
+                            position += out.write(rx, position);
+                        }
+                        rx.limit(limit);
+                        if (follower != null) follower.advance(position);
+                    }
+                    while (position < size) {
+                        long n = out.transferFrom(channel, position, Math.min(tuner.slice(), size - position));
+                        if (n == 0) throw new IOException("Connection closed unexpectedly");
+                        Metrics.CLIENT_TRANSFER_FROM.record(n);
+                        tuner.record(n);
+                        position += n;
+                        if (follower != null) follower.advance(position);
+                        ClientMain.printProgress(bytes + position, expectedBytes);
+                    }
+                    long actual = follower != null ? follower.finish() : Crc32c.UNKNOWN;
+                    follower = null;
+                    finish(target, mtime, checksum, actual);
+                } finally {
+                    if (follower != null) follower.cancel();
+                }
+            }
+        }
+
+        // ตั้ง mtime ตามต้นฉบับ นับผลการตรวจ CRC และลบข้อมูล resume เก่าของไฟล์นี้ (ถ้ามี)
+        private void finish(File target, long mtime, long expected, long actual) {
+            target.setLastModified(mtime);
+            new File(target.getPath() + ClientMain.RESUME_SUFFIX).delete();
+            if (expected == Crc32c.UNKNOWN) {
+                unverified.incrementAndGet();
+            } else if (expected != actual) {
+                if (mismatches.getAndIncrement() == 0) firstMismatch = target.getName();
+            }
+        }
+    }
+
+    private static final class Batch {
+        final ByteBuffer data;
+        final List<Member> members = new ArrayList<>();
+
+        Batch(ByteBuffer data) {
+            this.data = data;
+        }
+    }
+
+    private static final class Member {
+        final File target;
+        final int offset;
+        final int size;
+        final long mtime;
+        final long checksum;
+
+        Member(File target, int offset, int size, long mtime, long checksum) {
+            this.target = target;
+            this.offset = offset;
+            this.size = size;
+            this.mtime = mtime;
+            this.checksum = checksum;
+        }
+    }
+}
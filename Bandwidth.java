@@ -0,0 +1,265 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// จำกัด bandwidth ของข้อมูลไฟล์ที่ส่งออกด้วย token bucket 2 ชั้น: รวมทั้ง server (global) และต่อ IP ของ client
+// - ตั้งค่าตอนเริ่มด้วย -Dbandwidth.global=<rate> -Dbandwidth.client=<rate> (เช่น 50M, 512K — byte/วินาที, 0 = ไม่จำกัด)
+//   และปรับได้ระหว่างทำงานด้วยคำสั่ง limit บน console ของ server
+// - bucket เก็บ token ได้ถึง burst (ค่าเริ่มต้น = ข้อมูล 0.5 วินาที, -Dbandwidth.burst.ms) จึงส่งรวดเดียวได้หลังว่างไปสักพัก
+// - ให้ token ทีละไม่เกิน MAX_GRANT ต่อครั้ง: transferTo ถูกแบ่งเป็นช่วงตาม token (ยังเป็น zero-copy)
+//   และการส่ง bulk ที่ต้องรอ token จะต่อคิว (FIFO) แล้วผลัดกันรับทีละช่วง → แบ่ง bandwidth กันอย่างเท่า ๆ กัน
+//   ไม่ว่า thread / event loop ไหนจะตื่นก่อน
+// - การส่งขนาดเล็ก (ไม่เกิน INTERACTIVE_BYTES เช่นไฟล์เล็ก / คำตอบแบบ interactive) ใช้ token ส่วนสำรองของ global ได้
+//   การส่งใหญ่ (bulk) ต้องเหลือ token ไว้อย่างน้อย 1/4 ของ burst → ไฟล์เล็กไม่ต้องรอคิวหลังไฟล์ใหญ่
+// ข้อความสั้น (header / LIST / ERROR) ไม่ผ่าน bucket
+final class Bandwidth {
+    static final long INTERACTIVE_BYTES = 1 << 20;
+    private static final long MAX_GRANT = 64 * 1024;
+    private static final long MIN_GRANT = 8 * 1024;   // ไม่ให้ token ทีละนิด (syscall ถี่เกินไป)
+    private static final long MIN_BURST = 64 * 1024;
+    private static final long IDLE_EVICT_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private final long burstMillis;
+    private final TokenBucket global;
+    private volatile long clientRate;
+    private final Map<InetAddress, TokenBucket> clients = new ConcurrentHashMap<>();
+    private final AtomicInteger opened = new AtomicInteger();
+    private final ConcurrentSkipListSet<Long> queue = new ConcurrentSkipListSet<>(); // บัตรคิวของการส่ง bulk ที่รอ token
+    private final AtomicLong tickets = new AtomicLong();
+    private final LongAdder sent = new LongAdder(); // byte ที่ส่งออกจริงทั้งหมด (ใช้วัด throughput ใน Admission)
+
+    Bandwidth(long globalRate, long clientRate, long burstMillis) {
+        this.burstMillis = Math.max(1, burstMillis);
+        this.global = new TokenBucket(globalRate);
+        this.clientRate = Math.max(0, clientRate);
+    }
+
+    static Bandwidth fromSystemProperties() {
+        return new Bandwidth(parseRate(System.getProperty("bandwidth.global", "0")),
+                parseRate(System.getProperty("bandwidth.client", "0")),
+                Long.getLong("bandwidth.burst.ms", 500));
+    }
+
+    // "10M" / "512k" / "1G" / "12345" → byte/วินาที (โยน NumberFormatException ถ้าอ่านไม่ได้)
+    static long parseRate(String text) {
+        String s = text.trim().toUpperCase(Locale.ROOT);
+        long unit = 1;
+        if (s.endsWith("K")) unit = 1L << 10;
+        else if (s.endsWith("M")) unit = 1L << 20;
+        else if (s.endsWith("G")) unit = 1L << 30;
+        if (unit != 1) s = s.substring(0, s.length() - 1);
+        long rate = (long) (Double.parseDouble(s) * unit);
+        if (rate < 0) throw new NumberFormatException("Negative rate: " + text);
+        return rate;
+    }
+
+    static String formatRate(long rate) {
+        return rate == 0 ? "unlimited" : ClientMain.formatBytes(rate) + "/s";
+    }
+
+    void setGlobalRate(long rate) {
+        global.setRate(rate);
+    }
+
+    void setClientRate(long rate) {
+        clientRate = Math.max(0, rate);
+        for (TokenBucket bucket : clients.values()) {
+            bucket.setRate(clientRate);
+        }
+    }
+
+    long sentBytes() {
+        return sent.sum();
+    }
+
+    String describe() {
+        return "global " + formatRate(global.rate) + ", per client " + formatRate(clientRate)
+                + ", burst " + burstMillis + " ms, " + clients.size() + " client bucket(s)";
+    }
+
+    // เริ่มส่งข้อมูล length byte ไปยัง client นี้ — ต้องเรียก close() เมื่อจบ
+    Shaper open(InetAddress client, long length) {
+        if (opened.incrementAndGet() % 256 == 0) evictIdle();
+        TokenBucket bucket = clients.computeIfAbsent(client, c -> new TokenBucket(clientRate));
+        bucket.users.incrementAndGet();
+        return new Shaper(bucket, length <= INTERACTIVE_BYTES);
+    }
+
+    private void evictIdle() {
+        long now = System.nanoTime();
+        clients.values().removeIf(b -> b.users.get() == 0 && now - b.lastUsed > IDLE_EVICT_NANOS);
+    }
+
+    // token ของการส่ง 1 ครั้ง: ต้องได้ทั้งจาก bucket ของ client และ global
+    final class Shaper {
+        private final TokenBucket client;
+        private final boolean interactive;
+        private boolean closed;
+        private long ticket = -1;    // บัตรคิวที่ถืออยู่ (-1 = ไม่ได้รอ)
+
+        private Shaper(TokenBucket client, boolean interactive) {
+            this.client = client;
+            this.interactive = interactive;
+        }
+
+        // จำนวน byte ที่ส่งได้ตอนนี้ (0..want) โดยไม่รอ — 0 = ต้องรอ waitNanos()
+        long grant(long want) {
+            if (!limited()) { // ไม่จำกัด: ส่งเต็มช่วงเหมือนเดิม
+                sent.add(want);
+                return want;
+            }
+            want = Math.min(want, MAX_GRANT);
+            if (want <= 0) return 0;
+            long granted = myTurn() ? take(want) : 0;
+            sent.add(granted);
+            if (interactive) return granted; // ใช้ส่วนสำรอง ไม่ต้องต่อคิว
+            if (granted == 0 && ticket < 0) {
+                ticket = tickets.incrementAndGet();
+                queue.add(ticket);
+            } else if (granted > 0) {
+                leaveQueue();
+            }
+            return granted;
+        }
+
+        private boolean myTurn() {
+            if (interactive || queue.isEmpty()) return true;
+            Long head = queue.ceiling(Long.MIN_VALUE);
+            return head == null || head == ticket;
+        }
+
+        private long take(long want) {
+            long fromClient = client.take(want, 0);
+            if (fromClient == 0) return 0;
+            long granted = global.take(fromClient, interactive ? 0 : global.reserve());
+            if (granted < fromClient) client.refund(fromClient - granted);
+            return granted;
+        }
+
+        private void leaveQueue() {
+            if (ticket < 0) return;
+            queue.remove(ticket);
+            ticket = -1;
+        }
+
+        // แบบ blocking สำหรับโหมด pool: รอจนได้ token อย่างน้อยบางส่วน
+        long acquire(long want) throws IOException {
+            while (true) {
+                long granted = grant(want);
+                if (granted > 0 || want <= 0) return granted;
+                LockSupport.parkNanos(waitNanos());
+                if (Thread.interrupted()) throw new IOException("Interrupted while throttled");
+            }
+        }
+
+        // คืน token ส่วนที่ได้ไปแต่ส่งไม่ได้ (socket เต็ม)
+        void refund(long unused) {
+            if (unused <= 0) return;
+            sent.add(-unused);
+            client.refund(unused);
+            global.refund(unused);
+        }
+
+        // เวลาโดยประมาณจนกว่าจะได้ token ครั้งถัดไป
+        long waitNanos() {
+            long wait = Math.max(client.nanosUntil(0), global.nanosUntil(interactive ? 0 : global.reserve()));
+            return Math.max(TimeUnit.MILLISECONDS.toNanos(1), wait);
+        }
+
+        // เขียน buf ทั้งหมดแบบ blocking ตามจำนวน token ที่ได้ทีละช่วง (โหมด pool)
+        void writeFully(WritableByteChannel channel, ByteBuffer buf) throws IOException {
+            int limit = buf.limit();
+            try {
+                while (buf.position() < limit) {
+                    long granted = acquire(limit - buf.position());
+                    buf.limit(buf.position() + (int) granted);
+                    while (buf.hasRemaining()) {
+                        channel.write(buf);
+                    }
+                    buf.limit(limit);
+                }
+            } finally {
+                buf.limit(limit);
+            }
+        }
+
+        boolean limited() {
+            return client.rate != 0 || global.rate != 0;
+        }
+
+        void close() {
+            if (closed) return;
+            closed = true;
+            leaveQueue();
+            client.lastUsed = System.nanoTime();
+            client.users.decrementAndGet();
+        }
+    }
+
+    // token bucket 1 ถัง — rate = 0 คือไม่จำกัด
+    private final class TokenBucket {
+        volatile long rate;
+        private long burst;          // guarded by this
+        private double tokens;       // guarded by this
+        private long lastRefill = System.nanoTime(); // guarded by this
+        final AtomicInteger users = new AtomicInteger();
+        volatile long lastUsed = System.nanoTime();
+
+        TokenBucket(long rate) {
+            setRate(rate);
+            tokens = burst; // เริ่มเต็ม
+        }
+
+        synchronized void setRate(long rate) {
+            refill();
+            this.rate = Math.max(0, rate);
+            this.burst = Math.max(MIN_BURST, this.rate * burstMillis / 1000);
+            tokens = Math.min(tokens, burst);
+        }
+
+        long reserve() {
+            return burst / 4;
+        }
+
+        synchronized long take(long want, long reserve) {
+            if (rate == 0) return want;
+            refill();
+            long available = (long) tokens - reserve;
+            if (available < Math.min(want, MIN_GRANT)) return 0;
+            long n = Math.min(want, available);
+            tokens -= n;
+            return n;
+        }
+
+        synchronized void refund(long n) {
+            if (rate == 0) return;
+            tokens = Math.min(burst, tokens + n);
+        }
+
+        // นานเท่าไรจึงจะมี token เกิน reserve อย่างน้อย MIN_GRANT
+        synchronized long nanosUntil(long reserve) {
+            if (rate == 0) return 0;
+            refill();
+            double missing = reserve + Math.min(MIN_GRANT, burst) - tokens;
+            return missing <= 0 ? 0 : (long) (missing * 1e9 / rate);
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            if (rate != 0) {
+                tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1e9);
+            }
+            lastRefill = now;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// direct buffer ที่ใช้ซ้ำร่วมกันทั้ง process: โหมด normal ของ DOWNLOAD (server / client), UPLOAD และ chunk ของ CompressedTransfer
+// - heap buffer ทุกครั้งที่ read/write กับ channel JDK ต้อง copy ผ่าน direct buffer ชั่วคราวอีกรอบ → ใช้ direct buffer ตรง ๆ
+// - จองครั้งแรกแล้วคืนเข้า pool เมื่อส่งเสร็จ → สภาวะปกติไม่จองใหม่ (ดู bufferpool.allocated ใน STATS ว่าหยุดเพิ่ม)
+// - แยกคิว lock-free ตามขนาด (capacity) รวมทุกคิวไม่เกิน -Dbuffer.poolBytes (ค่าเริ่มต้น 64M)
+//   buffer ที่คืนมาตอน pool เต็มถูกทิ้งให้ GC คืนหน่วยความจำเอง
+// - -Dbuffer.size=256K ขนาด buffer ของโหมด normal (ยิ่งใหญ่ยิ่งลดจำนวน syscall ต่อไฟล์)
+// - -Dbuffer.scatter=4 จำนวน buffer ต่อการอ่าน 1 ครั้งของ client (scattering read แล้ว gathering write ลงไฟล์)
+final class BufferPool {
+    static final BufferPool SHARED = fromSystemProperties();
+
+    private static final int MAX_BUFFER = 64 << 20; // ขนาดต่อ buffer สูงสุดที่ยอมให้ตั้ง
+
+    private final Map<Integer, ConcurrentLinkedQueue<ByteBuffer>> free = new ConcurrentHashMap<>();
+    private final AtomicLong pooled = new AtomicLong(); // byte ที่อยู่ใน pool ตอนนี้
+    private final Metrics.Counter allocated = Metrics.counter("bufferpool.allocated");
+    private final long maxBytes;
+    final int bufferSize;
+    final int scatter;
+
+    BufferPool(int bufferSize, int scatter, long maxBytes) {
+        if (bufferSize <= 0 || bufferSize > MAX_BUFFER) throw new IllegalArgumentException("Invalid buffer size: " + bufferSize);
+        this.bufferSize = bufferSize;
+        this.scatter = Math.max(1, scatter);
+        this.maxBytes = maxBytes;
+        Metrics.gauge("bufferpool.pooled.bytes", pooled::get);
+    }
+
+    static BufferPool fromSystemProperties() {
+        return new BufferPool((int) Bandwidth.parseRate(System.getProperty("buffer.size", "256K")),
+                Integer.getInteger("buffer.scatter", 4),
+                Bandwidth.parseRate(System.getProperty("buffer.poolBytes", "64M")));
+    }
+
+    // buffer ขนาด bufferSize (เคลียร์แล้ว พร้อมเขียน)
+    ByteBuffer take() {
+        return take(bufferSize);
+    }
+
+    ByteBuffer take(int capacity) {
+        ConcurrentLinkedQueue<ByteBuffer> queue = free.get(capacity);
+        ByteBuffer buf = queue != null ? queue.poll() : null;
+        if (buf == null) {
+            allocated.increment();
+            return ByteBuffer.allocateDirect(capacity);
+        }
+        pooled.addAndGet(-capacity);
+        return buf.clear();
+    }
+
+    // count buffer ขนาด bufferSize สำหรับ scattering read / gathering write
+    ByteBuffer[] takeAll(int count) {
+        ByteBuffer[] bufs = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            bufs[i] = take();
+        }
+        return bufs;
+    }
+
+    // คืน buffer ที่ได้จาก take — ห้ามใช้ต่อหลังคืน (null ได้)
+    void give(ByteBuffer buf) {
+        if (buf == null || !buf.isDirect()) return;
+        int capacity = buf.capacity();
+        if (pooled.addAndGet(capacity) > maxBytes) { // pool เต็ม → ทิ้ง
+            pooled.addAndGet(-capacity);
+            return;
+        }
+        free.computeIfAbsent(capacity, c -> new ConcurrentLinkedQueue<>()).offer(buf);
+    }
+
+    void giveAll(ByteBuffer[] bufs) {
+        for (ByteBuffer buf : bufs) {
+            give(buf);
+        }
+    }
+
+    // เคลียร์ทุก buffer แล้วจำกัดให้รับรวมไม่เกิน max byte (buffer ที่เกินได้ limit 0)
+    static void limit(ByteBuffer[] bufs, long max) {
+        for (ByteBuffer buf : bufs) {
+            buf.clear();
+            int n = (int) Math.min(buf.capacity(), max);
+            buf.limit(n);
+            max -= n;
+        }
+    }
+
+    static void flip(ByteBuffer[] bufs) {
+        for (ByteBuffer buf : bufs) {
+            buf.flip();
+        }
+    }
+
+    static boolean hasRemaining(ByteBuffer[] bufs) {
+        for (ByteBuffer buf : bufs) {
+            if (buf.hasRemaining()) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,141 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32C;
+
+// คำนวณ CRC32C ของทุกไฟล์ในดัชนีบน thread แยก แล้วบันทึกลง manifest (ค่าเริ่มต้น files.manifest)
+// - ตอนเริ่ม server อ่าน manifest เดิมก่อน ไฟล์ที่ size/mtime ยังตรงกันใช้ค่าเดิมได้ทันทีโดยไม่ต้องอ่านไฟล์ใหม่
+// - ไฟล์ใหม่/ที่ถูกแก้ไข (event จาก FileIndex) จะถูกคำนวณแล้วต่อท้าย manifest ทีละบรรทัด
+// - manifest ถูกเขียนใหม่ให้เหลือเฉพาะไฟล์ปัจจุบันทุกครั้งที่เริ่ม server
+// ระหว่างที่ยังคำนวณไม่เสร็จ DOWNLOAD ส่ง checksum เป็น UNKNOWN (client ข้ามการตรวจ)
+final class ChecksumManifest implements Runnable {
+    private final FileIndex index;
+    private final Path dir;
+    private final Path manifest;
+    private final BlockingQueue<FileIndex.Entry> queue = new LinkedBlockingQueue<>();
+    private Writer out;
+
+    private ChecksumManifest(FileIndex index, Path dir, Path manifest) {
+        this.index = index;
+        this.dir = dir;
+        this.manifest = manifest;
+    }
+
+    static ChecksumManifest open(FileIndex index, String dirName, String manifestName) throws IOException {
+        ChecksumManifest checksums = new ChecksumManifest(index, Paths.get(dirName), Paths.get(manifestName));
+        int reused = checksums.load();
+        index.setListener(checksums.queue::offer); // ไฟล์ที่เปลี่ยนหลังจากนี้
+
+        int pending = 0;
+        for (FileIndex.Entry e : index.entries()) {
+            if (e.checksum == Crc32c.UNKNOWN) {
+                checksums.queue.offer(e);
+                pending++;
+            }
+        }
+        System.out.println("[CHECKSUM] " + reused + " from manifest, " + pending + " to compute");
+
+        Thread t = new Thread(checksums, "checksum");
+        t.setDaemon(true);
+        t.start();
+        return checksums;
+    }
+
+    // อ่าน manifest เดิม ใส่ checksum ให้ entry ที่ size/mtime ตรงกัน แล้วเขียน manifest ใหม่เฉพาะรายการที่ยังใช้ได้
+    // รูปแบบแต่ละบรรทัด: <crc32c hex> <size> <mtime> <name> (ชื่ออยู่ท้ายสุด จึงมีช่องว่างได้)
+    private int load() throws IOException {
+        Map<String, String[]> saved = new HashMap<>();
+        if (Files.exists(manifest)) {
+            try (BufferedReader reader = Files.newBufferedReader(manifest, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split(" ", 4);
+                    if (parts.length == 4) saved.put(parts[3], parts); // บรรทัดหลังทับบรรทัดก่อน
+                }
+            }
+        }
+
+        int reused = 0;
+        Path tmp = manifest.resolveSibling(manifest.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (FileIndex.Entry e : index.entries()) {
+                String[] parts = saved.get(e.name);
+                if (parts == null) continue;
+                try {
+                    if (Long.parseLong(parts[1]) == e.size && Long.parseLong(parts[2]) == e.mtime) {
+                        e.checksum = Crc32c.parseHex(parts[0]);
+                        writeLine(writer, e);
+                        reused++;
+                    }
+                } catch (NumberFormatException ignored) {
+                    // บรรทัดเสีย → คำนวณใหม่
+                }
+            }
+        }
+        Files.move(tmp, manifest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        out = Files.newBufferedWriter(manifest, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        return reused;
+    }
+
+    private static void writeLine(Writer writer, FileIndex.Entry e) throws IOException {
+        writer.write(Crc32c.toHex(e.checksum) + " " + e.size + " " + e.mtime + " " + e.name + "\n");
+    }
+
+    @Override
+    public void run() {
+        ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20); // direct buffer → CRC32C ใช้คำสั่ง CPU ได้เต็มที่
+        long files = 0, bytes = 0, start = System.currentTimeMillis();
+
+        while (ServerMain.running) {
+            FileIndex.Entry entry;
+            try {
+                if (queue.isEmpty() && files > 0) {
+                    System.out.println("[CHECKSUM] Computed " + files + " file(s), " + bytes + " bytes in "
+                            + (System.currentTimeMillis() - start) + " ms");
+                    files = 0;
+                    bytes = 0;
+                }
+                entry = queue.take();
+                if (files == 0) start = System.currentTimeMillis();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            // ข้ามถ้ามีค่าแล้ว หรือไฟล์ถูกแก้ไปอีกรอบ (entry ใหม่จะเข้าคิวเอง)
+            if (entry.checksum != Crc32c.UNKNOWN || index.get(entry.name) != entry) continue;
+
+            try {
+                long crc = compute(entry, buf);
+                if (crc == Crc32c.UNKNOWN) continue;
+                entry.checksum = crc;
+                synchronized (this) {
+                    writeLine(out, entry);
+                    out.flush();
+                }
+                files++;
+                bytes += entry.size;
+            } catch (IOException e) {
+                System.err.println("[CHECKSUM] " + entry.name + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // อ่านทั้งไฟล์ครั้งเดียวตามลำดับ — คืน UNKNOWN ถ้าไฟล์เปลี่ยนระหว่างคำนวณ
+    private long compute(FileIndex.Entry entry, ByteBuffer buf) throws IOException {
+        Path path = dir.resolve(entry.name);
+        CRC32C crc = new CRC32C();
+        try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (fc.size() != entry.size) return Crc32c.UNKNOWN;
+            Crc32c.update(crc, fc, 0, entry.size, buf);
+        }
+        if (Files.getLastModifiedTime(path).toMillis() != entry.mtime) return Crc32c.UNKNOWN;
+        return crc.getValue();
+    }
+}
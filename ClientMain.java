@@ -2,11 +2,45 @@ import java.io.*;
 import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
 
 public class ClientMain {
-    private static final String SERVER_IP = "192.168.56.101";
-    private static final int SERVER_PORT = 8000;
-    private static final String DOWNLOAD_DIR = "downloads";
+    static final String SERVER_IP = System.getProperty("server.host", "192.168.56.101"); // -Dserver.host / -Dserver.port
+    static final int SERVER_PORT = Integer.getInteger("server.port", 8000);
+    static final String DOWNLOAD_DIR = "downloads";
+    static final String RESUME_SUFFIX = ".resume"; // ไฟล์เก็บข้อมูลสำหรับ resume ไฟล์ที่โหลดค้าง
+
+    // ใช้โปรโตคอล binary (Wire) เป็นค่าเริ่มต้น — เปลี่ยนเป็นข้อความได้ด้วยคำสั่ง protocol text
+    static volatile boolean binaryProtocol = true;
+
+    // ข้อความสถานะ ([QUEUE] / [VERIFY] / โหมดที่ใช้) ของ console พิมพ์ลง stdout, progress เป็น progress bar
+    // FileClient ของ console ใช้ตัวนี้ — library ที่ฝังในโปรแกรมอื่นส่ง listener ของตัวเอง (ค่าเริ่มต้นเงียบ)
+    static final FileClient.Listener CONSOLE = new FileClient.Listener() {
+        @Override
+        public void message(String line) {
+            System.out.println(line);
+        }
+
+        @Override
+        public void progress(long transferred, long total) {
+            printProgress(transferred, total);
+        }
+    };
+
+    // list / stats / download ของ console ผ่าน FileClient (สร้างเมื่อใช้ครั้งแรก ใช้ connection ซ้ำข้ามคำสั่ง)
+    private static FileClient client;
+
+    // เวลา (nanoTime) ที่ printProgress วาดรอบถัดไปได้
+    private static final long PROGRESS_INTERVAL_NANOS = 100_000_000L;
+    private static final AtomicLong nextProgress = new AtomicLong(System.nanoTime());
+
+    // buffer สำหรับเขียน/อ่าน frame ใช้ซ้ำต่อ thread (ParallelDownload ใช้หลาย thread)
+    static final ThreadLocal<ByteBuffer> FRAME_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocate(4096));
 
     public static void main(String[] args) {
         BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
@@ -24,20 +58,92 @@ public class ClientMain {
                 // ออกจากโปรแกรม
                 if (line.equalsIgnoreCase("exit")) {
                     System.out.println("Exiting...");
+                    if (client != null) client.close();
                     break;
                 // ขอรายการไฟล์จาก server
+                } else if (line.toLowerCase().startsWith("list ")) {
+                    listMatching(line.substring(5).trim());
                 } else if (line.equalsIgnoreCase("list")) {
                     listFiles();
+                // metrics ของ server (STATS) และของ client นี้
+                } else if (line.equalsIgnoreCase("stats")) {
+                    showStats();
                     
+                // ทุกไฟล์บน server / ไฟล์ที่ตรงกับ glob เป็น stream เดียว (ต้องมาก่อน download)
+                } else if (line.equalsIgnoreCase("downloaddir")) {
+                    Archive.mget("*");
+                } else if (line.toLowerCase().startsWith("mget")) {
+                    String[] p = line.split("\\s+");
+                    if (p.length != 2) {
+                        System.out.println("Usage: mget <glob>");
+                    } else {
+                        Archive.mget(p[1]);
+                    }
                 // คำสั่ง download ต้องมีชื่อไฟล์ + mode
                 } else if (line.toLowerCase().startsWith("download")) {
                     String[] p = line.split(" ");
+                    // --parallel N (connection ต่อ server) / --mirrors host:port,... (หลาย server พร้อมกัน)
+                    Integer parallel = null; // null = ไม่ได้ระบุ, ค่า <= 0 ส่งต่อให้ ParallelDownload แจ้ง error เอง
+                    String mirrors = null;
+                    boolean valid = p.length >= 3;
+                    for (int i = 3; i + 1 < p.length; i += 2) {
+                        if (p[i].equals("--parallel")) {
+                            try {
+                                parallel = Integer.parseInt(p[i + 1]);
+                            } catch (NumberFormatException e) {
+                                valid = false;
+                            }
+                        }
+                        if (p[i].equals("--mirrors")) mirrors = p[i + 1];
+                    }
+                    if (!valid) {
+                        System.out.println("Usage: download <filename> <mode> [--parallel N] [--mirrors host:port,...]");
+                        System.out.println("Mode: zero, normal, deflate or fast");
+                    } else if (mirrors != null) {
+                        try {
+                            ParallelDownload.download(p[1], p[2], parallel != null ? parallel : 1,
+                                    ParallelDownload.parseMirrors(mirrors));
+                        } catch (IllegalArgumentException e) {
+                            System.err.println("Invalid mirror list: " + e.getMessage());
+                        }
+                    } else if (parallel != null) {
+                        ParallelDownload.download(p[1], p[2], parallel);
+                    } else {
+                        downloadFile(p[1], p[2]);
+                    }
+                // โหลดหลายไฟล์บน connection เดียว ส่งคำสั่งล่วงหน้าแบบ pipeline
+                } else if (line.toLowerCase().startsWith("pipeline")) {
+                    String[] p = line.split("\\s+");
                     if (p.length < 3) {
-                        System.out.println("Usage: download <filename> <mode>");
+                        System.out.println("Usage: pipeline <mode> <file> [file ...]");
+                    } else {
+                        ClientSession.downloadAll(p[1], Arrays.asList(p).subList(2, p.length));
+                    }
+                // อัปเดตไฟล์ที่มีอยู่แล้วโดยโหลดเฉพาะส่วนที่เปลี่ยน
+                } else if (line.toLowerCase().startsWith("sync")) {
+                    String[] p = line.split("\\s+");
+                    if (p.length != 2) {
+                        System.out.println("Usage: sync <file>");
+                    } else {
+                        DeltaSync.sync(p[1]);
+                    }
+                // ส่งไฟล์ในเครื่องขึ้น server
+                } else if (line.toLowerCase().startsWith("upload")) {
+                    String[] p = line.split("\\s+");
+                    if (p.length != 3) {
+                        System.out.println("Usage: upload <local file> <mode>");
                         System.out.println("Mode: zero or normal");
                     } else {
-                        downloadFile(p[1], p[2]);
+                        Upload.upload(p[1], p[2]);
                     }
+                // เลือกโปรโตคอลสำหรับ connection ถัดไป
+                } else if (line.toLowerCase().startsWith("protocol")) {
+                    String[] p = line.split("\\s+");
+                    if (p.length == 2 && (p[1].equals("binary") || p[1].equals("text"))) {
+                        binaryProtocol = p[1].equals("binary");
+                        if (client != null) client.setBinaryProtocol(binaryProtocol);
+                    }
+                    System.out.println("Protocol: " + (binaryProtocol ? "binary" : "text"));
                 // แสดงคำสั่งทั้งหมด    
                 } else if (line.equalsIgnoreCase("help")) {
                     printHelp();
@@ -56,216 +162,526 @@ public class ClientMain {
     static void printHelp() {
         System.out.println("\n=== Available Commands ===");
         System.out.println("  list                   - Show list of files on server");
+        System.out.println("  list <glob>            - Show matching files with sizes (e.g. list report-*.csv)");
         System.out.println("  download <file> <mode> - Download file");
         System.out.println("                           zero: use transferFrom() method");
         System.out.println("                           normal: traditional read/write");
+        System.out.println("                           deflate / fast: compress chunks on the fly (fast = lower ratio, less CPU)");
+        System.out.println("  download <file> <mode> --parallel N");
+        System.out.println("                         - Download byte ranges over N connections at once");
+        System.out.println("  download <file> <mode> --mirrors host:port,host:port [--parallel N]");
+        System.out.println("                         - Download byte ranges from several mirror servers at once (N per mirror)");
+        System.out.println("  pipeline <mode> <file> [file ...]");
+        System.out.println("                         - Download many files over one keep-alive connection");
+        System.out.println("  mget <glob>            - Download all matching files as one stream over one connection");
+        System.out.println("  downloaddir            - Download every file on the server (same as mget *)");
+        System.out.println("  sync <file>            - Update downloads/<file> by transferring only changed blocks");
+        System.out.println("  upload <file> <mode>   - Upload a local file (zero: transferTo, normal: read/write)");
+        System.out.println("  protocol <binary|text> - Wire protocol for new connections (default: binary)");
+        System.out.println("  stats                  - Show server metrics (percentiles) and this client's metrics");
         System.out.println("  exit                   - Exit the client");
         System.out.println();
     }
 
-    // ติดต่อ server → ส่งคำสั่ง LIST → รอรับชื่อไฟล์ทีละบรรทัด
+    static synchronized FileClient client() {
+        if (client == null) client = FileClient.fromSystemProperties(binaryProtocol, new File(DOWNLOAD_DIR), CONSOLE);
+        return client;
+    }
+
+    // รอผลของคำสั่งจาก FileClient — คืน error จริงแทน CompletionException
+    static <T> T await(CompletableFuture<T> future) throws Exception {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+
+    // รายชื่อไฟล์ทั้งหมดบน server
     static void listFiles() {
-        try (SocketChannel channel = SocketChannel.open()) {
-            channel.connect(new InetSocketAddress(SERVER_IP, SERVER_PORT));
-            System.out.println("[LIST] Connected to server");
+        try {
+            List<FileClient.FileInfo> files = await(client().list("*"));
+            System.out.println("\n=== Files on Server ===");
+            int count = 0;
+            for (FileClient.FileInfo f : files) {
+                System.out.println("  " + (++count) + ". " + f.name);
+            }
+            System.out.println("=== Total: " + count + " files ===\n");
+        } catch (ServerError e) {
+            System.err.println(e.getMessage());
+        } catch (Exception e) {
+            System.err.println("Error during LIST command: " + e.getMessage());
+        }
+    }
 
-            try {
-                writeLine(channel, "LIST"); // ส่งคำสั่ง LIST
+    // แสดงไฟล์ที่ตรงกับ glob พร้อมขนาด
+    static void listMatching(String glob) {
+        try {
+            List<FileClient.FileInfo> files = await(client().list(glob));
+            System.out.println("\n=== Files on Server matching " + glob + " ===");
+            long bytes = 0;
+            int count = 0;
+            for (FileClient.FileInfo f : files) {
+                bytes += f.size;
+                System.out.println("  " + (++count) + ". " + f.name + " (" + formatBytes(f.size) + ")");
+            }
+            System.out.println("=== Total: " + count + " files (" + formatBytes(bytes) + ") ===\n");
+        } catch (ServerError e) {
+            System.err.println(e.getMessage());
+        } catch (Exception e) {
+            System.err.println("Error during LIST command: " + e.getMessage());
+        }
+    }
 
-                System.out.println("\n=== Files on Server ===");
-                String line;
-                int count = 0;
-                
-                // อ่านชื่อไฟล์ทีละบรรทัดจนกว่าจะเจอ END
-                while ((line = readLine(channel)) != null) {
-                    if ("END".equals(line)) {
-                        break;
-                    }
-                    
-                    if (line.startsWith("ERROR")) {
-                        System.err.println(line);
-                        return;
-                    }
-                    
-                    System.out.println("  " + (++count) + ". " + line);
-                }
-                
-                System.out.println("=== Total: " + count + " files ===\n");
-                
-            } catch (IOException e) {
-                System.err.println("Error during LIST command: " + e.getMessage());
+    // STATS → metrics ของ server ทีละบรรทัด (รูปแบบเดียวกับ LIST) ตามด้วย metrics ของ client นี้
+    static void showStats() {
+        try {
+            List<String> lines = await(client().stats());
+            System.out.println("\n=== Server metrics ===");
+            for (String line : lines) {
+                System.out.println("  " + line);
             }
-            
-        } catch (IOException e) {
-            System.err.println("Network error while listing files: " + e.getMessage());
+        } catch (Exception e) {
+            System.err.println("Error during STATS command: " + e.getMessage());
+        }
+        System.out.println("=== Client metrics ===");
+        for (String line : Metrics.report(true)) {
+            System.out.println("  " + line);
         }
+        System.out.println();
     }
 
     // โหลดไฟล์จาก server โดยเลือกโหมด zero หรือ normal
+    // ถ้ามีไฟล์ที่โหลดค้างไว้ (downloads/<fname>.part + <fname>.resume) FileClient จะขอเฉพาะส่วนที่เหลือ
     static void downloadFile(String fname, String mode) {
-        if (!mode.equals("zero") && !mode.equals("normal")) {
-            System.err.println("Invalid mode. Use 'zero' or 'normal'");
+        if (!isValidMode(mode)) {
+            System.err.println("Invalid mode. Use 'zero', 'normal', 'deflate' or 'fast'");
             return;
         }
-        
-        try (SocketChannel channel = SocketChannel.open()) {
-            channel.connect(new InetSocketAddress(SERVER_IP, SERVER_PORT));
-            System.out.println("[DOWNLOAD] Connected to server");
 
-            try {
-                writeLine(channel, "DOWNLOAD " + fname + " " + mode);
+        System.out.println("[DOWNLOAD] Client Mode: " + mode.toUpperCase());
+        try {
+            FileClient.Download d = await(client().download(fname, mode));
+            double speed = (d.length / 1024.0 / 1024.0) / (d.millis / 1000.0);
 
-                // รอรับ FILESIZE <size>
-                String response = readLine(channel);
-                if (response == null || !response.startsWith("FILESIZE ")) {
-                    System.err.println("Invalid response from server: " + response);
-                    return;
-                }
+            // แสดงผลลัพธ์การดาวน์โหลด
+            System.out.println("\n[DOWNLOAD] ✅ Completed: " + fname + " (" + formatBytes(d.fileSize) + ")");
+            if (d.offset > 0) System.out.println("[DOWNLOAD] Resumed from " + formatBytes(d.offset));
+            System.out.println("[DOWNLOAD] Time: " + d.millis + " ms");
+            System.out.printf("[DOWNLOAD] Speed: %.2f MB/s\n", speed);
+            if (d.wireBytes != d.length) {
+                // speed ด้านบนคิดจากขนาดไฟล์จริง (effective) เทียบกับปริมาณที่ส่งผ่าน network จริง
+                System.out.printf("[DOWNLOAD] On the wire: %s (%.1f%% of %s), %.2f MB/s\n",
+                        formatBytes(d.wireBytes), d.length == 0 ? 100.0 : 100.0 * d.wireBytes / d.length,
+                        formatBytes(d.length), (d.wireBytes / 1024.0 / 1024.0) / (d.millis / 1000.0));
+            }
+            // ต้นทุนของ -Ddownload.sync ต่อไฟล์นี้ — ใช้เลือก policy ตาม workload
+            System.out.printf("[DOWNLOAD] Durability: %s, %d sync(s) %d ms (%.1f%% of time)\n", Durability.CONFIG,
+                    d.syncs, d.syncMillis, d.millis == 0 ? 0.0 : 100.0 * d.syncMillis / d.millis);
+            System.out.println("[DOWNLOAD] Saved to: " + d.file.getAbsolutePath() + "\n");
 
-                long fileSize = Long.parseLong(response.substring(9).trim());
-                System.out.println("[DOWNLOAD] File size: " + formatBytes(fileSize));
+        } catch (ServerError e) {
+            System.err.println(e.getMessage());
+        } catch (Exception e) {
+            System.err.println("Error during DOWNLOAD: " + e.getMessage());
+            if (new File(DOWNLOAD_DIR, fname + RESUME_SUFFIX).exists()) {
+                System.err.println("[DOWNLOAD] Partial file kept, run the same download again to resume");
+            }
+        }
+    }
 
-                // รอ READY ก่อนเริ่มโหลด
-                response = readLine(channel);
-                if (!"READY".equals(response)) {
-                    System.err.println("Server error: " + response);
-                    return;
-                }
+    // header ของ DOWNLOAD แบบ ranged: FILESIZE <size> / RANGE <offset> <length> <mtime> / [CHECKSUM crc32c <hex>] / READY
+    static class RangeHeader {
+        final long fileSize;
+        final long offset;
+        final long length;
+        final long mtime;
+        final long checksum; // CRC32C ของทั้งไฟล์ — Crc32c.UNKNOWN ถ้า server ยังไม่มี
 
-                // สร้างโฟลเดอร์ downloads ถ้ายังไม่มี
-                System.out.println("[DOWNLOAD] Server ready, starting download...");
-                System.out.println("[DOWNLOAD] Client Mode: " + mode.toUpperCase());
+        RangeHeader(long fileSize, long offset, long length, long mtime, long checksum) {
+            this.fileSize = fileSize;
+            this.offset = offset;
+            this.length = length;
+            this.mtime = mtime;
+            this.checksum = checksum;
+        }
+    }
 
-                File outFile = new File(DOWNLOAD_DIR + "/" + fname);
-                outFile.getParentFile().mkdirs();
+    // server ตอบ ERROR ... แทน header — connection ยังใช้ต่อได้ถ้าอยู่ใน session
+    static class ServerError extends IOException {
+        private static final long serialVersionUID = 1L;
 
-                long startTime = System.currentTimeMillis();
+        ServerError(String message) {
+            super(message);
+        }
+    }
 
-                // เลือกโหมดดาวน์โหลดจากผู้ใช้
-                if (mode.equals("zero")) {
-                    downloadZeroCopy(channel, outFile, fileSize); // ใช้ transferFrom()
-                } else {
-                    downloadNormal(channel, outFile, fileSize);   // ใช้ read/write
-                }
+    // ข้อมูลที่ได้ไม่ตรงกับ CRC32C ของ server — รับครบแล้ว connection จึงยังใช้ต่อได้
+    static class ChecksumMismatch extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ChecksumMismatch(String message) {
+            super(message);
+        }
+    }
+
+    // อ่าน header ของ DOWNLOAD แบบ ranged — โยน IOException พร้อมข้อความจาก server ถ้าไม่ใช่ header ที่คาดไว้
+    // listener ได้ข้อความ [QUEUE] ระหว่างรอคิวของ server
+    static RangeHeader readRangeHeader(SocketChannel channel, boolean binary, FileClient.Listener listener)
+            throws IOException {
+        if (binary) {
+            // frame HEADER เดียวแทน FILESIZE / RANGE / READY
+            ByteBuffer buf = FRAME_BUFFER.get();
+            int op = readFrameAfterQueue(channel, buf, listener);
+            if (op == Wire.OP_HEADER) {
+                return new RangeHeader(buf.getLong(), buf.getLong(), buf.getLong(), buf.getLong(),
+                        Wire.payloadLength(buf) >= 40 ? buf.getLong() : Crc32c.UNKNOWN);
+            }
+            throw frameError(op, buf);
+        }
+
+        // รอรับ FILESIZE <size> (หลัง QUEUED ถ้ายังรอคิวอยู่)
+        String response = readLineAfterQueue(channel, listener);
+        if (response != null && response.startsWith("ERROR")) {
+            throw new ServerError("Server error: " + response);
+        }
+        if (response == null || !response.startsWith("FILESIZE ")) {
+            throw new IOException("Invalid response from server: " + response);
+        }
+        long fileSize = Long.parseLong(response.substring(9).trim());
 
-                long endTime = System.currentTimeMillis();
-                long duration = endTime - startTime;
-                double speed = (fileSize / 1024.0 / 1024.0) / (duration / 1000.0);
+        // รอรับ RANGE <offset> <length> <mtime>
+        response = readLine(channel);
+        if (response == null || !response.startsWith("RANGE ")) {
+            throw new IOException("Invalid response from server: " + response);
+        }
+        String[] range = response.split(" ");
 
-                // แสดงผลลัพธ์การดาวน์โหลด
-                System.out.println("\n[DOWNLOAD] ✅ Completed: " + fname);
-                System.out.println("[DOWNLOAD] Time: " + duration + " ms");
-                System.out.printf("[DOWNLOAD] Speed: %.2f MB/s\n", speed);
-                System.out.println("[DOWNLOAD] Saved to: " + outFile.getAbsolutePath() + "\n");
+        // CHECKSUM crc32c <hex> (ถ้ามี) แล้วรอ READY ก่อนเริ่มโหลด
+        long checksum = Crc32c.UNKNOWN;
+        String ready = readLine(channel);
+        if (ready != null && ready.startsWith("CHECKSUM crc32c ")) {
+            checksum = Crc32c.parseHex(ready.substring(16));
+            ready = readLine(channel);
+        }
+        if (!"READY".equals(ready)) {
+            throw new IOException("Server error: " + ready);
+        }
 
-            } catch (IOException | InterruptedException e) {
-                System.err.println("Error during DOWNLOAD: " + e.getMessage());
+        return new RangeHeader(fileSize, Long.parseLong(range[1]), Long.parseLong(range[2]), Long.parseLong(range[3]), checksum);
+    }
+
+    // server ยังไม่มีช่องส่ง: ข้าม QUEUED <position> (แสดงลำดับให้เห็น) — คืนบรรทัดแรกที่ไม่ใช่ QUEUED
+    static String readLineAfterQueue(SocketChannel channel, FileClient.Listener listener) throws IOException {
+        String line = readLine(channel);
+        while (line != null && line.startsWith("QUEUED ")) {
+            Metrics.CLIENT_QUEUED.increment();
+            listener.message("[QUEUE] Waiting for a transfer slot, position " + line.substring(7).trim());
+            line = readLine(channel);
+        }
+        return line;
+    }
+
+    // แบบ binary: ข้าม frame QUEUED — คืน opcode ของ frame แรกที่ไม่ใช่ QUEUED
+    static int readFrameAfterQueue(SocketChannel channel, ByteBuffer buf, FileClient.Listener listener) throws IOException {
+        int op = Wire.readFrame(channel, buf);
+        while (op == Wire.OP_QUEUED) {
+            Metrics.CLIENT_QUEUED.increment();
+            listener.message("[QUEUE] Waiting for a transfer slot, position " + buf.getInt());
+            op = Wire.readFrame(channel, buf);
+        }
+        return op;
+    }
+
+    // ---------------- การเชื่อมต่อและคำสั่ง (ข้อความหรือ binary ตามโปรโตคอลของ connection นั้น) ----------------
+
+    // connection ใหม่ของ console ใช้โปรโตคอลที่เลือกไว้ด้วยคำสั่ง protocol
+    static SocketChannel connect() throws IOException {
+        return connect(new InetSocketAddress(SERVER_IP, SERVER_PORT), binaryProtocol);
+    }
+
+    // เปิด connection ใหม่ไปยัง server — ถ้าใช้ binary จะตกลงโปรโตคอลก่อน (connection แบบ binary เป็น keep-alive)
+    static SocketChannel connect(InetSocketAddress address, boolean binary) throws IOException {
+        SocketChannel channel = Tuning.connect(address); // socket ตาม profile + วัด RTT
+        if (binary) {
+            try {
+                Wire.negotiate(channel);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
             }
-            
-        } catch (IOException e) {
-            System.err.println("Network error: " + e.getMessage());
         }
+        return channel;
+    }
+
+    static void requestList(SocketChannel channel, boolean binary) throws IOException {
+        if (binary) {
+            sendFrame(channel, Wire.OP_LIST);
+        } else {
+            writeLine(channel, "LIST");
+        }
+    }
+
+    // อ่านชื่อไฟล์ถัดไปของ LIST — คืน null เมื่อจบรายการ
+    static String readListEntry(SocketChannel channel, boolean binary) throws IOException {
+        if (binary) {
+            ByteBuffer buf = FRAME_BUFFER.get();
+            int op = Wire.readFrame(channel, buf);
+            if (op == Wire.OP_ENTRY) return Wire.getString(buf);
+            if (op == Wire.OP_END) return null;
+            throw frameError(op, buf);
+        }
+
+        String line = readLine(channel);
+        if (line == null || "END".equals(line)) return null;
+        if (line.startsWith("ERROR")) throw new ServerError("Server error: " + line);
+        return line;
+    }
+
+    // DOWNLOAD <file> <mode> <offset> <length> [<mtime>] — ifMtime = -1 คือไม่ระบุ
+    static void requestDownload(SocketChannel channel, boolean binary, String fname, String mode,
+                                long offset, long length, long ifMtime) throws IOException {
+        if (binary) {
+            ByteBuffer buf = FRAME_BUFFER.get();
+            buf.clear();
+            Wire.putDownload(buf, fname, mode, offset, length, ifMtime);
+            buf.flip();
+            Wire.writeFully(channel, buf);
+        } else {
+            writeLine(channel, "DOWNLOAD " + fname + " " + mode + " " + offset + " " + length
+                    + (ifMtime >= 0 ? " " + ifMtime : ""));
+        }
+    }
+
+    // ส่ง frame ที่ไม่มี field (LIST / QUIT)
+    static void sendFrame(SocketChannel channel, int op) throws IOException {
+        ByteBuffer buf = FRAME_BUFFER.get();
+        buf.clear();
+        Wire.end(buf, Wire.begin(buf, op));
+        buf.flip();
+        Wire.writeFully(channel, buf);
+    }
+
+    // frame ที่ไม่ได้คาดไว้ → ERROR จาก server หรือ protocol ผิดพลาด
+    static IOException frameError(int op, ByteBuffer buf) {
+        if (op == Wire.OP_ERROR) return new ServerError("Server error: ERROR " + Wire.getString(buf));
+        if (op == -1) return new IOException("Connection closed");
+        return new IOException("Unexpected frame from server: " + op);
     }
 
     // ZERO-COPY ฝั่ง client: ใช้ FileChannel.transferFrom() รับข้อมูลจาก network → file
-    static void downloadZeroCopy(SocketChannel channel, File outFile, long fileSize) 
-            throws IOException, InterruptedException {
+    // เขียนต่อจาก offset (ส่วนก่อนหน้าคือไฟล์ที่โหลดค้างไว้)
+    // checksum: CRC32C ของทั้งไฟล์จาก header — คำนวณตามหลังบน thread แยก (Crc32c.Follower) เพื่อไม่ทำลาย zero-copy
+    static void downloadZeroCopy(SocketChannel channel, Durability.Target target, long offset, long fileSize, long checksum,
+                                 FileClient.Listener listener) throws IOException, InterruptedException {
         
-        System.out.println("[CLIENT] Using ZERO-COPY mode (transferFrom)");
+        listener.message("[CLIENT] Using ZERO-COPY mode (transferFrom)");
         
-        try (FileChannel outChan = new FileOutputStream(outFile).getChannel()) {
-            long bytesTransferred = 0;
+        Crc32c.Follower follower = null;
+        try (FileChannel outChan = target.open(offset, fileSize)) {
+            if (checksum != Crc32c.UNKNOWN) follower = new Crc32c.Follower(outChan, offset);
+            long bytesTransferred = offset;
             long chunk;
-            int retryCount = 0;
+            Tuning.Tuner tuner = Tuning.tuner(channel, false);
+            Tuning.Backoff backoff = new Tuning.Backoff();
+            tuner.begin();
             
             // ส่งข้อมูลทีละ chunk โดยไม่ต้องผ่าน user-space buffer
             while (bytesTransferred < fileSize) {
                 chunk = outChan.transferFrom(
                     channel,                                        // อ่านจาก socket channel
                     bytesTransferred,                               // ตำแหน่งเริ่มต้นในไฟล์
-                    Math.min(65536, fileSize - bytesTransferred) // ขนาดที่จะ transfer (64KB) ต่อรอบ
+                    Math.min(tuner.slice(), fileSize - bytesTransferred) // ขนาดต่อรอบตาม profile / Tuner
                 );
                 
-                if (chunk == 0) { // ถ้ายังไม่มี data ก็รอ
-                    retryCount++;
-                    if (retryCount > 100) {
-                        System.err.println("\nConnection timeout or closed");
+                if (chunk == 0) { // ถ้ายังไม่มี data ก็รอ (นานขึ้นทีละเท่าตัว)
+                    Metrics.CLIENT_TRANSFER_FROM_ZERO.increment();
+                    if (!backoff.pause()) {
+                        listener.message("\nConnection timeout or closed");
                         break;
                     }
-                    Thread.sleep(10);
                     continue;
                 }
                 
-                retryCount = 0;
+                Metrics.CLIENT_TRANSFER_FROM.record(chunk);
+                backoff.reset();
+                tuner.record(chunk);
                 bytesTransferred += chunk;
-                printProgress(bytesTransferred, fileSize);
+                target.written(bytesTransferred);
+                if (follower != null) follower.advance(bytesTransferred);
+                listener.progress(bytesTransferred, fileSize);
             }
             
-            // ตรวจสอบว่ารับครบหรือไม่
+            // ตรวจสอบว่ารับครบหรือไม่ — ไม่ลบไฟล์ เก็บไว้ resume รอบหน้า
             if (bytesTransferred != fileSize) {
-                System.err.println("\n[CLIENT] ❌ Incomplete: " + 
+                listener.message("\n[CLIENT] ❌ Incomplete: " + 
                     bytesTransferred + "/" + fileSize + " bytes");
-                outFile.delete();
                 throw new IOException("Incomplete transfer");
             }
             
-            System.out.println("\n[ZERO] ✅ Transfer complete using transferFrom()");
+            listener.message("\n[ZERO] ✅ Transfer complete using transferFrom()");
+            verify(outChan, checksum, follower != null ? follower.finish() : Crc32c.UNKNOWN, listener);
+        } finally {
+            if (follower != null) follower.cancel();
         }
     }
 
-    // NORMAL COPY: อ่านจาก SocketChannel → ByteBuffer → FileChannel
-    static void downloadNormal(SocketChannel channel, File outFile, long fileSize) 
-            throws IOException, InterruptedException {
+    // NORMAL COPY: อ่านจาก SocketChannel → direct buffer หลายก้อน (scattering read) → FileChannel (gathering write)
+    // แยกเป็น 2 stage: thread นี้อ่าน network ลง slot ของ DiskWriter ส่วน thread ของ DiskWriter เขียนไฟล์ + CRC32C
+    // → ระหว่างที่ดิสก์เขียนอยู่ยังรับข้อมูลจาก socket ต่อได้ (TCP window ไม่ตันตามดิสก์)
+    // buffer มาจาก BufferPool (-Dbuffer.size x -Dbuffer.scatter ต่อ slot) ใช้ซ้ำข้ามการโหลด ไม่จองใหม่ต่อไฟล์
+    // เขียนต่อจาก offset (ส่วนก่อนหน้าคือไฟล์ที่โหลดค้างไว้)
+    // checksum: CRC32C ของทั้งไฟล์จาก header — คำนวณจาก buffer ที่รับมาทีละรอบ (ไม่ต้องอ่านไฟล์ซ้ำ)
+    static void downloadNormal(SocketChannel channel, Durability.Target target, long offset, long fileSize, long checksum,
+                               FileClient.Listener listener) throws IOException, InterruptedException {
         
-        System.out.println("[CLIENT] Using NORMAL mode (read/write)");
+        listener.message("[CLIENT] Using NORMAL mode (read/write)");
         
-        try (FileChannel outChan = new FileOutputStream(outFile).getChannel()) {
-            ByteBuffer buffer = ByteBuffer.allocate(8192); // 8KB buffer
-            long bytesTransferred = 0;
-            int retryCount = 0;
-            
-            // ลูปอ่านข้อมูลจาก network ทีละ 8KB
-            while (bytesTransferred < fileSize) {
-                buffer.clear(); // เตรียม buffer ใหม่
-                
-                // อ่านจาก network
-                int bytesRead = channel.read(buffer);
-                
-                if (bytesRead == -1) {
-                    System.err.println("\nConnection closed unexpectedly");
-                    break;
+        try (FileChannel outChan = target.open(offset, fileSize)) {
+            CRC32C crc = checksum != Crc32c.UNKNOWN ? new CRC32C() : null;
+            if (crc != null && offset > 0) {
+                ByteBuffer buffer = BufferPool.SHARED.take();
+                try {
+                    Crc32c.update(crc, outChan, 0, offset, buffer); // ส่วนที่โหลดค้างไว้ (อ่านครั้งเดียวตอน resume)
+                } finally {
+                    BufferPool.SHARED.give(buffer);
                 }
-                
-                if (bytesRead == 0) { // ถ้ายังไม่มีข้อมูลก็รอ
-                    retryCount++;
-                    if (retryCount > 100) {
-                        System.err.println("\nConnection timeout");
+            }
+            long bytesTransferred = offset;
+            Tuning.Backoff backoff = new Tuning.Backoff();
+            DiskWriter writer = new DiskWriter(outChan, crc, target, offset);
+            try {
+                // ลูปอ่านข้อมูลจาก network ครั้งละไม่เกิน buffer.size x buffer.scatter
+                while (bytesTransferred < fileSize) {
+                    ByteBuffer[] slot = writer.take(); // รอถ้าดิสก์ยังเขียน slot ก่อน ๆ ไม่เสร็จ
+                    // ไม่อ่านเกินท้ายไฟล์ — ใน session ข้อมูลที่ตามมาคือคำตอบของคำสั่งถัดไป
+                    BufferPool.limit(slot, fileSize - bytesTransferred);
+                    
+                    // อ่านจาก network ลงหลาย buffer ใน syscall เดียว
+                    long bytesRead;
+                    try {
+                        bytesRead = channel.read(slot);
+                    } finally {
+                        writer.submit(slot); // เขียนลงไฟล์บน thread ของ writer (slot ว่าง / read ล้มก็แค่คืนกลับ ไม่หลุดจาก pool)
+                    }
+                    
+                    if (bytesRead == -1) {
+                        listener.message("\nConnection closed unexpectedly");
                         break;
                     }
-                    Thread.sleep(10);
-                    continue;
-                }
-                
-                retryCount = 0;
-                buffer.flip(); // เตรียม buffer เพื่อเขียนลงไฟล์
-                
-                // เขียนจาก buffer → file
-                while (buffer.hasRemaining()) {
-                    outChan.write(buffer);
+                    
+                    if (bytesRead == 0) { // ถ้ายังไม่มีข้อมูลก็รอ (นานขึ้นทีละเท่าตัว)
+                        if (!backoff.pause()) {
+                            listener.message("\nConnection timeout");
+                            break;
+                        }
+                        continue;
+                    }
+                    
+                    Metrics.CLIENT_READ.record(bytesRead);
+                    backoff.reset();
+                    bytesTransferred += bytesRead;
+                    listener.progress(bytesTransferred, fileSize);
                 }
-                
-                bytesTransferred += bytesRead;
-                printProgress(bytesTransferred, fileSize);
+                writer.finish(); // รอดิสก์เขียนส่วนที่เหลือในคิว
+            } finally {
+                writer.close(); // ล้มเหลวกลางทาง: ส่วนที่รับแล้วยังถูกเขียนลงไฟล์ (resume ต่อได้)
             }
             
+            // ไม่ลบไฟล์ เก็บไว้ resume รอบหน้า
             if (bytesTransferred != fileSize) {
-                System.err.println("\n[CLIENT] ❌ Incomplete: " + 
+                listener.message("\n[CLIENT] ❌ Incomplete: " + 
                     bytesTransferred + "/" + fileSize + " bytes");
-                outFile.delete();
                 throw new IOException("Incomplete transfer");
             }
             
-            System.out.println("\n[NORMAL] ✅ Transfer complete using read/write");
+            listener.message("\n[NORMAL] ✅ Transfer complete using read/write");
+            verify(outChan, checksum, crc != null ? crc.getValue() : Crc32c.UNKNOWN, listener);
+        }
+    }
+
+    // COMPRESSED: รับ chunk ที่บีบไว้ (deflate / fast) แล้วคลายลง FileChannel ตรง ๆ ผ่าน direct buffer
+    // คืนจำนวน byte ที่รับผ่าน network จริง
+    static long downloadCompressed(SocketChannel channel, Durability.Target target, long offset, long fileSize, long checksum,
+                                   FileClient.Listener listener) throws IOException {
+
+        listener.message("[CLIENT] Using COMPRESSED mode (chunked deflate)");
+
+        try (FileChannel outChan = target.open(offset, fileSize)) {
+            CRC32C crc = checksum != Crc32c.UNKNOWN ? new CRC32C() : null;
+            if (crc != null && offset > 0) {
+                ByteBuffer buffer = BufferPool.SHARED.take(CompressedTransfer.CHUNK);
+                try {
+                    Crc32c.update(crc, outChan, 0, offset, buffer); // ส่วนที่โหลดค้างไว้
+                } finally {
+                    BufferPool.SHARED.give(buffer);
+                }
+            }
+            long received = CompressedTransfer.receive(channel, outChan, target, offset, fileSize - offset, fileSize, crc,
+                    listener);
+
+            listener.message("\n[COMPRESSED] ✅ Transfer complete, decompressed into file");
+            verify(outChan, checksum, crc != null ? crc.getValue() : Crc32c.UNKNOWN, listener);
+            return received;
+        }
+    }
+
+    // โหมดที่ server รองรับ: zero / normal ส่งข้อมูลเดิม, deflate / fast บีบอัดระหว่างส่ง
+    static boolean isValidMode(String mode) {
+        return mode.equals("zero") || mode.equals("normal") || CompressedTransfer.isCompressed(mode);
+    }
+
+    // เทียบ CRC32C ที่คำนวณได้กับค่าจาก server — ถ้าไม่ตรงจะล้างไฟล์ให้เหลือ 0 byte
+    // (ครั้งถัดไปจึงโหลดใหม่ทั้งไฟล์ ไม่ resume ต่อจากข้อมูลที่เสีย)
+    static void verify(FileChannel outChan, long expected, long actual, FileClient.Listener listener)
+            throws IOException {
+        if (expected == Crc32c.UNKNOWN) {
+            listener.message("[VERIFY] Server has no checksum for this file yet, not verified");
+            return;
+        }
+        if (expected != actual) {
+            outChan.truncate(0);
+            throw new ChecksumMismatch("Checksum mismatch: expected crc32c " + Crc32c.toHex(expected)
+                    + ", got " + Crc32c.toHex(actual));
+        }
+        listener.message("[VERIFY] ✅ crc32c " + Crc32c.toHex(actual));
+    }
+
+    // ข้อมูลของไฟล์ต้นฉบับที่โหลดค้างไว้ เก็บใน downloads/<fname>.resume เป็น "<size> <mtime> <valid>"
+    // valid = จำนวน byte ต้นไฟล์ที่รับแล้ว (.part ถูกขยายเป็นขนาดเต็มไว้ก่อน ความยาวไฟล์จึงบอกไม่ได้)
+    static class ResumeInfo {
+        final long size;
+        final long mtime;
+        final long valid;
+
+        ResumeInfo(long size, long mtime, long valid) {
+            this.size = size;
+            this.mtime = mtime;
+            this.valid = valid;
+        }
+
+        // คืน null ถ้าไม่มีส่วนที่โหลดค้างไว้ หรือข้อมูลเสีย/ไม่สอดคล้องกับไฟล์ที่มีอยู่
+        // .resume แบบเดิม (ไม่มี valid) ใช้ความยาวของไฟล์แทน
+        static ResumeInfo load(File outFile, File resumeFile) {
+            if (!outFile.exists() || !resumeFile.exists()) return null;
+
+            try (BufferedReader reader = new BufferedReader(new FileReader(resumeFile))) {
+                String[] parts = reader.readLine().trim().split(" ");
+                long length = outFile.length();
+                long valid = parts.length > 2 ? Math.min(Long.parseLong(parts[2]), length) : length;
+                ResumeInfo info = new ResumeInfo(Long.parseLong(parts[0]), Long.parseLong(parts[1]), valid);
+                if (length > info.size || valid < 0) return null; // ใหญ่กว่าต้นฉบับ → ใช้ไม่ได้
+                return info;
+            } catch (IOException | RuntimeException e) {
+                return null;
+            }
+        }
+
+        void save(File resumeFile) throws IOException {
+            try (FileWriter writer = new FileWriter(resumeFile)) {
+                writer.write(size + " " + mtime + " " + valid + "\n");
+            }
         }
     }
 
@@ -309,16 +725,25 @@ public class ClientMain {
         }
     }
 
-    // พิมพ์ progress bar ระหว่างดาวน์โหลด
+    // พิมพ์ progress bar ระหว่างดาวน์โหลด — วาดใหม่ไม่เกิน 10 ครั้งต่อวินาที (ยกเว้นตอนครบ)
+    // เรียกได้จากหลาย thread (ParallelDownload): thread ที่ชนะ CAS ของรอบนั้นเป็นคนพิมพ์ ที่เหลือข้ามไปโดยไม่ต้อง lock
     static void printProgress(long transferred, long total) {
+        long now = System.nanoTime();
+        long next = nextProgress.get();
+        if (transferred < total
+                && (now - next < 0 || !nextProgress.compareAndSet(next, now + PROGRESS_INTERVAL_NANOS))) return;
         int width = 40;
         double pct = (double) transferred / total;
         int done = (int) (pct * width);
 
-        String bar = "[" + "=".repeat(done) + " ".repeat(width - done) + "] "
-                + (int)(pct * 100) + "% (" + formatBytes(transferred) + "/" + formatBytes(total) + ")";
+        StringBuilder bar = new StringBuilder(96).append("\r[");
+        for (int i = 0; i < width; i++) {
+            bar.append(i < done ? '=' : ' ');
+        }
+        bar.append("] ").append((int) (pct * 100)).append("% (")
+                .append(formatBytes(transferred)).append('/').append(formatBytes(total)).append(')');
 
-        System.out.print("\r" + bar);
+        System.out.print(bar);
     }
 
     // แปลง byte → KB/MB/GB เพื่อให้อ่านง่าย
@@ -0,0 +1,207 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.List;
+
+// connection แบบ keep-alive: ส่ง SESSION ครั้งเดียวแล้วใช้ส่งหลายคำสั่งต่อเนื่องบน connection เดิม
+// (โปรโตคอล binary เป็น keep-alive อยู่แล้ว จึงไม่ต้องส่ง SESSION)
+// ประหยัด TCP handshake + slow-start ต่อไฟล์ เมื่อโหลดไฟล์เล็กจำนวนมาก
+// downloadAll ส่ง DOWNLOAD ล่วงหน้า (pipeline) ได้สูงสุด PIPELINE_DEPTH คำสั่งโดยไม่รอคำตอบ แล้วรับไฟล์ตามลำดับที่ขอ
+// FileClient เก็บ session ไว้เป็น pool ของ connection ที่ใช้ซ้ำ
+public class ClientSession implements Closeable {
+    static final int PIPELINE_DEPTH = 16;
+    static final int LIST_PAGE = 1000; // จำนวนรายการต่อหน้าของ LIST <glob>
+
+    private final SocketChannel channel;
+    final boolean binary;      // โปรโตคอลตอนเปิด — ทุกคำสั่งบน connection นี้ใช้โปรโตคอลนี้
+    private ByteBuffer frames; // buffer รวม frame DOWNLOAD ของแต่ละรอบ (binary)
+
+    private ClientSession(SocketChannel channel, boolean binary) {
+        this.channel = channel;
+        this.binary = binary;
+    }
+
+    // session ของ console ใช้โปรโตคอลที่เลือกไว้ด้วยคำสั่ง protocol
+    static ClientSession open() throws IOException {
+        return open(new InetSocketAddress(ClientMain.SERVER_IP, ClientMain.SERVER_PORT), ClientMain.binaryProtocol);
+    }
+
+    // เชื่อมต่อและเปิด session — server ตอบ OK SESSION
+    static ClientSession open(InetSocketAddress address, boolean binary) throws IOException {
+        SocketChannel channel = ClientMain.connect(address, binary);
+        if (binary) {
+            return new ClientSession(channel, true);
+        }
+        try {
+            ClientMain.writeLine(channel, "SESSION");
+            String response = ClientMain.readLine(channel);
+            if (!"OK SESSION".equals(response)) {
+                throw new IOException("Server does not support sessions: " + response);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new ClientSession(channel, false);
+    }
+
+    SocketChannel channel() {
+        return channel;
+    }
+
+    // โหลดทุกไฟล์ผ่าน session เดียว
+    static void downloadAll(String mode, List<String> names) {
+        if (!ClientMain.isValidMode(mode)) {
+            System.err.println("Invalid mode. Use 'zero', 'normal', 'deflate' or 'fast'");
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+        long totalBytes = 0;
+        int completed = 0;
+
+        try (ClientSession session = open()) {
+            System.out.println("[SESSION] Connected, " + names.size() + " file(s), pipeline depth " + PIPELINE_DEPTH);
+
+            int sent = 0;
+            for (int received = 0; received < names.size(); received++) {
+                // ส่งคำสั่งล่วงหน้าให้มีค้างอยู่ไม่เกิน PIPELINE_DEPTH (รวมเป็น write เดียว)
+                int batchEnd = Math.min(names.size(), received + PIPELINE_DEPTH);
+                if (sent < batchEnd) {
+                    session.requestDownloads(names.subList(sent, batchEnd), mode);
+                    sent = batchEnd;
+                }
+
+                String fname = names.get(received);
+                try {
+                    totalBytes += session.receiveDownload(fname, mode);
+                    completed++;
+                } catch (ClientMain.ServerError | ClientMain.ChecksumMismatch e) {
+                    // คำสั่งนี้ล้มเหลว แต่ connection ยังอยู่ → ไปไฟล์ถัดไป
+                    System.err.println("[SESSION] " + fname + ": " + e.getMessage());
+                }
+            }
+
+        } catch (IOException | InterruptedException e) {
+            System.err.println("Error during SESSION: " + e.getMessage());
+        }
+
+        long duration = System.currentTimeMillis() - startTime;
+        double speed = (totalBytes / 1024.0 / 1024.0) / (duration / 1000.0);
+
+        System.out.println("\n[SESSION] ✅ Completed " + completed + "/" + names.size() + " files ("
+                + ClientMain.formatBytes(totalBytes) + ") in " + duration + " ms");
+        System.out.printf("[SESSION] Speed: %.2f MB/s, %.1f files/s\n\n", speed, completed / (duration / 1000.0));
+    }
+
+    // LIST <glob> <limit> [<cursor>] แล้วเพิ่มรายการของหน้านั้นลง files — คืน cursor ของหน้าถัดไป (null = หมดแล้ว)
+    String listPage(String glob, int limit, String cursor, List<FileClient.FileInfo> files) throws IOException {
+        if (binary) {
+            ByteBuffer buf = ClientMain.FRAME_BUFFER.get();
+            buf.clear();
+            Wire.putList(buf, glob, limit, cursor);
+            buf.flip();
+            Wire.writeFully(channel, buf);
+
+            int op;
+            while ((op = Wire.readFrame(channel, buf)) == Wire.OP_FILE) {
+                files.add(new FileClient.FileInfo(Wire.getString(buf), buf.getLong(), buf.getLong()));
+            }
+            if (op == Wire.OP_END) return null;
+            if (op == Wire.OP_MORE) return Wire.getString(buf);
+            throw ClientMain.frameError(op, buf);
+        }
+
+        ClientMain.writeLine(channel, "LIST " + glob + " " + limit + (cursor != null ? " " + cursor : ""));
+        String line;
+        while ((line = ClientMain.readLine(channel)) != null) {
+            if (line.equals("END")) return null;
+            if (line.startsWith("MORE ")) return line.substring(5);
+            if (line.startsWith("ERROR")) throw new ClientMain.ServerError("Server error: " + line);
+
+            // <name> <size> <mtime>
+            int mtimeAt = line.lastIndexOf(' ');
+            int sizeAt = line.lastIndexOf(' ', mtimeAt - 1);
+            files.add(new FileClient.FileInfo(line.substring(0, sizeAt),
+                    Long.parseLong(line.substring(sizeAt + 1, mtimeAt)), Long.parseLong(line.substring(mtimeAt + 1))));
+        }
+        throw new IOException("Connection closed");
+    }
+
+    // ส่ง DOWNLOAD หลายคำสั่งต่อกันใน write เดียว โดยไม่รอคำตอบ
+    void requestDownloads(List<String> names, String mode) throws IOException {
+        if (binary) {
+            if (frames == null) frames = ByteBuffer.allocate(PIPELINE_DEPTH * 1024);
+            frames.clear();
+            for (String fname : names) {
+                Wire.putDownload(frames, fname, mode, 0, -1, -1);
+            }
+            frames.flip();
+            Wire.writeFully(channel, frames);
+            return;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (String fname : names) {
+            sb.append("DOWNLOAD ").append(fname).append(' ').append(mode).append(" 0 -1\n");
+        }
+        String commands = sb.toString();
+        ClientMain.writeLine(channel, commands.substring(0, commands.length() - 1));
+    }
+
+    // รับคำตอบของ DOWNLOAD ถัดไปในคิว แล้วเขียนลง downloads/<fname> — คืนจำนวน byte ที่ได้ (pipeline ของ console)
+    long receiveDownload(String fname, String mode) throws IOException, InterruptedException {
+        ClientMain.RangeHeader header = ClientMain.readRangeHeader(channel, binary, ClientMain.CONSOLE);
+
+        // ไม่ resume (ขอทั้งไฟล์เสมอ) แต่ยังรับลง .part แล้ว rename เมื่อครบเหมือน DOWNLOAD ปกติ
+        Durability.Target target = Durability.CONFIG.target(new File(ClientMain.DOWNLOAD_DIR, fname), false);
+        target.begin(header.fileSize, header.mtime, 0);
+
+        System.out.println("[SESSION] " + fname + " (" + ClientMain.formatBytes(header.fileSize) + ")");
+        try {
+            if (CompressedTransfer.isCompressed(mode)) {
+                ClientMain.downloadCompressed(channel, target, 0, header.fileSize, header.checksum, ClientMain.CONSOLE);
+            } else if (mode.equals("zero")) {
+                ClientMain.downloadZeroCopy(channel, target, 0, header.fileSize, header.checksum, ClientMain.CONSOLE);
+            } else {
+                ClientMain.downloadNormal(channel, target, 0, header.fileSize, header.checksum, ClientMain.CONSOLE);
+            }
+            target.commit();
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            target.abort();
+            throw e;
+        }
+        return header.fileSize;
+    }
+
+    // แจ้ง server ว่าจบ session แล้วปิด connection
+    @Override
+    public void close() throws IOException {
+        try {
+            if (binary) {
+                ClientMain.sendFrame(channel, Wire.OP_QUIT);
+            } else {
+                ClientMain.writeLine(channel, "QUIT");
+            }
+        } catch (IOException ignored) {
+        } finally {
+            channel.close();
+        }
+    }
+
+    void closeQuietly() {
+        try {
+            close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    // ปิดโดยไม่ส่ง QUIT — connection เสียแล้ว (ข้อมูลค้างอยู่หรือ server ปิดไปแล้ว)
+    void abort() {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
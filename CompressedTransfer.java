@@ -0,0 +1,294 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// โหมด DOWNLOAD แบบบีบอัดระหว่างส่ง: DOWNLOAD <file> deflate|fast
+// - ข้อมูลหลัง header ถูกแบ่งเป็น chunk ละ CHUNK byte ของไฟล์ แต่ละ chunk = [flag 1 byte][raw i32][encoded i32][ข้อมูล]
+//   flag STORED = ส่งข้อมูลเดิม (บีบแล้วไม่เล็กลงพอ), DEFLATED = บีบด้วย Deflater (raw deflate แยกอิสระต่อ chunk)
+// - header ยังบอกความยาวเดิม (ก่อนบีบ) client จึงรู้ว่าต้องรับกี่ chunk และ resume / CRC32C ใช้ได้เหมือนเดิม
+// - อ่านไฟล์ + บีบอัดบน worker pool (thread ละ Deflater) ล่วงหน้าได้ DEPTH chunk ขณะที่ chunk ก่อนหน้ากำลังถูกส่ง
+//   → อ่าน / บีบ / ส่ง ทำซ้อนกันเป็น pipeline โดยส่งตามลำดับ chunk เสมอ
+// - ถ้า chunk บีบไม่ได้ (เช่นไฟล์ที่บีบอัดมาแล้ว) จะข้ามการบีบ chunk ถัด ๆ ไปเป็นช่วงที่ยาวขึ้นเรื่อย ๆ (สูงสุด MAX_SKIP)
+//   แล้วลองใหม่ — ไม่เสีย CPU กับข้อมูลที่บีบไม่ได้ แต่ยังตามทันถ้าเนื้อหาในไฟล์เปลี่ยนไป
+// - buffer ทุกตัวเป็น direct buffer จาก BufferPool ใช้ซ้ำข้ามการส่ง (ทั้ง server และ client ที่รับ)
+final class CompressedTransfer {
+    static final int CHUNK = 256 * 1024;
+    static final int CHUNK_HEADER = 9;
+    static final int STORED = 0;
+    static final int DEFLATED = 1;
+
+    private static final int DEPTH = 4;            // จำนวน chunk ที่อ่าน/บีบล่วงหน้าได้ต่อการส่ง 1 ครั้ง
+    private static final int MAX_SKIP = 64;
+    private static final double MIN_SAVING = 0.03; // ต้องเล็กลงอย่างน้อย 3% จึงคุ้มให้ client คลาย
+    private static final BufferPool buffers = BufferPool.SHARED; // direct buffer ของ chunk ใช้ซ้ำร่วมกับโหมด normal
+
+    private static final AtomicInteger workerId = new AtomicInteger();
+    private static final ExecutorService workers = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), r -> {
+                Thread t = new Thread(r, "compress-" + workerId.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+    private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(6, true));
+
+    // ระดับการบีบของแต่ละโหมด — คืน -1 ถ้าไม่ใช่โหมดบีบอัด
+    static int levelFor(String mode) {
+        if (mode.equals("deflate")) return 6;
+        if (mode.equals("fast")) return Deflater.BEST_SPEED;
+        return -1;
+    }
+
+    static boolean isCompressed(String mode) {
+        return levelFor(mode) >= 0;
+    }
+
+    // ---------------- server ----------------
+
+    // chunk ที่อ่าน/บีบแล้ว รอส่งตามลำดับ
+    private static final class Chunk {
+        final ByteBuffer frame; // [header][ข้อมูล] พร้อมเขียน
+        final boolean tried;    // พยายามบีบแล้ว (ไม่ได้ข้ามตาม backoff)
+
+        Chunk(ByteBuffer frame, boolean tried) {
+            this.frame = frame;
+            this.tried = tried;
+        }
+    }
+
+    private final FileChannel file;
+    private final int level;
+    private final long end;
+    private long nextRead;       // ตำแหน่งของ chunk ถัดไปที่จะส่งให้ worker
+    private final ArrayDeque<CompletableFuture<Chunk>> pending = new ArrayDeque<>();
+    private ByteBuffer current;  // chunk ที่กำลังส่ง
+    private int skip = 1;        // backoff: ข้ามการบีบกี่ chunk หลังเจอ chunk ที่บีบไม่ได้
+    private long skipUntil;      // ไม่บีบ chunk ที่เริ่มก่อนตำแหน่งนี้
+    private long wireBytes;
+    private int storedChunks;
+    private int deflatedChunks;
+
+    // ส่งช่วง [offset, offset + length) ของ file — เริ่มอ่าน/บีบล่วงหน้าทันที
+    CompressedTransfer(FileChannel file, String mode, long offset, long length) {
+        this.file = file;
+        this.level = levelFor(mode);
+        this.nextRead = offset;
+        this.end = offset + length;
+        this.skipUntil = offset;
+        fill();
+    }
+
+    private void fill() {
+        while (pending.size() < DEPTH && nextRead < end) {
+            long position = nextRead;
+            int length = (int) Math.min(CHUNK, end - position);
+            boolean tryDeflate = position >= skipUntil;
+            nextRead += length;
+            pending.add(CompletableFuture.supplyAsync(() -> encode(position, length, tryDeflate), workers));
+        }
+    }
+
+    // อ่าน chunk จากไฟล์ (positional read) แล้วบีบ — ทำบน worker
+    private Chunk encode(long position, int length, boolean tryDeflate) {
+        ByteBuffer raw = buffers.take(CHUNK);
+        ByteBuffer frame = buffers.take(CHUNK_HEADER + CHUNK);
+        try {
+            raw.clear().limit(length);
+            while (raw.hasRemaining()) {
+                if (file.read(raw, position + raw.position()) == -1) throw new EOFException("Unexpected end of file");
+            }
+            raw.flip();
+
+            frame.clear().position(CHUNK_HEADER);
+            if (tryDeflate) {
+                // ให้ output เล็กกว่าข้อมูลเดิมอย่างน้อย MIN_SAVING — ถ้าบีบไม่จบในพื้นที่นี้แปลว่าไม่คุ้ม
+                frame.limit(CHUNK_HEADER + (int) (length * (1 - MIN_SAVING)));
+                Deflater deflater = deflaters.get();
+                deflater.reset();
+                deflater.setLevel(level);
+                deflater.setInput(raw);
+                deflater.finish();
+                while (!deflater.finished() && frame.hasRemaining()) {
+                    deflater.deflate(frame);
+                }
+                if (deflater.finished()) {
+                    frame.put(0, (byte) DEFLATED).putInt(1, length).putInt(5, frame.position() - CHUNK_HEADER);
+                    frame.flip();
+                    return new Chunk(frame, true);
+                }
+                raw.rewind();
+            }
+
+            frame.clear().position(CHUNK_HEADER);
+            frame.put(raw);
+            frame.put(0, (byte) STORED).putInt(1, length).putInt(5, length);
+            frame.flip();
+            return new Chunk(frame, tryDeflate);
+        } catch (IOException e) {
+            buffers.give(frame);
+            throw new UncheckedIOException(e);
+        } finally {
+            buffers.give(raw);
+        }
+    }
+
+    // chunk ถัดไปที่ต้องเขียนออก socket (ส่วนที่ยังเขียนไม่หมดของ chunk เดิมถ้ามี) — null เมื่อส่งครบแล้ว
+    // blocking: รอ worker ถ้ายังบีบไม่เสร็จ (ใช้ในโหมด pool)
+    ByteBuffer next() throws IOException {
+        if (current != null && current.hasRemaining()) return current;
+        if (pending.isEmpty()) return release();
+        try {
+            return advance(pending.peek().join());
+        } catch (java.util.concurrent.CompletionException e) {
+            throw e.getCause() instanceof UncheckedIOException
+                    ? ((UncheckedIOException) e.getCause()).getCause() : new IOException(e.getCause());
+        }
+    }
+
+    // แบบ non-blocking สำหรับ event loop: คืน null ถ้า chunk ถัดไปยังไม่พร้อม แล้วเรียก onReady (บน worker) เมื่อพร้อม
+    // ใช้ done() แยกกรณีส่งครบแล้ว
+    ByteBuffer poll(Runnable onReady) throws IOException {
+        if (current != null && current.hasRemaining()) return current;
+        CompletableFuture<Chunk> head = pending.peek();
+        if (head == null) return release();
+        if (!head.isDone()) {
+            head.whenComplete((c, e) -> onReady.run());
+            return null;
+        }
+        return next();
+    }
+
+    boolean done() {
+        return pending.isEmpty() && (current == null || !current.hasRemaining());
+    }
+
+    private ByteBuffer advance(Chunk chunk) {
+        pending.poll();
+        release();
+        current = chunk.frame;
+        wireBytes += current.remaining();
+        boolean stored = current.get(0) == STORED;
+        if (stored) storedChunks++; else deflatedChunks++;
+
+        // ปรับ backoff ตามผลของ chunk ที่พยายามบีบ (ตามลำดับไฟล์)
+        if (chunk.tried) {
+            if (stored) {
+                skipUntil = nextRead + (long) skip * CHUNK;
+                skip = Math.min(MAX_SKIP, skip * 2);
+            } else {
+                skip = 1;
+            }
+        }
+        fill();
+        return current;
+    }
+
+    private ByteBuffer release() {
+        if (current != null) {
+            buffers.give(current);
+            current = null;
+        }
+        return null;
+    }
+
+    // ยกเลิก (client หลุด) — buffer ของ chunk ที่บีบเสร็จแล้วคืน pool
+    void close() {
+        release();
+        for (CompletableFuture<Chunk> f : pending) {
+            f.thenAccept(c -> buffers.give(c.frame));
+        }
+        pending.clear();
+    }
+
+    long wireBytes() {
+        return wireBytes;
+    }
+
+    String summary(long rawBytes) {
+        return String.format("%d -> %d bytes (%.1f%%), %d deflated / %d stored chunk(s)",
+                rawBytes, wireBytes, rawBytes == 0 ? 100.0 : 100.0 * wireBytes / rawBytes, deflatedChunks, storedChunks);
+    }
+
+    // ---------------- client ----------------
+
+    // รับ chunk จนได้ข้อมูลเดิมครบ length byte แล้วคลายลง out ตั้งแต่ตำแหน่ง position — คืนจำนวน byte ที่รับจาก network
+    // crc (ถ้าไม่ใช่ null) ถูกอัปเดตด้วยข้อมูลที่คลายแล้ว, progress แจ้งผ่าน listener
+    static long receive(SocketChannel channel, FileChannel out, Durability.Target target, long position, long length,
+                        long fileSize, CRC32C crc, FileClient.Listener listener) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(CHUNK_HEADER);
+        ByteBuffer encoded = buffers.take(CHUNK);
+        ByteBuffer decoded = buffers.take(CHUNK);
+        Inflater inflater = new Inflater(true);
+        long received = 0;
+        long end = position + length;
+
+        try {
+            while (position < end) {
+                header.clear();
+                readFully(channel, header);
+                int flag = header.get(0);
+                int rawLength = header.getInt(1);
+                int encodedLength = header.getInt(5);
+                if (rawLength <= 0 || rawLength > CHUNK || encodedLength < 0 || encodedLength > CHUNK
+                        || rawLength > end - position) {
+                    throw new IOException("Invalid compressed chunk");
+                }
+
+                encoded.clear().limit(encodedLength);
+                readFully(channel, encoded);
+                encoded.flip();
+                received += CHUNK_HEADER + encodedLength;
+
+                ByteBuffer data;
+                if (flag == STORED) {
+                    data = encoded;
+                } else if (flag == DEFLATED) {
+                    inflater.reset();
+                    inflater.setInput(encoded);
+                    decoded.clear();
+                    try {
+                        while (!inflater.finished() && decoded.hasRemaining()) {
+                            if (inflater.inflate(decoded) == 0 && inflater.needsInput()) break;
+                        }
+                    } catch (DataFormatException e) {
+                        throw new IOException("Corrupt compressed chunk: " + e.getMessage());
+                    }
+                    decoded.flip();
+                    data = decoded;
+                } else {
+                    throw new IOException("Unknown chunk type " + flag);
+                }
+                if (data.remaining() != rawLength) throw new IOException("Compressed chunk has wrong length");
+
+                if (crc != null) {
+                    crc.update(data);
+                    data.flip();
+                }
+                while (data.hasRemaining()) {
+                    position += out.write(data, position);
+                }
+                target.written(position);
+                listener.progress(position, fileSize);
+            }
+        } finally {
+            inflater.end();
+            buffers.give(encoded);
+            buffers.give(decoded);
+        }
+        return received;
+    }
+
+    private static void readFully(SocketChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf) == -1) throw new IOException("Connection closed unexpectedly");
+        }
+    }
+}
@@ -0,0 +1,158 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.zip.CRC32C;
+
+// CRC32C ของไฟล์ทั้งไฟล์ ใช้ตรวจว่าข้อมูลที่ client ได้ตรงกับไฟล์บน server (ใช้ทั้งสองฝั่ง)
+// ค่าเป็น unsigned 32 bit เก็บใน long — UNKNOWN = server ยังคำนวณไม่เสร็จ
+final class Crc32c {
+    static final long UNKNOWN = -1;
+    private static final int POLY = 0x82F63B78; // CRC32C (Castagnoli) แบบ reflected
+
+    private Crc32c() {}
+
+    static String toHex(long crc) {
+        return String.format("%08x", crc);
+    }
+
+    static long parseHex(String hex) {
+        return Long.parseLong(hex, 16);
+    }
+
+    // อ่านช่วง [start, end) ของไฟล์มาต่อท้าย crc (ใช้กับไฟล์ที่อยู่บนดิสก์แล้ว เช่นส่วนที่โหลดค้างไว้)
+    static void update(CRC32C crc, FileChannel file, long start, long end, ByteBuffer buf) throws IOException {
+        long position = start;
+        while (position < end) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), end - position));
+            int read = file.read(buf, position);
+            if (read == -1) throw new EOFException("File ended at " + position);
+            buf.flip();
+            crc.update(buf);
+            position += read;
+        }
+    }
+
+    // CRC ของข้อมูล A ต่อด้วย B จาก crc(A), crc(B) และความยาวของ B โดยไม่ต้องอ่านข้อมูลซ้ำ
+    // (วิธีเดียวกับ crc32_combine ของ zlib: เลื่อน crc(A) ผ่าน len2 byte ที่เป็นศูนย์ด้วยการคูณ matrix บน GF(2))
+    static long combine(long crc1, long crc2, long len2) {
+        if (len2 <= 0) return crc1;
+
+        int[] even = new int[32]; // operator สำหรับเลื่อนผ่านศูนย์ 2^k bit (k คู่)
+        int[] odd = new int[32];  // (k คี่)
+
+        odd[0] = POLY; // operator ของศูนย์ 1 bit
+        int row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        square(even, odd); // ศูนย์ 2 bit
+        square(odd, even); // ศูนย์ 4 bit
+
+        int crc = (int) crc1;
+        do {
+            square(even, odd); // ศูนย์ 1 byte, 4 byte, ...
+            if ((len2 & 1) != 0) crc = times(even, crc);
+            len2 >>>= 1;
+            if (len2 == 0) break;
+
+            square(odd, even);
+            if ((len2 & 1) != 0) crc = times(odd, crc);
+            len2 >>>= 1;
+        } while (len2 != 0);
+
+        return (crc ^ (int) crc2) & 0xFFFFFFFFL;
+    }
+
+    private static int times(int[] mat, int vec) {
+        int sum = 0;
+        for (int i = 0; vec != 0; i++, vec >>>= 1) {
+            if ((vec & 1) != 0) sum ^= mat[i];
+        }
+        return sum;
+    }
+
+    private static void square(int[] square, int[] mat) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = times(mat, mat[n]);
+        }
+    }
+
+    // คำนวณ CRC ของไฟล์ปลายทางตามหลังการเขียนแบบ zero-copy (transferFrom) บน thread แยก
+    // ข้อมูลเพิ่งถูกเขียนจึงยังอยู่ใน page cache — thread ที่รับข้อมูลไม่ต้องอ่านหรือ copy อะไรเพิ่ม
+    // เรียก advance เมื่อเขียนได้ถึงตำแหน่งใหม่ และ finish เมื่อรับครบเพื่อรอ CRC ของทั้งไฟล์
+    static final class Follower implements Runnable {
+        private final FileChannel file;
+        private final CRC32C crc = new CRC32C();
+        private final Thread thread;
+        private long hashed;      // guarded by this
+        private long available;   // guarded by this
+        private boolean stopped;  // guarded by this
+        private IOException error;
+
+        // เริ่มคำนวณจากต้นไฟล์ทันที โดย [0, available) อยู่บนดิสก์แล้ว (ส่วนที่ resume)
+        Follower(FileChannel file, long available) {
+            this.file = file;
+            this.available = available;
+            this.thread = new Thread(this, "crc-follower");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        synchronized void advance(long end) {
+            available = end;
+            notifyAll();
+        }
+
+        // รอจนคำนวณถึงตำแหน่งสุดท้ายที่ advance แล้วคืน CRC
+        long finish() throws IOException, InterruptedException {
+            synchronized (this) {
+                while (hashed < available && error == null) {
+                    wait();
+                }
+                stopped = true;
+                notifyAll();
+            }
+            thread.join();
+            if (error != null) throw error;
+            return crc.getValue();
+        }
+
+        // เลิกคำนวณ (ดาวน์โหลดล้มเหลว)
+        synchronized void cancel() {
+            stopped = true;
+            notifyAll();
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer buf = ByteBuffer.allocateDirect(256 * 1024);
+            try {
+                while (true) {
+                    long start, end;
+                    synchronized (this) {
+                        while (hashed >= available && !stopped) {
+                            wait();
+                        }
+                        if (stopped) return;
+                        start = hashed;
+                        end = available;
+                    }
+                    update(crc, file, start, end, buf);
+                    synchronized (this) {
+                        hashed = end;
+                        notifyAll();
+                    }
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    error = e;
+                    notifyAll();
+                }
+            } catch (InterruptedException e) {
+                // ถูกยกเลิก
+            }
+        }
+    }
+}
@@ -0,0 +1,494 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32C;
+
+// อัปเดตไฟล์ใน downloads/ ที่มีอยู่แล้วโดยโหลดเฉพาะส่วนที่เปลี่ยน (แบบ rsync): sync <file>
+// 1. client แบ่งไฟล์เดิมเป็น block ขนาดเท่ากัน ส่ง signature ของทุก block
+//    (weak rolling checksum 4 byte + SHA-256 16 byte แรก) ไปกับคำสั่ง SYNC
+// 2. server เลื่อนหน้าต่างขนาด 1 block ไปทีละ byte บนไฟล์ปัจจุบัน (rolling checksum คำนวณต่อได้ใน O(1))
+//    ตรงกับ block ไหนของ client ก็ส่งคำสั่ง COPY แทนข้อมูล ส่วนที่ไม่ตรงส่งเป็น DATA
+// 3. client สร้างไฟล์ใหม่ทับไฟล์เดิม (in place) — server ใช้ block เดิมได้เฉพาะ block ที่ยังไม่ถูกเขียนทับ
+//    (ตำแหน่งต้นทาง >= ตำแหน่งที่กำลังเขียน) block ที่อยู่ที่เดิมจึงไม่ต้องอ่าน/เขียนเลย
+// ทั้งสองฝั่งแบ่งงานคำนวณ checksum ตามจำนวน core (parallel stream)
+// ตรวจผลลัพธ์ทั้งไฟล์ด้วย CRC32C จาก manifest: ใช้ CRC ต่อ block ที่คำนวณไว้ตอนทำ signature + Crc32c.combine
+final class DeltaSync {
+    // คำสั่งที่ server ส่งหลัง header ของ SYNC (op 1 byte)
+    static final int COPY = 1;  // [op][block i32][count i32] — ใช้ block เดิมของ client ต่อกัน count block
+    static final int DATA = 2;  // [op][length i32][ข้อมูล]
+    static final int END = 0;   // [op]
+    static final int SIGNATURE_BYTES = 20;
+    static final int STRONG_BYTES = 16;
+    static final int MIN_BLOCK = 1024;
+    static final int MAX_BLOCK = 1 << 20;
+    static final int MAX_BLOCKS = 1 << 22;    // จำกัดขนาด signature ที่ server ยอมรับ (80 MB)
+    static final int MAX_DATA_RECORD = 1 << 20;
+
+    private static final long REGION_MIN = 8L << 20; // server แบ่งไฟล์ให้แต่ละ core อย่างน้อยส่วนละ 8 MB
+    private static final int FILTER_SHIFT = 22;
+    private static final int FILTER_BITS = 1 << FILTER_SHIFT;
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private DeltaSync() {}
+
+    // ขนาด block ประมาณ sqrt(ขนาดไฟล์) ปัดเป็นหลัก KB (แบบ rsync) และไม่ให้จำนวน block เกิน MAX_BLOCKS
+    static int blockSizeFor(long fileSize) {
+        long size = (long) Math.sqrt((double) fileSize);
+        size = (size + 1023) / 1024 * 1024;
+        size = Math.max(size, (fileSize + MAX_BLOCKS - 1) / MAX_BLOCKS);
+        return (int) Math.max(MIN_BLOCK, Math.min(MAX_BLOCK, size));
+    }
+
+    // weak checksum แบบ rsync: a = ผลรวม byte, b = ผลรวมแบบถ่วงน้ำหนัก (16 bit ทั้งคู่)
+    static int weak(byte[] data, int off, int len) {
+        int a = 0, b = 0;
+        for (int i = 0; i < len; i++) {
+            int x = data[off + i] & 0xFF;
+            a += x;
+            b += (len - i) * x;
+        }
+        return (b & 0xFFFF) << 16 | (a & 0xFFFF);
+    }
+
+    // SHA-256 ตัดเหลือ STRONG_BYTES byte แรก
+    private static void strong(byte[] data, int off, int len, byte[] out) {
+        MessageDigest md = SHA256.get();
+        md.update(data, off, len);
+        System.arraycopy(md.digest(), 0, out, 0, out.length);
+    }
+
+    // ---------------- signature (client) ----------------
+
+    // signature ของทุก block เต็มของไฟล์เดิม (block สุดท้ายที่ไม่เต็มไม่นำมาใช้) พร้อม CRC32C ของแต่ละ block
+    static final class Signatures {
+        final int blockSize;
+        final int count;
+        final byte[] data;  // count × [weak i32][strong 16 byte] ส่งให้ server ตรง ๆ
+        final long[] crcs;  // CRC32C ต่อ block ใช้ตรวจไฟล์ใหม่โดยไม่ต้องอ่าน block ที่ไม่เปลี่ยนซ้ำ
+
+        private Signatures(int blockSize, int count) {
+            this.blockSize = blockSize;
+            this.count = count;
+            this.data = new byte[count * SIGNATURE_BYTES];
+            this.crcs = new long[count];
+        }
+
+        // อ่านแต่ละ block แบบ positional read แล้วคำนวณขนานกันตามจำนวน core
+        static Signatures compute(FileChannel file, long fileSize, int blockSize) throws IOException {
+            int count = (int) Math.min(MAX_BLOCKS, fileSize / blockSize);
+            Signatures sigs = new Signatures(blockSize, count);
+            ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(blockSize));
+            try {
+                IntStream.range(0, count).parallel().forEach(i -> {
+                    ByteBuffer buf = buffers.get();
+                    buf.clear();
+                    try {
+                        while (buf.hasRemaining()) {
+                            if (file.read(buf, (long) i * blockSize + buf.position()) == -1) {
+                                throw new EOFException("File shrank while hashing");
+                            }
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    byte[] block = buf.array();
+                    ByteBuffer.wrap(sigs.data, i * SIGNATURE_BYTES, 4).putInt(weak(block, 0, blockSize));
+                    byte[] digest = new byte[STRONG_BYTES];
+                    strong(block, 0, blockSize, digest);
+                    System.arraycopy(digest, 0, sigs.data, i * SIGNATURE_BYTES + 4, STRONG_BYTES);
+                    CRC32C crc = new CRC32C();
+                    crc.update(block, 0, blockSize);
+                    sigs.crcs[i] = crc.getValue();
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            return sigs;
+        }
+    }
+
+    // ---------------- plan (server) ----------------
+
+    // ลำดับคำสั่งที่ทำให้ไฟล์ของ client กลายเป็นไฟล์ปัจจุบัน — DATA อ้างตำแหน่งในไฟล์ของ server (อ่านตอนส่ง)
+    // เก็บเป็น long[] ทีละ 3 ช่อง: COPY (block, count) / DATA (offset, length)
+    static final class Plan {
+        private long[] ops = new long[48];
+        private int size;
+        long literalBytes;   // จำนวน byte ที่ต้องส่งจริง
+        long copiedBytes;    // จำนวน byte ที่ใช้จากไฟล์ของ client
+
+        int opCount() {
+            return size / 3;
+        }
+
+        int type(int i) {
+            return (int) ops[i * 3];
+        }
+
+        long first(int i) {
+            return ops[i * 3 + 1];
+        }
+
+        long second(int i) {
+            return ops[i * 3 + 2];
+        }
+
+        private void add(int type, long a, long b) {
+            int last = size - 3;
+            // ต่อกับคำสั่งก่อนหน้าถ้าต่อเนื่องกัน (block ติดกัน / ข้อมูลติดกัน)
+            if (last >= 0 && ops[last] == type && ops[last + 1] + ops[last + 2] == a
+                    && (type == DATA || ops[last + 2] < Integer.MAX_VALUE)) {
+                ops[last + 2] += b;
+            } else {
+                if (size + 3 > ops.length) ops = Arrays.copyOf(ops, ops.length * 2);
+                ops[size++] = type;
+                ops[size++] = a;
+                ops[size++] = b;
+            }
+        }
+
+        // ตำแหน่งใน bitset ที่ใช้กรอง weak checksum ก่อนค้นใน HashMap (ตำแหน่งส่วนใหญ่ไม่ตรงกับ block ไหนเลย)
+        private static int filterBit(int weak) {
+            return (weak * 0x9E3779B1) >>> (32 - FILTER_SHIFT);
+        }
+
+        private void append(Plan other) {
+            for (int i = 0; i < other.opCount(); i++) {
+                add(other.type(i), other.first(i), other.second(i));
+            }
+            literalBytes += other.literalBytes;
+            copiedBytes += other.copiedBytes;
+        }
+
+        // หาส่วนที่ตรงกับ block ของ client — แบ่งไฟล์เป็นช่วงตามจำนวน core แล้วหาแต่ละช่วงขนานกัน
+        // (block ที่คร่อมรอยต่อระหว่างช่วงจะถูกส่งเป็น DATA แทน เสียไม่เกิน 1 block ต่อรอยต่อ)
+        static Plan compute(FileChannel file, long fileSize, int blockSize, byte[] sigs, int count) throws IOException {
+            Map<Integer, int[]> byWeak = new HashMap<>(count * 2);
+            long[] filter = new long[FILTER_BITS / 64];
+            for (int i = 0; i < count; i++) {
+                int w = ByteBuffer.wrap(sigs, i * SIGNATURE_BYTES, 4).getInt();
+                int bit = filterBit(w);
+                filter[bit >>> 6] |= 1L << bit;
+                int[] old = byWeak.get(w);
+                if (old == null) {
+                    byWeak.put(w, new int[] { i });
+                } else {
+                    int[] grown = Arrays.copyOf(old, old.length + 1);
+                    grown[old.length] = i;
+                    byWeak.put(w, grown);
+                }
+            }
+
+            int regions = (int) Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), fileSize / REGION_MIN));
+            long regionSize = (fileSize + regions - 1) / regions;
+            List<Plan> parts;
+            try {
+                parts = IntStream.range(0, regions).parallel().mapToObj(r -> {
+                    long start = Math.min(fileSize, r * regionSize);
+                    long end = Math.min(fileSize, start + regionSize);
+                    try {
+                        return scan(file, start, end, blockSize, sigs, byWeak, filter);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }).collect(Collectors.toList());
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+
+            Plan plan = new Plan();
+            for (Plan part : parts) {
+                plan.append(part);
+            }
+            return plan;
+        }
+
+        // เลื่อนหน้าต่างขนาด blockSize ทีละ byte ในช่วง [start, end)
+        private static Plan scan(FileChannel file, long start, long end, int blockSize,
+                                 byte[] sigs, Map<Integer, int[]> byWeak, long[] filter) throws IOException {
+            Plan plan = new Plan();
+            byte[] buf = new byte[Math.max(4 * blockSize, 1 << 20) + blockSize];
+            ByteBuffer wrapped = ByteBuffer.wrap(buf);
+            byte[] digest = new byte[STRONG_BYTES];
+            long bufStart = start; // ตำแหน่งในไฟล์ของ buf[0]
+            int bufLen = 0;
+
+            long pos = start;
+            long literalStart = start;
+            int a = 0, b = 0;
+            boolean rolling = false; // a, b ตรงกับหน้าต่างที่ pos แล้วหรือยัง
+
+            while (pos + blockSize <= end) {
+                // ให้ buf มีข้อมูลครอบ [pos, pos + blockSize] (รวม byte ถัดไปสำหรับ rolling)
+                if (pos + blockSize + 1 > bufStart + bufLen && bufStart + bufLen < end) {
+                    bufStart = pos;
+                    wrapped.clear();
+                    wrapped.limit((int) Math.min(buf.length, end - pos));
+                    while (wrapped.hasRemaining()) {
+                        if (file.read(wrapped, bufStart + wrapped.position()) == -1) {
+                            throw new EOFException("File shrank while planning");
+                        }
+                    }
+                    bufLen = wrapped.position();
+                }
+                int off = (int) (pos - bufStart);
+
+                if (!rolling) {
+                    int w = weak(buf, off, blockSize);
+                    a = w & 0xFFFF;
+                    b = w >>> 16;
+                    rolling = true;
+                }
+
+                int w = (b & 0xFFFF) << 16 | (a & 0xFFFF);
+                int bit = filterBit(w);
+                int[] candidates = (filter[bit >>> 6] & 1L << bit) == 0 ? null : byWeak.get(w);
+                int match = -1;
+                if (candidates != null) {
+                    strong(buf, off, blockSize, digest);
+                    long preferred = pos % blockSize == 0 ? pos / blockSize : -1; // block ที่อยู่ตำแหน่งเดิม
+                    for (int j : candidates) {
+                        if ((long) j * blockSize < pos) continue; // ถูกเขียนทับไปแล้วฝั่ง client
+                        if (!Arrays.equals(digest, 0, STRONG_BYTES, sigs, j * SIGNATURE_BYTES + 4,
+                                j * SIGNATURE_BYTES + 4 + STRONG_BYTES)) continue;
+                        match = j;
+                        if (j == preferred) break;
+                    }
+                }
+
+                if (match >= 0) {
+                    if (pos > literalStart) {
+                        plan.add(DATA, literalStart, pos - literalStart);
+                        plan.literalBytes += pos - literalStart;
+                    }
+                    plan.add(COPY, match, 1);
+                    plan.copiedBytes += blockSize;
+                    pos += blockSize;
+                    literalStart = pos;
+                    rolling = false;
+                } else if (pos + blockSize < end) {
+                    // เลื่อนหน้าต่างไป 1 byte: เอา byte แรกออก เพิ่ม byte ถัดจากปลายหน้าต่าง
+                    int out = buf[off] & 0xFF;
+                    int in = buf[off + blockSize] & 0xFF;
+                    a = (a - out + in) & 0xFFFF;
+                    b = (b - blockSize * out + a) & 0xFFFF;
+                    pos++;
+                } else {
+                    pos++;
+                }
+            }
+
+            if (end > literalStart) {
+                plan.add(DATA, literalStart, end - literalStart);
+                plan.literalBytes += end - literalStart;
+            }
+            return plan;
+        }
+    }
+
+    // ---------------- client ----------------
+
+    // sync <file>: อัปเดต downloads/<file> ให้ตรงกับไฟล์บน server — ถ้ายังไม่มีไฟล์เดิมจะโหลดทั้งไฟล์แทน
+    static void sync(String fname) {
+        File localFile = new File(ClientMain.DOWNLOAD_DIR + "/" + fname);
+        if (!localFile.isFile()) {
+            System.out.println("[SYNC] No local copy of " + fname + ", downloading the whole file");
+            ClientMain.downloadFile(fname, "zero");
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+        try (RandomAccessFile raf = new RandomAccessFile(localFile, "rw");
+             FileChannel local = raf.getChannel();
+             SocketChannel channel = ClientMain.connect()) {
+
+            long localSize = local.size();
+            int blockSize = blockSizeFor(localSize);
+            Signatures sigs = Signatures.compute(local, localSize, blockSize);
+            System.out.println("[SYNC] Local copy: " + ClientMain.formatBytes(localSize) + ", " + sigs.count
+                    + " blocks of " + blockSize + " bytes hashed in " + (System.currentTimeMillis() - startTime) + " ms");
+
+            requestSync(channel, fname, sigs);
+            ClientMain.RangeHeader header = readDeltaHeader(channel);
+            System.out.println("[SYNC] Server file: " + ClientMain.formatBytes(header.fileSize) + ", "
+                    + ClientMain.formatBytes(header.length) + " to transfer");
+
+            long crc;
+            try {
+                crc = apply(channel, local, sigs, header);
+            } catch (IOException e) {
+                // ไฟล์เดิมถูกเขียนทับไปบางส่วนแล้ว ใช้ต่อไม่ได้
+                local.truncate(0);
+                throw e;
+            }
+            new File(ClientMain.DOWNLOAD_DIR + "/" + fname + ClientMain.RESUME_SUFFIX).delete();
+            ClientMain.verify(local, header.checksum, crc, ClientMain.CONSOLE);
+
+            long duration = System.currentTimeMillis() - startTime;
+            long sent = header.length + sigs.data.length;
+            System.out.println("[SYNC] ✅ Completed: " + fname + " in " + duration + " ms");
+            System.out.printf("[SYNC] Transferred %s (data %s + signatures %s) instead of %s — saved %s (%.1f%%)\n\n",
+                    ClientMain.formatBytes(sent), ClientMain.formatBytes(header.length),
+                    ClientMain.formatBytes(sigs.data.length), ClientMain.formatBytes(header.fileSize),
+                    ClientMain.formatBytes(Math.max(0, header.fileSize - sent)),
+                    header.fileSize == 0 ? 0.0 : 100.0 * (header.fileSize - sent) / header.fileSize);
+
+        } catch (ClientMain.ServerError e) {
+            System.err.println(e.getMessage());
+        } catch (IOException e) {
+            System.err.println("Error during SYNC: " + e.getMessage());
+            if (localFile.length() == 0) {
+                System.err.println("[SYNC] Local copy was cleared, run download to fetch the file again");
+            }
+        }
+    }
+
+    // SYNC <file> <blockSize> <count> แล้วตามด้วย signature แบบ raw (ทั้งสองโปรโตคอล)
+    private static void requestSync(SocketChannel channel, String fname, Signatures sigs) throws IOException {
+        if (ClientMain.binaryProtocol) {
+            ByteBuffer buf = ClientMain.FRAME_BUFFER.get();
+            buf.clear();
+            Wire.putSync(buf, fname, sigs.blockSize, sigs.count);
+            buf.flip();
+            Wire.writeFully(channel, buf);
+        } else {
+            ClientMain.writeLine(channel, "SYNC " + fname + " " + sigs.blockSize + " " + sigs.count);
+        }
+        Wire.writeFully(channel, ByteBuffer.wrap(sigs.data));
+    }
+
+    // header ของ SYNC — ใช้ RangeHeader: length = จำนวน byte ของ DATA ที่จะตามมา
+    // ข้อความ: FILESIZE <size> / DELTA <mtime> <literalBytes> / [CHECKSUM crc32c <hex>] / READY
+    private static ClientMain.RangeHeader readDeltaHeader(SocketChannel channel) throws IOException {
+        if (ClientMain.binaryProtocol) {
+            ByteBuffer buf = ClientMain.FRAME_BUFFER.get();
+            int op = ClientMain.readFrameAfterQueue(channel, buf, ClientMain.CONSOLE);
+            if (op != Wire.OP_DELTA) throw ClientMain.frameError(op, buf);
+            long fileSize = buf.getLong();
+            long mtime = buf.getLong();
+            long literal = buf.getLong();
+            return new ClientMain.RangeHeader(fileSize, 0, literal, mtime, buf.getLong());
+        }
+
+        String response = ClientMain.readLineAfterQueue(channel, ClientMain.CONSOLE);
+        if (response != null && response.startsWith("ERROR")) {
+            throw new ClientMain.ServerError("Server error: " + response);
+        }
+        if (response == null || !response.startsWith("FILESIZE ")) {
+            throw new IOException("Invalid response from server: " + response);
+        }
+        long fileSize = Long.parseLong(response.substring(9).trim());
+
+        response = ClientMain.readLine(channel);
+        if (response == null || !response.startsWith("DELTA ")) {
+            throw new IOException("Invalid response from server: " + response);
+        }
+        String[] delta = response.split(" ");
+
+        long checksum = Crc32c.UNKNOWN;
+        String ready = ClientMain.readLine(channel);
+        if (ready != null && ready.startsWith("CHECKSUM crc32c ")) {
+            checksum = Crc32c.parseHex(ready.substring(16));
+            ready = ClientMain.readLine(channel);
+        }
+        if (!"READY".equals(ready)) {
+            throw new IOException("Server error: " + ready);
+        }
+        return new ClientMain.RangeHeader(fileSize, 0, Long.parseLong(delta[2]), Long.parseLong(delta[1]), checksum);
+    }
+
+    // ทำตามคำสั่ง COPY / DATA ทีละคำสั่ง เขียนไฟล์ใหม่ทับไฟล์เดิมตามลำดับตำแหน่ง — คืน CRC32C ของไฟล์ใหม่
+    private static long apply(SocketChannel channel, FileChannel local, Signatures sigs,
+                              ClientMain.RangeHeader header) throws IOException {
+        int blockSize = sigs.blockSize;
+        ByteBuffer record = ByteBuffer.allocate(9);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(64 * 1024, blockSize));
+        CRC32C chunkCrc = new CRC32C();
+        long crc = chunkCrc.getValue(); // CRC ของข้อมูลว่าง
+        long position = 0;
+        long received = 0;
+
+        while (true) {
+            record.clear().limit(1);
+            readFully(channel, record);
+            int op = record.get(0);
+            if (op == END) break;
+
+            record.clear().limit(op == COPY ? 9 : 5).position(1);
+            readFully(channel, record);
+            long first = record.getInt(1);
+            long second = op == COPY ? record.getInt(5) : 0;
+
+            if (op == COPY) {
+                if (first < 0 || second < 0 || first + second > sigs.count || first * blockSize < position) {
+                    throw new IOException("Invalid COPY from server");
+                }
+                for (long j = first; j < first + second; j++) {
+                    long source = j * blockSize;
+                    if (source != position) {
+                        // block ย้ายตำแหน่ง: ต้นทางอยู่หลังตำแหน่งที่เขียนเสมอ จึงยังไม่ถูกเขียนทับ
+                        buffer.clear().limit(blockSize);
+                        while (buffer.hasRemaining()) {
+                            if (local.read(buffer, source + buffer.position()) == -1) throw new EOFException();
+                        }
+                        buffer.flip();
+                        while (buffer.hasRemaining()) {
+                            local.write(buffer, position + buffer.position());
+                        }
+                    }
+                    crc = Crc32c.combine(crc, sigs.crcs[(int) j], blockSize);
+                    position += blockSize;
+                }
+            } else if (op == DATA) {
+                long remaining = first;
+                chunkCrc.reset();
+                while (remaining > 0) {
+                    buffer.clear().limit((int) Math.min(buffer.capacity(), remaining));
+                    if (channel.read(buffer) == -1) throw new IOException("Connection closed unexpectedly");
+                    buffer.flip();
+                    chunkCrc.update(buffer);
+                    buffer.flip();
+                    int n = buffer.remaining();
+                    while (buffer.hasRemaining()) {
+                        local.write(buffer, position + buffer.position());
+                    }
+                    position += n;
+                    remaining -= n;
+                    received += n;
+                    if (header.length > 0) ClientMain.printProgress(received, header.length);
+                }
+                crc = Crc32c.combine(crc, chunkCrc.getValue(), first);
+            } else {
+                throw new IOException("Unknown delta record " + op);
+            }
+        }
+
+        if (position != header.fileSize) {
+            throw new IOException("Delta produced " + position + " bytes, expected " + header.fileSize);
+        }
+        local.truncate(position);
+        if (header.length > 0) System.out.println();
+        return crc;
+    }
+
+    private static void readFully(SocketChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf) == -1) throw new IOException("Connection closed unexpectedly");
+        }
+    }
+}
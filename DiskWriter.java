@@ -0,0 +1,131 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32C;
+
+// stage เขียนดิสก์ของ DOWNLOAD โหมด normal ฝั่ง client (ClientMain.downloadNormal)
+// - thread ของ network อ่าน socket ลง slot (direct buffer buffer.scatter ก้อนจาก BufferPool) แล้วส่งเข้าคิว
+//   thread นี้เขียน slot ลงไฟล์ด้วย gathering write + คำนวณ CRC32C แล้วคืน slot ให้ network ใช้ต่อ
+// - เดิมอ่านแล้วเขียนบน thread เดียว ระหว่างรอดิสก์ไม่มีใครอ่าน socket → TCP window ตันทุกครั้งที่ดิสก์สะดุด
+//   แยกเป็น 2 stage แล้ว throughput เท่ากับ stage ที่ช้ากว่า ไม่ใช่ผลรวมของ latency ทั้งสอง
+// - slot มีจำกัด -Dclient.writeDepth=4 (ค่าเริ่มต้น 4 x 4 x 256K = 4 MB ค้างในหน่วยความจำได้สูงสุด)
+//   ดิสก์ช้ากว่า network จน slot หมด → network รอ (นับใน client.disk.waits) ไม่จองเพิ่ม
+// - เขียนผิดพลาด → take / finish โยน IOException ของ writer (slot ที่ค้างถูกทิ้งไป network จึงไม่ค้าง)
+final class DiskWriter implements Runnable {
+    static final int DEPTH = Math.max(1, Integer.getInteger("client.writeDepth", 4));
+
+    private static final ByteBuffer[] END = new ByteBuffer[0]; // บอก writer ว่าไม่มี slot ตามมาอีก
+
+    private final FileChannel out;
+    private final CRC32C crc; // null = ไม่คำนวณ (server ไม่มี checksum)
+    private final Durability.Target target;
+    private long position;    // เขียนลงไฟล์แล้วถึงตำแหน่งนี้ (thread ของ writer เท่านั้น)
+    private final BufferPool pool = BufferPool.SHARED;
+    private final BlockingQueue<ByteBuffer[]> free = new ArrayBlockingQueue<>(DEPTH);
+    private final BlockingQueue<ByteBuffer[]> filled = new ArrayBlockingQueue<>(DEPTH + 1);
+    private final Thread thread;
+    private volatile IOException error;
+    private boolean closed;
+
+    // เขียนต่อจาก position ปัจจุบันของ out (= start) — แจ้ง target ทุกครั้งที่เขียนเพื่อ force / บันทึกจุด resume
+    DiskWriter(FileChannel out, CRC32C crc, Durability.Target target, long start) {
+        this.out = out;
+        this.crc = crc;
+        this.target = target;
+        this.position = start;
+        for (int i = 0; i < DEPTH; i++) {
+            free.add(pool.takeAll(pool.scatter));
+        }
+        thread = new Thread(this, "disk-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // slot ว่าง (เคลียร์แล้ว) — รอถ้าทุก slot ยังรอเขียนอยู่
+    ByteBuffer[] take() throws IOException, InterruptedException {
+        ByteBuffer[] slot = free.poll();
+        if (slot == null) {
+            Metrics.CLIENT_DISK_WAITS.increment(); // ดิสก์ตามไม่ทัน network
+            slot = free.take();
+        }
+        if (error != null) {
+            free.add(slot);
+            throw error;
+        }
+        for (ByteBuffer buf : slot) {
+            buf.clear();
+        }
+        return slot;
+    }
+
+    // ส่ง slot ที่อ่านจาก socket แล้ว (ยังไม่ flip) ให้ writer — slot ที่ว่างเปล่าก็ส่งคืนได้
+    void submit(ByteBuffer[] slot) {
+        BufferPool.flip(slot);
+        filled.add(slot); // ไม่เต็ม: slot มีทั้งหมด DEPTH ตัว
+    }
+
+    // รอจนเขียน slot ที่ส่งมาแล้วครบ แล้วโยน error ของ writer (ถ้ามี)
+    void finish() throws IOException {
+        close();
+        if (error != null) throw error;
+    }
+
+    // เขียนส่วนที่รับแล้วลงไฟล์ให้ครบ (resume ต่อได้) แล้วคืน buffer เข้า pool — เรียกซ้ำได้ ไม่โยน error
+    void close() {
+        if (closed) return;
+        closed = true;
+        filled.add(END);
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true; // ต้องรอ writer จบก่อนคืน buffer / ปิดไฟล์
+            }
+        }
+        ByteBuffer[] slot;
+        while ((slot = free.poll()) != null) {
+            pool.giveAll(slot);
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    @Override
+    public void run() {
+        try {
+            ByteBuffer[] slot;
+            while ((slot = filled.take()) != END) {
+                if (error == null) {
+                    try {
+                        write(slot);
+                    } catch (IOException e) {
+                        error = e;
+                    }
+                }
+                free.add(slot);
+            }
+        } catch (InterruptedException e) {
+            error = new InterruptedIOException("Disk writer interrupted");
+        }
+    }
+
+    private void write(ByteBuffer[] slot) throws IOException {
+        long bytes = 0;
+        while (BufferPool.hasRemaining(slot)) {
+            bytes += out.write(slot);
+        }
+        if (crc != null) {
+            for (ByteBuffer buf : slot) {
+                buf.flip(); // ข้อมูลชุดเดิมที่เพิ่งเขียน
+                crc.update(buf);
+            }
+        }
+        if (bytes > 0) {
+            position += bytes;
+            target.written(position);
+        }
+    }
+}
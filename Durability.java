@@ -0,0 +1,185 @@
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.Locale;
+
+// ความทนทานของไฟล์ที่ client รับจาก DOWNLOAD (FileClient / console และ pipeline ของ ClientSession)
+// - รับลง downloads/<file>.part แล้ว rename เป็นชื่อจริงแบบ atomic เมื่อรับครบและ checksum ตรง
+//   → โปรแกรมอื่นไม่เห็นไฟล์ที่ยังโหลดไม่ครบ (เดิมเขียนลงชื่อจริงตั้งแต่ byte แรก)
+// - -Ddownload.sync=none|end|interval (ค่าเริ่มต้น end)
+//     none     : ไม่ force เลย เร็วที่สุด แต่ถ้าเครื่องดับหลังโหลดเสร็จ ไฟล์อาจว่างหรือไม่ครบทั้งที่ rename แล้ว
+//     end      : force ครั้งเดียวก่อน rename (ข้อมูลทั้งไฟล์ลงดิสก์ก่อนชื่อจริงจะปรากฏ)
+//     interval : force(false) ทุก -Ddownload.syncEvery=8M ระหว่างรับด้วย — เครื่องดับกลางทางก็ resume ต่อจากจุดที่ force ได้
+//                และไม่ค้าง dirty page ไว้ก้อนใหญ่จน force ตอนจบนาน
+// - -Ddownload.preallocate=true ขยาย .part เป็นขนาดเต็มก่อนรับ (setLength — Java ไม่มี fallocate จึงเป็น sparse file
+//   บน ext4 / xfs) ขนาดไฟล์ไม่เปลี่ยนระหว่างรับ force(false) จึงไม่ต้องบันทึก metadata ทุกครั้ง และดิสก์เต็มรู้ตั้งแต่ต้นบน NTFS
+// - .resume เก็บ "<size> <mtime> <valid>" — valid คือ byte ที่รับแล้วต้นไฟล์ (ไฟล์ที่ preallocate แล้วใช้ความยาวแทนไม่ได้)
+//   อัปเดตทุก syncEvery byte และตอนล้มเหลว (ตัดส่วนที่จองไว้แต่ยังไม่ได้รับทิ้ง)
+// - เวลาที่ใช้ force ต่อไฟล์อยู่ใน FileClient.Download.syncMillis / client.sync.ms ของ stats → เทียบ policy ต่อ workload ได้
+final class Durability {
+    static final String PART_SUFFIX = ".part";
+    static final Durability CONFIG = fromSystemProperties();
+
+    enum Policy { NONE, END, INTERVAL }
+
+    final Policy policy;
+    final long syncEvery;
+    final boolean preallocate;
+
+    Durability(Policy policy, long syncEvery, boolean preallocate) {
+        if (syncEvery <= 0) throw new IllegalArgumentException("Invalid sync interval: " + syncEvery);
+        this.policy = policy;
+        this.syncEvery = syncEvery;
+        this.preallocate = preallocate;
+    }
+
+    static Durability fromSystemProperties() {
+        String name = System.getProperty("download.sync", "end");
+        Policy policy;
+        try {
+            policy = Policy.valueOf(name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.err.println("[DURABILITY] Unknown download.sync=" + name + ", using end");
+            policy = Policy.END;
+        }
+        return new Durability(policy, Bandwidth.parseRate(System.getProperty("download.syncEvery", "8M")),
+                Boolean.parseBoolean(System.getProperty("download.preallocate", "true")));
+    }
+
+    // ปลายทางของไฟล์ 1 ไฟล์ — resumable = เก็บ .part / .resume ไว้โหลดต่อเมื่อล้มเหลว (pipeline ของ session ไม่ resume)
+    Target target(File file, boolean resumable) {
+        return new Target(file, resumable);
+    }
+
+    @Override
+    public String toString() {
+        return policy.name().toLowerCase(Locale.ROOT)
+                + (policy == Policy.INTERVAL ? " every " + ClientMain.formatBytes(syncEvery) : "")
+                + (preallocate ? ", preallocated" : "");
+    }
+
+    final class Target {
+        final File file;       // ชื่อจริง — ปรากฏเมื่อ commit เท่านั้น
+        final File part;       // ข้อมูลระหว่างรับ
+        final File resumeFile;
+        private final boolean resumable;
+        private ClientMain.ResumeInfo info;
+        private FileChannel out;
+        private volatile long written;   // รับลงไฟล์แล้วถึงตำแหน่งนี้ (อัปเดตจาก thread ที่เขียน เช่น DiskWriter)
+        private long checkpointed;       // valid ล่าสุดใน .resume
+        private long syncNanos;
+        private int syncs;
+
+        private Target(File file, boolean resumable) {
+            this.file = file;
+            this.part = new File(file.getPath() + PART_SUFFIX);
+            this.resumeFile = new File(file.getPath() + ClientMain.RESUME_SUFFIX);
+            this.resumable = resumable;
+            // ส่วนที่โหลดค้างจากเวอร์ชันก่อน (เขียนลงชื่อจริงโดยตรง) → ย้ายมาเป็น .part แล้ว resume ต่อได้เหมือนเดิม
+            if (resumable && resumeFile.exists() && !part.exists() && file.exists()) {
+                file.renameTo(part);
+            }
+        }
+
+        // ส่วนที่โหลดค้างไว้ — null ถ้าไม่มีหรือใช้ไม่ได้
+        ClientMain.ResumeInfo partial() {
+            return resumable ? ClientMain.ResumeInfo.load(part, resumeFile) : null;
+        }
+
+        // ได้ header แล้ว: บันทึกขนาด/mtime ของต้นฉบับไว้ก่อน เพื่อให้ resume ได้แม้โปรแกรมถูกปิดกลางคัน
+        void begin(long fileSize, long mtime, long offset) throws IOException {
+            File parent = file.getAbsoluteFile().getParentFile();
+            if (parent != null) parent.mkdirs();
+            info = new ClientMain.ResumeInfo(fileSize, mtime, offset);
+            if (resumable) {
+                info.save(resumeFile);
+            } else {
+                resumeFile.delete();
+            }
+            written = checkpointed = offset;
+        }
+
+        // เปิด .part: เก็บ [0, offset) ไว้ ตัดส่วนเกินทิ้ง ขยายเป็นขนาดเต็ม (preallocate) แล้วเลื่อน position ไปที่ offset
+        FileChannel open(long offset, long fileSize) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(part, "rw");
+            try {
+                raf.setLength(offset);
+                if (preallocate && fileSize > offset) raf.setLength(fileSize);
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+            out = raf.getChannel();
+            out.position(offset);
+            written = checkpointed = offset;
+            return out;
+        }
+
+        // ข้อมูล [0, position) อยู่ในไฟล์แล้ว — ครบ syncEvery จะ force (interval) แล้วบันทึกจุด resume
+        void written(long position) throws IOException {
+            written = position;
+            if (position - checkpointed < syncEvery) return;
+            if (policy == Policy.INTERVAL) force(out, false);
+            checkpointed = position;
+            if (resumable) new ClientMain.ResumeInfo(info.size, info.mtime, position).save(resumeFile);
+        }
+
+        // รับครบและ checksum ตรงแล้ว (ปิด channel แล้ว): force ตาม policy แล้ว rename เป็นชื่อจริง
+        void commit() throws IOException {
+            if (policy != Policy.NONE) {
+                try (FileChannel channel = FileChannel.open(part.toPath(), StandardOpenOption.WRITE)) {
+                    force(channel, true); // รวม metadata (ขนาด) — ต้องอยู่บนดิสก์ก่อนชื่อจริงจะชี้มาที่ไฟล์นี้
+                }
+            }
+            try {
+                Files.move(part.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (policy != Policy.NONE) syncDirectory();
+            resumeFile.delete(); // โหลดครบแล้ว ไม่ต้อง resume
+            Metrics.CLIENT_SYNC_TIME.record(syncMillis());
+        }
+
+        // ล้มเหลว (ปิด channel แล้ว): ตัดส่วนที่จองไว้แต่ยังไม่ได้รับทิ้ง แล้วบันทึกจุด resume — session ที่ไม่ resume ลบ .part
+        void abort() {
+            if (!part.exists()) return;
+            if (!resumable || info == null) {
+                part.delete();
+                return;
+            }
+            long valid = Math.min(written, part.length()); // verify ที่ไม่ผ่านล้างไฟล์เหลือ 0 ไปแล้ว
+            try (RandomAccessFile raf = new RandomAccessFile(part, "rw")) {
+                raf.setLength(valid);
+                new ClientMain.ResumeInfo(info.size, info.mtime, valid).save(resumeFile);
+            } catch (IOException e) {
+                System.err.println("[DURABILITY] Cannot record partial download: " + e.getMessage());
+            }
+        }
+
+        int syncs() {
+            return syncs;
+        }
+
+        long syncMillis() {
+            return syncNanos / 1_000_000;
+        }
+
+        private void force(FileChannel channel, boolean metaData) throws IOException {
+            long start = System.nanoTime();
+            channel.force(metaData);
+            syncNanos += System.nanoTime() - start;
+            syncs++;
+        }
+
+        // ให้การ rename ลงดิสก์ด้วย — เปิดโฟลเดอร์เป็น channel ได้บน Linux / macOS เท่านั้น ที่อื่นข้ามไป
+        private void syncDirectory() {
+            File parent = file.getAbsoluteFile().getParentFile();
+            if (parent == null) return;
+            try (FileChannel dir = FileChannel.open(parent.toPath(), StandardOpenOption.READ)) {
+                force(dir, true);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
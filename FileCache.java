@@ -0,0 +1,177 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+// cache ไฟล์ที่ถูกขอบ่อย (hot file) ไว้ใน direct buffer นอก heap สำหรับ DOWNLOAD โหมด normal
+// - จำกัดขนาดรวมด้วย -Dfilecache.bytes (ค่าเริ่มต้น 256 MB, 0 = ปิด) ไฟล์ใหญ่เกิน 1/8 ของงบไม่ cache
+// - รับเข้า cache เมื่อถูกขอตั้งแต่ ADMIT_AFTER ครั้ง (นับแบบมีการลดค่าตามเวลา) และถ้าต้องไล่ไฟล์อื่นออก
+//   ต้องถูกขอบ่อยกว่าไฟล์ที่จะถูกไล่ (แนวคิดเดียวกับ TinyLFU) — ไฟล์ที่ถูกขอครั้งเดียวจึงไม่ไล่ไฟล์ hot ออก
+// - ไล่ออกแบบ LRU (LinkedHashMap แบบ access order)
+// - ตรวจ size/mtime กับ FileIndex ทุกครั้งที่ใช้ ถ้าไฟล์เปลี่ยนจะทิ้งของเดิมทันที
+// - โหลดไฟล์เข้า cache บน thread แยก คำขอที่ทำให้เกิดการโหลดยังส่งจากไฟล์ตามปกติ (ไม่ block event loop)
+final class FileCache {
+    private static final int ADMIT_AFTER = 2;       // ถูกขออย่างน้อยกี่ครั้งจึงเริ่ม cache
+    private static final int MAX_FREQUENCY = 15;
+    private static final int AGING_PERIOD = 4096;   // ทุก ๆ กี่ครั้งที่ถูกขอ จะลดความถี่ทั้งหมดลงครึ่งหนึ่ง
+
+    private final long budget;
+    private final long maxFileBytes;
+    private final LinkedHashMap<String, Cached> entries = new LinkedHashMap<>(64, 0.75f, true); // guarded by this
+    private final Map<String, Integer> frequency = new HashMap<>(); // guarded by this
+    private final Map<String, Boolean> loading = new HashMap<>();   // guarded by this
+    private long used;     // guarded by this
+    private int accesses;  // guarded by this
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final ExecutorService loader = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "file-cache-loader");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // เนื้อหาของไฟล์ 1 ไฟล์ ณ size/mtime ที่โหลด
+    private static final class Cached {
+        final ByteBuffer data; // direct buffer ทั้งไฟล์ (อ่านอย่างเดียว ใช้ผ่าน duplicate)
+        final long mtime;
+
+        Cached(ByteBuffer data, long mtime) {
+            this.data = data;
+            this.mtime = mtime;
+        }
+    }
+
+    FileCache(long budget) {
+        this.budget = Math.max(0, budget);
+        this.maxFileBytes = Math.min(this.budget / 8, Integer.MAX_VALUE);
+    }
+
+    static FileCache fromSystemProperties() {
+        return new FileCache(Long.getLong("filecache.bytes", 256L << 20));
+    }
+
+    // ช่วง [offset, offset + length) ของไฟล์จาก cache (buffer ใหม่ที่ใช้ได้ทันที) — คืน null ถ้ายังไม่อยู่ใน cache
+    // entry คือข้อมูลจาก FileIndex ที่ผู้เรียกเพิ่งตรวจ ใช้ยืนยันว่าเนื้อหาใน cache ยังเป็นเวอร์ชันล่าสุด
+    ByteBuffer get(File file, FileIndex.Entry entry, long offset, long length) {
+        if (budget == 0 || entry.size > maxFileBytes) return null;
+
+        String key = file.getPath();
+        Cached cached;
+        synchronized (this) {
+            recordAccess(key);
+            cached = entries.get(key);
+            if (cached != null && (cached.mtime != entry.mtime || cached.data.capacity() != entry.size)) {
+                remove(key); // ไฟล์เปลี่ยนไปแล้ว
+                cached = null;
+            }
+            if (cached == null && frequency.getOrDefault(key, 0) >= ADMIT_AFTER && !loading.containsKey(key)) {
+                loading.put(key, Boolean.TRUE);
+                loader.execute(() -> load(file, key, entry));
+            }
+        }
+
+        if (cached == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+
+        ByteBuffer slice = cached.data.duplicate();
+        slice.limit((int) (offset + length)).position((int) offset);
+        return slice;
+    }
+
+    // อ่านไฟล์ทั้งไฟล์ลง direct buffer แล้วรับเข้า cache ถ้ายังคุ้ม (ตรวจ admission อีกครั้งหลังโหลด)
+    private void load(File file, String key, FileIndex.Entry entry) {
+        try {
+            ByteBuffer data;
+            try (FileChannel fc = new FileInputStream(file).getChannel()) {
+                if (fc.size() != entry.size) return; // ไฟล์เปลี่ยนระหว่างนั้น รอคำขอครั้งถัดไป
+                data = ByteBuffer.allocateDirect((int) entry.size);
+                while (data.hasRemaining()) {
+                    if (fc.read(data, data.position()) == -1) return;
+                }
+                data.flip();
+            }
+            if (file.lastModified() != entry.mtime) return;
+
+            long usedNow;
+            synchronized (this) {
+                if (!makeRoom(key, entry.size)) return;
+                entries.put(key, new Cached(data, entry.mtime));
+                used += entry.size;
+                usedNow = used;
+            }
+            System.out.println("[CACHE] Cached " + file.getName() + " (" + entry.size + " bytes), "
+                    + usedNow + "/" + budget + " bytes used");
+
+        } catch (IOException | OutOfMemoryError e) {
+            System.err.println("[CACHE] Failed to load " + file.getName() + ": " + e.getMessage());
+        } finally {
+            synchronized (this) {
+                loading.remove(key);
+            }
+        }
+    }
+
+    // ไล่ไฟล์ที่ใช้นานที่สุด (LRU) จนพอสำหรับ size byte — แต่จะไม่ไล่ไฟล์ที่ถูกขอบ่อยกว่าไฟล์ใหม่
+    private boolean makeRoom(String key, long size) {
+        int candidate = frequency.getOrDefault(key, 0);
+        Iterator<Map.Entry<String, Cached>> it = entries.entrySet().iterator();
+        long freeable = budget - used;
+        // ตรวจก่อนว่าไล่ได้พอโดยไม่ต้องไล่ไฟล์ที่ hot กว่า
+        while (freeable < size && it.hasNext()) {
+            Map.Entry<String, Cached> victim = it.next();
+            if (frequency.getOrDefault(victim.getKey(), 0) >= candidate) return false;
+            freeable += victim.getValue().data.capacity();
+        }
+        if (freeable < size) return false;
+
+        it = entries.entrySet().iterator();
+        while (budget - used < size) {
+            Map.Entry<String, Cached> victim = it.next();
+            used -= victim.getValue().data.capacity();
+            it.remove();
+            evictions.incrementAndGet();
+        }
+        return true;
+    }
+
+    private void remove(String key) {
+        Cached old = entries.remove(key);
+        if (old != null) used -= old.data.capacity();
+    }
+
+    // นับความถี่ที่ถูกขอ และลดค่าลงครึ่งหนึ่งเป็นระยะ เพื่อให้ไฟล์ที่เคย hot แต่ไม่มีคนขอแล้วถูกแทนที่ได้
+    private void recordAccess(String key) {
+        frequency.merge(key, 1, (a, b) -> Math.min(MAX_FREQUENCY, a + b));
+        if (++accesses >= AGING_PERIOD) {
+            accesses = 0;
+            frequency.replaceAll((k, v) -> v / 2);
+            frequency.values().removeIf(v -> v == 0);
+        }
+    }
+
+    long hits() {
+        return hits.get();
+    }
+
+    long misses() {
+        return misses.get();
+    }
+
+    synchronized String summary() {
+        long h = hits.get(), m = misses.get();
+        return String.format("%d files, %d/%d bytes, %d hits, %d misses (%.1f%% hit), %d evictions",
+                entries.size(), used, budget, h, m, h + m == 0 ? 0.0 : 100.0 * h / (h + m), evictions.get());
+    }
+}
@@ -0,0 +1,419 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// client แบบ library ให้โปรแกรมอื่นเรียกใช้ (console ใน ClientMain เป็นแค่ผู้ใช้รายหนึ่ง) — 1 instance ต่อ server
+// - ทุกคำสั่งคืน CompletableFuture ทันที ไม่ block thread ของผู้เรียก
+//   I/O จริงเป็น blocking บน worker ของ FileClient: Java 21+ เป็น virtual thread 1 ตัวต่อคำสั่งที่กำลังทำงาน
+//   (ระหว่างรอ socket / ดิสก์ปล่อย carrier คืน — โหลดพร้อมกันได้หลายไฟล์บน carrier ไม่กี่ thread ตามจำนวน CPU)
+//   JVM ที่ต่ำกว่าใช้ thread pool ขนาด maxConnections แทน (1 thread ต่อ connection ที่กำลังทำงาน)
+// - เก็บ connection แบบ keep-alive (ClientSession) ที่เปิดแล้วไว้ใช้ซ้ำ ไม่เกิน -Dclient.connections (ค่าเริ่มต้น 4)
+//   คำสั่งที่เกินจำนวน connection รอในคิวโดยไม่ถือ thread
+//   คำสั่งที่เสร็จแล้วส่ง connection ต่อให้คำสั่งถัดไปในคิวทันที ไม่ต้อง handshake / negotiate ใหม่
+// - connection ที่ว่างเกิน -Dclient.idleTimeout (ค่าเริ่มต้น 20000 ms, ต่ำกว่า idle timeout 30 วินาทีของ server) ถูกปิดทิ้ง
+//   ถ้า connection ที่ใช้ซ้ำหลุด (server ปิดไปแล้ว) ลองใหม่บน connection ใหม่ 1 ครั้ง — ทุกคำสั่งทำซ้ำได้ (DOWNLOAD ต่อจากที่ค้าง)
+// - ERROR จาก server / checksum ไม่ตรง → future จบด้วย ClientMain.ServerError / ChecksumMismatch และ connection กลับเข้า pool
+//   error อื่น (connection หลุด / ข้อมูลไม่ครบ) → ปิด connection นั้น
+// - ตั้งค่าต่อ instance ไม่อ่านค่าของ console: โปรโตคอล, โฟลเดอร์ปลายทางของ download(name, mode) และ Listener
+//   ของข้อความสถานะ / progress (ค่าเริ่มต้น Listener.SILENT — ไม่พิมพ์อะไรเอง)
+// - connection ใช้โปรโตคอลตอนเปิดตลอด (ClientSession.binary) — หลัง setBinaryProtocol connection เดิมไม่ถูกใช้ซ้ำ
+//   ปิดเมื่อถูกหยิบจาก pool หรือเมื่อคำสั่งที่ใช้อยู่เสร็จ
+public final class FileClient implements Closeable {
+    private static final AtomicInteger workerId = new AtomicInteger();
+
+    private final InetSocketAddress address;
+    private final int maxConnections;
+    private final long idleTimeoutMs;
+    private final File downloadDir;
+    private final Listener listener;
+    private final ExecutorService workers;
+    private volatile boolean binary; // โปรโตคอลของ connection ที่เปิดใหม่
+
+    // สถานะของ pool (ใช้ภายใต้ lock ของ this)
+    private final ArrayDeque<Idle> idle = new ArrayDeque<>();     // ล่าสุดอยู่หน้า → connection ที่อุ่นที่สุดถูกใช้ก่อน
+    private final ArrayDeque<Task<?>> waiting = new ArrayDeque<>();
+    private int open;        // connection ที่เปิดอยู่หรือกำลังเปิด (ว่าง + กำลังใช้)
+    private boolean closed;
+
+    // binary = โปรโตคอล Wire (false = ข้อความ), downloadDir = ปลายทางของ download(name, mode)
+    public FileClient(String host, int port, int maxConnections, long idleTimeoutMs,
+                      boolean binary, File downloadDir, Listener listener) {
+        if (maxConnections <= 0) throw new IllegalArgumentException("Invalid connection count: " + maxConnections);
+        this.address = new InetSocketAddress(host, port);
+        this.maxConnections = maxConnections;
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.binary = binary;
+        this.downloadDir = downloadDir;
+        this.listener = listener;
+        this.workers = newWorkers(maxConnections);
+    }
+
+    // virtual thread ต่อ task เหมือนโหมด virtual ของ server — จำนวนที่รันพร้อมกันถูกคุมด้วย maxConnections อยู่แล้ว
+    // (task รันเมื่อได้ connection เท่านั้น) ถ้าไม่มี virtual thread ใช้ daemon thread pool ขนาดเท่ากันแทน
+    private static ExecutorService newWorkers(int maxConnections) {
+        ExecutorService virtual = ServerMain.newVirtualThreadExecutor();
+        if (virtual != null) return virtual;
+        return Executors.newFixedThreadPool(maxConnections, r -> {
+            Thread t = new Thread(r, "file-client-" + workerId.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // server จาก -Dserver.host / -Dserver.port เหมือน console — binary, ลง downloads/, ไม่พิมพ์อะไร
+    public static FileClient fromSystemProperties() {
+        return fromSystemProperties(true, new File(ClientMain.DOWNLOAD_DIR), Listener.SILENT);
+    }
+
+    public static FileClient fromSystemProperties(boolean binary, File downloadDir, Listener listener) {
+        return new FileClient(ClientMain.SERVER_IP, ClientMain.SERVER_PORT,
+                Integer.getInteger("client.connections", 4),
+                Long.getLong("client.idleTimeout", 20000),
+                binary, downloadDir, listener);
+    }
+
+    // โปรโตคอลของ connection ที่เปิดหลังจากนี้ — คำสั่งที่กำลังทำอยู่ใช้โปรโตคอลเดิมจนจบ
+    public void setBinaryProtocol(boolean binary) {
+        this.binary = binary;
+    }
+
+    // ข้อความสถานะ ([QUEUE] / [VERIFY] / โหมดที่ใช้) และ progress ระหว่างโหลด — เรียกจาก worker thread
+    // ของ FileClient (หลาย thread พร้อมกันได้เมื่อโหลดหลายไฟล์)
+    public interface Listener {
+        Listener SILENT = new Listener() {};
+
+        default void message(String line) {}
+
+        default void progress(long transferred, long total) {}
+    }
+
+    // ---------------- คำสั่ง ----------------
+
+    // ไฟล์ที่ตรงกับ glob ("*" = ทุกไฟล์) เรียงตามชื่อ — ขอทีละหน้าบน connection เดียวจนครบ
+    public CompletableFuture<List<FileInfo>> list(String glob) {
+        return submit(session -> {
+            List<FileInfo> files = new ArrayList<>();
+            String cursor = null;
+            do {
+                cursor = session.listPage(glob, ClientSession.LIST_PAGE, cursor, files);
+            } while (cursor != null);
+            return files;
+        });
+    }
+
+    // ขนาดและ mtime ของไฟล์เดียว — null ถ้าไม่มีไฟล์นี้บน server
+    public CompletableFuture<FileInfo> stat(String name) {
+        return submit(session -> {
+            List<FileInfo> files = new ArrayList<>(1);
+            session.listPage(escapeGlob(name), 1, null, files);
+            return files.isEmpty() || !files.get(0).name.equals(name) ? null : files.get(0);
+        });
+    }
+
+    // metrics ของ server ทีละบรรทัด (รูปแบบเดียวกับคำสั่ง stats)
+    public CompletableFuture<List<String>> stats() {
+        return submit(session -> {
+            SocketChannel channel = session.channel();
+            if (session.binary) {
+                ClientMain.sendFrame(channel, Wire.OP_STATS);
+            } else {
+                ClientMain.writeLine(channel, "STATS");
+            }
+            List<String> lines = new ArrayList<>();
+            String line;
+            while ((line = ClientMain.readListEntry(channel, session.binary)) != null) {
+                lines.add(line);
+            }
+            return lines;
+        });
+    }
+
+    // โหลดลง <downloadDir>/<name>
+    public CompletableFuture<Download> download(String name, String mode) {
+        return download(name, mode, new File(downloadDir, name));
+    }
+
+    // โหลดลง target — ถ้ามีส่วนที่โหลดค้างไว้ (target + .resume) จะขอเฉพาะส่วนที่เหลือ
+    public CompletableFuture<Download> download(String name, String mode, File target) {
+        if (!ClientMain.isValidMode(mode)) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException(
+                    "Invalid mode. Use 'zero', 'normal', 'deflate' or 'fast'"));
+        }
+        return submit(session -> fetch(session, name, mode, target));
+    }
+
+    // ---------------- ผลลัพธ์ ----------------
+
+    public static final class FileInfo {
+        public final String name;
+        public final long size;
+        public final long mtime;
+
+        FileInfo(String name, long size, long mtime) {
+            this.name = name;
+            this.size = size;
+            this.mtime = mtime;
+        }
+    }
+
+    public static final class Download {
+        public final String name;
+        public final File file;
+        public final long fileSize;
+        public final long offset;     // เริ่มจากตรงนี้ (> 0 = ต่อจากส่วนที่โหลดค้างไว้)
+        public final long length;     // byte ของไฟล์ที่ได้ในครั้งนี้
+        public final long wireBytes;  // byte ที่ผ่าน network จริง (โหมด deflate / fast น้อยกว่า length)
+        public final long millis;
+        public final int syncs;       // จำนวนครั้งที่ force ลงดิสก์ (ตาม -Ddownload.sync)
+        public final long syncMillis; // เวลาที่ใช้ force รวมอยู่ใน millis แล้ว
+
+        Download(String name, File file, long fileSize, long offset, long length, long wireBytes, long millis,
+                 int syncs, long syncMillis) {
+            this.name = name;
+            this.file = file;
+            this.fileSize = fileSize;
+            this.offset = offset;
+            this.length = length;
+            this.wireBytes = wireBytes;
+            this.millis = millis;
+            this.syncs = syncs;
+            this.syncMillis = syncMillis;
+        }
+    }
+
+    // ---------------- DOWNLOAD ----------------
+
+    // ขอตั้งแต่ offset ถึงท้ายไฟล์ พร้อม mtime ของส่วนที่มีอยู่ — ถ้าไฟล์บน server เปลี่ยน server จะส่งใหม่ตั้งแต่ 0
+    // รับลง <file>.part แล้ว rename เป็นชื่อจริงเมื่อครบ (Durability)
+    // ใช้โปรโตคอลของ session ตลอดทั้งคำขอและคำตอบ (ไม่เปลี่ยนกลางคันแม้ console สั่ง protocol ระหว่างโหลด)
+    private Download fetch(ClientSession session, String name, String mode, File outFile)
+            throws IOException, InterruptedException {
+        SocketChannel channel = session.channel();
+        Durability.Target target = Durability.CONFIG.target(outFile, true);
+        ClientMain.ResumeInfo partial = target.partial();
+        long offset = partial != null ? partial.valid : 0;
+
+        long requested = System.nanoTime();
+        ClientMain.requestDownload(channel, session.binary, name, mode, offset, -1, partial != null ? partial.mtime : -1);
+        ClientMain.RangeHeader header = ClientMain.readRangeHeader(channel, session.binary, listener);
+        Metrics.CLIENT_TTFB.recordMicrosSince(requested);
+
+        if (partial != null && (header.offset != offset || partial.size != header.fileSize)) {
+            // ไฟล์บน server ถูกแก้ไขหลังจากโหลดค้างไว้ → ทิ้งส่วนเดิม
+            listener.message("[DOWNLOAD] Partial file is stale, downloading from start");
+            if (header.offset != 0) {
+                target.part.delete();
+                target.resumeFile.delete();
+                throw new IOException("Server sent an unexpected range, please retry"); // ข้อมูลค้างอยู่ใน connection → ปิดทิ้ง
+            }
+        }
+
+        target.begin(header.fileSize, header.mtime, header.offset);
+
+        long startTime = System.currentTimeMillis();
+        long wireBytes = header.length;
+        try {
+            if (CompressedTransfer.isCompressed(mode)) {
+                wireBytes = ClientMain.downloadCompressed(channel, target, header.offset, header.fileSize, header.checksum,
+                        listener);
+            } else if (mode.equals("zero")) {
+                ClientMain.downloadZeroCopy(channel, target, header.offset, header.fileSize, header.checksum, listener);
+            } else {
+                ClientMain.downloadNormal(channel, target, header.offset, header.fileSize, header.checksum, listener);
+            }
+            target.commit(); // force ตาม policy แล้ว rename เป็นชื่อจริง
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            target.abort(); // เก็บส่วนที่รับแล้วไว้ resume
+            throw e;
+        }
+
+        return new Download(name, outFile, header.fileSize, header.offset, header.length, wireBytes,
+                System.currentTimeMillis() - startTime, target.syncs(), target.syncMillis());
+    }
+
+    // ชื่อไฟล์เป็น glob ที่ตรงกับชื่อนั้นชื่อเดียว
+    static String escapeGlob(String name) {
+        StringBuilder sb = new StringBuilder(name.length() + 4);
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if ("*?[]{}\\".indexOf(c) >= 0) sb.append('\\');
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    // ---------------- pool ของ connection ----------------
+
+    private interface Call<T> {
+        T run(ClientSession session) throws IOException, InterruptedException;
+    }
+
+    // คำสั่งที่รอ connection — session = null คือได้สิทธิ์เปิด connection ใหม่
+    private final class Task<T> implements Runnable {
+        final Call<T> call;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        ClientSession session;
+
+        Task(Call<T> call) {
+            this.call = call;
+        }
+
+        @Override
+        public void run() {
+            execute(this);
+        }
+    }
+
+    private static final class Idle {
+        final ClientSession session;
+        final long since;
+
+        Idle(ClientSession session, long since) {
+            this.session = session;
+            this.since = since;
+        }
+    }
+
+    private <T> CompletableFuture<T> submit(Call<T> call) {
+        Task<T> task = new Task<>(call);
+        List<ClientSession> expired = new ArrayList<>();
+        boolean ready;
+        synchronized (this) {
+            if (closed) {
+                task.future.completeExceptionally(new IOException("Client closed"));
+                return task.future;
+            }
+            ready = assign(task, expired);
+            if (!ready) waiting.add(task);
+        }
+        quit(expired);
+        if (ready) workers.execute(task);
+        return task.future;
+    }
+
+    // ให้ connection ที่ว่างอยู่ หรือสิทธิ์เปิดใหม่ถ้ายังไม่ครบ maxConnections — false = ต้องรอคิว
+    // connection ที่ว่างนานเกินไปหรือเปิดด้วยโปรโตคอลอื่นใส่ลง expired ให้ปิดนอก lock
+    private boolean assign(Task<?> task, List<ClientSession> expired) {
+        long now = System.currentTimeMillis();
+        Idle entry;
+        while ((entry = idle.pollFirst()) != null) {
+            if (now - entry.since < idleTimeoutMs && entry.session.binary == binary) {
+                task.session = entry.session;
+                return true;
+            }
+            expired.add(entry.session);
+            open--;
+        }
+        if (open < maxConnections) {
+            open++;
+            task.session = null;
+            return true;
+        }
+        return false;
+    }
+
+    // บน worker: รันคำสั่งบน connection ของ task แล้วคืน connection ก่อนแจ้งผล (คำสั่งถัดไปได้ connection ทันที)
+    private <T> void execute(Task<T> task) {
+        ClientSession session = task.session;
+        boolean reused = session != null;
+        T result;
+        try {
+            if (session == null) session = ClientSession.open(address, binary);
+            try {
+                result = task.call.run(session);
+            } catch (ClientMain.ServerError | ClientMain.ChecksumMismatch e) {
+                throw e;
+            } catch (IOException e) {
+                if (!reused) throw e;
+                // connection ที่ใช้ซ้ำอาจถูก server ปิดไปแล้วระหว่างว่าง → เปิดใหม่แล้วลองอีกครั้ง
+                session.abort();
+                session = null;
+                session = ClientSession.open(address, binary);
+                result = task.call.run(session);
+            }
+        } catch (ClientMain.ServerError | ClientMain.ChecksumMismatch e) {
+            release(session); // คำตอบครบแล้ว connection ยังใช้ต่อได้
+            task.future.completeExceptionally(e);
+            return;
+        } catch (Throwable e) {
+            discard(session);
+            task.future.completeExceptionally(e);
+            return;
+        }
+        release(session);
+        task.future.complete(result);
+    }
+
+    // คืน connection ที่ยังใช้ได้: ส่งต่อให้คำสั่งแรกในคิว ไม่มีก็เก็บไว้ใช้ซ้ำ
+    // โปรโตคอลเปลี่ยนไปแล้ว (เหมือน assign) → ปิด connection นี้ คำสั่งแรกในคิวได้สิทธิ์เปิดใหม่แทน
+    private void release(ClientSession session) {
+        Task<?> next;
+        boolean retire;
+        synchronized (this) {
+            retire = closed || session.binary != binary;
+            next = closed ? null : waiting.pollFirst();
+            if (!retire && next == null) {
+                idle.addFirst(new Idle(session, System.currentTimeMillis()));
+                return;
+            }
+            if (next != null) {
+                next.session = retire ? null : session;
+            } else {
+                open--;
+            }
+        }
+        if (retire) session.closeQuietly();
+        if (next != null) workers.execute(next);
+    }
+
+    // ปิด connection ที่เสียแล้ว (หรือเปิดไม่สำเร็จ) — ช่องที่ว่างให้คำสั่งแรกในคิวเปิด connection ใหม่
+    private void discard(ClientSession session) {
+        if (session != null) session.abort();
+        Task<?> next;
+        synchronized (this) {
+            open--;
+            next = closed ? null : waiting.pollFirst();
+            if (next != null) {
+                open++;
+                next.session = null;
+            }
+        }
+        if (next != null) workers.execute(next);
+    }
+
+    private static void quit(List<ClientSession> sessions) {
+        for (ClientSession session : sessions) {
+            session.closeQuietly();
+        }
+    }
+
+    // ปิด connection ที่ว่างทั้งหมด (ส่ง QUIT) และยกเลิกคำสั่งที่ยังรอคิว — คำสั่งที่กำลังทำอยู่ทำต่อจนเสร็จแล้วปิด connection
+    @Override
+    public void close() {
+        List<ClientSession> sessions = new ArrayList<>();
+        List<Task<?>> cancelled;
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            for (Idle entry : idle) {
+                sessions.add(entry.session);
+            }
+            open -= idle.size();
+            idle.clear();
+            cancelled = new ArrayList<>(waiting);
+            waiting.clear();
+        }
+        quit(sessions);
+        for (Task<?> task : cancelled) {
+            task.future.completeExceptionally(new IOException("Client closed"));
+        }
+        workers.shutdown();
+    }
+}
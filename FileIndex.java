@@ -0,0 +1,309 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Consumer;
+
+// ดัชนีไฟล์ใน FILE_DIR เก็บไว้ในหน่วยความจำ (ชื่อ, ขนาด, mtime, checksum ถ้ามี)
+// - สแกนโฟลเดอร์ครั้งเดียวตอนเริ่ม แล้วอัปเดตตาม event ของ WatchService บน thread "file-index"
+// - LIST อ่านจากดัชนีแทน listFiles() ทุกครั้ง และ DOWNLOAD ใช้ขนาด/mtime จากดัชนีแทน isFile()/length()
+// - เรียงตามชื่อ (ConcurrentSkipListMap) จึงกรองด้วย prefix และแบ่งหน้าด้วย cursor (ชื่อสุดท้ายของหน้าก่อน) ได้โดยไม่ต้องไล่ทั้งหมด
+// ไฟล์ในโฟลเดอร์ย่อยไม่อยู่ในดัชนี — lookup จะ stat จากดิสก์ตรง ๆ แทน
+final class FileIndex implements Runnable {
+    static final int DEFAULT_PAGE = 1000;  // จำนวนรายการต่อหน้าเมื่อ client ไม่ระบุ
+    static final int MAX_PAGE = 10000;     // จำกัดขนาดคำตอบต่อหน้า
+
+    // ข้อมูลของไฟล์ 1 ไฟล์ — สร้างใหม่ทุกครั้งที่ไฟล์เปลี่ยน (checksum ของไฟล์เดิมจึงหายไปเอง)
+    static final class Entry {
+        final String name;
+        final long size;
+        final long mtime;
+        volatile long checksum = Crc32c.UNKNOWN; // CRC32C จาก ChecksumManifest (คำนวณภายหลัง)
+
+        Entry(String name, long size, long mtime) {
+            this.name = name;
+            this.size = size;
+            this.mtime = mtime;
+        }
+    }
+
+    // ผลของ LIST 1 หน้า — next = cursor สำหรับหน้าถัดไป (null ถ้าหมดแล้ว)
+    static final class Page {
+        final List<Entry> entries;
+        final String next;
+
+        Page(List<Entry> entries, String next) {
+            this.entries = entries;
+            this.next = next;
+        }
+    }
+
+    private final Path dir;
+    private final File canonicalDir;
+    private final WatchService watcher;
+    private final ConcurrentSkipListMap<String, Entry> entries = new ConcurrentSkipListMap<>();
+    private volatile Consumer<Entry> listener; // ถูกเรียกเมื่อมี entry ใหม่ (ไฟล์ใหม่หรือถูกแก้ไข)
+
+    private FileIndex(Path dir, WatchService watcher) throws IOException {
+        this.dir = dir;
+        this.canonicalDir = dir.toFile().getCanonicalFile();
+        this.watcher = watcher;
+    }
+
+    // สร้างดัชนีของโฟลเดอร์ แล้วเริ่ม thread ที่คอยอัปเดตตาม event
+    // ลงทะเบียน watch ก่อนสแกน เพื่อไม่พลาดไฟล์ที่เปลี่ยนระหว่างสแกน
+    static FileIndex open(String dirName) throws IOException {
+        Path dir = Paths.get(dirName);
+        WatchService watcher = dir.getFileSystem().newWatchService();
+        try {
+            dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            watcher.close();
+            throw e;
+        }
+
+        FileIndex index = new FileIndex(dir, watcher);
+        long start = System.currentTimeMillis();
+        index.rescan();
+        System.out.println("[INDEX] Indexed " + index.entries.size() + " files in "
+                + (System.currentTimeMillis() - start) + " ms");
+
+        Thread t = new Thread(index, "file-index");
+        t.setDaemon(true);
+        t.start();
+        return index;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    Iterable<Entry> entries() {
+        return entries.values();
+    }
+
+    // entry ปัจจุบันของไฟล์ชื่อ name ในโฟลเดอร์หลัก (null ถ้าไม่มี)
+    Entry get(String name) {
+        return entries.get(name);
+    }
+
+    void setListener(Consumer<Entry> listener) {
+        this.listener = listener;
+    }
+
+    // ข้อมูลของไฟล์ที่ resolve แล้ว (ServerMain.resolveFile) — คืน null ถ้าไม่มีไฟล์หรือเป็นโฟลเดอร์
+    Entry lookup(File file) {
+        if (!canonicalDir.equals(file.getParentFile())) {
+            return stat(file.toPath(), file.getName()); // โฟลเดอร์ย่อย: ไม่อยู่ในดัชนี
+        }
+        Entry entry = entries.get(file.getName());
+        if (entry == null) {
+            entry = refresh(file.getName()); // event ของไฟล์ใหม่อาจยังมาไม่ถึง
+        }
+        return entry;
+    }
+
+    // รายการที่ตรงกับ glob เรียงตามชื่อ เริ่มหลัง cursor after (null = หน้าแรก) ไม่เกิน limit รายการ
+    // ส่วนของ glob ก่อนอักขระพิเศษตัวแรกใช้เป็น prefix เพื่อข้ามไปยังช่วงที่เกี่ยวข้องในดัชนีได้ทันที
+    Page list(String glob, String after, int limit) {
+        String prefix = literalPrefix(glob);
+        PathMatcher matcher = glob.equals(prefix + "*") ? null
+                : FileSystems.getDefault().getPathMatcher("glob:" + glob); // โยน IllegalArgumentException ถ้า glob ผิด
+
+        NavigableMap<String, Entry> tail = (after != null && after.compareTo(prefix) >= 0)
+                ? entries.tailMap(after, false)
+                : entries.tailMap(prefix, true);
+
+        List<Entry> page = new ArrayList<>(Math.min(limit, 1024));
+        for (Entry e : tail.values()) {
+            if (!e.name.startsWith(prefix)) break; // พ้นช่วงของ prefix แล้ว
+            if (matcher != null && !matcher.matches(Paths.get(e.name))) continue;
+            if (page.size() == limit) {
+                return new Page(page, page.get(limit - 1).name); // ยังมีรายการถัดไป
+            }
+            page.add(e);
+        }
+        return new Page(page, null);
+    }
+
+    private static String literalPrefix(String glob) {
+        for (int i = 0; i < glob.length(); i++) {
+            if ("*?[{\\".indexOf(glob.charAt(i)) >= 0) return glob.substring(0, i);
+        }
+        return glob;
+    }
+
+    // ---------------- อัปเดตดัชนี ----------------
+
+    @Override
+    public void run() {
+        while (ServerMain.running) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    // event ล้นคิว → ไม่รู้ว่าไฟล์ไหนเปลี่ยน สแกนใหม่ทั้งโฟลเดอร์
+                    System.out.println("[INDEX] Event overflow, rescanning " + dir);
+                    rescan();
+                    continue;
+                }
+                refresh(((Path) event.context()).toString());
+            }
+
+            if (!key.reset()) {
+                // โฟลเดอร์ถูกลบหรือ watch ใช้ไม่ได้แล้ว → ดัชนีว่าง (lookup ยังตรวจจากดิสก์ได้)
+                System.err.println("[INDEX] Watch on " + dir + " is no longer valid");
+                entries.clear();
+                return;
+            }
+        }
+    }
+
+    // อ่านข้อมูลของไฟล์ชื่อ name ใหม่จากดิสก์ แล้วเพิ่ม/แก้/ลบในดัชนี
+    private Entry refresh(String name) {
+        Entry entry = stat(dir.resolve(name), name);
+        if (entry == null) {
+            entries.remove(name);
+            return null;
+        }
+        Entry old = entries.get(name);
+        if (old != null && old.size == entry.size && old.mtime == entry.mtime) {
+            return old; // ไม่ได้เปลี่ยนจริง (เช่น MODIFY ซ้ำ) — เก็บ checksum เดิมไว้
+        }
+        entries.put(name, entry);
+        Consumer<Entry> l = listener;
+        if (l != null) l.accept(entry);
+        return entry;
+    }
+
+    private void rescan() {
+        List<String> seen = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                if (refresh(name) != null) seen.add(name);
+            }
+        } catch (IOException | DirectoryIteratorException e) {
+            System.err.println("[INDEX] Scan failed: " + e.getMessage());
+            return;
+        }
+        entries.keySet().retainAll(new HashSet<>(seen)); // ไฟล์ที่หายไประหว่างนั้น
+    }
+
+    private static Entry stat(Path path, String name) {
+        if (Upload.isTemp(name)) return null; // UPLOAD ที่ยังไม่เสร็จ
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            if (!attrs.isRegularFile()) return null;
+            return new Entry(name, attrs.size(), attrs.lastModifiedTime().toMillis());
+        } catch (IOException e) {
+            return null; // ไม่มีไฟล์ (ถูกลบไปแล้ว) หรืออ่านไม่ได้
+        }
+    }
+
+    // ---------------- คำตอบของ LIST ----------------
+
+    // คำตอบของ LIST เข้ารหัสลงหลาย buffer ขนาด CHUNK แล้วเขียนออกด้วย gather write (write(ByteBuffer[]))
+    // ทีละหลาย chunk แทนการ write ทีละชื่อ — แต่ละ connection ใช้ object เดิมซ้ำ (เรียก start ก่อนทุก LIST)
+    static final class ListResponse {
+        private static final int CHUNK = 64 * 1024;
+        private static final int MAX_CHUNKS = 16;   // โหมด blocking เขียนออกเมื่อครบ 1 MB แล้วใช้ buffer ซ้ำ
+        private static final int ENTRY_MAX = 1024;  // เผื่อชื่อไฟล์ UTF-8 ยาวสุด + field อื่น
+
+        private boolean binary;
+        private boolean detailed;       // มีขนาดและ mtime ด้วย (LIST แบบมี glob)
+        private final List<ByteBuffer> chunks = new ArrayList<>();
+        private int used;               // จำนวน chunk ที่มีข้อมูล
+        private ByteBuffer[] pending;   // chunk ที่พร้อมส่ง (โหมดอ่าน) ระหว่าง writeTo
+        private int first;
+        private int count;
+
+        void start(boolean binary, boolean detailed) {
+            this.binary = binary;
+            this.detailed = detailed;
+            while (chunks.size() > 1) chunks.remove(chunks.size() - 1); // ไม่ถือ buffer ของ LIST ใหญ่ไว้ตลอด connection
+            used = 0;
+            pending = null;
+            count = 0;
+        }
+
+        // ครบ MAX_CHUNKS และ chunk สุดท้ายเต็มแล้ว — โหมด blocking ควร flush ก่อน add ต่อ
+        boolean isFull() {
+            return used == MAX_CHUNKS && chunks.get(used - 1).remaining() < ENTRY_MAX;
+        }
+
+        int count() {
+            return count;
+        }
+
+        void add(Entry e) {
+            ByteBuffer buf = current();
+            if (detailed) {
+                Wire.putFile(buf, binary, e.name, e.size, e.mtime);
+            } else {
+                Wire.putEntry(buf, binary, e.name);
+            }
+            count++;
+        }
+
+        // ปิดท้ายด้วย END หรือ MORE <cursor> (ถ้ายังมีหน้าถัดไป)
+        void end(String next) {
+            if (next != null) {
+                Wire.putMore(current(), binary, next);
+            } else {
+                Wire.putEnd(current(), binary);
+            }
+        }
+
+        // chunk ปัจจุบันที่ยังมีที่ว่างพอสำหรับ 1 รายการ
+        private ByteBuffer current() {
+            if (used > 0 && chunks.get(used - 1).remaining() >= ENTRY_MAX) {
+                return chunks.get(used - 1);
+            }
+            if (used == chunks.size()) chunks.add(ByteBuffer.allocate(CHUNK));
+            ByteBuffer buf = chunks.get(used++);
+            buf.clear();
+            return buf;
+        }
+
+        private void prepare() {
+            if (pending != null) return;
+            pending = new ByteBuffer[used];
+            for (int i = 0; i < used; i++) {
+                pending[i] = chunks.get(i);
+                pending[i].flip();
+            }
+            first = 0;
+        }
+
+        // เขียนเท่าที่ socket รับได้ (non-blocking) — คืน true เมื่อส่งครบแล้ว
+        boolean writeTo(GatheringByteChannel channel) throws IOException {
+            prepare();
+            while (first < pending.length) {
+                long written = channel.write(pending, first, pending.length - first);
+                while (first < pending.length && !pending[first].hasRemaining()) first++;
+                if (written == 0 && first < pending.length) return false; // socket เต็ม → รอ OP_WRITE
+            }
+            return true;
+        }
+
+        // เขียนทั้งหมดแบบ blocking แล้วเริ่มใช้ chunk เดิมซ้ำ
+        void flush(GatheringByteChannel channel) throws IOException {
+            writeTo(channel);
+            pending = null;
+            used = 0;
+        }
+    }
+}
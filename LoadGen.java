@@ -0,0 +1,543 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// ตัวสร้างโหลดแบบ headless สำหรับหาว่า server รับไม่ไหวที่ตรงไหน (accept loop / thread pool / คิวส่งไฟล์)
+// - client จำลองหลายพันตัว (thread ละตัว) ใช้โค้ดโปรโตคอลของ ClientMain (connect / requestList / requestDownload /
+//   readRangeHeader) ทั้งแบบข้อความและ binary แต่ข้อมูลไฟล์อ่านทิ้งลง buffer ไม่เขียนดิสก์ → วัดที่ server ไม่ใช่ดิสก์ของ client
+// - แต่ละตัววน: รอ think time (สุ่มแบบ exponential) → สุ่มคำสั่งตาม mix → DOWNLOAD สุ่มขนาดไฟล์ตาม sizes
+// - ไฟล์ทดสอบ loadgen-<size>-<n>.bin สร้างใน dir (FILE_DIR ของ server) ครั้งแรก แล้วใช้ซ้ำ
+// - รันได้หลายช่วงตามจำนวน client (clients=100,500,2000) แต่ละช่วงมี warmup ที่ไม่นับ — client ทยอยเริ่มตลอด warmup
+//   (เริ่มพร้อมกันหลายพันตัว backlog ของ accept ล้นแล้ว connect ค้างรอ SYN retry หลายวินาที ซึ่งวัดได้ด้วย warmup=0)
+// - รายงานเป็นบรรทัด "<key> <value>" ลำดับคงที่ → diff ระหว่างเวอร์ชันของ server ได้ตรง ๆ หรือเทียบด้วย compare
+//
+// java -Dserver.host=127.0.0.1 LoadGen clients=100,1000 duration=30 warmup=5 mix=list:10,download:90
+//      sizes=4K:60,64K:25,1M:10,16M:5 think=100 mode=zero protocol=binary keepalive=false report=load.txt
+// java LoadGen compare old.txt new.txt
+public class LoadGen {
+    static final int SINK_BUFFER = 32 * 1024;         // buffer อ่านทิ้งต่อ client (หลายพันตัว → ไม่ใหญ่)
+    static final long THREAD_STACK = 256 * 1024;      // stack ของ thread ต่อ client (ค่าเริ่มต้นของ JVM ใหญ่เกินสำหรับหลายพันตัว)
+    static final long PROGRESS_MS = 5000;
+
+    public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("compare")) {
+            if (args.length != 3) {
+                System.err.println("Usage: java LoadGen compare <old report> <new report>");
+                return;
+            }
+            try {
+                compare(Paths.get(args[1]), Paths.get(args[2]));
+            } catch (IOException e) {
+                System.err.println("[LOAD] Cannot read report: " + e.getMessage());
+            }
+            return;
+        }
+
+        Config config;
+        try {
+            config = Config.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println("[LOAD] " + e.getMessage());
+            return;
+        }
+        ClientMain.binaryProtocol = config.binary;
+
+        try {
+            config.prepareFiles();
+        } catch (IOException e) {
+            System.err.println("[LOAD] Cannot create test files in " + config.dir + ": " + e.getMessage());
+            return;
+        }
+
+        List<String> report = new ArrayList<>();
+        config.describe(report);
+        for (int clients : config.clients) {
+            Stage stage = new Stage(clients);
+            System.out.println("[LOAD] " + clients + " client(s) against " + ClientMain.SERVER_IP + ":"
+                    + ClientMain.SERVER_PORT + " for " + config.durationMs / 1000 + " s (+" + config.warmupMs / 1000 + " s warmup)");
+            run(config, stage);
+            stage.report(report);
+            serverStats("c" + clients + ".server.", report);
+            System.out.println("[LOAD] " + stage.summary());
+        }
+
+        try {
+            Files.write(Paths.get(config.report), report);
+            System.out.println("[LOAD] Report saved to " + config.report);
+        } catch (IOException e) {
+            System.err.println("[LOAD] Cannot write report: " + e.getMessage());
+            report.forEach(System.out::println);
+        }
+    }
+
+    // ---------------- การรัน 1 ช่วง ----------------
+
+    static void run(Config config, Stage stage) {
+        long start = System.nanoTime();
+        stage.started = start;
+        stage.measureFrom = start + TimeUnit.MILLISECONDS.toNanos(config.warmupMs);
+        stage.measureTo = stage.measureFrom + TimeUnit.MILLISECONDS.toNanos(config.durationMs);
+
+        CountDownLatch done = new CountDownLatch(stage.clients);
+        ExecutorService virtual = ServerMain.newVirtualThreadExecutor(); // Java 21+: ไม่ต้องจอง stack ต่อ client
+        for (int i = 0; i < stage.clients; i++) {
+            int id = i;
+            Runnable client = () -> {
+                try {
+                    client(config, stage, id);
+                } finally {
+                    done.countDown();
+                }
+            };
+            if (virtual != null) {
+                virtual.execute(client);
+            } else {
+                Thread thread = new Thread(null, client, "load-" + id, THREAD_STACK);
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        // แสดงความคืบหน้าจนกว่าทุก client จะจบ (DOWNLOAD ที่เริ่มก่อนหมดเวลาได้ทำจนจบ)
+        long queuedBefore = -1;
+        try {
+            while (!done.await(PROGRESS_MS, TimeUnit.MILLISECONDS)) {
+                long now = System.nanoTime();
+                if (queuedBefore < 0 && now >= stage.measureFrom) queuedBefore = Metrics.CLIENT_QUEUED.get();
+                System.out.println("[LOAD] " + TimeUnit.NANOSECONDS.toSeconds(now - start) + " s: " + stage.progress());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (virtual != null) virtual.shutdown();
+        stage.queued = Metrics.CLIENT_QUEUED.get() - Math.max(0, queuedBefore);
+    }
+
+    // client จำลอง 1 ตัว — วนจนหมดเวลาของช่วง
+    static void client(Config config, Stage stage, int id) {
+        SplittableRandom random = new SplittableRandom(config.seed * 1_000_003L + id);
+        ByteBuffer sink = ByteBuffer.allocateDirect(SINK_BUFFER);
+        SocketChannel channel = null;
+        long begin = stage.measureFrom - (stage.measureFrom - stage.started) * (stage.clients - id) / stage.clients;
+        LockSupport.parkNanos(begin - System.nanoTime());
+        try {
+            while (true) {
+                think(config, random, stage.measureTo);
+                long start = System.nanoTime();
+                if (start >= stage.measureTo) break;
+                boolean measured = start >= stage.measureFrom;
+                String op = config.mix.pick(random);
+                try {
+                    if (channel == null) {
+                        channel = open(config);
+                        if (measured) stage.connect.recordMicrosSince(start);
+                    }
+                    if (op.equals("list")) {
+                        int entries = list(channel);
+                        if (measured) {
+                            stage.lists.increment();
+                            stage.listLatency.recordMicrosSince(start);
+                            stage.listEntries.add(entries);
+                        }
+                    } else {
+                        String[] copies = config.sizes.pick(random);
+                        long bytes = download(config, channel, copies[random.nextInt(copies.length)], sink, stage, start, measured);
+                        if (measured) {
+                            stage.downloads.increment();
+                            stage.downloadLatency.recordMicrosSince(start);
+                            stage.bytes.add(bytes);
+                        }
+                    }
+                } catch (ClientMain.ServerError e) {
+                    // server ตอบ ERROR — connection ยังใช้ต่อได้ถ้าเป็น keep-alive
+                    if (measured) (isBusy(e) ? stage.busy : stage.errors).increment();
+                    if (config.keepAlive) continue;
+                } catch (IOException e) {
+                    if (measured) {
+                        stage.failures.increment();
+                        stage.lastFailure = e.toString();
+                    }
+                    close(channel, false);
+                    channel = null;
+                    continue;
+                }
+                if (!config.keepAlive) {
+                    close(channel, true);
+                    channel = null;
+                }
+            }
+        } finally {
+            close(channel, true);
+        }
+    }
+
+    // เชื่อมต่อแบบเดียวกับ ClientMain — keep-alive บนโปรโตคอลข้อความต้องเปิด SESSION ก่อน (binary เป็น keep-alive อยู่แล้ว)
+    static SocketChannel open(Config config) throws IOException {
+        SocketChannel channel = ClientMain.connect();
+        if (config.keepAlive && !config.binary) {
+            try {
+                ClientMain.writeLine(channel, "SESSION");
+                String response = ClientMain.readLine(channel);
+                if (!"OK SESSION".equals(response)) throw new IOException("Server does not support sessions: " + response);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+        return channel;
+    }
+
+    static int list(SocketChannel channel) throws IOException {
+        ClientMain.requestList(channel, ClientMain.binaryProtocol);
+        int entries = 0;
+        while (ClientMain.readListEntry(channel, ClientMain.binaryProtocol) != null) {
+            entries++;
+        }
+        return entries;
+    }
+
+    // DOWNLOAD ทั้งไฟล์แล้วอ่านข้อมูลทิ้ง — คืนจำนวน byte ที่ได้
+    static long download(Config config, SocketChannel channel, String name, ByteBuffer sink,
+                         Stage stage, long start, boolean measured) throws IOException {
+        ClientMain.requestDownload(channel, ClientMain.binaryProtocol, name, config.mode, 0, -1, -1);
+        // ไม่พิมพ์ [QUEUE] ของ client หลายพันตัว — นับใน client.queued แทน
+        ClientMain.RangeHeader header = ClientMain.readRangeHeader(channel, ClientMain.binaryProtocol,
+                FileClient.Listener.SILENT);
+        if (measured) stage.ttfb.recordMicrosSince(start);
+
+        long remaining = header.length;
+        while (remaining > 0) {
+            sink.clear();
+            if (remaining < sink.capacity()) sink.limit((int) remaining);
+            int n = channel.read(sink);
+            if (n == -1) throw new IOException("Connection closed with " + remaining + " byte(s) left");
+            remaining -= n;
+        }
+        return header.length;
+    }
+
+    // ปิด connection — ถ้ายังคุยกันได้ แจ้ง QUIT ก่อนเหมือน ClientSession
+    static void close(SocketChannel channel, boolean quit) {
+        if (channel == null) return;
+        try {
+            if (quit) {
+                if (ClientMain.binaryProtocol) {
+                    ClientMain.sendFrame(channel, Wire.OP_QUIT);
+                } else {
+                    ClientMain.writeLine(channel, "QUIT");
+                }
+            }
+        } catch (IOException ignored) {
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // ERROR Server busy = คิวของ server เต็ม (หรือ pool ไม่รับงาน) แยกจาก error อื่น
+    static boolean isBusy(ClientMain.ServerError e) {
+        return e.getMessage() != null && e.getMessage().toLowerCase(Locale.ROOT).contains("busy");
+    }
+
+    // think time แบบ exponential (เฉลี่ย config.thinkMs) แต่ไม่เลย deadline
+    static void think(Config config, SplittableRandom random, long deadline) {
+        if (config.thinkMs <= 0) return;
+        long nanos = (long) (-config.thinkMs * 1e6 * Math.log(1 - random.nextDouble()));
+        nanos = Math.min(nanos, deadline - System.nanoTime());
+        if (nanos > 0) LockSupport.parkNanos(nanos);
+    }
+
+    // metrics ของ server หลังจบช่วง (ค่าสะสมตั้งแต่ server เริ่ม) — "name value" หรือ "name count=.. p50=.." → key ละบรรทัด
+    static void serverStats(String prefix, List<String> report) {
+        try (SocketChannel channel = ClientMain.connect()) {
+            if (ClientMain.binaryProtocol) {
+                ClientMain.sendFrame(channel, Wire.OP_STATS);
+            } else {
+                ClientMain.writeLine(channel, "STATS");
+            }
+            String line;
+            while ((line = ClientMain.readListEntry(channel, ClientMain.binaryProtocol)) != null) {
+                String[] parts = line.split(" ");
+                for (int i = 1; i < parts.length; i++) {
+                    int eq = parts[i].indexOf('=');
+                    report.add(eq < 0 ? prefix + parts[0] + " " + parts[i]
+                            : prefix + parts[0] + "." + parts[i].substring(0, eq) + " " + parts[i].substring(eq + 1));
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("[LOAD] Server metrics unavailable: " + e.getMessage());
+        }
+    }
+
+    // ---------------- เทียบรายงาน ----------------
+
+    // แสดงทุก key ที่เป็นตัวเลขของทั้งสองไฟล์: ค่าเดิม → ค่าใหม่ (เปลี่ยนไปกี่ %)
+    static void compare(Path oldReport, Path newReport) throws IOException {
+        Map<String, String> before = readReport(oldReport);
+        Map<String, String> after = readReport(newReport);
+        Set<String> keys = new LinkedHashSet<>(before.keySet());
+        keys.addAll(after.keySet());
+        for (String key : keys) {
+            String a = before.getOrDefault(key, "-");
+            String b = after.getOrDefault(key, "-");
+            String change = "";
+            try {
+                double x = Double.parseDouble(a);
+                double y = Double.parseDouble(b);
+                if (x != 0) change = String.format(Locale.ROOT, " (%+.1f%%)", (y - x) * 100 / x);
+            } catch (NumberFormatException ignored) {
+                // ไม่ใช่ตัวเลข หรือมีแค่ฝั่งเดียว
+            }
+            if (!a.equals(b)) System.out.println(key + " " + a + " -> " + b + change);
+        }
+    }
+
+    static Map<String, String> readReport(Path path) throws IOException {
+        Map<String, String> values = new LinkedHashMap<>();
+        for (String line : Files.readAllLines(path)) {
+            int space = line.indexOf(' ');
+            if (line.startsWith("#") || space < 0) continue;
+            values.put(line.substring(0, space), line.substring(space + 1));
+        }
+        return values;
+    }
+
+    // ---------------- ค่าตั้งของการรัน ----------------
+
+    static final class Config {
+        int[] clients = {100};
+        long durationMs = 30_000;
+        long warmupMs = 5_000;
+        double thinkMs = 100;
+        String mode = "zero";
+        boolean binary = true;
+        boolean keepAlive;
+        String dir = ServerMain.FILE_DIR;
+        int copies = 4;
+        long seed = 42;
+        String report = "loadgen-report.txt";
+        Weighted<String> mix = Weighted.parse("list:10,download:90", s -> s);
+        String sizesText = "4K:60,64K:25,1M:10,16M:5";
+        Weighted<String[]> sizes;
+        private final List<String> args = new ArrayList<>();
+
+        // key=value ทีละอาร์กิวเมนต์ — โยน IllegalArgumentException ถ้าอ่านไม่ได้
+        static Config parse(String[] args) {
+            Config c = new Config();
+            for (String arg : args) {
+                int eq = arg.indexOf('=');
+                if (eq < 0) throw new IllegalArgumentException("Expected key=value: " + arg);
+                String key = arg.substring(0, eq);
+                String value = arg.substring(eq + 1);
+                try {
+                    switch (key) {
+                        case "clients" -> c.clients = Arrays.stream(value.split(",")).mapToInt(s -> Integer.parseInt(s.trim())).toArray();
+                        case "duration" -> c.durationMs = (long) (Double.parseDouble(value) * 1000);
+                        case "warmup" -> c.warmupMs = (long) (Double.parseDouble(value) * 1000);
+                        case "think" -> c.thinkMs = Double.parseDouble(value);
+                        case "mix" -> c.mix = Weighted.parse(value, s -> {
+                            if (!s.equals("list") && !s.equals("download")) throw new IllegalArgumentException("Unknown operation: " + s);
+                            return s;
+                        });
+                        case "sizes" -> c.sizesText = value;
+                        case "mode" -> {
+                            if (!value.equals("zero") && !value.equals("normal")) {
+                                throw new IllegalArgumentException("mode must be zero or normal (compressed modes are not drained)");
+                            }
+                            c.mode = value;
+                        }
+                        case "protocol" -> c.binary = value.equals("binary");
+                        case "keepalive" -> c.keepAlive = Boolean.parseBoolean(value);
+                        case "dir" -> c.dir = value;
+                        case "copies" -> c.copies = Math.max(1, Integer.parseInt(value));
+                        case "seed" -> c.seed = Long.parseLong(value);
+                        case "report" -> c.report = value;
+                        default -> throw new IllegalArgumentException("Unknown option: " + key);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid value for " + key + ": " + value);
+                }
+                c.args.add(arg);
+            }
+            c.sizes = Weighted.parse(c.sizesText, s -> {
+                String[] names = new String[c.copies];
+                for (int i = 0; i < names.length; i++) {
+                    names[i] = "loadgen-" + s.toUpperCase(Locale.ROOT) + "-" + i + ".bin";
+                }
+                return names;
+            });
+            return c;
+        }
+
+        // สร้างไฟล์ที่ยังไม่มี (หรือขนาดไม่ตรง) ด้วยข้อมูลสุ่ม — FileIndex ของ server เห็นเองผ่าน WatchService
+        void prepareFiles() throws IOException {
+            Path base = Paths.get(dir);
+            Files.createDirectories(base);
+            ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+            for (String sizeText : sizesText.split(",")) {
+                String label = sizeText.substring(0, sizeText.lastIndexOf(':')).trim();
+                long size = Bandwidth.parseRate(label);
+                for (int i = 0; i < copies; i++) {
+                    Path file = base.resolve("loadgen-" + label.toUpperCase(Locale.ROOT) + "-" + i + ".bin");
+                    if (Files.exists(file) && Files.size(file) == size) continue;
+                    SplittableRandom random = new SplittableRandom(size * 31 + i);
+                    try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE,
+                            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                        for (long written = 0; written < size; ) {
+                            buf.clear();
+                            while (buf.remaining() >= 8) {
+                                buf.putLong(random.nextLong());
+                            }
+                            buf.flip();
+                            buf.limit((int) Math.min(buf.limit(), size - written));
+                            while (buf.hasRemaining()) {
+                                written += out.write(buf);
+                            }
+                        }
+                    }
+                    System.out.println("[LOAD] Created " + file + " (" + ClientMain.formatBytes(size) + ")");
+                }
+            }
+        }
+
+        void describe(List<String> report) {
+            report.add("# LoadGen " + String.join(" ", args));
+            report.add("config.protocol " + (binary ? "binary" : "text"));
+            report.add("config.mode " + mode);
+            report.add("config.keepalive " + keepAlive);
+            report.add("config.duration.s " + durationMs / 1000.0);
+            report.add("config.warmup.s " + warmupMs / 1000.0);
+            report.add("config.think.ms " + thinkMs);
+            report.add("config.mix " + mix);
+            report.add("config.sizes " + sizesText);
+        }
+    }
+
+    // ผลของ 1 ช่วง (จำนวน client ค่าหนึ่ง) — นับเฉพาะคำสั่งที่เริ่มหลัง warmup
+    static final class Stage {
+        final int clients;
+        volatile long started;
+        volatile long measureFrom;
+        volatile long measureTo;
+        final LongAdder lists = new LongAdder();
+        final LongAdder downloads = new LongAdder();
+        final LongAdder listEntries = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder busy = new LongAdder();      // ERROR Server busy
+        final LongAdder errors = new LongAdder();    // ERROR อื่น ๆ
+        final LongAdder failures = new LongAdder();  // connect ไม่ได้ / connection หลุด
+        final Metrics.Histogram connect = new Metrics.Histogram();
+        final Metrics.Histogram listLatency = new Metrics.Histogram();
+        final Metrics.Histogram downloadLatency = new Metrics.Histogram();
+        final Metrics.Histogram ttfb = new Metrics.Histogram();
+        volatile String lastFailure;
+        long queued;
+
+        Stage(int clients) {
+            this.clients = clients;
+        }
+
+        long attempts() {
+            return lists.sum() + downloads.sum() + busy.sum() + errors.sum() + failures.sum();
+        }
+
+        String progress() {
+            return "ops " + (lists.sum() + downloads.sum()) + ", " + ClientMain.formatBytes(bytes.sum())
+                    + ", busy " + busy.sum() + ", errors " + errors.sum() + ", failures " + failures.sum();
+        }
+
+        String summary() {
+            double seconds = (measureTo - measureFrom) / 1e9;
+            return clients + " client(s): " + String.format(Locale.ROOT, "%.1f ops/s, %s/s", (lists.sum() + downloads.sum()) / seconds,
+                    ClientMain.formatBytes((long) (bytes.sum() / seconds))) + ", download p99 "
+                    + downloadLatency.snapshot().percentile(0.99) / 1000 + " ms, busy " + busy.sum() + ", errors "
+                    + errors.sum() + ", failures " + failures.sum() + (lastFailure != null ? " (last: " + lastFailure + ")" : "");
+        }
+
+        void report(List<String> out) {
+            String p = "c" + clients + ".";
+            double seconds = (measureTo - measureFrom) / 1e9;
+            long attempts = attempts();
+            out.add(p + "ops.list " + lists.sum());
+            out.add(p + "ops.download " + downloads.sum());
+            out.add(p + "ops.per.s " + round((lists.sum() + downloads.sum()) / seconds));
+            out.add(p + "throughput.Bps " + (long) (bytes.sum() / seconds));
+            out.add(p + "list.entries " + listEntries.sum());
+            out.add(p + "busy " + busy.sum());
+            out.add(p + "busy.rate " + round(attempts == 0 ? 0 : (double) busy.sum() / attempts));
+            out.add(p + "errors " + errors.sum());
+            out.add(p + "errors.rate " + round(attempts == 0 ? 0 : (double) errors.sum() / attempts));
+            out.add(p + "failures " + failures.sum());
+            out.add(p + "failures.rate " + round(attempts == 0 ? 0 : (double) failures.sum() / attempts));
+            out.add(p + "queued " + queued);
+            histogram(out, p + "latency.connect.us", connect);
+            histogram(out, p + "latency.list.us", listLatency);
+            histogram(out, p + "latency.download.us", downloadLatency);
+            histogram(out, p + "latency.ttfb.us", ttfb);
+        }
+
+        private static void histogram(List<String> out, String name, Metrics.Histogram h) {
+            Metrics.Histogram.Snapshot s = h.snapshot();
+            out.add(name + ".count " + s.count);
+            out.add(name + ".mean " + s.mean());
+            out.add(name + ".p50 " + s.percentile(0.50));
+            out.add(name + ".p90 " + s.percentile(0.90));
+            out.add(name + ".p99 " + s.percentile(0.99));
+            out.add(name + ".p999 " + s.percentile(0.999));
+            out.add(name + ".max " + s.max);
+        }
+
+        private static String round(double value) {
+            return String.format(Locale.ROOT, "%.4f", value);
+        }
+    }
+
+    // เลือกค่าแบบสุ่มตามน้ำหนัก จากข้อความ "a:10,b:90"
+    static final class Weighted<T> {
+        private final List<T> values = new ArrayList<>();
+        private final List<Integer> cumulative = new ArrayList<>();
+        private final String text;
+        private int total;
+
+        private Weighted(String text) {
+            this.text = text;
+        }
+
+        static <T> Weighted<T> parse(String text, java.util.function.Function<String, T> value) {
+            Weighted<T> w = new Weighted<>(text);
+            for (String part : text.split(",")) {
+                int colon = part.lastIndexOf(':');
+                if (colon < 0) throw new IllegalArgumentException("Expected value:weight in " + text);
+                int weight = Integer.parseInt(part.substring(colon + 1).trim());
+                if (weight <= 0) continue;
+                w.total += weight;
+                w.values.add(value.apply(part.substring(0, colon).trim()));
+                w.cumulative.add(w.total);
+            }
+            if (w.total == 0) throw new IllegalArgumentException("No positive weight in " + text);
+            return w;
+        }
+
+        T pick(SplittableRandom random) {
+            int x = random.nextInt(total);
+            for (int i = 0; i < values.size(); i++) {
+                if (x < cumulative.get(i)) return values.get(i);
+            }
+            return values.get(values.size() - 1);
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+}
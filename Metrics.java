@@ -0,0 +1,286 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.*;
+
+// ตัววัดการทำงาน (metrics) ใช้ร่วมกันทั้ง server และ client — บันทึกแบบ lock-free ไม่สร้าง object ต่อครั้ง
+// - Counter: LongAdder (เพิ่ม / ลดได้ ใช้เป็นจำนวน connection ที่เปิดอยู่ได้ด้วย)
+// - Histogram: bucket แบบ log-linear (8 ช่องย่อยต่อช่วง 2 เท่า → ค่าคลาดไม่เกิน 12.5%) บน AtomicLongArray
+//   บันทึกด้วย increment ครั้งเดียว อ่าน percentile จาก snapshot ของ bucket ตอนรายงาน
+// - Gauge: ค่าปัจจุบัน อ่านตอนรายงาน (ความยาวคิวของ pool / Admission)
+// รายงานผ่านคำสั่ง STATS ของโปรโตคอล และ JMX (MBean "FileTransfer:type=Metrics" ดูด้วย jconsole / VisualVM)
+// ชื่อลงท้ายด้วยหน่วยของค่า: .us = microsecond, .ms = millisecond, .bytes, .Bps = byte/วินาที
+final class Metrics {
+    private static final Map<String, Object> REGISTRY = new ConcurrentSkipListMap<>(); // เรียงตามชื่อในรายงาน
+
+    // ---------------- server ----------------
+    static final Histogram TTFB = histogram("transfer.ttfb.us");           // ได้คำสั่ง → เริ่มส่ง header/ข้อมูล (รวมรอคิว)
+    static final Histogram TRANSFER_TIME = histogram("transfer.time.ms");   // ส่งข้อมูลทั้งช่วง
+    static final Histogram ADMISSION_WAIT = histogram("admission.wait.us"); // รอช่องส่งใน Admission
+    static final Histogram TRANSFER_TO = histogram("transferTo.bytes");     // byte ต่อการเรียก transferTo ที่ส่งได้
+    static final Counter TRANSFER_TO_ZERO = counter("transferTo.zero");     // transferTo คืน 0 (socket เต็ม)
+    static final Counter STALL_WRITES = counter("transferTo.stallWrites");  // โหมด pool: เขียนแบบ blocking แทน sleep หลังได้ 0
+    static final Histogram READ = histogram("read.bytes");                  // byte ต่อการอ่านไฟล์ของโหมด normal
+    static final Histogram TRANSFER_FROM = histogram("transferFrom.bytes"); // UPLOAD: byte ต่อการเรียก transferFrom ที่รับได้
+    static final Counter CONNECTIONS = counter("connections.active");
+    static final Counter ACCEPTED = counter("connections.total");
+    // throughput ต่อการส่งแยกตามโหมด — ชุดตายตัว ชื่อโหมดจาก client ไม่ได้กลายเป็นชื่อ metric ใหม่
+    static final Histogram THROUGHPUT_ZERO = histogram("throughput.zero.Bps");
+    static final Histogram THROUGHPUT_NORMAL = histogram("throughput.normal.Bps");
+    static final Histogram THROUGHPUT_CACHED = histogram("throughput.cached.Bps");
+    static final Histogram THROUGHPUT_DEFLATE = histogram("throughput.deflate.Bps");
+    static final Histogram THROUGHPUT_FAST = histogram("throughput.fast.Bps");
+    static final Histogram THROUGHPUT_DELTA = histogram("throughput.delta.Bps");
+    static final Histogram THROUGHPUT_MGET = histogram("throughput.mget.Bps");
+    static final Histogram THROUGHPUT_UPLOAD = histogram("throughput.upload.Bps");
+
+    // ---------------- client ----------------
+    static final Histogram CLIENT_TTFB = histogram("client.ttfb.us");                 // ส่งคำขอ → ได้ header
+    static final Histogram CLIENT_TRANSFER_FROM = histogram("client.transferFrom.bytes");
+    static final Counter CLIENT_TRANSFER_FROM_ZERO = counter("client.transferFrom.zero");
+    static final Counter CLIENT_SLEEP_MS = counter("client.sleep.ms");                // Thread.sleep ระหว่างรอข้อมูล
+    static final Histogram CLIENT_READ = histogram("client.read.bytes");
+    static final Histogram CLIENT_SYNC_TIME = histogram("client.sync.ms");            // force ลงดิสก์รวมต่อไฟล์ (download.sync)
+    static final Counter CLIENT_DISK_WAITS = counter("client.disk.waits");            // รอ slot ว่างจาก DiskWriter (ดิสก์ช้ากว่า network)
+    static final Counter CLIENT_QUEUED = counter("client.queued");                    // ได้ QUEUED ระหว่างรอคิว
+
+    private Metrics() {}
+
+    static Histogram histogram(String name) {
+        return (Histogram) REGISTRY.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    static Counter counter(String name) {
+        return (Counter) REGISTRY.computeIfAbsent(name, n -> new Counter());
+    }
+
+    static void gauge(String name, LongSupplier value) {
+        REGISTRY.put(name, value);
+    }
+
+    // throughput ของการส่งแต่ละครั้งแยกตามโหมด (zero / normal / cached / deflate / fast / delta / mget / upload)
+    // mode มาจากคำขอของ client — โหมดที่ไม่รู้จักถูกส่งแบบ normal ทั้งสอง server จึงนับเป็น normal
+    static void recordThroughput(String mode, long bytes, long nanos) {
+        if (bytes <= 0 || nanos <= 0) return;
+        throughput(mode).record((long) (bytes * 1e9 / nanos));
+    }
+
+    private static Histogram throughput(String mode) {
+        return switch (mode) {
+            case "zero" -> THROUGHPUT_ZERO;
+            case "cached" -> THROUGHPUT_CACHED;
+            case "deflate" -> THROUGHPUT_DEFLATE;
+            case "fast" -> THROUGHPUT_FAST;
+            case "delta" -> THROUGHPUT_DELTA;
+            case "mget" -> THROUGHPUT_MGET;
+            case "upload" -> THROUGHPUT_UPLOAD;
+            default -> THROUGHPUT_NORMAL;
+        };
+    }
+
+    // รายงาน 1 บรรทัดต่อ metric ของ server หรือของ client (ชื่อขึ้นต้นด้วย client.) — histogram ที่ยังไม่มีข้อมูลไม่แสดง
+    static List<String> report(boolean client) {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, Object> e : REGISTRY.entrySet()) {
+            if (e.getKey().startsWith("client.") != client) continue;
+            Object m = e.getValue();
+            if (m instanceof Histogram) {
+                Histogram.Snapshot s = ((Histogram) m).snapshot();
+                if (s.count == 0) continue;
+                lines.add(e.getKey() + " count=" + s.count + " mean=" + s.mean() + " p50=" + s.percentile(0.50)
+                        + " p90=" + s.percentile(0.90) + " p99=" + s.percentile(0.99) + " p999=" + s.percentile(0.999)
+                        + " max=" + s.max);
+            } else {
+                lines.add(e.getKey() + " " + valueOf(m));
+            }
+        }
+        return lines;
+    }
+
+    private static long valueOf(Object metric) {
+        return metric instanceof Counter ? ((Counter) metric).get() : ((LongSupplier) metric).getAsLong();
+    }
+
+    // ค่าแบบแบนสำหรับ JMX (เฉพาะของ server): counter / gauge ตามชื่อ, histogram เป็น <name>.count / .mean / .p50 / .p90 / .p99 / .max
+    private static Map<String, Long> values() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> e : REGISTRY.entrySet()) {
+            if (e.getKey().startsWith("client.")) continue;
+            Object m = e.getValue();
+            if (m instanceof Histogram) {
+                Histogram.Snapshot s = ((Histogram) m).snapshot();
+                values.put(e.getKey() + ".count", s.count);
+                values.put(e.getKey() + ".mean", s.mean());
+                values.put(e.getKey() + ".p50", s.percentile(0.50));
+                values.put(e.getKey() + ".p90", s.percentile(0.90));
+                values.put(e.getKey() + ".p99", s.percentile(0.99));
+                values.put(e.getKey() + ".max", s.max);
+            } else {
+                values.put(e.getKey(), valueOf(m));
+            }
+        }
+        return values;
+    }
+
+    // ลงทะเบียน MBean บน platform MBeanServer (เรียกครั้งเดียวตอนเริ่ม server)
+    static void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(), new ObjectName("FileTransfer:type=Metrics"));
+        } catch (JMException e) {
+            System.err.println("[METRICS] JMX disabled: " + e.getMessage());
+        }
+    }
+
+    static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        void increment() {
+            value.increment();
+        }
+
+        void decrement() {
+            value.decrement();
+        }
+
+        void add(long n) {
+            value.add(n);
+        }
+
+        long get() {
+            return value.sum();
+        }
+    }
+
+    static final class Histogram {
+        private static final int SUB_BITS = 3;
+        private static final int SUB = 1 << SUB_BITS;
+        private static final int BUCKETS = (64 - SUB_BITS) << SUB_BITS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long value) {
+            if (value < 0) value = 0;
+            buckets.incrementAndGet(index(value));
+            sum.add(value);
+            long m;
+            while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+                // ตัวอื่นเพิ่งเขียน max → ลองใหม่
+            }
+        }
+
+        void recordMicrosSince(long startNanos) {
+            record((System.nanoTime() - startNanos) / 1000);
+        }
+
+        // ค่า < 8 มีช่องของตัวเอง นอกนั้นแบ่งช่วง [2^k, 2^(k+1)) เป็น 8 ช่องเท่า ๆ กัน
+        static int index(long value) {
+            if (value < SUB) return (int) value;
+            int k = 63 - Long.numberOfLeadingZeros(value);
+            return ((k - SUB_BITS + 1) << SUB_BITS) + (int) ((value >>> (k - SUB_BITS)) & (SUB - 1));
+        }
+
+        // ค่าสูงสุดของช่อง idx
+        static long upperBound(int idx) {
+            if (idx < SUB) return idx;
+            int k = (idx >> SUB_BITS) + SUB_BITS - 1;
+            long lower = (long) (SUB + (idx & (SUB - 1))) << (k - SUB_BITS);
+            return lower + (1L << (k - SUB_BITS)) - 1;
+        }
+
+        // อ่าน bucket ทีละช่อง (ไม่หยุดตัวที่กำลังบันทึก) — count อาจต่างจาก sum เล็กน้อยระหว่างอ่าน ไม่เป็นไรสำหรับรายงาน
+        Snapshot snapshot() {
+            long[] counts = new long[BUCKETS];
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+                count += counts[i];
+            }
+            return new Snapshot(counts, count, sum.sum(), max.get());
+        }
+
+        static final class Snapshot {
+            final long count;
+            final long max;
+            private final long[] counts;
+            private final long sum;
+
+            private Snapshot(long[] counts, long count, long sum, long max) {
+                this.counts = counts;
+                this.count = count;
+                this.sum = sum;
+                this.max = max;
+            }
+
+            long mean() {
+                return count == 0 ? 0 : sum / count;
+            }
+
+            // ค่าที่ q ของข้อมูลไม่เกิน (ขอบบนของช่อง แต่ไม่เกิน max ที่เห็นจริง)
+            long percentile(double q) {
+                if (count == 0) return 0;
+                long rank = Math.max(1, (long) Math.ceil(q * count));
+                long seen = 0;
+                for (int i = 0; i < counts.length; i++) {
+                    seen += counts[i];
+                    if (seen >= rank) return Math.min(upperBound(i), max);
+                }
+                return max;
+            }
+        }
+    }
+
+    // JMX แบบอ่านอย่างเดียว: attribute ละ 1 ค่าจาก values() — รายชื่อ attribute อ่านใหม่ทุกครั้ง (throughput ของโหมดใหม่โผล่เองได้)
+    private static final class MBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Long value = values().get(attribute);
+            if (value == null) throw new AttributeNotFoundException(attribute);
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Long> values = values();
+            AttributeList list = new AttributeList();
+            for (String name : attributes) {
+                Long value = values.get(name);
+                if (value != null) list.add(new Attribute(name, value));
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Read-only attribute: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (String name : values().keySet()) {
+                attributes.add(new MBeanAttributeInfo(name, "java.lang.Long", name, true, false, false));
+            }
+            return new MBeanInfo(Metrics.class.getName(), "File transfer metrics",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
@@ -0,0 +1,1405 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Event-loop server: ใช้ Selector แทน thread-per-client
+// - acceptor 1 ตัวรับ connection แล้วกระจายให้ EventLoop แบบ round-robin
+// - แต่ละ EventLoop มี Selector ของตัวเอง (ปกติ 1 loop ต่อ 1 core)
+// - แต่ละ connection เป็น state machine: READ_COMMAND → (WAIT_PERMIT: รอคิวใน Admission) → WRITE_RESPONSE / TRANSFER → ปิด
+//   SYNC: READ_COMMAND → READ_BODY (signature) → (WAIT_PERMIT) → PLANNING (คำนวณบน ForkJoinPool) → TRANSFER
+//   UPLOAD: READ_COMMAND → (WAIT_PERMIT) → RECEIVE (READY แล้ว transferFrom ลงไฟล์ชั่วคราว + CHECKSUM)
+//           → VERIFYING (รอ CRC / force / rename บน ForkJoinPool) → WRITE_RESPONSE
+//   (หลัง SESSION จะวนกลับไป READ_COMMAND แทนการปิด และทำคำสั่งที่ client ส่งมาแบบ pipeline ต่อตามลำดับ)
+// - รองรับทั้งโปรโตคอลข้อความและ binary (Wire) แยกจาก byte แรกของ connection
+// เมื่อ socket เขียนไม่ได้ (ส่งได้ 0 byte) จะรอ OP_WRITE แทนการ Thread.sleep(10) แบบในโหมด pool
+public class NioServer {
+    private static final long IDLE_TIMEOUT_MS = 30000;       // เทียบเท่า setSoTimeout(30000) ในโหมด pool
+    private static final long MAX_BYTES_PER_EVENT = 1 << 20; // ส่งได้สูงสุด 1 MB ต่อ event เพื่อให้ client อื่นได้คิวด้วย
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0); // ที่ว่างใน gather จนได้ก้อนแรกจาก SharedRead
+
+    private final int port;
+    private final EventLoop[] loops;
+
+    NioServer(int port, int loopCount) throws IOException {
+        this.port = port;
+        this.loops = new EventLoop[Math.max(1, loopCount)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+        }
+    }
+
+    // เปิด event loop ทั้งหมด แล้ววนรับ client จนกว่า ServerMain.running = false
+    void run() throws IOException {
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < loops.length; i++) {
+            Thread t = new Thread(loops[i], "nio-loop-" + i);
+            t.start();
+            threads.add(t);
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open();
+             Selector acceptSelector = Selector.open()) {
+            Tuning.listening(serverChannel); // receive buffer ของ profile ต้องตั้งก่อน accept
+            serverChannel.bind(new InetSocketAddress(port), 1024); // backlog ใหญ่ขึ้นสำหรับ client จำนวนมาก
+            serverChannel.configureBlocking(false);
+            serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+            System.out.println("[SERVER] Running on port " + port);
+            System.out.println(serverChannel.getLocalAddress());
+            System.out.println("[SERVER] Event-loop mode: " + loops.length + " selector loop(s)");
+
+            int next = 0;
+            while (ServerMain.running) {
+                // รอ client 1 วินาที แล้วกลับไปเช็คว่า server ยังต้องทำงานไหม
+                if (acceptSelector.select(1000) == 0) continue;
+                acceptSelector.selectedKeys().clear();
+
+                SocketChannel client;
+                while ((client = serverChannel.accept()) != null) {
+                    try {
+                        System.out.println("[SERVER] New client connected: " + client.getRemoteAddress());
+                        client.configureBlocking(false);
+                        Tuning.accepted(client); // TCP_NODELAY + socket buffer ตาม profile
+                        loops[next].add(client);
+                        next = (next + 1) % loops.length;
+                    } catch (IOException e) {
+                        System.err.println("[SERVER ACCEPT ERROR] " + e.getMessage());
+                        client.close();
+                    }
+                }
+            }
+        } finally {
+            System.out.println("[SERVER] Shutting down event loops.");
+            for (EventLoop loop : loops) {
+                loop.selector.wakeup();
+            }
+            for (Thread t : threads) {
+                try {
+                    t.join(5000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    // Selector 1 ตัว + thread 1 ตัว ดูแลหลาย connection
+    static class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> incoming = new ConcurrentLinkedQueue<>(); // connection ใหม่จาก acceptor
+        private final List<Connection> waitingPermit = new ArrayList<>();           // DOWNLOAD / SYNC ที่รอคิวใน Admission
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();        // งานจาก thread อื่นที่ต้องทำบน loop นี้
+        private final List<Connection> throttled = new ArrayList<>();               // รอ token ของ Bandwidth
+        private long lastIdleCheck = System.currentTimeMillis();
+        private long lastQueueReport = System.currentTimeMillis();
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        // เรียกจาก thread ของ acceptor → ใส่คิวแล้วปลุก selector ให้ register
+        void add(SocketChannel channel) {
+            incoming.add(channel);
+            selector.wakeup();
+        }
+
+        // เรียกจาก thread อื่น (เช่นเมื่อวางแผน SYNC เสร็จ) → ทำ task บน thread ของ loop ในรอบถัดไป
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (ServerMain.running) {
+                    // ตื่นทันเวลาที่ connection ที่รอ token จะส่งต่อได้ (ได้ช่องจาก Admission จะปลุกผ่าน execute)
+                    selector.select(selectTimeout());
+
+                    registerIncoming();
+                    runTasks();
+                    resumeThrottled();
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+
+                        Connection conn = (Connection) key.attachment();
+                        try {
+                            if (!key.isValid()) continue;
+                            if (key.isReadable()) {
+                                conn.onReadable();
+                            } else if (key.isWritable()) {
+                                conn.onWritable();
+                            }
+                        } catch (Exception e) {
+                            System.err.println("[ClientHandler] Error: " + e.getMessage());
+                            conn.close();
+                        }
+                    }
+
+                    reportQueuePositions();
+                    closeIdleConnections();
+                }
+            } catch (IOException e) {
+                System.err.println("[EVENT LOOP ERROR] " + e.getMessage());
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((Connection) key.attachment()).close();
+                }
+                try { selector.close(); } catch (IOException ignored) {}
+            }
+        }
+
+        private void registerIncoming() {
+            SocketChannel channel;
+            while ((channel = incoming.poll()) != null) {
+                try {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    key.attach(new Connection(this, channel, key));
+                } catch (IOException e) {
+                    System.err.println("[SERVER] Register failed: " + e.getMessage());
+                    try { channel.close(); } catch (IOException ignored) {}
+                }
+            }
+        }
+
+        private long selectTimeout() {
+            long timeout = 1000;
+            long now = System.nanoTime();
+            for (Connection conn : throttled) {
+                timeout = Math.min(timeout, Math.max(1, (conn.resumeAt - now + 999_999) / 1_000_000));
+            }
+            return timeout;
+        }
+
+        // หยุดเขียนจนถึง resumeAt (ยังไม่มี token) — เรียกบน thread ของ loop
+        void throttle(Connection conn, long resumeAt) {
+            conn.resumeAt = resumeAt;
+            if (!conn.throttled) {
+                conn.throttled = true;
+                throttled.add(conn);
+            }
+        }
+
+        private void resumeThrottled() {
+            if (throttled.isEmpty()) return;
+            long now = System.nanoTime();
+            Iterator<Connection> it = throttled.iterator();
+            while (it.hasNext()) {
+                Connection conn = it.next();
+                if (conn.state == Connection.State.CLOSED) {
+                    it.remove();
+                    conn.throttled = false;
+                } else if (now >= conn.resumeAt) {
+                    it.remove();
+                    conn.throttled = false;
+                    if (conn.state == Connection.State.TRANSFER) conn.key.interestOps(SelectionKey.OP_WRITE);
+                }
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+
+        // แจ้ง QUEUED <position> ให้ connection ที่ยังรอคิวและลำดับเปลี่ยนไป (ตรวจทุก 1 วินาทีตามที่ Admission อัปเดต)
+        private void reportQueuePositions() {
+            long now = System.currentTimeMillis();
+            if (waitingPermit.isEmpty() || now - lastQueueReport < 1000) return;
+            lastQueueReport = now;
+
+            for (Connection conn : new ArrayList<>(waitingPermit)) {
+                try {
+                    conn.reportPosition();
+                } catch (IOException e) {
+                    System.err.println("[ClientHandler] Error: " + e.getMessage());
+                    conn.close();
+                }
+            }
+        }
+
+        // ปิด connection ที่ไม่มีความเคลื่อนไหวเกิน IDLE_TIMEOUT_MS (ตรวจทุก 1 วินาที)
+        private void closeIdleConnections() {
+            long now = System.currentTimeMillis();
+            if (now - lastIdleCheck < 1000) return;
+            lastIdleCheck = now;
+
+            for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                Connection conn = (Connection) key.attachment();
+                boolean waiting = conn.state == Connection.State.WAIT_PERMIT || conn.state == Connection.State.PLANNING
+                        || conn.state == Connection.State.VERIFYING;
+                if (!waiting && now - conn.lastActivity > IDLE_TIMEOUT_MS) {
+                    System.err.println("[ClientHandler] Error: Read timed out");
+                    conn.close();
+                }
+            }
+        }
+    }
+
+    // สถานะของ client แต่ละตัวใน event loop
+    static class Connection {
+        enum State { READ_COMMAND, READ_BODY, WAIT_PERMIT, PLANNING, WRITE_RESPONSE, TRANSFER, RECEIVE, VERIFYING, CLOSED }
+
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final ByteBuffer in = ByteBuffer.allocate(1024);   // buffer คำสั่ง ขนาดเท่ากับโหมด pool (อาจมีหลายคำสั่งต่อกัน)
+        private final ByteBuffer reply = ByteBuffer.allocate(1024); // ใช้ซ้ำสำหรับคำตอบสั้น ๆ (header / ERROR)
+
+        State state = State.READ_COMMAND;
+        long lastActivity = System.currentTimeMillis();
+        long resumeAt;                   // รอ token ถึงเวลานี้ (System.nanoTime)
+        boolean throttled;
+        private boolean granted;         // ได้ token ไปแล้วใน event นี้
+
+        private ByteBuffer out;          // ข้อความตอบกลับ (header / ERROR) ที่ยังส่งไม่หมด
+        private FileIndex.ListResponse listing; // คำตอบของ LIST (สร้างเมื่อ LIST ครั้งแรก ใช้ซ้ำใน session)
+        private boolean sendingList;     // listing ยังส่งไม่หมด
+        private Admission.Ticket ticket; // ช่องส่งจาก Admission (รอในคิวหรือได้แล้ว)
+        private boolean notifyQueue;     // แจ้ง QUEUED ได้ (client แบบเดิมที่ขอทั้งไฟล์ไม่รู้จัก)
+        private int reportedPosition;
+        private ByteBuffer notice;       // QUEUED ที่ยังส่งไม่หมด
+        private boolean session;         // keep-alive: ไม่ปิด connection หลังตอบแต่ละคำสั่ง
+        private boolean closeAfterWrite; // ปิดหลังส่งข้อความนี้เสร็จ แม้จะอยู่ใน session
+        private boolean negotiated;      // ตรวจ byte แรกแล้วว่าเป็นโปรโตคอลไหน
+        private boolean binary;          // โปรโตคอล binary (Wire)
+
+        // ข้อมูลของการ DOWNLOAD ที่กำลังทำ
+        private ServerMain.DownloadRequest request;
+        private File file;
+        private long fileSize;
+        private long mtime;
+        private FileChannel fc;
+        private long position;
+        private long remaining;
+        private FileIndex.Entry entry;
+        private ByteBuffer copyBuffer;   // ใช้เฉพาะโหมด normal (direct buffer จาก BufferPool)
+        private Tuning.Tuner tuner;      // slice ของ transferTo / socket buffer ที่ปรับตาม throughput (สร้างเมื่อส่งแบบ zero ครั้งแรก)
+        private ByteBuffer[] copyGather; // header + copyBuffer — header ออกไปพร้อมข้อมูลก้อนแรกใน gather write
+        private SharedRead.Subscriber shared; // โหมด normal: ส่งจาก ring ของกลุ่มที่โหลดไฟล์เดียวกัน (null = อ่านเอง)
+        private ByteBuffer[] cached;     // header + ข้อมูลจาก FileCache (gather write) ถ้าไฟล์อยู่ใน cache
+        private CompressedTransfer compressed; // โหมด deflate / fast: chunk ที่ worker บีบแล้ว
+        private Bandwidth.Shaper shaper;  // token ของการส่งที่กำลังทำ (DOWNLOAD / SYNC)
+        private long startTime;          // System.nanoTime() ตอนเริ่มส่ง
+        private long received;           // System.nanoTime() ตอนได้คำสั่ง (0 = บันทึก TTFB แล้ว)
+        private long queuedAt;
+
+        // ข้อมูลของการ SYNC ที่กำลังทำ (ใช้ file / entry / fc / position / remaining ร่วมกับ DOWNLOAD)
+        private ServerMain.SyncRequest sync;
+        private ByteBuffer signatures;   // signature จาก client (READ_BODY จนเต็ม)
+        private DeltaSync.Plan plan;
+        private int opIndex;             // คำสั่งถัดไปของ plan ที่ยังไม่ได้ใส่ลง records
+        private long dataEnd;            // ท้ายของ DATA ที่กำลังส่ง (ตำแหน่งในไฟล์)
+        private boolean deltaDone;       // ใส่ END ลง records แล้ว
+        private ByteBuffer records;      // COPY / header ของ DATA ที่ยังส่งไม่หมด
+
+        // ข้อมูลของการ UPLOAD ที่กำลังทำ
+        private ServerMain.UploadRequest upload;
+        private Upload.Receiver receiver; // ไฟล์ชั่วคราวที่กำลังรับ (null ระหว่าง VERIFYING — worker เป็นเจ้าของ)
+
+        // ข้อมูลของการ MGET ที่กำลังทำ (ใช้ tuner / shaper ร่วมกับ DOWNLOAD)
+        private Archive.Sender archive;
+        private ByteBuffer[] archiveGather; // ARCHIVE + buffer ของ archive — ARCHIVE ออกไปพร้อม buffer แรก
+
+        Connection(EventLoop loop, SocketChannel channel, SelectionKey key) {
+            this.loop = loop;
+            this.channel = channel;
+            this.key = key;
+            Metrics.ACCEPTED.increment();
+            Metrics.CONNECTIONS.increment();
+        }
+
+        void onReadable() throws IOException {
+            if (state == State.RECEIVE) {
+                receiveUpload();
+                return;
+            }
+            if (state == State.READ_BODY) {
+                if (channel.read(signatures) == -1) throw new IOException("Connection closed");
+                lastActivity = System.currentTimeMillis();
+                if (!signatures.hasRemaining()) signaturesReceived();
+                return;
+            }
+            if (state != State.READ_COMMAND) {
+                // ระหว่างส่งไม่ได้สนใจข้อมูลจาก client
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                return;
+            }
+
+            int bytesRead = channel.read(in);
+            if (bytesRead == -1) {
+                if (in.position() == 0 || binary) { // binary: frame ที่ค้างไม่ครบใช้ไม่ได้
+                    if (session) {
+                        close(); // จบ session ปกติ
+                        return;
+                    }
+                    throw new IOException("Connection closed");
+                }
+                closeAfterWrite = true;
+                dispatch(takeLine(in.position())); // client ปิดแต่ยังมีข้อความค้าง
+                return;
+            }
+            lastActivity = System.currentTimeMillis();
+
+            if (!negotiated) {
+                if (in.get(0) != Wire.MAGIC) {
+                    negotiated = true; // คำสั่งแบบข้อความ
+                } else if (in.position() >= 2) {
+                    negotiate();
+                    return;
+                } else {
+                    return; // รอ byte ที่ 2 (VERSION)
+                }
+            }
+
+            if (!dispatchBuffered() && !in.hasRemaining()) {
+                closeAfterWrite = true;
+                respondError("Command too long");
+            }
+        }
+
+        // client ขอใช้โปรโตคอล binary: ตอบ MAGIC + VERSION กลับ แล้วเป็น keep-alive เสมอ
+        private void negotiate() throws IOException {
+            negotiated = true;
+            byte version = in.get(1);
+            if (version != Wire.VERSION) {
+                throw new IOException("Unsupported protocol version " + version);
+            }
+            in.flip();
+            in.position(2);
+            in.compact();
+
+            binary = true;
+            session = true;
+            reply.clear();
+            reply.put(Wire.MAGIC).put(Wire.VERSION);
+            send(reply);
+        }
+
+        // ถ้าใน buffer มีคำสั่งครบแล้ว ให้ทำคำสั่งนั้น — คืน false ถ้ายังไม่ครบ
+        private boolean dispatchBuffered() throws IOException {
+            if (binary) {
+                int length = Wire.frameLength(in, 0, in.position());
+                if (length < 0) return false;
+                in.flip();
+                dispatchFrame(length);
+                return true;
+            }
+
+            for (int i = 0; i < in.position(); i++) {
+                if (in.get(i) == '\n') {
+                    dispatch(takeLine(i));
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // ตัดข้อความ [0, end) ออกจาก buffer แล้วลบ \r และช่องว่างหัวท้าย — คำสั่งที่ตามมา (pipeline) ยังอยู่ใน buffer
+        private String takeLine(int end) {
+            byte[] bytes = new byte[end];
+            in.flip();
+            in.get(bytes);
+            if (in.hasRemaining()) in.get(); // ข้าม '\n'
+            in.compact();
+            return new String(bytes, StandardCharsets.ISO_8859_1).replace("\r", "").trim();
+        }
+
+        // ตอบคำสั่งเสร็จแล้ว: ใน session กลับไปรอคำสั่งถัดไป (หรือทำคำสั่งที่ค้างใน buffer ทันที) นอกนั้นปิด
+        private void finishCommand() throws IOException {
+            if (!session || closeAfterWrite) {
+                close();
+                return;
+            }
+            state = State.READ_COMMAND;
+            key.interestOps(SelectionKey.OP_READ);
+            dispatchBuffered();
+        }
+
+        // ทำคำสั่งจาก frame ที่อยู่ต้น buffer (โหมดอ่าน) ยาว length byte แล้วตัด frame ออกจาก buffer
+        private void dispatchFrame(int length) throws IOException {
+            int op = in.get() & 0xFF;
+            in.getInt();
+
+            ServerMain.DownloadRequest req = null;
+            ServerMain.ListRequest list = null;
+            ServerMain.SyncRequest syncReq = null;
+            ServerMain.UploadRequest uploadReq = null;
+            String glob = null;
+            if (op == Wire.OP_DOWNLOAD) {
+                req = ServerMain.DownloadRequest.decode(in);
+            } else if (op == Wire.OP_LIST) {
+                list = ServerMain.ListRequest.decode(in);
+            } else if (op == Wire.OP_SYNC) {
+                syncReq = ServerMain.SyncRequest.decode(in);
+            } else if (op == Wire.OP_UPLOAD) {
+                uploadReq = ServerMain.UploadRequest.decode(in);
+            } else if (op == Wire.OP_MGET) {
+                glob = Wire.getString(in);
+            }
+            in.position(length);
+            in.compact(); // frame ถัดไป (pipeline) ยังอยู่ใน buffer
+
+            if (op == Wire.OP_LIST) {
+                System.out.println("[SERVER] Received: LIST" + (list.glob != null ? " " + list.glob : ""));
+                sendList(list);
+            } else if (op == Wire.OP_DOWNLOAD) {
+                System.out.println("[SERVER] Received: DOWNLOAD " + req.filename + " " + req.mode);
+                handleDownload(req);
+            } else if (op == Wire.OP_SYNC && syncReq != null) {
+                System.out.println("[SERVER] Received: SYNC " + syncReq.filename);
+                handleSync(syncReq);
+            } else if (op == Wire.OP_STATS) {
+                System.out.println("[SERVER] Received: STATS");
+                sendStats();
+            } else if (op == Wire.OP_UPLOAD) {
+                if (uploadReq == null) {
+                    respondError("Invalid upload format");
+                } else {
+                    System.out.println("[SERVER] Received: UPLOAD " + uploadReq.filename + " " + uploadReq.size);
+                    handleUpload(uploadReq);
+                }
+            } else if (op == Wire.OP_MGET) {
+                System.out.println("[SERVER] Received: MGET " + glob);
+                handleMget(glob);
+            } else if (op == Wire.OP_QUIT) {
+                close();
+            } else {
+                closeAfterWrite = true; // ไม่รู้จัก opcode หรือ SYNC ผิดรูปแบบ → คุยต่อไม่ได้
+                respondError(op == Wire.OP_SYNC ? "Invalid sync format" : "Unknown command");
+            }
+        }
+
+        private void dispatch(String command) throws IOException {
+            System.out.println("[SERVER] Received: " + command);
+
+            if (command.equals("SESSION")) {
+                session = true; // คำสั่งต่อจากนี้ใช้ connection เดิม จนกว่าจะได้ QUIT หรือ client ปิด
+                respond("OK SESSION");
+            } else if (command.equals("QUIT")) {
+                close();
+            } else if (command.equals("LIST") || command.startsWith("LIST ")) {
+                ServerMain.ListRequest req = ServerMain.ListRequest.parse(command);
+                if (req == null) {
+                    respondError("Invalid list format");
+                } else {
+                    sendList(req);
+                }
+            } else if (command.equals("STATS")) {
+                sendStats();
+            } else if (command.startsWith("DOWNLOAD")) {
+                handleDownload(command);
+            } else if (command.startsWith("SYNC ")) {
+                ServerMain.SyncRequest req = ServerMain.SyncRequest.parse(command);
+                if (req == null) {
+                    closeAfterWrite = true; // ไม่รู้ความยาว signature → คุยต่อไม่ได้
+                    respondError("Invalid sync format");
+                } else {
+                    handleSync(req);
+                }
+            } else if (command.startsWith("UPLOAD ")) {
+                ServerMain.UploadRequest req = ServerMain.UploadRequest.parse(command);
+                if (req == null) {
+                    respondError("Invalid upload format");
+                } else {
+                    handleUpload(req);
+                }
+            } else if (command.startsWith("MGET ")) {
+                handleMget(command.substring(5).trim());
+            } else {
+                respondError("Unknown command");
+            }
+        }
+
+        // เข้ารหัสรายชื่อไฟล์จากดัชนีลงหลาย chunk แล้วส่งด้วย gather write ตาม OP_WRITE
+        private void sendList(ServerMain.ListRequest req) throws IOException {
+            FileIndex.Page page;
+            try {
+                page = req.query(ServerMain.fileIndex);
+            } catch (IllegalArgumentException e) {
+                respondError("Invalid pattern");
+                return;
+            }
+
+            if (listing == null) listing = new FileIndex.ListResponse();
+            listing.start(binary, req.detailed());
+            for (FileIndex.Entry e : page.entries) {
+                listing.add(e);
+            }
+            listing.end(page.next);
+
+            System.out.println("[LIST] Sent " + listing.count() + " file names");
+            sendingList = true;
+            state = State.WRITE_RESPONSE;
+            key.interestOps(SelectionKey.OP_WRITE);
+            onWritable();
+        }
+
+        // STATS: metrics ทีละบรรทัดแบบ LIST (ENTRY ... END) — คำสั่งไม่บ่อย จึงสร้าง buffer ใหม่ตามขนาดรายงาน
+        private void sendStats() {
+            List<String> lines = Metrics.report(false);
+            int size = 16;
+            for (String line : lines) {
+                size += line.length() + 8;
+            }
+            ByteBuffer buf = ByteBuffer.allocate(size);
+            for (String line : lines) {
+                Wire.putEntry(buf, binary, line);
+            }
+            Wire.putEnd(buf, binary);
+            send(buf);
+        }
+
+        // DOWNLOAD <filename> <mode> [<offset> <length> [<mtime>]] — ตรวจสอบเหมือน ClientHandler.handleDownload
+        private void handleDownload(String cmd) throws IOException {
+            ServerMain.DownloadRequest req = ServerMain.DownloadRequest.parse(cmd);
+
+            if (req == null) {
+                respondError("Invalid download format");
+                return;
+            }
+            handleDownload(req);
+        }
+
+        // ตรวจสอบไฟล์แล้วเริ่มส่ง — ใช้ร่วมกันทั้งโปรโตคอลข้อความและ binary
+        private void handleDownload(ServerMain.DownloadRequest req) throws IOException {
+            request = req;
+            received = System.nanoTime();
+
+            file = ServerMain.resolveFile(request.filename);
+            if (file == null) {
+                System.err.println("[SECURITY] Path traversal attempt: " + request.filename);
+                respondError("Invalid file name");
+                return;
+            }
+
+            entry = ServerMain.fileIndex.lookup(file);
+            if (entry == null) { // ไม่มีไฟล์ หรือเป็นโฟลเดอร์
+                respondError("File not found");
+                return;
+            }
+
+            fileSize = entry.size;
+            mtime = entry.mtime;
+            if (!request.clampTo(fileSize, mtime)) {
+                respondError("Invalid range");
+                return;
+            }
+
+            admit(request.filename, request.length, binary || request.ranged);
+        }
+
+        // SYNC: รับ signature ให้ครบก่อน (ส่วนที่อ่านมาพร้อมคำสั่งอยู่ใน in แล้ว ที่เหลืออ่านตรงจาก socket)
+        private void handleSync(ServerMain.SyncRequest req) throws IOException {
+            sync = req;
+            signatures = ByteBuffer.allocate(req.signatureBytes());
+            in.flip();
+            int buffered = Math.min(in.remaining(), signatures.capacity());
+            in.get(signatures.array(), 0, buffered);
+            in.compact(); // คำสั่งถัดไป (pipeline) ยังอยู่ใน buffer
+            signatures.position(buffered);
+
+            if (!signatures.hasRemaining()) {
+                signaturesReceived();
+            } else {
+                state = State.READ_BODY;
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        // ได้ signature ครบแล้ว: ตรวจไฟล์แล้วรอ permit เหมือน DOWNLOAD
+        private void signaturesReceived() throws IOException {
+            state = State.READ_COMMAND;
+            received = System.nanoTime();
+            file = ServerMain.resolveFile(sync.filename);
+            if (file == null) {
+                System.err.println("[SECURITY] Path traversal attempt: " + sync.filename);
+                releaseTransfer();
+                respondError("Invalid file name");
+                return;
+            }
+            entry = ServerMain.fileIndex.lookup(file);
+            if (entry == null) {
+                releaseTransfer();
+                respondError("File not found");
+                return;
+            }
+
+            admit(sync.filename, entry.size, true);
+        }
+
+        // UPLOAD: ตรวจชื่อ/พื้นที่แบบเดียวกับ ClientHandler.upload แล้วรอ permit เหมือน DOWNLOAD
+        private void handleUpload(ServerMain.UploadRequest req) throws IOException {
+            received = System.nanoTime();
+            file = ServerMain.resolveFile(req.filename);
+            if (file == null) {
+                System.err.println("[SECURITY] Path traversal attempt: " + req.filename);
+                respondError("Invalid file name");
+                return;
+            }
+            String invalid = Upload.checkTarget(file, req.size);
+            if (invalid != null) {
+                respondError(invalid);
+                return;
+            }
+
+            upload = req;
+            admit(req.filename, req.size, true);
+        }
+
+        // MGET: เลือกไฟล์จากดัชนีแบบเดียวกับ ClientHandler.mget แล้วรอ permit ด้วยขนาดรวมครั้งเดียว
+        private void handleMget(String glob) throws IOException {
+            received = System.nanoTime();
+            if (glob.isEmpty()) {
+                respondError("Invalid mget format");
+                return;
+            }
+            List<FileIndex.Entry> members;
+            try {
+                members = Archive.select(glob);
+            } catch (IllegalArgumentException e) {
+                respondError("Invalid pattern");
+                return;
+            }
+            if (members == null) {
+                respondError("Too many files (max " + Archive.MAX_MEMBERS + ")");
+                return;
+            }
+
+            archive = new Archive.Sender(members);
+            admit("MGET " + glob, archive.totalBytes(), true);
+        }
+
+        // ขอช่องส่งจาก Admission โดยไม่ block event loop: ได้ทันทีก็เริ่มส่ง ไม่งั้นรอในคิว (WAIT_PERMIT)
+        // จนกว่า Admission จะเรียก admitted() ผ่าน loop.execute
+        private void admit(String filename, long bytes, boolean notify) throws IOException {
+            queuedAt = System.nanoTime();
+            ticket = ServerMain.admission.enqueue(bytes, () -> loop.execute(this::admitted));
+            if (ticket == null) {
+                releaseTransfer();
+                respondError("Server busy, try again later");
+                return;
+            }
+            if (ticket.admitted()) {
+                Metrics.ADMISSION_WAIT.recordMicrosSince(queuedAt);
+                startTransfer();
+                return;
+            }
+            System.out.println("[QUEUE] " + filename + " waiting at position " + ticket.position());
+            state = State.WAIT_PERMIT;
+            key.interestOps(0);
+            loop.waitingPermit.add(this);
+            notifyQueue = notify;
+            reportedPosition = 0;
+            reportPosition();
+        }
+
+        // บน thread ของ loop เมื่อได้ช่องจาก Admission
+        private void admitted() {
+            if (state != State.WAIT_PERMIT) return; // ปิดไปแล้วระหว่างรอ (close คืน ticket แล้ว)
+            loop.waitingPermit.remove(this);
+            Metrics.ADMISSION_WAIT.recordMicrosSince(queuedAt);
+            try {
+                startTransfer();
+            } catch (Exception e) {
+                System.err.println("[ClientHandler] Error: " + e.getMessage());
+                close();
+            }
+        }
+
+        // QUEUED <position> ถ้าลำดับเปลี่ยนจากที่แจ้งไปล่าสุด — ข้อความสั้น ปกติเขียนหมดในครั้งเดียว ที่เหลือส่งตาม OP_WRITE
+        void reportPosition() throws IOException {
+            int position = ticket.position();
+            if (!notifyQueue || position <= 0 || position == reportedPosition) return;
+            if (notice != null && notice.hasRemaining()) return;
+            if (notice == null) notice = ByteBuffer.allocate(16);
+            notice.clear();
+            Wire.putQueued(notice, binary, position);
+            notice.flip();
+            reportedPosition = position;
+            channel.write(notice);
+            if (notice.hasRemaining()) key.interestOps(SelectionKey.OP_WRITE);
+        }
+
+        // ได้ permit แล้ว: วางแผน COPY/DATA บน ForkJoinPool (ใช้ทุก core ไม่ block event loop) แล้วกลับมาส่งบน loop
+        private void startDelta() throws IOException {
+            fc = new FileInputStream(file).getChannel();
+            FileChannel source = fc;
+            long size = entry.size;
+            ServerMain.SyncRequest req = sync;
+            byte[] sigs = signatures.array();
+            signatures = null;
+
+            state = State.PLANNING;
+            key.interestOps(0);
+            startTime = System.nanoTime();
+            CompletableFuture.supplyAsync(() -> {
+                try {
+                    return DeltaSync.Plan.compute(source, size, req.blockSize, sigs, req.count);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).whenComplete((result, error) -> loop.execute(() -> planned(result, error)));
+        }
+
+        // ARCHIVE + record ชุดแรก แล้วส่งต่อใน archiveStep
+        private void startArchive() throws IOException {
+            reply.clear();
+            Wire.putArchive(reply, binary, archive.count(), archive.totalBytes());
+            reply.flip();
+            archive.fill();
+            archiveGather = new ByteBuffer[] { reply, archive.buffer() };
+            if (tuner == null) tuner = Tuning.tuner(channel, true);
+            tuner.begin();
+            startTime = System.nanoTime();
+            state = State.TRANSFER;
+            key.interestOps(SelectionKey.OP_WRITE);
+            onWritable();
+        }
+
+        // บน thread ของ loop: ส่ง header ของ SYNC แล้วตามด้วยคำสั่ง COPY/DATA ใน deltaStep
+        private void planned(DeltaSync.Plan result, Throwable error) {
+            if (state != State.PLANNING) return; // ถูกปิดไปแล้วระหว่างวางแผน
+            if (error != null) {
+                System.err.println("[SYNC] Planning failed: " + error.getMessage());
+                releaseTransfer();
+                respondError("Sync failed");
+                return;
+            }
+
+            plan = result;
+            opIndex = 0;
+            position = 0;
+            dataEnd = 0;
+            remaining = 0;
+            deltaDone = false;
+            records = ByteBuffer.allocate(4096);
+            records.flip();
+
+            reply.clear();
+            Wire.putDeltaHeader(reply, binary, entry.size, entry.mtime, plan.literalBytes, entry.checksum);
+            reply.flip();
+            out = reply;
+            state = State.TRANSFER;
+            try {
+                key.interestOps(SelectionKey.OP_WRITE);
+                onWritable();
+            } catch (Exception e) {
+                System.err.println("[ClientHandler] Error: " + e.getMessage());
+                close();
+            }
+        }
+
+        // เรียกเมื่อได้ permit แล้ว: เปิดไฟล์ เตรียม header แล้วเริ่มส่งเมื่อ socket เขียนได้
+        void startTransfer() throws IOException {
+            if (upload != null) {
+                startUpload();
+                return;
+            }
+            InetAddress address = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+            shaper = ServerMain.bandwidth.open(address, sync != null ? entry.size
+                    : archive != null ? archive.totalBytes() : request.length);
+            if (sync != null) {
+                startDelta();
+                return;
+            }
+            if (archive != null) {
+                startArchive();
+                return;
+            }
+            position = request.offset;
+            remaining = request.length;
+
+            // header ทั้งหมด (FILESIZE / RANGE / READY หรือ frame HEADER) ส่งเป็นก้อนเดียว
+            reply.clear();
+            Wire.putHeader(reply, binary, request.ranged, fileSize, request.offset, request.length, mtime, entry.checksum);
+            reply.flip();
+
+            boolean compress = CompressedTransfer.isCompressed(request.mode);
+            ByteBuffer data = isZero() || compress ? null : ServerMain.fileCache.get(file, entry, request.offset, request.length);
+            if (data != null) {
+                // hot file: ไม่ต้องเปิดไฟล์ ส่ง header + ข้อมูลจาก direct buffer ด้วย gather write
+                cached = new ByteBuffer[] { reply, data };
+                System.out.println("[cached] Starting transfer of " + remaining + " bytes");
+                startTime = System.nanoTime();
+                state = State.TRANSFER;
+                key.interestOps(SelectionKey.OP_WRITE);
+                onWritable();
+                return;
+            }
+
+            fc = new FileInputStream(file).getChannel();
+            if (compress) {
+                out = reply;
+                compressed = new CompressedTransfer(fc, request.mode, request.offset, request.length);
+                System.out.println("[compressed] Starting " + request.mode + " transfer of " + remaining + " bytes");
+                startTime = System.nanoTime();
+                state = State.TRANSFER;
+                key.interestOps(SelectionKey.OP_WRITE);
+                onWritable();
+                return;
+            }
+            if (isZero()) {
+                out = reply;
+                if (tuner == null) tuner = Tuning.tuner(channel, true);
+                tuner.begin();
+            } else {
+                shared = SharedRead.SHARED.join(file, entry, request.offset, request.length);
+                if (shared == null) {
+                    copyBuffer = BufferPool.SHARED.take(); // ขนาดเท่ากับ normalCopy ของโหมด pool
+                    copyBuffer.flip();
+                }
+                copyGather = new ByteBuffer[] { reply, shared != null ? EMPTY : copyBuffer };
+            }
+
+            System.out.println("[" + (isZero() ? "zeroCopy" : "normalCopy") + "] Starting transfer of " + remaining + " bytes");
+            startTime = System.nanoTime();
+            state = State.TRANSFER;
+            key.interestOps(SelectionKey.OP_WRITE);
+            onWritable();
+        }
+
+        // ได้ permit แล้ว: สร้างไฟล์ชั่วคราว ตอบ READY แล้วรับข้อมูลเมื่อ READY ออกไปหมด (onWritable → RECEIVE)
+        private void startUpload() {
+            try {
+                receiver = new Upload.Receiver(file, upload.size);
+            } catch (IOException e) {
+                System.err.println("[UPLOAD] Cannot create temp file for " + upload.filename + ": " + e.getMessage());
+                releaseTransfer();
+                respondError("Upload failed");
+                return;
+            }
+            reply.clear();
+            Wire.putReady(reply, binary);
+            reply.flip();
+            out = reply;
+            startTime = System.nanoTime();
+            state = State.RECEIVE;
+            try {
+                key.interestOps(SelectionKey.OP_WRITE);
+                onWritable();
+            } catch (Exception e) {
+                System.err.println("[ClientHandler] Error: " + e.getMessage());
+                close();
+            }
+        }
+
+        // รับข้อมูลของ UPLOAD ตรงจาก socket ลงไฟล์ (transferFrom) ครบแล้วอ่าน CHECKSUM ต่อท้ายลง in
+        private void receiveUpload() throws IOException {
+            lastActivity = System.currentTimeMillis();
+            if (!receiver.done()) {
+                receiver.receive(channel, MAX_BYTES_PER_EVENT);
+                if (!receiver.done()) return;
+            }
+            if (channel.read(in) == -1) throw new IOException("Connection closed before UPLOAD checksum");
+            checkTrailer();
+        }
+
+        // ถ้า CHECKSUM (ข้อความหรือ frame) อยู่ใน in ครบแล้ว ตรวจ CRC ต่อบน worker
+        private void checkTrailer() throws IOException {
+            long expected;
+            if (binary) {
+                int length = Wire.frameLength(in, 0, in.position());
+                if (length < 0) {
+                    if (!in.hasRemaining()) throw new IOException("UPLOAD checksum too long");
+                    return;
+                }
+                in.flip();
+                int op = in.get() & 0xFF;
+                in.getInt();
+                expected = op == Wire.OP_CHECKSUM ? in.getLong() : Crc32c.UNKNOWN;
+                in.position(length);
+                in.compact(); // คำสั่งถัดไป (pipeline) ยังอยู่ใน buffer
+            } else {
+                int end = -1;
+                for (int i = 0; i < in.position() && end < 0; i++) {
+                    if (in.get(i) == '\n') end = i;
+                }
+                if (end < 0) {
+                    if (!in.hasRemaining()) throw new IOException("UPLOAD checksum too long");
+                    return;
+                }
+                expected = Upload.parseChecksum(takeLine(end));
+            }
+
+            if (expected == Crc32c.UNKNOWN) {
+                closeAfterWrite = true; // ไม่รู้ว่าคำสั่งถัดไปเริ่มตรงไหน
+                releaseTransfer();
+                respondError("Invalid checksum");
+                return;
+            }
+            verifyUpload(expected);
+        }
+
+        // รอ CRC ของ Follower แล้ว force + rename บน ForkJoinPool (blocking I/O ไม่ทำบน event loop)
+        private void verifyUpload(long expected) {
+            Upload.Receiver r = receiver;
+            receiver = null;
+            state = State.VERIFYING;
+            key.interestOps(0);
+            CompletableFuture.supplyAsync(() -> {
+                try {
+                    return r.commit(expected);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while verifying upload");
+                }
+            }).whenComplete((crc, error) -> loop.execute(() -> uploaded(r, expected, crc, error)));
+        }
+
+        // บน thread ของ loop: ตอบ STORED หรือ ERROR — ไฟล์ชั่วคราวที่ไม่ได้ publish ถูกลบเสมอ
+        private void uploaded(Upload.Receiver r, long expected, Long crc, Throwable error) {
+            r.abort();
+            if (state != State.VERIFYING) return; // ถูกปิดไปแล้วระหว่างตรวจ
+            ServerMain.UploadRequest req = upload;
+            long nanos = System.nanoTime() - startTime;
+            releaseTransfer();
+            if (error != null) {
+                System.err.println("[UPLOAD] " + req.filename + " failed: " + error.getMessage());
+                respondError("Upload failed");
+                return;
+            }
+            if (crc != expected) {
+                System.err.println("[UPLOAD] " + req.filename + ": checksum mismatch (client "
+                        + Crc32c.toHex(expected) + ", received " + Crc32c.toHex(crc) + ")");
+                respondError("Checksum mismatch");
+                return;
+            }
+            Metrics.TRANSFER_TIME.record(nanos / 1_000_000);
+            Metrics.recordThroughput("upload", req.size, nanos);
+            System.out.println("[SERVER] File stored: " + req.filename + " (" + req.size + " bytes) in "
+                    + nanos / 1_000_000 + " ms, crc32c " + Crc32c.toHex(crc));
+
+            reply.clear();
+            Wire.putStored(reply, binary, req.size, crc);
+            send(reply);
+        }
+
+        private boolean isZero() {
+            return request.mode.equals("zero");
+        }
+
+        // ส่งข้อความตอบกลับ 1 บรรทัด (โปรโตคอลข้อความ)
+        void respond(String message) {
+            reply.clear();
+            Wire.putText(reply, message);
+            reply.put((byte) '\n');
+            send(reply);
+        }
+
+        // ERROR <message> ตามโปรโตคอลของ connection นี้
+        void respondError(String message) {
+            reply.clear();
+            Wire.putError(reply, binary, message);
+            send(reply);
+        }
+
+        // ส่งข้อมูลใน buf (โหมดเขียน) เมื่อส่งหมดจะปิด connection (หรือรอคำสั่งถัดไปถ้าอยู่ใน session)
+        private void send(ByteBuffer buf) {
+            buf.flip();
+            out = buf;
+            state = State.WRITE_RESPONSE;
+            try {
+                key.interestOps(SelectionKey.OP_WRITE);
+                onWritable();
+            } catch (Exception e) {
+                System.err.println("[ClientHandler] Error: " + e.getMessage());
+                close();
+            }
+        }
+
+        void onWritable() throws IOException {
+            lastActivity = System.currentTimeMillis();
+            granted = false;
+
+            if (notice != null && notice.hasRemaining()) { // QUEUED ต้องไปก่อน header
+                channel.write(notice);
+                if (notice.hasRemaining()) return;
+            }
+            if (state == State.WAIT_PERMIT) {
+                key.interestOps(0); // ยังรอคิว
+                return;
+            }
+            if (out != null) {
+                channel.write(out);
+                if (out.hasRemaining()) return; // socket เต็ม → รอ OP_WRITE รอบถัดไป
+                out = null;
+            }
+            if (sendingList) {
+                if (!listing.writeTo(channel)) return;
+                sendingList = false;
+            }
+            if (state == State.RECEIVE) { // READY ออกไปแล้ว: ใช้ส่วนที่อ่านมาแล้วก่อน ที่เหลืออ่านจาก socket
+                Metrics.TTFB.recordMicrosSince(received);
+                received = 0;
+                key.interestOps(SelectionKey.OP_READ);
+                in.flip();
+                receiver.write(in);
+                in.compact();
+                if (receiver.done()) checkTrailer();
+                return;
+            }
+            if (state == State.TRANSFER && received != 0) { // header ออกไปแล้ว (จาก cache / โหมด normal: ไปพร้อมข้อมูลก้อนแรก)
+                Metrics.TTFB.recordMicrosSince(received);
+                received = 0;
+            }
+
+            if (state == State.WRITE_RESPONSE) {
+                finishCommand();
+            } else if (state == State.TRANSFER && plan != null) {
+                if (deltaStep()) {
+                    System.out.println("[SYNC] " + sync.filename + ": " + plan.opCount() + " ops, sent "
+                            + plan.literalBytes + " of " + entry.size + " bytes (" + plan.copiedBytes + " reused) in "
+                            + (System.nanoTime() - startTime) / 1_000_000 + " ms");
+                    Metrics.TRANSFER_TIME.record((System.nanoTime() - startTime) / 1_000_000);
+                    Metrics.recordThroughput("delta", plan.literalBytes, System.nanoTime() - startTime);
+                    releaseTransfer();
+                    finishCommand();
+                }
+            } else if (state == State.TRANSFER && archive != null) {
+                if (archiveStep()) {
+                    long nanos = System.nanoTime() - startTime;
+                    Metrics.TRANSFER_TIME.record(nanos / 1_000_000);
+                    Metrics.recordThroughput("mget", archive.sentBytes(), nanos);
+                    System.out.println("[MGET] Sent " + archive.sent() + " file(s), " + archive.sentBytes() + " bytes in "
+                            + nanos / 1_000_000 + " ms");
+                    releaseTransfer();
+                    finishCommand();
+                }
+            } else if (state == State.TRANSFER) {
+                boolean fromCache = cached != null;
+                boolean done = compressed != null ? compressedStep()
+                        : fromCache ? cachedStep() : isZero() ? zeroCopyStep() : normalCopyStep();
+                if (done) {
+                    long nanos = System.nanoTime() - startTime;
+                    long duration = nanos / 1_000_000;
+                    Metrics.TRANSFER_TIME.record(duration);
+                    Metrics.recordThroughput(fromCache ? "cached" : request.mode, request.length, nanos);
+                    if (compressed != null) {
+                        System.out.println("[compressed] ✅ Transfer complete: " + compressed.summary(request.length));
+                    }
+                    System.out.println("[SERVER] File sent: " + request.filename +
+                                     " (" + request.length + " bytes from offset " + request.offset + ") in " + duration + " ms " +
+                                     "using " + request.mode + (fromCache ? " (cached)" : "") + " mode");
+                    releaseTransfer();
+                    finishCommand();
+                }
+            }
+        }
+
+        // token สำหรับส่ง want byte (อาจได้น้อยกว่า) — ถ้ายังไม่มีจะหยุด OP_WRITE แล้วให้ loop ปลุกเมื่อ token น่าจะพอ
+        // ถ้าถูกจำกัดความเร็ว ได้ token ครั้งเดียวต่อ event แล้วต่อคิวรอรอบถัดไป → connection ใน loop เดียวกันผลัดกันได้ token
+        private long allowance(long want) {
+            long n = granted && shaper.limited() ? 0 : shaper.grant(want);
+            if (n == 0 && want > 0) {
+                key.interestOps(0);
+                loop.throttle(this, System.nanoTime() + shaper.waitNanos());
+            }
+            granted = n > 0;
+            return n;
+        }
+
+        // เขียน buf ไม่เกินจำนวน token ที่ได้ — คืน 0 ถ้า socket เต็มหรือต้องรอ token
+        private int writeShaped(ByteBuffer buf) throws IOException {
+            long allowed = allowance(buf.remaining());
+            if (allowed == 0) return 0;
+            int limit = buf.limit();
+            buf.limit(buf.position() + (int) allowed);
+            int written;
+            try {
+                written = channel.write(buf);
+            } finally {
+                buf.limit(limit);
+            }
+            shaper.refund(allowed - written);
+            return written;
+        }
+
+        // ส่งด้วย transferTo จน socket เต็มหรือครบโควต้าต่อ event — คืน true เมื่อส่งครบทั้งไฟล์
+        private boolean zeroCopyStep() throws IOException {
+            long budget = MAX_BYTES_PER_EVENT;
+            while (remaining > 0 && budget > 0) {
+                long allowed = allowance(Math.min(Math.min(remaining, budget), tuner.slice()));
+                if (allowed == 0) return false; // รอ token
+                long transferred = fc.transferTo(position, allowed, channel);
+                shaper.refund(allowed - transferred);
+                if (transferred == 0) { // kernel buffer เต็ม → รอ OP_WRITE
+                    Metrics.TRANSFER_TO_ZERO.increment();
+                    return false;
+                }
+                Metrics.TRANSFER_TO.record(transferred);
+                tuner.record(transferred);
+                position += transferred;
+                remaining -= transferred;
+                budget -= transferred;
+            }
+            return remaining == 0;
+        }
+
+        // เขียน chunk ที่บีบแล้วตามลำดับ — ถ้า chunk ถัดไปยังบีบไม่เสร็จจะหยุดรอ OP_WRITE จน worker แจ้งกลับ
+        private boolean compressedStep() throws IOException {
+            long budget = MAX_BYTES_PER_EVENT;
+            while (budget > 0) {
+                ByteBuffer chunk = compressed.poll(this::chunkReady);
+                if (chunk == null) {
+                    if (compressed.done()) return true;
+                    key.interestOps(0); // รอ worker (chunkReady เปิด OP_WRITE ให้อีกครั้ง)
+                    return false;
+                }
+                int written = writeShaped(chunk);
+                if (written == 0) return false; // socket เต็มหรือรอ token
+                budget -= written;
+            }
+            return false;
+        }
+
+        // เรียกบน worker เมื่อ chunk ถัดไปพร้อม → กลับไปเขียนต่อบน thread ของ loop
+        private void chunkReady() {
+            loop.execute(() -> {
+                if (state == State.TRANSFER && compressed != null) key.interestOps(SelectionKey.OP_WRITE);
+            });
+        }
+
+        // gather write ของ header + ข้อมูลจาก cache จน socket เต็มหรือครบโควต้าต่อ event — คืน true เมื่อส่งครบ
+        private boolean cachedStep() throws IOException {
+            long budget = MAX_BYTES_PER_EVENT;
+            while ((cached[0].hasRemaining() || cached[1].hasRemaining()) && budget > 0) {
+                long written = writeGathered(cached, budget);
+                if (written == 0) return false; // socket เต็มหรือรอ token
+                budget -= written;
+            }
+            return !cached[0].hasRemaining() && !cached[1].hasRemaining();
+        }
+
+        // gather write ครั้งเดียวของ bufs[0] (header ไม่ผ่าน bucket) + bufs[1] (ข้อมูล ไม่เกิน token ที่ได้และ budget)
+        // คืนจำนวน byte ที่เขียนได้ — 0 = socket เต็มหรือรอ token
+        private long writeGathered(ByteBuffer[] bufs, long budget) throws IOException {
+            ByteBuffer data = bufs[1];
+            long allowed = data.hasRemaining() ? allowance(Math.min(data.remaining(), budget)) : 0;
+            if (allowed == 0 && !bufs[0].hasRemaining()) return 0; // รอ token
+            int limit = data.limit();
+            int before = data.position();
+            data.limit(before + (int) allowed);
+            long written;
+            try {
+                written = channel.write(bufs);
+            } finally {
+                data.limit(limit);
+            }
+            shaper.refund(allowed - (data.position() - before));
+            return written;
+        }
+
+        // buffer ของ archive (header + ไฟล์เล็ก) ด้วย gather write แล้วข้อมูลของไฟล์ใหญ่ด้วย transferTo
+        // จน socket เต็มหรือครบโควต้าต่อ event — คืน true เมื่อส่ง END แล้ว
+        private boolean archiveStep() throws IOException {
+            long budget = MAX_BYTES_PER_EVENT;
+            while (budget > 0) {
+                if (archiveGather[0].hasRemaining() || archiveGather[1].hasRemaining()) {
+                    long written = writeGathered(archiveGather, budget);
+                    if (written == 0) return false; // socket เต็มหรือรอ token
+                    budget -= written;
+                } else if (archive.remaining() > 0) {
+                    long allowed = allowance(Math.min(Math.min(archive.remaining(), budget), tuner.slice()));
+                    if (allowed == 0) return false; // รอ token
+                    long transferred = archive.large().transferTo(archive.position(), allowed, channel);
+                    shaper.refund(allowed - transferred);
+                    if (transferred == 0) {
+                        Metrics.TRANSFER_TO_ZERO.increment();
+                        return false;
+                    }
+                    Metrics.TRANSFER_TO.record(transferred);
+                    tuner.record(transferred);
+                    archive.advance(transferred);
+                    budget -= transferred;
+                } else if (!archive.fill()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // ส่ง COPY / header ของ DATA จาก records และข้อมูลของ DATA ด้วย transferTo — คืน true เมื่อส่ง END แล้ว
+        private boolean deltaStep() throws IOException {
+            long budget = MAX_BYTES_PER_EVENT;
+            while (budget > 0) {
+                if (records.hasRemaining()) {
+                    int written = channel.write(records);
+                    if (written == 0) return false; // socket เต็ม → รอ OP_WRITE
+                    budget -= written;
+                } else if (remaining > 0) {
+                    long allowed = allowance(Math.min(remaining, budget));
+                    if (allowed == 0) return false; // รอ token
+                    long transferred = fc.transferTo(position, allowed, channel);
+                    shaper.refund(allowed - transferred);
+                    if (transferred == 0) {
+                        Metrics.TRANSFER_TO_ZERO.increment();
+                        return false;
+                    }
+                    Metrics.TRANSFER_TO.record(transferred);
+                    position += transferred;
+                    remaining -= transferred;
+                    budget -= transferred;
+                } else if (!fillRecords()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // ใส่คำสั่งถัดไปของ plan ลง records จนเต็ม หรือจนถึง DATA ก้อนถัดไป (ข้อมูลต้องตามหลัง header ทันที)
+        // คืน false เมื่อไม่มีอะไรเหลือให้ส่ง
+        private boolean fillRecords() {
+            if (deltaDone) return false;
+            records.clear();
+            while (records.remaining() >= 9) {
+                if (position < dataEnd) {
+                    int length = (int) Math.min(DeltaSync.MAX_DATA_RECORD, dataEnd - position);
+                    records.put((byte) DeltaSync.DATA).putInt(length);
+                    remaining = length;
+                    break;
+                }
+                if (opIndex == plan.opCount()) {
+                    records.put((byte) DeltaSync.END);
+                    deltaDone = true;
+                    break;
+                }
+                int i = opIndex++;
+                if (plan.type(i) == DeltaSync.COPY) {
+                    records.put((byte) DeltaSync.COPY).putInt((int) plan.first(i)).putInt((int) plan.second(i));
+                } else {
+                    position = plan.first(i);
+                    dataEnd = position + plan.second(i);
+                }
+            }
+            records.flip();
+            return true;
+        }
+
+        // อ่านไฟล์ลง buffer แล้วเขียนออก socket (ก้อนแรกไปพร้อม header) — คืน true เมื่อส่งครบทั้งไฟล์
+        private boolean normalCopyStep() throws IOException {
+            long budget = MAX_BYTES_PER_EVENT;
+            while (budget > 0) {
+                if (!copyGather[1].hasRemaining()) {
+                    if (remaining == 0 && !reply.hasRemaining()) return true;
+                    if (remaining > 0 && !nextCopyChunk()) return false; // รอ reader ของกลุ่ม
+                }
+
+                long written = writeGathered(copyGather, budget);
+                if (written == 0) return false; // socket เต็มหรือรอ token
+                budget -= written;
+            }
+            return false;
+        }
+
+        // ก้อนถัดไปลง copyGather[1]: จาก ring ของ SharedRead ถ้าอยู่ในกลุ่ม ไม่งั้นอ่านไฟล์เองลง copyBuffer
+        // คืน false ถ้าก้อนถัดไปของกลุ่มยังอ่านไม่เสร็จ (sharedReady เปิด OP_WRITE ให้อีกครั้ง)
+        private boolean nextCopyChunk() throws IOException {
+            if (shared != null) {
+                ByteBuffer view = shared.poll(this::sharedReady);
+                if (view != null) {
+                    copyGather[1] = view;
+                    position += view.remaining();
+                    remaining -= view.remaining();
+                    return true;
+                }
+                if (!shared.lagged()) {
+                    key.interestOps(0);
+                    return false;
+                }
+                shared.close(); // ช้าเกิน → อ่านเองต่อจาก position
+                shared = null;
+                copyBuffer = BufferPool.SHARED.take();
+                copyGather[1] = copyBuffer;
+            }
+            copyBuffer.clear();
+            copyBuffer.limit((int) Math.min(copyBuffer.capacity(), remaining)); // ไม่อ่านเกินช่วงที่ขอ
+            int read = fc.read(copyBuffer, position);
+            if (read == -1) throw new IOException("Unexpected end of file");
+            Metrics.READ.record(read);
+            copyBuffer.flip();
+            position += read;
+            remaining -= read;
+            return true;
+        }
+
+        // เรียกบน reader ของ SharedRead เมื่อก้อนถัดไปพร้อม (หรือหลุดจากกลุ่ม) → กลับไปเขียนต่อบน thread ของ loop
+        private void sharedReady() {
+            loop.execute(() -> {
+                if (state == State.TRANSFER && shared != null) key.interestOps(SelectionKey.OP_WRITE);
+            });
+        }
+
+        // คืนช่องของ Admission และปิดไฟล์ของ DOWNLOAD ที่เพิ่งส่งเสร็จ
+        private void releaseTransfer() {
+            if (shaper != null) {
+                shaper.close();
+                shaper = null;
+            }
+            if (compressed != null) {
+                compressed.close();
+                compressed = null;
+            }
+            if (shared != null) {
+                shared.close();
+                shared = null;
+            }
+            if (ticket != null) {
+                ServerMain.admission.release(ticket); // คืนช่อง (หรือออกจากคิวถ้ายังรอ)
+                ticket = null;
+            }
+            if (fc != null) {
+                try { fc.close(); } catch (IOException ignored) {}
+                fc = null;
+            }
+            if (receiver != null) {
+                receiver.abort(); // UPLOAD ไม่สำเร็จ → ลบไฟล์ชั่วคราว
+                receiver = null;
+            }
+            upload = null;
+            BufferPool.SHARED.give(copyBuffer);
+            copyBuffer = null;
+            copyGather = null;
+            cached = null;
+            if (archive != null) {
+                archive.close();
+                archive = null;
+            }
+            archiveGather = null;
+            entry = null;
+            sync = null;
+            signatures = null;
+            plan = null;
+            records = null;
+        }
+
+        void close() {
+            if (state == State.CLOSED) return;
+            state = State.CLOSED;
+
+            Metrics.CONNECTIONS.decrement();
+            loop.waitingPermit.remove(this);
+            releaseTransfer();
+            key.cancel();
+            try {
+                channel.close(); // ปิดการเชื่อมต่อ
+                System.out.println("[SERVER] Client disconnected");
+            } catch (IOException ignored) {}
+        }
+    }
+}
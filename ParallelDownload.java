@@ -0,0 +1,537 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+// ดาวน์โหลดไฟล์เดียวผ่านหลาย connection พร้อมกัน (download <file> <mode> --parallel N)
+// - แบ่งไฟล์เป็น N ช่วง แต่ละช่วงใช้ SocketChannel ของตัวเองส่ง DOWNLOAD แบบ ranged
+// - เขียนลงไฟล์ที่จองขนาดไว้ล่วงหน้า ตามตำแหน่งของช่วงนั้น (positional write / transferFrom)
+// - worker ที่ทำช่วงของตัวเองเสร็จจะแบ่งครึ่งช่วงที่คาดว่าจะเสร็จช้าที่สุดมาทำแทน (work stealing)
+// - แต่ละ connection คำนวณ CRC32C ของส่วนที่ตัวเองเขียน แล้วรวมเป็น CRC ของทั้งไฟล์ด้วย Crc32c.combine
+//   (ไม่ต้องอ่านไฟล์ปลายทางซ้ำทั้งไฟล์หลังโหลดเสร็จ)
+// - --mirrors host:port,host:port,...: โหลดช่วงต่าง ๆ จากหลาย server ที่มี files/ เหมือนกันพร้อมกัน (N connection ต่อ mirror)
+//   ถามขนาด / crc32c จากทุก mirror ก่อนเริ่ม ถ้าไม่ตรงกันจะไม่โหลด (mtime ต่างกันได้ ใช้ของแต่ละ mirror)
+//   แบ่งช่วงที่แย่งมาตามสัดส่วนความเร็วที่วัดได้ของ mirror ทั้งสองฝั่ง แทนครึ่งต่อครึ่ง
+//   connection ที่ไม่ได้ข้อมูลเลยนานเกิน -Dswarm.stallTimeout (ค่าเริ่มต้น 5000 ms) ถูกปิด ช่วงที่เหลือกลับเข้าคิวให้ mirror อื่นทำต่อ
+//   mirror ที่ล้มเหลวติดกันเกิน MAX_RETRIES ครั้งถูกเลิกใช้
+public class ParallelDownload {
+    private static final long MIN_SPLIT = 1 << 20; // ช่วงที่เล็กกว่านี้ไม่คุ้มที่จะแบ่ง/เปิด connection ใหม่
+    private static final int CHUNK = 64 * 1024;    // ขนาดต่อรอบของ transferFrom / read
+    private static final int MAX_RETRIES = 3;      // mirror ล้มเหลวติดกันได้กี่ครั้งก่อนเลิกใช้
+    private static final long STALL_NANOS = Long.getLong("swarm.stallTimeout", 5000) * 1_000_000L;
+
+    private final String fname;
+    private final String mode;
+    private final boolean binary = ClientMain.binaryProtocol; // ทุก connection ของการโหลดนี้ใช้โปรโตคอลเดียวกัน
+    private final List<Mirror> mirrors;
+    private final List<Segment> active = new ArrayList<>();   // ช่วงที่มี worker ทำอยู่ (guarded by this)
+    private final Deque<Segment> pending = new ArrayDeque<>(); // ช่วงที่ยังไม่มีใครทำ (guarded by this)
+    private final List<Piece> pieces = new ArrayList<>();     // ส่วนที่เขียนแล้วพร้อม CRC (guarded by this)
+    private final AtomicLong received = new AtomicLong();
+    private int steals;
+    private long fileSize;
+    private long checksum;
+    private volatile boolean failed;
+
+    private ParallelDownload(String fname, String mode, List<Mirror> mirrors) {
+        this.fname = fname;
+        this.mode = mode;
+        this.mirrors = mirrors;
+    }
+
+    static void download(String fname, String mode, int connections) {
+        download(fname, mode, connections,
+                List.of(new InetSocketAddress(ClientMain.SERVER_IP, ClientMain.SERVER_PORT)));
+    }
+
+    // connections = จำนวน connection ต่อ mirror
+    static void download(String fname, String mode, int connections, List<InetSocketAddress> addresses) {
+        if (!mode.equals("zero") && !mode.equals("normal")) {
+            System.err.println("Invalid mode. Use 'zero' or 'normal'");
+            return;
+        }
+        if (connections < 1) {
+            System.err.println("Invalid connection count: " + connections);
+            return;
+        }
+        List<Mirror> mirrors = new ArrayList<>();
+        for (InetSocketAddress address : addresses) {
+            mirrors.add(new Mirror(address));
+        }
+        new ParallelDownload(fname, mode, mirrors).run(connections);
+    }
+
+    // "host:port" หรือ "host" (พอร์ตเดียวกับ server หลัก) คั่นด้วย ","
+    static List<InetSocketAddress> parseMirrors(String list) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String item : list.split(",")) {
+            item = item.trim();
+            if (item.isEmpty()) continue;
+            int colon = item.lastIndexOf(':');
+            addresses.add(colon < 0 ? new InetSocketAddress(item, ClientMain.SERVER_PORT)
+                    : new InetSocketAddress(item.substring(0, colon), Integer.parseInt(item.substring(colon + 1))));
+        }
+        if (addresses.isEmpty()) throw new IllegalArgumentException("No mirrors given");
+        return addresses;
+    }
+
+    // ขอช่วงความยาว 0 จากทุก mirror เพื่อรู้ขนาดไฟล์ / mtime / crc32c ก่อนแบ่งช่วง — false ถ้าไม่ตรงกันหรือไม่มี mirror ที่ใช้ได้
+    private boolean probe() {
+        long size = -1;
+        checksum = Crc32c.UNKNOWN;
+        for (Mirror mirror : mirrors) {
+            ClientMain.RangeHeader header;
+            try (SocketChannel channel = ClientMain.connect(mirror.address, binary)) {
+                ClientMain.requestDownload(channel, binary, fname, mode, 0, 0, -1);
+                header = ClientMain.readRangeHeader(channel, binary, ClientMain.CONSOLE);
+            } catch (IOException e) {
+                if (mirrors.size() == 1) {
+                    System.err.println("Error during DOWNLOAD: " + e.getMessage());
+                    return false;
+                }
+                System.err.println("[SWARM] Skipping mirror " + mirror + ": " + e.getMessage());
+                mirror.dead = true;
+                continue;
+            }
+            if (size >= 0 && header.fileSize != size) {
+                System.err.println("[SWARM] Mirrors disagree on size of " + fname + ": " + size + " vs "
+                        + header.fileSize + " at " + mirror + ", not downloading");
+                return false;
+            }
+            if (header.checksum != Crc32c.UNKNOWN) {
+                if (checksum != Crc32c.UNKNOWN && checksum != header.checksum) {
+                    System.err.println("[SWARM] Mirrors disagree on crc32c of " + fname + " at " + mirror + ", not downloading");
+                    return false;
+                }
+                checksum = header.checksum;
+            }
+            size = header.fileSize;
+            mirror.mtime = header.mtime;
+        }
+        if (size < 0) {
+            System.err.println("Error during DOWNLOAD: no mirror available");
+            return false;
+        }
+        fileSize = size;
+        return true;
+    }
+
+    private void run(int connections) {
+        File outFile = new File(ClientMain.DOWNLOAD_DIR + "/" + fname);
+        if (!probe()) return;
+
+        // connection ของแต่ละ mirror สลับกัน (worker i ใช้ mirror ที่ i % จำนวน) — ไฟล์เล็กไม่จำเป็นต้องใช้ครบ
+        List<Mirror> usable = new ArrayList<>();
+        for (Mirror mirror : mirrors) {
+            if (!mirror.dead) usable.add(mirror);
+        }
+        int workers = (int) Math.max(1, Math.min((long) connections * usable.size(), fileSize / MIN_SPLIT));
+        System.out.println("[DOWNLOAD] File size: " + ClientMain.formatBytes(fileSize));
+        System.out.println("[DOWNLOAD] Parallel: " + workers + " connection(s)"
+                + (mirrors.size() > 1 ? " across " + usable.size() + " mirror(s)" : "")
+                + ", Client Mode: " + mode.toUpperCase());
+
+        outFile.getParentFile().mkdirs();
+        new File(ClientMain.DOWNLOAD_DIR + "/" + fname + ClientMain.RESUME_SUFFIX).delete(); // ไฟล์เดิมจะถูกเขียนทับทั้งไฟล์
+
+        long startTime = System.currentTimeMillis();
+
+        try (RandomAccessFile raf = new RandomAccessFile(outFile, "rw");
+             FileChannel out = raf.getChannel()) {
+            raf.setLength(fileSize); // จองขนาดไฟล์ไว้ก่อน ทุก worker เขียนตามตำแหน่งของตัวเอง
+
+            long segmentSize = fileSize / workers;
+            for (int i = 0; i < workers; i++) {
+                long start = i * segmentSize;
+                long end = (i == workers - 1) ? fileSize : start + segmentSize;
+                pending.add(new Segment(start, end));
+            }
+
+            ExecutorService pool = Executors.newFixedThreadPool(workers);
+            for (int i = 0; i < workers; i++) {
+                Mirror mirror = usable.get(i % usable.size());
+                pool.submit(() -> worker(mirror, out));
+            }
+            pool.shutdown();
+
+            // แสดง progress รวมของทุก connection และตรวจ connection ที่ค้าง ทุก 200 ms
+            while (!pool.awaitTermination(200, TimeUnit.MILLISECONDS)) {
+                if (fileSize > 0) ClientMain.printProgress(received.get(), fileSize);
+                checkStalls();
+            }
+            if (fileSize > 0) ClientMain.printProgress(received.get(), fileSize);
+
+        } catch (IOException | InterruptedException e) {
+            failed = true;
+            System.err.println("\nError during DOWNLOAD: " + e.getMessage());
+        }
+
+        if (failed || received.get() != fileSize) {
+            // ช่วงที่เขียนแล้วกระจายอยู่ทั่วไฟล์ จึง resume แบบต่อท้ายไม่ได้ → ลบทิ้ง
+            System.err.println("\n[CLIENT] ❌ Incomplete: " + received.get() + "/" + fileSize + " bytes");
+            outFile.delete();
+            return;
+        }
+
+        if (checksum == Crc32c.UNKNOWN) {
+            System.out.println("\n[VERIFY] Server has no checksum for this file yet, not verified");
+        } else {
+            long actual = combinePieces();
+            if (actual != checksum) {
+                System.err.println("\n[VERIFY] ❌ Checksum mismatch: expected crc32c " + Crc32c.toHex(checksum)
+                        + ", got " + (actual == Crc32c.UNKNOWN ? "gaps in received ranges" : Crc32c.toHex(actual)));
+                outFile.delete();
+                return;
+            }
+            System.out.println("\n[VERIFY] ✅ crc32c " + Crc32c.toHex(actual));
+        }
+
+        long duration = System.currentTimeMillis() - startTime;
+        double speed = (fileSize / 1024.0 / 1024.0) / (duration / 1000.0);
+
+        System.out.println("\n[DOWNLOAD] ✅ Completed: " + fname);
+        System.out.println("[DOWNLOAD] Time: " + duration + " ms");
+        System.out.printf("[DOWNLOAD] Speed: %.2f MB/s aggregate (%.2f MB/s per connection, %d connections, %d steals)\n",
+                speed, speed / workers, workers, steals);
+        if (mirrors.size() > 1) {
+            for (Mirror mirror : mirrors) {
+                System.out.printf("[SWARM] %s: %s, %.2f MB/s per connection%s\n", mirror,
+                        ClientMain.formatBytes(mirror.bytes.get()), mirror.rate() / 1024.0 / 1024.0,
+                        mirror.dead ? " (dropped)" : "");
+            }
+        }
+        System.out.println("[DOWNLOAD] Saved to: " + outFile.getAbsolutePath() + "\n");
+    }
+
+    // worker แต่ละตัวรับช่วงไปทำจาก mirror ของตัวเองทีละช่วงจนไม่เหลืองาน
+    // ล้มเหลว → ส่วนที่เหลือของช่วงกลับเข้าคิว (worker ไหนก็รับไปทำต่อได้ รวมถึง mirror อื่น)
+    private void worker(Mirror mirror, FileChannel out) {
+        Segment segment;
+        while (!failed && !mirror.dead && (segment = nextSegment(mirror)) != null) {
+            try {
+                fetch(mirror, segment, out);
+                mirror.failures.set(0);
+            } catch (IOException e) {
+                String range = segment.toString();
+                requeue(segment);
+                if (failed) return;
+                // ปิดโดย checkStalls → AsynchronousCloseException ไม่มีข้อความ
+                String reason = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+                int attempts = mirror.failures.incrementAndGet();
+                if (attempts > MAX_RETRIES) {
+                    mirror.dead = true;
+                    System.err.println("\n[PARALLEL] Giving up on " + mirror + " after " + MAX_RETRIES + " retries: " + reason);
+                    if (allDead()) failed = true;
+                    return;
+                }
+                System.err.println("\n[PARALLEL] Segment " + range + " from " + mirror + " retry " + attempts + ": " + reason);
+                try {
+                    Thread.sleep(200L * attempts); // ให้ worker ของ mirror อื่นที่ว่างรับช่วงที่คืนไปก่อน
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private boolean allDead() {
+        for (Mirror mirror : mirrors) {
+            if (!mirror.dead) return false;
+        }
+        return true;
+    }
+
+    // เลือกงานถัดไป: ช่วงที่ยังไม่มีคนทำก่อน ถ้าไม่มีให้แบ่งช่วงที่คาดว่าจะเสร็จช้าที่สุด
+    // แบ่งไม่ได้แต่ยังมีช่วงที่กำลังทำอยู่ → รอ (ช่วงนั้นอาจล้มเหลวแล้วกลับเข้าคิว)
+    private synchronized Segment nextSegment(Mirror thief) {
+        while (!failed && !thief.dead) {
+            active.removeIf(Segment::isDone);
+
+            Segment next = pending.poll();
+            if (next == null) {
+                Segment slowest = null;
+                double slowestLeft = 0;
+                for (Segment s : active) {
+                    double left = s.secondsLeft();
+                    if (left > slowestLeft) {
+                        slowest = s;
+                        slowestLeft = left;
+                    }
+                }
+                if (slowest == null) return null;
+
+                // ส่วนที่แย่งมาตามสัดส่วนความเร็ว: ทั้งสองฝั่งควรเสร็จพร้อมกัน (ยังไม่รู้ความเร็ว = ครึ่งต่อครึ่ง)
+                double mine = thief.rate();
+                double theirs = slowest.rate();
+                next = slowest.split(mine > 0 && theirs > 0 ? mine / (mine + theirs) : 0.5);
+                if (next != null) steals++;
+            }
+            if (next != null) {
+                active.add(next);
+                return next;
+            }
+            try {
+                wait(200); // เหลือน้อยเกินกว่าจะแบ่ง
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        return null;
+    }
+
+    // ส่วนที่เหลือของช่วงที่ล้มเหลวกลับเข้าคิว (หน้าสุด) ให้ worker ที่ว่างรับไป
+    private synchronized void requeue(Segment segment) {
+        Segment rest = segment.abandon();
+        if (rest != null) {
+            pending.addFirst(rest);
+            notifyAll();
+        }
+    }
+
+    // ปิด connection ที่ไม่ได้ข้อมูลเลยนานเกิน STALL_NANOS — worker ได้ IOException แล้วคืนช่วงเข้าคิว
+    private synchronized void checkStalls() {
+        long now = System.nanoTime();
+        for (Segment s : active) {
+            if (s.stalledSince(now) > STALL_NANOS && s.interrupt()) {
+                System.err.println("\n[PARALLEL] Segment " + s + " stalled for "
+                        + STALL_NANOS / 1_000_000 + " ms, failing over");
+            }
+        }
+    }
+
+    // ต่อ CRC ของทุกส่วนตามลำดับตำแหน่ง — คืน UNKNOWN ถ้าส่วนต่าง ๆ ไม่ต่อกันพอดีทั้งไฟล์
+    private synchronized long combinePieces() {
+        pieces.sort(Comparator.comparingLong(p -> p.start));
+        long crc = new CRC32C().getValue(); // CRC ของข้อมูลว่าง
+        long position = 0;
+        for (Piece p : pieces) {
+            if (p.start != position) return Crc32c.UNKNOWN;
+            crc = Crc32c.combine(crc, p.crc, p.length);
+            position += p.length;
+        }
+        return position == fileSize ? crc : Crc32c.UNKNOWN;
+    }
+
+    private synchronized void addPiece(long start, long length, CRC32C crc) {
+        if (length > 0) pieces.add(new Piece(start, length, crc.getValue()));
+    }
+
+    // เปิด connection ใหม่ไปยัง mirror แล้วขอช่วงที่เหลือของ segment — เขียนจนถึงปลายช่วง (ซึ่งอาจถูกแบ่งให้สั้นลงระหว่างทาง)
+    private void fetch(Mirror mirror, Segment segment, FileChannel out) throws IOException {
+        // ให้ checkStalls ปิดได้ตั้งแต่ตกลงโปรโตคอล: mirror ที่ค้างยังรับ TCP ได้จาก backlog ของ kernel แต่ไม่ตอบ
+        try (SocketChannel channel = Tuning.connect(mirror.address)) {
+            segment.attach(channel);
+            if (binary) Wire.negotiate(channel);
+            long start = segment.position();
+            long length = segment.end() - start;
+            ClientMain.requestDownload(channel, binary, fname, mode, start, length, mirror.mtime);
+
+            ClientMain.RangeHeader header = ClientMain.readRangeHeader(channel, binary, ClientMain.CONSOLE);
+            if (header.offset != start || header.mtime != mirror.mtime) {
+                failed = true;
+                throw new IOException("File changed on " + mirror + " during download");
+            }
+
+            CRC32C crc = new CRC32C(); // CRC ของ [start, start + hashed) ที่ connection นี้เขียน
+            long hashed = 0;
+            long began = System.nanoTime();
+            try {
+                if (mode.equals("zero")) {
+                    ByteBuffer readBack = ByteBuffer.allocateDirect(CHUNK);
+                    while (!segment.isDone()) {
+                        long position = segment.position();
+                        long chunk = out.transferFrom(channel, position, Math.min(CHUNK, segment.end() - position));
+                        if (chunk == 0) {
+                            throw new IOException("Connection closed unexpectedly"); // blocking channel คืน 0 เมื่อ EOF
+                        }
+                        long kept = segment.advance(chunk);
+                        // อ่านกลับจาก page cache (เพิ่งเขียน) — worker แต่ละตัวทำของตัวเองขนานกันไป
+                        Crc32c.update(crc, out, position, position + kept, readBack);
+                        hashed += kept;
+                        received.addAndGet(kept);
+                    }
+                } else {
+                    ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK);
+                    while (!segment.isDone()) {
+                        buffer.clear();
+                        int bytesRead = channel.read(buffer);
+                        if (bytesRead == -1) {
+                            throw new IOException("Connection closed unexpectedly");
+                        }
+                        buffer.flip();
+
+                        long position = segment.position();
+                        long kept = segment.advance(bytesRead); // ส่วนที่เกินปลายช่วง (ถูกแบ่งให้ worker อื่นแล้ว) ทิ้งไป
+                        buffer.limit((int) kept);
+                        crc.update(buffer);
+                        buffer.position(0);
+                        while (buffer.hasRemaining()) {
+                            position += out.write(buffer, position);
+                        }
+                        hashed += kept;
+                        received.addAndGet(kept);
+                    }
+                }
+            } finally {
+                addPiece(start, hashed, crc); // ส่วนที่ได้ก่อนล้มเหลวก็ใช้ได้ รอบ retry เริ่มต่อจากตรงนั้น
+                mirror.record(hashed, System.nanoTime() - began);
+                segment.attach(null);
+            }
+        }
+    }
+
+    // server หนึ่งตัวที่มีไฟล์ชุดเดียวกัน — ความเร็วต่อ connection วัดจากเวลาที่รับข้อมูลจริงของทุก connection ไปยัง mirror นี้
+    private static final class Mirror {
+        final InetSocketAddress address;
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong busyNanos = new AtomicLong();
+        final AtomicInteger failures = new AtomicInteger(); // ล้มเหลวติดกันกี่ครั้ง
+        long mtime;              // mtime ของไฟล์บน mirror นี้ (จาก probe)
+        volatile boolean dead;
+
+        Mirror(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        void record(long n, long nanos) {
+            bytes.addAndGet(n);
+            busyNanos.addAndGet(nanos);
+        }
+
+        // byte/วินาที ต่อ connection — 0 = ยังไม่รู้
+        double rate() {
+            long nanos = busyNanos.get();
+            return nanos > 0 ? bytes.get() * 1e9 / nanos : 0;
+        }
+
+        @Override
+        public String toString() {
+            return address.getHostString() + ":" + address.getPort();
+        }
+    }
+
+    // ส่วนของไฟล์ที่ connection หนึ่งเขียนต่อเนื่องกัน
+    private static final class Piece {
+        final long start;
+        final long length;
+        final long crc;
+
+        Piece(long start, long length, long crc) {
+            this.start = start;
+            this.length = length;
+            this.crc = crc;
+        }
+    }
+
+    // ช่วง [position, end) ของไฟล์ — end ลดลงได้เมื่อ worker อื่นมาแบ่งครึ่งหลังไป
+    static class Segment {
+        private long position;
+        private long end;
+        private final long startPosition;
+        private final long startNanos = System.nanoTime();
+        private SocketChannel channel;   // connection ที่กำลังรับช่วงนี้ (ให้ checkStalls ปิดได้)
+        private long lastProgress;
+
+        Segment(long start, long end) {
+            this.position = start;
+            this.startPosition = start;
+            this.end = end;
+        }
+
+        synchronized long position() {
+            return position;
+        }
+
+        synchronized long end() {
+            return end;
+        }
+
+        synchronized boolean isDone() {
+            return position >= end;
+        }
+
+        // บันทึกว่าได้รับเพิ่ม n byte — คืนจำนวนที่อยู่ในช่วงจริง (ไม่นับส่วนที่เกิน end)
+        synchronized long advance(long n) {
+            long kept = Math.max(0, Math.min(n, end - position));
+            position += n;
+            lastProgress = System.nanoTime();
+            return kept;
+        }
+
+        synchronized void attach(SocketChannel channel) {
+            this.channel = channel;
+            lastProgress = System.nanoTime();
+        }
+
+        // เวลาที่ไม่ได้ข้อมูลเลย (0 ถ้าไม่มี connection อยู่)
+        synchronized long stalledSince(long now) {
+            return channel != null ? now - lastProgress : 0;
+        }
+
+        // ปิด connection ที่ค้าง — read / transferFrom ของ worker จะโยน IOException
+        synchronized boolean interrupt() {
+            if (channel == null) return false;
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            channel = null;
+            return true;
+        }
+
+        // แบ่งส่วนท้ายของที่เหลือ (สัดส่วน share แต่เหลือไว้อย่างน้อย MIN_SPLIT) ออกมาเป็นช่วงใหม่ — คืน null ถ้าเหลือน้อยเกินไป
+        synchronized Segment split(double share) {
+            long left = end - position;
+            long stolenLength = Math.min((long) (left * share), left - MIN_SPLIT);
+            if (stolenLength < MIN_SPLIT) return null;
+
+            long mid = end - stolenLength;
+            Segment stolen = new Segment(mid, end);
+            end = mid;
+            return stolen;
+        }
+
+        // เลิกทำช่วงนี้ — คืนส่วนที่เหลือเป็นช่วงใหม่ (null ถ้าเสร็จแล้ว)
+        synchronized Segment abandon() {
+            if (position >= end) return null;
+            Segment rest = new Segment(position, end);
+            end = position;
+            return rest;
+        }
+
+        // byte/วินาที ที่วัดได้ของช่วงนี้ (0 = ยังไม่ได้ข้อมูล)
+        synchronized double rate() {
+            double elapsed = (System.nanoTime() - startNanos) / 1e9;
+            long done = position - startPosition;
+            return done > 0 && elapsed > 0 ? done / elapsed : 0;
+        }
+
+        // ประมาณเวลาที่เหลือจากความเร็วที่วัดได้ของช่วงนี้ (ยังไม่เริ่มได้ข้อมูล = ถือว่าช้าที่สุด)
+        synchronized double secondsLeft() {
+            long left = end - position;
+            if (left <= 0) return 0;
+
+            double elapsed = (System.nanoTime() - startNanos) / 1e9;
+            long done = position - startPosition;
+            if (done <= 0 || elapsed <= 0) return Double.MAX_VALUE;
+            return left / (done / elapsed);
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "[" + position + ", " + end + ")";
+        }
+    }
+}
@@ -1,28 +1,145 @@
 import java.io.*;
 import java.net.*;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.Semaphore;
 
 public class ServerMain {
-    private static final String FILE_DIR = "files";
-    private static final int PORT = 8000;
-    private static volatile boolean running = true;
-    private static final Semaphore fileTransferLimit = new Semaphore(5); // จำกัดจำนวนการดาวน์โหลดพร้อมกันสูงสุด 5
+    static final String FILE_DIR = "files";
+    static final int PORT = Integer.getInteger("server.port", 8000); // -Dserver.port (เช่น mirror หลายตัวบนเครื่องเดียว)
+    static volatile boolean running = true;
+    static FileIndex fileIndex; // ดัชนีของ FILE_DIR ใช้ตอบ LIST และตรวจไฟล์ของ DOWNLOAD
+    static final FileCache fileCache = FileCache.fromSystemProperties(); // hot file ของโหมด normal
+    static final String MANIFEST = FILE_DIR + ".manifest"; // checksum ของไฟล์ที่คำนวณแล้ว (อยู่นอก FILE_DIR)
+    static final Bandwidth bandwidth = Bandwidth.fromSystemProperties(); // จำกัดความเร็วรวม / ต่อ client (limit บน console)
+    static final Admission admission = Admission.fromSystemProperties(bandwidth::sentBytes); // คิวของ DOWNLOAD / SYNC
 
+    // java ServerMain [pool|virtual|nio] [loops]
+    //   pool    : thread pool 10 ตัว (ค่าเริ่มต้น)
+    //   virtual : virtual thread 1 ตัวต่อ client (Java 21+) ใช้ ClientHandler เดิมแบบ blocking
+    //   nio     : event loop ด้วย Selector จำนวน loops ตัว (ค่าเริ่มต้น = จำนวน core)
     public static void main(String[] args) {
         // Shutdown Hook โปรแกรมปิดอย่างปลอดภัย
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             System.out.println("\n[SERVER] Shutdown signal received");
+            System.out.println("[CACHE] " + fileCache.summary());
             running = false;
         }));
 
-        ExecutorService pool = Executors.newFixedThreadPool(10); // Thread pool รองรับ client พร้อมกันได้ 10 ตัว
+        String mode = args.length > 0 ? args[0] : "pool";
+        System.out.println("[LIMIT] Bandwidth: " + bandwidth.describe());
+        System.out.println("[QUEUE] Admission: " + admission.describe());
+        admission.start();
+        Metrics.gauge("admission.waiting", admission::waiting);
+        Metrics.gauge("admission.running", admission::running);
+        Metrics.gauge("admission.slots", admission::slots);
+        Metrics.registerMBean();
+        startConsole();
 
+        try {
+            fileIndex = FileIndex.open(FILE_DIR);
+        } catch (IOException e) {
+            System.err.println("[SERVER STARTUP FAILED] Cannot index " + FILE_DIR + ": " + e.getMessage());
+            return;
+        }
+        try {
+            ChecksumManifest.open(fileIndex, FILE_DIR, MANIFEST);
+        } catch (IOException e) {
+            System.err.println("[CHECKSUM] Manifest disabled: " + e.getMessage()); // ส่งไฟล์ได้ตามปกติ แต่ไม่มี checksum
+        }
+
+        if (mode.equals("nio")) {
+            int loops = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+            try {
+                new NioServer(PORT, loops).run();
+            } catch (IOException e) {
+                System.err.println("[SERVER STARTUP FAILED] " + e.getMessage());
+            }
+        } else if (mode.equals("virtual")) {
+            ExecutorService virtual = newVirtualThreadExecutor();
+            if (virtual == null) {
+                System.err.println("[SERVER] Virtual threads require Java 21+, falling back to thread pool");
+                runPool(Executors.newFixedThreadPool(10));
+            } else {
+                System.out.println("[SERVER] Virtual-thread-per-client mode");
+                runPool(virtual);
+            }
+        } else {
+            runPool(Executors.newFixedThreadPool(10)); // Thread pool รองรับ client พร้อมกันได้ 10 ตัว
+        }
+    }
+
+    // คำสั่งจาก console ของ server ระหว่างทำงาน (thread แยก ไม่ขวางการรับ client)
+    //   limit                  : แสดงค่าที่ใช้อยู่
+    //   limit global <rate>    : ความเร็วรวมทั้ง server เช่น 100M (0 = ไม่จำกัด)
+    //   limit client <rate>    : ความเร็วต่อ IP ของ client
+    //   queue                  : สถานะคิวของ DOWNLOAD / SYNC
+    //   stats                  : metrics เดียวกับคำสั่ง STATS
+    static void startConsole() {
+        Thread console = new Thread(() -> {
+            BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+            try {
+                String line;
+                while (running && (line = in.readLine()) != null) {
+                    String[] p = line.trim().split("\\s+");
+                    if (p[0].isEmpty()) continue;
+                    if (p[0].equals("queue")) {
+                        System.out.println("[QUEUE] Admission: " + admission.describe());
+                        continue;
+                    }
+                    if (p[0].equals("stats")) {
+                        for (String stat : Metrics.report(false)) {
+                            System.out.println("[STATS] " + stat);
+                        }
+                        continue;
+                    }
+                    try {
+                        if (p[0].equals("limit") && p.length == 3 && p[1].equals("global")) {
+                            bandwidth.setGlobalRate(Bandwidth.parseRate(p[2]));
+                        } else if (p[0].equals("limit") && p.length == 3 && p[1].equals("client")) {
+                            bandwidth.setClientRate(Bandwidth.parseRate(p[2]));
+                        } else if (!(p[0].equals("limit") && p.length == 1)) {
+                            System.out.println("Usage: limit [global|client <rate>] | queue | stats");
+                            continue;
+                        }
+                        System.out.println("[LIMIT] Bandwidth: " + bandwidth.describe());
+                    } catch (NumberFormatException e) {
+                        System.out.println("[LIMIT] Invalid rate: " + p[2]);
+                    }
+                }
+            } catch (IOException ignored) {
+                // stdin ถูกปิด → ไม่มี console
+            }
+        }, "server-console");
+        console.setDaemon(true);
+        console.start();
+    }
+
+    // สร้าง executor ที่เปิด virtual thread ใหม่ 1 ตัวต่อ 1 task — คืน null ถ้า JVM ต่ำกว่า Java 21
+    // เรียกผ่าน reflection เพื่อให้ยัง compile/รันโหมดอื่นบน Java 17 ได้
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    // accept แบบ blocking แล้วส่ง client ให้ executor (thread pool หรือ virtual thread)
+    static void runPool(ExecutorService pool) {
+        if (pool instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor executor = (ThreadPoolExecutor) pool;
+            Metrics.gauge("pool.queue", () -> executor.getQueue().size()); // client ที่รอ thread ว่าง
+            Metrics.gauge("pool.active", executor::getActiveCount);
+        }
         try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            Tuning.listening(serverChannel); // receive buffer ของ profile ต้องตั้งก่อน accept
             serverChannel.bind(new InetSocketAddress(PORT)); // bind พอร์ต
             serverChannel.configureBlocking(true); // จะ “ค้างรอ (block)” จนกว่าจะมี client มาเชื่อมต่อ
             serverChannel.socket().setSoTimeout(1000); 
@@ -43,6 +160,7 @@ public class ServerMain {
                     
                     // timeout สำหรับ client socket
                     client.socket().setSoTimeout(30000);
+                    Tuning.accepted(client); // TCP_NODELAY + socket buffer ตาม profile
                     
                     // ส่งให้ thread pool จัดการ
                     pool.submit(new ClientHandler(client));
@@ -58,7 +176,7 @@ public class ServerMain {
         } catch (IOException e) {
             System.err.println("[SERVER STARTUP FAILED] " + e.getMessage());
         } finally {
-            System.out.println("[SERVER] Shutting down thread pool.");
+            System.out.println("[SERVER] Shutting down client executor.");
             if (pool != null) {
                 pool.shutdown(); // หยุดรับงานใหม่
                 try {
@@ -72,32 +190,259 @@ public class ServerMain {
         }
     }
 
+    // แปลงชื่อไฟล์เป็น path จริงภายใต้ FILE_DIR — คืน null ถ้าพยายามออกนอกโฟลเดอร์ (path traversal)
+    static File resolveFile(String filename) throws IOException {
+        File file = new File(FILE_DIR, filename).getCanonicalFile();
+        File baseDir = new File(FILE_DIR).getCanonicalFile();
+
+        if (!file.getPath().startsWith(baseDir.getPath())) {
+            return null;
+        }
+        return file;
+    }
+
+    // คำสั่ง DOWNLOAD <filename> <mode> [<offset> <length> [<mtime>]]
+    //   offset/length : ขอเฉพาะช่วง byte (length = -1 คือถึงท้ายไฟล์) ใช้สำหรับ resume
+    //   mtime         : ถ้าไฟล์บน server ถูกแก้ไขไปแล้ว → ส่งทั้งไฟล์ตั้งแต่ 0 แทน (แบบ If-Range ของ HTTP)
+    // แบบ 3 ส่วนเดิมยังใช้ได้ และตอบ header แบบเดิม (FILESIZE / READY)
+    static class DownloadRequest {
+        final String filename;
+        final String mode;
+        final boolean ranged;
+        final long ifMtime;
+        long offset;
+        long length;
+
+        private DownloadRequest(String filename, String mode, boolean ranged, long offset, long length, long ifMtime) {
+            this.filename = filename;
+            this.mode = mode;
+            this.ranged = ranged;
+            this.offset = offset;
+            this.length = length;
+            this.ifMtime = ifMtime;
+        }
+
+        // คืน null ถ้ารูปแบบคำสั่งไม่ถูกต้อง
+        static DownloadRequest parse(String cmd) {
+            String[] parts = cmd.split(" ");
+            try {
+                if (parts.length == 3) {
+                    return new DownloadRequest(parts[1], parts[2], false, 0, -1, -1);
+                } else if (parts.length == 5 || parts.length == 6) {
+                    long offset = Long.parseLong(parts[3]);
+                    long length = Long.parseLong(parts[4]);
+                    long ifMtime = parts.length == 6 ? Long.parseLong(parts[5]) : -1;
+                    if (offset < 0 || length < -1) return null;
+                    return new DownloadRequest(parts[1], parts[2], true, offset, length, ifMtime);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            return null;
+        }
+
+        // ปรับช่วงให้อยู่ในขนาดไฟล์จริง — คืน false ถ้า offset เกินท้ายไฟล์
+        boolean clampTo(long fileSize, long mtime) {
+            if (ifMtime >= 0 && ifMtime != mtime) {
+                // ไฟล์เปลี่ยนไปแล้ว ส่วนที่ client มีอยู่ใช้ไม่ได้ → ส่งใหม่ทั้งไฟล์
+                offset = 0;
+                length = -1;
+            }
+            if (offset > fileSize) return false;
+            if (length == -1 || length > fileSize - offset) {
+                length = fileSize - offset;
+            }
+            return true;
+        }
+
+        // อ่าน field ของ frame DOWNLOAD (โปรโตคอล binary ขอแบบ ranged เสมอ)
+        static DownloadRequest decode(ByteBuffer buf) {
+            String filename = Wire.getString(buf);
+            String mode = Wire.getString(buf);
+            long offset = buf.getLong();
+            long length = buf.getLong();
+            long ifMtime = buf.getLong();
+            return new DownloadRequest(filename, mode, true, Math.max(0, offset), Math.max(-1, length), ifMtime);
+        }
+    }
+
+    // คำสั่ง LIST [<glob> [<limit> [<cursor>]]]
+    //   ไม่มี glob : ชื่อไฟล์ทั้งหมดทีละบรรทัด ปิดท้ายด้วย END (รูปแบบเดิม)
+    //   มี glob    : <name> <size> <mtime> ทีละบรรทัด ไม่เกิน limit รายการ (ค่าเริ่มต้น 1000)
+    //                ปิดท้ายด้วย END หรือ MORE <cursor> ถ้ายังมีหน้าถัดไป (ส่ง cursor กลับมาเพื่อขอหน้าต่อไป)
+    static class ListRequest {
+        final String glob; // null = รูปแบบเดิม
+        final int limit;
+        final String after;
+
+        private ListRequest(String glob, int limit, String after) {
+            this.glob = glob;
+            this.limit = limit <= 0 ? FileIndex.DEFAULT_PAGE : Math.min(limit, FileIndex.MAX_PAGE);
+            this.after = after;
+        }
+
+        // คืน null ถ้ารูปแบบคำสั่งไม่ถูกต้อง
+        static ListRequest parse(String cmd) {
+            String[] parts = cmd.split(" ");
+            if (parts.length == 1) return new ListRequest(null, 0, null);
+            if (parts.length > 4) return null;
+            try {
+                int limit = parts.length > 2 ? Integer.parseInt(parts[2]) : 0;
+                return new ListRequest(parts[1], limit, parts.length > 3 ? parts[3] : null);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        // frame LIST: ไม่มี payload = รูปแบบเดิม, นอกนั้น glob, limit, cursor ("" = หน้าแรก)
+        static ListRequest decode(ByteBuffer buf) {
+            if (Wire.payloadLength(buf) == 0) return new ListRequest(null, 0, null);
+            String glob = Wire.getString(buf);
+            int limit = buf.getInt();
+            String after = Wire.getString(buf);
+            return new ListRequest(glob, limit, after.isEmpty() ? null : after);
+        }
+
+        boolean detailed() {
+            return glob != null;
+        }
+
+        // โยน IllegalArgumentException ถ้า glob ไม่ถูกต้อง
+        FileIndex.Page query(FileIndex index) {
+            if (glob == null) return index.list("*", null, Integer.MAX_VALUE);
+            return index.list(glob, after, limit);
+        }
+    }
+
+    // คำสั่ง SYNC <filename> <blockSize> <count> ตามด้วย signature ของไฟล์เดิมของ client count × 20 byte (ดู DeltaSync)
+    // server ต้องอ่าน signature ให้ครบก่อนตอบเสมอ (แม้จะตอบ ERROR) เพื่อให้คำสั่งถัดไปใน session อ่านต่อได้ถูกตำแหน่ง
+    static class SyncRequest {
+        final String filename;
+        final int blockSize;
+        final int count;
+
+        private SyncRequest(String filename, int blockSize, int count) {
+            this.filename = filename;
+            this.blockSize = blockSize;
+            this.count = count;
+        }
+
+        // คืน null ถ้ารูปแบบคำสั่งไม่ถูกต้อง (ไม่รู้ความยาว signature → ต้องปิด connection)
+        static SyncRequest parse(String cmd) {
+            String[] parts = cmd.split(" ");
+            if (parts.length != 4) return null;
+            try {
+                return new SyncRequest(parts[1], Integer.parseInt(parts[2]), Integer.parseInt(parts[3])).validated();
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        static SyncRequest decode(ByteBuffer buf) {
+            String filename = Wire.getString(buf);
+            int blockSize = buf.getInt();
+            int count = buf.getInt();
+            return new SyncRequest(filename, blockSize, count).validated();
+        }
+
+        private SyncRequest validated() {
+            if (blockSize < DeltaSync.MIN_BLOCK || blockSize > DeltaSync.MAX_BLOCK) return null;
+            if (count < 0 || count > DeltaSync.MAX_BLOCKS) return null;
+            return this;
+        }
+
+        int signatureBytes() {
+            return count * DeltaSync.SIGNATURE_BYTES;
+        }
+    }
+
+    // คำสั่ง UPLOAD <filename> <size> — หลัง READY client ส่งข้อมูล size byte ตามด้วย CHECKSUM crc32c <hex> (ดู Upload)
+    static class UploadRequest {
+        final String filename;
+        final long size;
+
+        private UploadRequest(String filename, long size) {
+            this.filename = filename;
+            this.size = size;
+        }
+
+        // คืน null ถ้ารูปแบบคำสั่งไม่ถูกต้อง (client ยังไม่ได้ส่งข้อมูลจนกว่าจะได้ READY → คุยต่อได้)
+        static UploadRequest parse(String cmd) {
+            String[] parts = cmd.split(" ");
+            if (parts.length != 3) return null;
+            try {
+                return new UploadRequest(parts[1], Long.parseLong(parts[2])).validated();
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        static UploadRequest decode(ByteBuffer buf) {
+            String filename = Wire.getString(buf);
+            long size = buf.getLong();
+            return new UploadRequest(filename, size).validated();
+        }
+
+        private UploadRequest validated() {
+            return size >= 0 ? this : null;
+        }
+    }
+
     // ClientHandler ทำงานบน thread จาก thread-pool เพื่ออ่านคำสั่งจาก client และตอบกลับ (LIST / DOWNLOAD / ERROR) — แล้วปิดการเชื่อมต่อเมื่อเสร็จ
+    // ถ้าคำสั่งแรกคือ SESSION จะรับคำสั่งต่อไปเรื่อย ๆ บน connection เดิมจนกว่าจะได้ QUIT หรือ client ปิด
+    // (client ส่งหลายคำสั่งล่วงหน้าแบบ pipeline ได้ server ตอบตามลำดับ เพราะทุกคำตอบบอกความยาวของตัวเองอยู่แล้ว)
+    // ถ้า byte แรกเป็น Wire.MAGIC จะคุยด้วยโปรโตคอล binary แทน (keep-alive เสมอ)
     static class ClientHandler implements Runnable {
         private SocketChannel client; // ช่องสื่อสารกับ client เป็น NIO channel ใช้ส่ง/รับไบต์แบบ stream
+        private final ByteBuffer in = ByteBuffer.allocate(1024); // ข้อมูลที่อ่านมาแล้วแต่ยังไม่ใช้ (คำสั่งถัดไปแบบ pipeline)
+        private final ByteBuffer out = ByteBuffer.allocate(8192); // ใช้ซ้ำสำหรับเขียนคำตอบ (header / ERROR / รายชื่อไฟล์)
+        private boolean binary;
+        private FileIndex.ListResponse listing; // สร้างเมื่อ LIST ครั้งแรก ใช้ซ้ำใน session
+        private Tuning.Tuner tuner; // slice ของ transferTo / socket buffer ที่ปรับตาม throughput (สร้างเมื่อส่งแบบ zero ครั้งแรก)
+        private final ByteBuffer[] gather = new ByteBuffer[2]; // header + ข้อมูลก้อนแรก (จาก cache หรือ normalCopy)
+        private Bandwidth.Shaper shaper; // token ของการส่งที่กำลังทำ (DOWNLOAD / SYNC)
 
         ClientHandler(SocketChannel client) {
             this.client = client;
+            in.flip(); // เริ่มต้นแบบว่าง (โหมดอ่าน)
         }
 
         @Override
         public void run() {
+            Metrics.ACCEPTED.increment();
+            Metrics.CONNECTIONS.increment();
             try {
+                if (!fill(client)) {
+                    throw new IOException("Connection closed");
+                }
+
+                if (in.get(in.position()) == Wire.MAGIC) {
+                    runBinary();
+                    return;
+                }
+
                 String command = readLine(client); // อ่านคำสั่งจาก client
-                System.out.println("[SERVER] Received: " + command);
+                if (command == null) {
+                    throw new IOException("Connection closed");
+                }
 
-                if (command.equals("LIST")) {
-                    sendList(client); // ส่งรายชื่อไฟล์
-                } else if (command.startsWith("DOWNLOAD")) {
-                    handleDownload(command, client); // จัดการโหลดไฟล์
+                if (command.equals("SESSION")) {
+                    System.out.println("[SERVER] Received: " + command);
+                    writeLine(client, "OK SESSION");
+
+                    // keep-alive: วนรับคำสั่งจนกว่า client จะส่ง QUIT หรือปิด connection
+                    while ((command = readLine(client)) != null && !command.equals("QUIT")) {
+                        dispatch(command);
+                    }
                 } else {
-                    writeLine(client, "ERROR Unknown command"); // คำสั่งที่ไม่รู้จัก
+                    dispatch(command);
                 }
 
             } catch (Exception e) {
                 System.err.println("[ClientHandler] Error: " + e.getMessage());
                 
             } finally {
+                Metrics.CONNECTIONS.decrement();
                 try { 
                     client.close(); // ปิดการเชื่อมต่อ
                     System.out.println("[SERVER] Client disconnected");
@@ -105,153 +450,584 @@ public class ServerMain {
             }
         }
 
+        // โปรโตคอล binary: ตอบ MAGIC + VERSION แล้ววนอ่าน frame จนกว่าจะได้ QUIT หรือ client ปิด
+        void runBinary() throws Exception {
+            while (in.remaining() < 2) {
+                if (!fill(client)) throw new IOException("Connection closed");
+            }
+            in.get();
+            byte version = in.get();
+            if (version != Wire.VERSION) {
+                throw new IOException("Unsupported protocol version " + version);
+            }
+            binary = true;
 
+            out.clear();
+            out.put(Wire.MAGIC).put(Wire.VERSION);
+            flush();
+
+            int op;
+            while ((op = Wire.nextFrame(client, in)) != -1 && op != Wire.OP_QUIT) {
+                // ถอด payload ภายในขอบของ frame เท่านั้น แล้วข้ามไปท้าย frame เสมอ (เหมือน NioServer.dispatchFrame)
+                // field ที่เกินมาจาก client รุ่นใหม่ไม่ทำให้หลุดจังหวะ — ข้อมูลที่ตามหลัง frame (signature ของ SYNC /
+                // ข้อมูลของ UPLOAD) เริ่มที่ท้าย frame พอดี
+                int frameEnd = in.position() + Wire.payloadLength(in);
+                int limit = in.limit();
+                ListRequest list = null;
+                DownloadRequest req = null;
+                SyncRequest syncReq = null;
+                UploadRequest uploadReq = null;
+                String glob = null;
+                in.limit(frameEnd);
+                try {
+                    if (op == Wire.OP_LIST) {
+                        list = ListRequest.decode(in);
+                    } else if (op == Wire.OP_DOWNLOAD) {
+                        req = DownloadRequest.decode(in);
+                    } else if (op == Wire.OP_SYNC) {
+                        syncReq = SyncRequest.decode(in);
+                    } else if (op == Wire.OP_UPLOAD) {
+                        uploadReq = UploadRequest.decode(in);
+                    } else if (op == Wire.OP_MGET) {
+                        glob = Wire.getString(in);
+                    }
+                } catch (BufferUnderflowException e) {
+                    op = -1; // payload สั้นกว่า field ที่ต้องมี
+                } finally {
+                    in.limit(limit);
+                    in.position(frameEnd);
+                }
+
+                if (op == Wire.OP_LIST) {
+                    System.out.println("[SERVER] Received: LIST" + (list.glob != null ? " " + list.glob : ""));
+                    sendList(list);
+                } else if (op == Wire.OP_DOWNLOAD) {
+                    System.out.println("[SERVER] Received: DOWNLOAD " + req.filename + " " + req.mode);
+                    download(req);
+                } else if (op == Wire.OP_STATS) {
+                    System.out.println("[SERVER] Received: STATS");
+                    sendStats();
+                } else if (op == Wire.OP_SYNC) {
+                    if (syncReq == null) {
+                        sendError("Invalid sync format");
+                        throw new IOException("Invalid SYNC frame"); // ไม่รู้ความยาว signature → คุยต่อไม่ได้
+                    }
+                    System.out.println("[SERVER] Received: SYNC " + syncReq.filename);
+                    sync(syncReq);
+                } else if (op == Wire.OP_MGET) {
+                    System.out.println("[SERVER] Received: MGET " + glob);
+                    mget(glob);
+                } else if (op == Wire.OP_UPLOAD) {
+                    if (uploadReq == null) {
+                        sendError("Invalid upload format");
+                    } else {
+                        System.out.println("[SERVER] Received: UPLOAD " + uploadReq.filename + " " + uploadReq.size);
+                        upload(uploadReq);
+                    }
+                } else if (op == -1) {
+                    sendError("Invalid frame"); // ข้ามทั้ง frame ไปแล้ว connection ยังคุยต่อได้
+                } else {
+                    sendError("Unknown command");
+                    throw new IOException("Unknown opcode " + op); // client พูดโปรโตคอลที่ไม่รู้จัก → ปิดเหมือน NioServer
+                }
+            }
+        }
+
+        // ทำคำสั่ง 1 คำสั่ง
+        void dispatch(String command) throws Exception {
+            System.out.println("[SERVER] Received: " + command);
+
+            if (command.equals("LIST") || command.startsWith("LIST ")) {
+                ListRequest req = ListRequest.parse(command);
+                if (req == null) {
+                    sendError("Invalid list format");
+                } else {
+                    sendList(req); // ส่งรายชื่อไฟล์
+                }
+            } else if (command.equals("STATS")) {
+                sendStats();
+            } else if (command.startsWith("DOWNLOAD")) {
+                handleDownload(command, client); // จัดการโหลดไฟล์
+            } else if (command.startsWith("SYNC ")) {
+                SyncRequest req = SyncRequest.parse(command);
+                if (req == null) {
+                    sendError("Invalid sync format");
+                    throw new IOException("Invalid SYNC command"); // ไม่รู้ความยาว signature → คุยต่อไม่ได้
+                }
+                sync(req);
+            } else if (command.startsWith("UPLOAD ")) {
+                UploadRequest req = UploadRequest.parse(command);
+                if (req == null) {
+                    sendError("Invalid upload format");
+                } else {
+                    upload(req);
+                }
+            } else if (command.startsWith("MGET ")) {
+                mget(command.substring(5).trim()); // หลายไฟล์ใน stream เดียว
+            } else {
+                sendError("Unknown command"); // คำสั่งที่ไม่รู้จัก
+            }
+        }
+
+        // อ่านจาก socket ต่อท้ายข้อมูลที่ค้างใน buffer — คืน false ถ้า client ปิด
+        private boolean fill(SocketChannel channel) throws IOException {
+            in.compact();
+            int bytesRead = channel.read(in);
+            in.flip();
+            return bytesRead != -1;
+        }
+
+        // อ่าน 1 บรรทัดจาก buffer โดยตรง (ตัด \r และช่องว่างหัวท้ายด้วย index ไม่ต้องใช้ StringBuilder/replace/trim)
+        // byte ที่อ่านเกินมา (คำสั่งถัดไป) เก็บไว้ใน buffer สำหรับรอบหน้า
+        // คืน null ถ้า client ปิด connection โดยไม่มีข้อมูลค้าง
         String readLine(SocketChannel channel) throws IOException {
-            ByteBuffer buffer = ByteBuffer.allocate(256); // buffer ขนาด 256 bytes
-            StringBuilder sb = new StringBuilder(); // เก็บข้อความที่อ่านได้
-            
+            int scanned = in.position();
             while (true) {
-                buffer.clear(); // reset buffer
-                int bytesRead = channel.read(buffer); // อ่านจาก socket ลง buffer
-                
-                // ถ้า client ปิด แต่ยังมีข้อมูลค้าง ให้ return String ที่อ่านมา
-                if (bytesRead == -1) {
-                    if (sb.length() > 0) return sb.toString();
-                    throw new IOException("Connection closed");
+                for (int i = scanned; i < in.limit(); i++) {
+                    if (in.get(i) == '\n') { // จบบรรทัด
+                        String line = decodeTrimmed(in.position(), i);
+                        in.position(i + 1);
+                        return line;
+                    }
                 }
-                
-                // ถ้าไม่มีข้อมูล → loop ต่อ
-                if (bytesRead == 0) continue;
-                
-                buffer.flip(); // สลับ buffer เพื่ออ่าน
-                while (buffer.hasRemaining()) {
-                    char c = (char) buffer.get(); // อ่านทีละตัว
-                    if (c == '\n') { // จบบรรทัด
-                        return sb.toString().replace("\r", "").trim();
+                scanned = in.limit() - in.position(); // ตำแหน่งหลัง compact
+
+                if (in.position() == 0 && in.limit() == in.capacity()) {
+                    throw new IOException("Command too long");
+                }
+
+                // ถ้า client ปิด แต่ยังมีข้อมูลค้าง ให้ return String ที่อ่านมา
+                if (!fill(channel)) {
+                    if (in.hasRemaining()) {
+                        String line = decodeTrimmed(in.position(), in.limit());
+                        in.position(in.limit());
+                        return line;
                     }
-                    if (c != '\r') sb.append(c); // สะสมข้อความ
+                    return null;
                 }
             }
         }
 
-         // ส่งข้อความเป็นบรรทัดเดียวจบด้วย \n ไปยัง client
+        private String decodeTrimmed(int start, int end) {
+            while (start < end && in.get(start) <= ' ') start++;  // ช่องว่าง / \r หน้าบรรทัด
+            while (end > start && in.get(end - 1) <= ' ') end--;  // ช่องว่าง / \r ท้ายบรรทัด
+            return new String(in.array(), start, end - start, StandardCharsets.ISO_8859_1);
+        }
+
+         // ส่งข้อความเป็นบรรทัดเดียวจบด้วย \n ไปยัง client (ผ่าน buffer ที่ใช้ซ้ำ)
         void writeLine(SocketChannel channel, String line) throws IOException {
-            String message = line + "\n";
-            ByteBuffer buffer = ByteBuffer.wrap(message.getBytes());
-            
-            while (buffer.hasRemaining()) {
-                channel.write(buffer); // เขียนลง socket channel
+            out.clear();
+            Wire.putText(out, line);
+            out.put((byte) '\n');
+            flush();
+        }
+
+        // ERROR <message> ตามโปรโตคอลของ connection นี้
+        void sendError(String message) throws IOException {
+            out.clear();
+            Wire.putError(out, binary, message);
+            flush();
+        }
+
+        // เขียนข้อมูลใน out ทั้งหมดออก socket
+        private void flush() throws IOException {
+            out.flip();
+            Wire.writeFully(client, out);
+            out.clear();
+        }
+
+        // STATS: metrics ทีละบรรทัดแบบเดียวกับ LIST (ENTRY ... END)
+        void sendStats() throws IOException {
+            out.clear();
+            for (String line : Metrics.report(false)) {
+                if (out.remaining() < line.length() + 16) flush();
+                Wire.putEntry(out, binary, line);
             }
+            Wire.putEnd(out, binary);
+            flush();
         }
 
-        // ส่งรายชื่อไฟล์ทั้งหมดในโฟลเดอร์ FILE_DIR
-        void sendList(SocketChannel channel) throws IOException {
-            File dir = new File(FILE_DIR);
-            File[] files = dir.listFiles();
-            
-            if (files == null) {
-                writeLine(channel, "ERROR No files");
+        // ส่งรายชื่อไฟล์จากดัชนีของ FILE_DIR
+        void sendList(ListRequest req) throws IOException {
+            FileIndex.Page page;
+            try {
+                page = req.query(fileIndex);
+            } catch (IllegalArgumentException e) {
+                sendError("Invalid pattern");
                 return;
             }
 
-            for (File f : files) {
-                writeLine(channel, f.getName()); // ส่งชื่อไฟล์ทีละบรรทัด
+            // รวมหลายชื่อไว้ในหลาย chunk แล้วเขียนด้วย gather write เมื่อครบ แทน write ทีละบรรทัด
+            if (listing == null) listing = new FileIndex.ListResponse();
+            listing.start(binary, req.detailed());
+            for (FileIndex.Entry e : page.entries) {
+                if (listing.isFull()) listing.flush(client);
+                listing.add(e);
             }
-            writeLine(channel, "END"); // บอก client ว่าส่งครบแล้ว
+            listing.end(page.next); // บอก client ว่าส่งครบแล้ว (หรือยังมีหน้าถัดไป)
+            listing.flush(client);
             
-            System.out.println("[LIST] Sent " + files.length + " file names");
+            System.out.println("[LIST] Sent " + listing.count() + " file names");
         }
 
-        // จัดการคำสั่ง DOWNLOAD <filename> <mode>
+        // จัดการคำสั่ง DOWNLOAD <filename> <mode> [<offset> <length> [<mtime>]]
         void handleDownload(String cmd, SocketChannel channel) throws Exception {
-            String[] parts = cmd.split(" ");
+            DownloadRequest req = DownloadRequest.parse(cmd);
             
-            if (parts.length != 3) {
-                writeLine(channel, "ERROR Invalid download format");
+            if (req == null) {
+                sendError("Invalid download format");
                 return;
             }
 
-            String filename = parts[1];
-            String mode = parts[2];
+            download(req);
+        }
+
+        // ตรวจสอบไฟล์ ส่ง header แล้วส่งข้อมูล — ใช้ร่วมกันทั้งโปรโตคอลข้อความและ binary
+        void download(DownloadRequest req) throws Exception {
+            long received = System.nanoTime();
+            SocketChannel channel = client;
+            String filename = req.filename;
+            String mode = req.mode;
 
             // ป้องกัน path traversal แบบปลอดภัย
-            File file = new File(FILE_DIR, filename).getCanonicalFile();
-            File baseDir = new File(FILE_DIR).getCanonicalFile();
+            File file = resolveFile(filename);
 
-            if (!file.getPath().startsWith(baseDir.getPath())) {
-                writeLine(channel, "ERROR Invalid file name");
+            if (file == null) {
+                sendError("Invalid file name");
                 System.err.println("[SECURITY] Path traversal attempt: " + filename);
                 return;
             }
 
-            if (!file.exists()) {
-                writeLine(channel, "ERROR File not found");
+            FileIndex.Entry entry = fileIndex.lookup(file);
+            if (entry == null) { // ไม่มีไฟล์ หรือเป็นโฟลเดอร์
+                sendError("File not found");
                 return;
             }
 
-            // จำกัดจำนวน concurrent transfer สูงสุด 5 ตัว
-            if (!fileTransferLimit.tryAcquire(5, TimeUnit.SECONDS)) {
-                writeLine(channel, "ERROR Server busy, try again later");
+            long fileSize = entry.size;
+            long mtime = entry.mtime;
+            if (!req.clampTo(fileSize, mtime)) {
+                sendError("Invalid range");
                 return;
             }
 
+            // รอช่องส่งในคิว (ไฟล์เล็กได้ก่อน) — client แบบเดิมที่ขอทั้งไฟล์ไม่รู้จัก QUEUED จึงรอเงียบ ๆ
+            Admission.Ticket ticket = admit(filename, req.length, binary || req.ranged);
+            if (ticket == null) return;
+
+            shaper = bandwidth.open(remoteAddress(), req.length);
             try {
-                // ส่งข้อมูล metadata ไป client
-                long fileSize = file.length();
-                writeLine(channel, "FILESIZE " + fileSize); // แจ้งขนาดไฟล์ให้ client
-                writeLine(channel, "READY");  // แจ้งว่าส่งพร้อมแล้ว
+                // ส่งข้อมูล metadata ไป client: ขนาดไฟล์ ช่วงที่จะส่ง และ READY รวมเป็น write เดียว
+                out.clear();
+                Wire.putHeader(out, binary, req.ranged, fileSize, req.offset, req.length, mtime, entry.checksum);
 
                 //จับเวลา
-                long startTime = System.currentTimeMillis();
+                long startTime = System.nanoTime();
                 
-                if (mode.equals("zero")) {
-                    zeroCopy(file, channel); // ส่งแบบ zero-copy
+                boolean compressed = CompressedTransfer.isCompressed(mode);
+                ByteBuffer cached = mode.equals("zero") || compressed ? null : fileCache.get(file, entry, req.offset, req.length);
+                // header ก่อนข้อมูล — จาก cache และโหมด normal ส่ง header ไปพร้อมข้อมูลก้อนแรกใน gather write
+                if (compressed || mode.equals("zero")) flush();
+                Metrics.TTFB.recordMicrosSince(received);
+                if (cached != null) {
+                    sendCached(cached); // header + ข้อมูลจาก cache ใน gather write เดียวกัน
+                    mode = "normal (cached)";
+                } else if (compressed) {
+                    compressedCopy(file, mode, req.offset, req.length); // บีบอัดเป็น chunk ระหว่างส่ง
+                } else if (mode.equals("zero")) {
+                    zeroCopy(file, channel, req.offset, req.length); // ส่งแบบ zero-copy
                 } else {
-                    normalCopy(file, channel); // ส่งแบบปกติ
+                    normalCopy(file, entry, req.offset, req.length); // ส่งแบบปกติ
                 }
                 
-                long endTime = System.currentTimeMillis();
-                long duration = endTime - startTime;
+                long nanos = System.nanoTime() - startTime;
+                long duration = nanos / 1_000_000;
+                Metrics.TRANSFER_TIME.record(duration);
+                Metrics.recordThroughput(cached != null ? "cached" : mode, req.length, nanos);
 
                 System.out.println("[SERVER] File sent: " + filename + 
-                                 " (" + fileSize + " bytes) in " + duration + " ms " +
+                                 " (" + req.length + " bytes from offset " + req.offset + ") in " + duration + " ms " +
                                  "using " + mode + " mode");
             } finally {
-                fileTransferLimit.release(); // คืนสิทธิ์ semaphore
+                shaper.close();
+                admission.release(ticket); // คืนช่องให้งานถัดไปในคิว
             }
         }
 
-        // ---------------- ZERO COPY --------------------
-        void zeroCopy(File file, SocketChannel channel) throws Exception {
-            try (FileChannel fc = new FileInputStream(file).getChannel()) {
-                long position = 0; // จำนวน byte ที่ส่งไปแล้ว
-                long remaining = fc.size(); // จำนวน bytes ที่ยังไม่ได้ส่ง
-                int zeroCount = 0; // ใช้ตรวจว่า transferTo ส่ง 0 bytes ติดต่อกันไหม
-                
-                System.out.println("[zeroCopy] Starting transfer of " + remaining + " bytes");
-                
-                while (remaining > 0) {
-                    // transferTo → ส่งข้อมูลโดยไม่เข้า user space
-                    long transferred = fc.transferTo(position, remaining, channel);
-                    
-                    if (transferred == 0) {
-                        // บางครั้ง transferTo คืน 0 ถ้า kernel busy
-                        zeroCount++;
-                        if (zeroCount > 100) {
-                            throw new IOException("Client disconnected");
+        // MGET <glob>: ทุกไฟล์ที่ตรงกับ glob ต่อกันเป็น stream เดียว (Archive) — รอคิวครั้งเดียวด้วยขนาดรวม
+        void mget(String glob) throws Exception {
+            long received = System.nanoTime();
+            if (glob.isEmpty()) {
+                sendError("Invalid mget format");
+                return;
+            }
+            List<FileIndex.Entry> members;
+            try {
+                members = Archive.select(glob);
+            } catch (IllegalArgumentException e) {
+                sendError("Invalid pattern");
+                return;
+            }
+            if (members == null) {
+                sendError("Too many files (max " + Archive.MAX_MEMBERS + ")");
+                return;
+            }
+
+            Archive.Sender sender = new Archive.Sender(members);
+            Admission.Ticket ticket = admit("MGET " + glob, sender.totalBytes(), true);
+            if (ticket == null) return;
+
+            shaper = bandwidth.open(remoteAddress(), sender.totalBytes());
+            try {
+                out.clear();
+                Wire.putArchive(out, binary, sender.count(), sender.totalBytes());
+                long startTime = System.nanoTime();
+                Metrics.TTFB.recordMicrosSince(received);
+                tuner().begin();
+                while (sender.fill()) {
+                    sendCached(sender.buffer()); // ARCHIVE ไปพร้อม buffer แรก, header + ไฟล์เล็กที่รวมไว้
+                    if (sender.remaining() > 0) { // ไฟล์ใหญ่ด้วย transferTo
+                        transferRange(sender.large(), sender.position(), sender.remaining());
+                        sender.advance(sender.remaining());
+                    }
+                }
+
+                long nanos = System.nanoTime() - startTime;
+                Metrics.TRANSFER_TIME.record(nanos / 1_000_000);
+                Metrics.recordThroughput("mget", sender.sentBytes(), nanos);
+                System.out.println("[MGET] Sent " + sender.sent() + " file(s), " + sender.sentBytes() + " bytes in "
+                        + nanos / 1_000_000 + " ms");
+            } finally {
+                sender.close();
+                shaper.close();
+                admission.release(ticket);
+            }
+        }
+
+        // ขอช่องส่งจาก Admission แล้วรอ — ระหว่างรอแจ้ง QUEUED <position> ทุกครั้งที่ลำดับเปลี่ยน (ถ้า notify)
+        // คืน null ถ้าคิวเต็ม (ตอบ ERROR ไปแล้ว)
+        private Admission.Ticket admit(String filename, long bytes, boolean notify) throws IOException {
+            long queued = System.nanoTime();
+            Admission.Ticket ticket = admission.enqueue(bytes, null);
+            if (ticket == null) {
+                sendError("Server busy, try again later");
+                return null;
+            }
+            try {
+                int reported = 0;
+                while (!ticket.admitted()) {
+                    int position = ticket.position();
+                    if (position > 0 && position != reported) {
+                        if (reported == 0) System.out.println("[QUEUE] " + filename + " waiting at position " + position);
+                        if (notify) {
+                            out.clear();
+                            Wire.putQueued(out, binary, position);
+                            flush();
                         }
-                        Thread.sleep(10);
+                        reported = position;
+                    }
+                    ticket.await(1000);
+                }
+                Metrics.ADMISSION_WAIT.recordMicrosSince(queued);
+                return ticket;
+            } catch (InterruptedException e) {
+                admission.release(ticket);
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while queued");
+            } catch (IOException | RuntimeException e) {
+                admission.release(ticket); // client หายไประหว่างรอ → ออกจากคิว
+                throw e;
+            }
+        }
+
+        private InetAddress remoteAddress() throws IOException {
+            return ((InetSocketAddress) client.getRemoteAddress()).getAddress();
+        }
+
+        // ---------------- DELTA SYNC --------------------
+        // รับ signature ของไฟล์เดิมของ client วางแผน COPY/DATA แล้วส่งเฉพาะส่วนที่ client ไม่มี
+        void sync(SyncRequest req) throws Exception {
+            byte[] signatures = readBody(req.signatureBytes());
+            long received = System.nanoTime();
+
+            File file = resolveFile(req.filename);
+            if (file == null) {
+                sendError("Invalid file name");
+                System.err.println("[SECURITY] Path traversal attempt: " + req.filename);
+                return;
+            }
+            FileIndex.Entry entry = fileIndex.lookup(file);
+            if (entry == null) {
+                sendError("File not found");
+                return;
+            }
+
+            Admission.Ticket ticket = admit(req.filename, entry.size, true);
+            if (ticket == null) return;
+
+            shaper = bandwidth.open(remoteAddress(), entry.size);
+            try (FileChannel fc = new FileInputStream(file).getChannel()) {
+                long startTime = System.currentTimeMillis();
+                long startNanos = System.nanoTime();
+                DeltaSync.Plan plan = DeltaSync.Plan.compute(fc, entry.size, req.blockSize, signatures, req.count);
+                long planned = System.currentTimeMillis();
+                Metrics.TTFB.recordMicrosSince(received); // header ตามมาทันทีหลังวางแผนเสร็จ
+
+                out.clear();
+                Wire.putDeltaHeader(out, binary, entry.size, entry.mtime, plan.literalBytes, entry.checksum);
+                for (int i = 0; i < plan.opCount(); i++) {
+                    if (out.remaining() < 9) flush();
+                    if (plan.type(i) == DeltaSync.COPY) {
+                        out.put((byte) DeltaSync.COPY).putInt((int) plan.first(i)).putInt((int) plan.second(i));
                         continue;
                     }
-                    
-                    // reset counter
-                    zeroCount = 0; 
-                    position += transferred; // ขยับ pointer ในไฟล์
-                    remaining -= transferred; // ลดจำนวน byte ที่ยังเหลือ
-                     
+                    // DATA แบ่งเป็นก้อนละไม่เกิน MAX_DATA_RECORD — header ของก้อนแล้วตามด้วยข้อมูลจากไฟล์แบบ zero-copy
+                    long position = plan.first(i);
+                    long end = position + plan.second(i);
+                    while (position < end) {
+                        int length = (int) Math.min(DeltaSync.MAX_DATA_RECORD, end - position);
+                        if (out.remaining() < 9) flush();
+                        out.put((byte) DeltaSync.DATA).putInt(length);
+                        flush();
+                        transferRange(fc, position, length);
+                        position += length;
+                    }
+                }
+                out.put((byte) DeltaSync.END);
+                flush();
+                Metrics.TRANSFER_TIME.record(System.currentTimeMillis() - startTime);
+                Metrics.recordThroughput("delta", plan.literalBytes, System.nanoTime() - startNanos);
+
+                System.out.println("[SYNC] " + req.filename + ": " + plan.opCount() + " ops, sent "
+                        + plan.literalBytes + " of " + entry.size + " bytes (" + plan.copiedBytes + " reused), planned in "
+                        + (planned - startTime) + " ms, total " + (System.currentTimeMillis() - startTime) + " ms");
+            } finally {
+                shaper.close();
+                admission.release(ticket);
+            }
+        }
+
+        // ข้อมูลที่ตามหลังคำสั่ง: ใช้ส่วนที่ค้างใน in ก่อน แล้วอ่านจาก socket ตรง ๆ ส่วนที่เหลือ
+        private byte[] readBody(int length) throws IOException {
+            byte[] body = new byte[length];
+            int buffered = Math.min(in.remaining(), length);
+            in.get(body, 0, buffered);
+            ByteBuffer rest = ByteBuffer.wrap(body, buffered, length - buffered);
+            while (rest.hasRemaining()) {
+                if (client.read(rest) == -1) throw new IOException("Connection closed");
+            }
+            return body;
+        }
+
+        // ---------------- UPLOAD ------------------------
+        // รับไฟล์จาก client ลงไฟล์ชั่วคราวด้วย transferFrom แล้ว publish ด้วย rename เมื่อ CRC ตรง (ดู Upload)
+        void upload(UploadRequest req) throws Exception {
+            long received = System.nanoTime();
+
+            // ป้องกัน path traversal แบบเดียวกับ DOWNLOAD
+            File file = resolveFile(req.filename);
+            if (file == null) {
+                sendError("Invalid file name");
+                System.err.println("[SECURITY] Path traversal attempt: " + req.filename);
+                return;
+            }
+            String invalid = Upload.checkTarget(file, req.size);
+            if (invalid != null) {
+                sendError(invalid);
+                return;
+            }
+
+            Admission.Ticket ticket = admit(req.filename, req.size, true);
+            if (ticket == null) return;
+
+            Upload.Receiver receiver;
+            try {
+                receiver = new Upload.Receiver(file, req.size);
+            } catch (IOException e) {
+                admission.release(ticket);
+                System.err.println("[UPLOAD] Cannot create temp file for " + req.filename + ": " + e.getMessage());
+                sendError("Upload failed");
+                return;
+            }
+            try {
+                out.clear();
+                Wire.putReady(out, binary);
+                flush();
+                Metrics.TTFB.recordMicrosSince(received);
+
+                long startTime = System.nanoTime();
+                receiver.write(in); // ส่วนที่อ่านมาพร้อมคำสั่งแล้ว (ถ้ามี)
+                while (!receiver.done()) {
+                    receiver.receive(client, Upload.Receiver.CHUNK); // blocking: รอจนได้ข้อมูลหรือ client ปิด
+                }
+
+                long expected = readChecksum();
+                if (expected == Crc32c.UNKNOWN) {
+                    sendError("Invalid checksum");
+                    throw new IOException("Missing UPLOAD checksum"); // ไม่รู้ว่าคำสั่งถัดไปเริ่มตรงไหน
+                }
+                long crc = receiver.commit(expected);
+                long nanos = System.nanoTime() - startTime;
+                if (crc != expected) {
+                    System.err.println("[UPLOAD] " + req.filename + ": checksum mismatch (client "
+                            + Crc32c.toHex(expected) + ", received " + Crc32c.toHex(crc) + ")");
+                    sendError("Checksum mismatch");
+                    return;
                 }
+                Metrics.TRANSFER_TIME.record(nanos / 1_000_000);
+                Metrics.recordThroughput("upload", req.size, nanos);
+
+                out.clear();
+                Wire.putStored(out, binary, req.size, crc);
+                flush();
+                System.out.println("[SERVER] File stored: " + req.filename + " (" + req.size + " bytes) in "
+                        + nanos / 1_000_000 + " ms, crc32c " + Crc32c.toHex(crc));
+            } catch (IOException e) {
+                System.err.println("[UPLOAD] " + req.filename + " aborted after " + receiver.received() + " bytes: " + e.getMessage());
+                throw e;
+            } finally {
+                receiver.abort(); // ไม่ได้ publish → ลบไฟล์ชั่วคราว
+                admission.release(ticket);
+            }
+        }
+
+        // CHECKSUM crc32c <hex> (binary: frame CHECKSUM) ต่อท้ายข้อมูลของ UPLOAD — Crc32c.UNKNOWN ถ้าไม่ใช่
+        private long readChecksum() throws IOException {
+            if (binary) {
+                int op = Wire.nextFrame(client, in);
+                return op == Wire.OP_CHECKSUM ? in.getLong() : Crc32c.UNKNOWN;
+            }
+            return Upload.parseChecksum(readLine(client));
+        }
+
+        // ---------------- CACHED ------------------------
+        // header ที่รออยู่ใน out (ถ้ามี) + ข้อมูลใน direct buffer เขียนด้วย gather write (ไม่ต้องอ่านไฟล์/copy ลง heap)
+        // ใช้ทั้งช่วงของไฟล์จาก cache และแต่ละก้อนของ normalCopy (หลังก้อนแรก out ว่าง)
+        void sendCached(ByteBuffer data) throws IOException {
+            out.flip();
+            gather[0] = out;
+            gather[1] = data;
+            int limit = data.limit();
+            while (data.hasRemaining() || out.hasRemaining()) {
+                // ข้อมูลส่งได้ไม่เกิน token ที่ได้ (header ไม่ผ่าน bucket)
+                data.limit(data.position() + (int) shaper.acquire(limit - data.position()));
+                client.write(gather);
+                data.limit(limit);
+            }
+            gather[1] = null;
+            out.clear();
+        }
+
+        // ---------------- ZERO COPY --------------------
+        // ส่งช่วง [offset, offset + length) ของไฟล์
+        void zeroCopy(File file, SocketChannel channel, long offset, long length) throws Exception {
+            try (FileChannel fc = new FileInputStream(file).getChannel()) {
+                System.out.println("[zeroCopy] Starting transfer of " + length + " bytes");
                 
-                System.out.println("[zeroCopy] ✅ Transfer complete: " + position + " bytes");
+                tuner().begin();
+                transferRange(fc, offset, length);
+                
+                System.out.println("[zeroCopy] ✅ Transfer complete: " + length + " bytes");
                 
             } catch (IOException e) {
                 System.err.println("[zeroCopy] ❌ IO error: " + e.getMessage());
@@ -259,32 +1035,127 @@ public class ServerMain {
             } 
         }
 
+        // ส่งช่วง [position, position + remaining) ของไฟล์ด้วย transferTo (ใช้ทั้ง DOWNLOAD แบบ zero และ DATA ของ SYNC)
+        private void transferRange(FileChannel fc, long position, long remaining) throws IOException {
+            SocketChannel channel = client;
+            ByteBuffer stallBuffer = null; // ใช้เมื่อ transferTo คืน 0 (socket เต็ม)
+            Tuning.Tuner tuner = tuner();
+            while (remaining > 0) {
+                // ส่งได้ทีละไม่เกิน token ที่ได้ และไม่เกิน slice ของ Tuner (เดิมส่งทั้งช่วงในครั้งเดียว)
+                long allowed = shaper.acquire(Math.min(remaining, tuner.slice()));
+
+                // transferTo → ส่งข้อมูลโดยไม่เข้า user space
+                long transferred = fc.transferTo(position, allowed, channel);
+                
+                if (transferred > 0) {
+                    Metrics.TRANSFER_TO.record(transferred);
+                } else {
+                    Metrics.TRANSFER_TO_ZERO.increment();
+                    Metrics.STALL_WRITES.increment();
+                    // transferTo คืน 0 เมื่อ socket buffer เต็ม — เกิดได้เพราะ JDK ตั้ง fd เป็น non-blocking ภายใน
+                    // (บน virtual thread หรือหลัง setSoTimeout) แม้ channel จะเป็น blocking
+                    // เดิมใช้ Thread.sleep(10) วนสูงสุด 100 ครั้ง ทำให้ client ที่อ่านช้าโดนตัดหลัง ~1 วินาที
+                    // แทนด้วยการเขียนชิ้นถัดไปผ่าน blocking write ซึ่ง park thread จนกว่า socket จะว่าง
+                    // (virtual thread จะปล่อย carrier ระหว่างรอ ไม่ pin)
+                    if (stallBuffer == null) stallBuffer = ByteBuffer.allocate(8192);
+                    stallBuffer.clear();
+                    stallBuffer.limit((int) Math.min(stallBuffer.capacity(), allowed));
+                    int read = fc.read(stallBuffer, position);
+                    if (read == -1) {
+                        throw new IOException("Unexpected end of file");
+                    }
+                    stallBuffer.flip();
+                    while (stallBuffer.hasRemaining()) {
+                        channel.write(stallBuffer);
+                    }
+                    transferred = read;
+                }
+                shaper.refund(allowed - transferred); // token ที่ได้เกินส่วนที่ส่งจริง
+                tuner.record(transferred);
+                
+                position += transferred; // ขยับ pointer ในไฟล์
+                remaining -= transferred; // ลดจำนวน byte ที่ยังเหลือ
+                 
+            }
+        }
+
+        private Tuning.Tuner tuner() {
+            if (tuner == null) tuner = Tuning.tuner(client, true);
+            return tuner;
+        }
+
+        // --------------- COMPRESSED --------------------
+        // ส่งช่วง [offset, offset + length) ของไฟล์เป็น chunk ที่บีบแล้ว — worker อ่าน/บีบ chunk ถัดไประหว่างที่ chunk นี้ถูกส่ง
+        void compressedCopy(File file, String mode, long offset, long length) throws Exception {
+            try (FileChannel fc = new FileInputStream(file).getChannel()) {
+                System.out.println("[compressed] Starting " + mode + " transfer of " + length + " bytes");
+                CompressedTransfer transfer = new CompressedTransfer(fc, mode, offset, length);
+                try {
+                    ByteBuffer chunk;
+                    while ((chunk = transfer.next()) != null) {
+                        shaper.writeFully(client, chunk);
+                    }
+                } finally {
+                    transfer.close();
+                }
+                System.out.println("[compressed] ✅ Transfer complete: " + transfer.summary(length));
+
+            } catch (IOException e) {
+                System.err.println("[compressed] ❌ IO error: " + e.getMessage());
+                throw e;
+            }
+        }
+
         // --------------- NORMAL COPY -------------------
-        void normalCopy(File file, SocketChannel channel) throws Exception {
+        // ส่งช่วง [offset, offset + length) ของไฟล์ผ่าน direct buffer จาก BufferPool (ไม่จองใหม่ต่อการส่ง)
+        // ก้อนแรกออกไปพร้อม header ที่รออยู่ใน out ด้วย gather write เดียวกัน
+        // ถ้ามีคนอื่นกำลังโหลดไฟล์เดียวกันอยู่ ส่งจาก ring ของ SharedRead (อ่านดิสก์ครั้งเดียว) จนกว่าจะช้าเกินแล้วหลุดมาอ่านเอง
+        void normalCopy(File file, FileIndex.Entry entry, long offset, long length) throws Exception {
+            ByteBuffer buffer = null;
             try (FileChannel fc = new FileInputStream(file).getChannel()) {
-                ByteBuffer buffer = ByteBuffer.allocate(8192);  // 8 KB buffer
                 long totalBytes = 0;
                 
-                System.out.println("[normalCopy] Starting transfer of " + fc.size() + " bytes");
+                System.out.println("[normalCopy] Starting transfer of " + length + " bytes");
                 
-                while (fc.read(buffer) != -1) { // อ่านจากไฟล์ลง buffer
+                SharedRead.Subscriber shared = SharedRead.SHARED.join(file, entry, offset, length);
+                if (shared != null) {
+                    try {
+                        ByteBuffer view;
+                        while (totalBytes < length && (view = shared.take()) != null) {
+                            int n = view.remaining();
+                            sendCached(view); // ก้อนจาก ring ใช้ร่วมกับ subscriber อื่น (duplicate ของ buffer เดียวกัน)
+                            totalBytes += n;
+                        }
+                    } finally {
+                        shared.close();
+                    }
+                }
+
+                if (totalBytes < length) buffer = BufferPool.SHARED.take(); // ส่งจาก ring ครบแล้วไม่ต้องใช้
+                fc.position(offset + totalBytes); // ต่อจากที่ส่งไปแล้ว (ถ้าหลุดจากกลุ่ม)
+                while (totalBytes < length) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), length - totalBytes)); // ไม่อ่านเกินช่วงที่ขอ
+                    if (fc.read(buffer) == -1) { // อ่านจากไฟล์ลง buffer
+                        throw new IOException("Unexpected end of file");
+                    }
                     buffer.flip();  
+                    Metrics.READ.record(buffer.remaining());
                     
-                    while (buffer.hasRemaining()) {
-                        channel.write(buffer); // วนเขียนจน buffer หมดผ่านnetwork
-                    }
+                    sendCached(buffer); // วนเขียนจน buffer หมด (ตาม token ที่ได้) พร้อม header ถ้ายังไม่ได้ส่ง
                     
                     totalBytes += buffer.position(); // นับ byte ที่ส่งไปแล้ว
-                    buffer.clear(); // reset buffer สำหรับรอบถัดไป
-                    
                 }
+                if (out.position() > 0) flush(); // ช่วงว่าง: ยังไม่ได้ส่ง header
                 
                 System.out.println("[normalCopy] ✅ Transfer complete: " + totalBytes + " bytes");
                 
             } catch (IOException e) {
                 System.err.println("[normalCopy] ❌ IO error: " + e.getMessage());
                 throw e;
-            } 
+            } finally {
+                BufferPool.SHARED.give(buffer);
+            }
         }
 
     }
@@ -0,0 +1,394 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// รวมการอ่านดิสก์ของ DOWNLOAD โหมด normal ที่ขอไฟล์เดียวกัน (เวอร์ชันเดียวกัน) พร้อม ๆ กัน
+// - กลุ่ม (Group) ต่อไฟล์ + size + mtime: reader 1 thread อ่านไฟล์ตามลำดับลง ring ของ direct buffer จาก BufferPool
+//   แล้วทุก subscriber ส่งจาก buffer ชุดเดียวกัน (duplicate) → ไฟล์ที่ไม่อยู่ใน page cache ถูกอ่านจากดิสก์ครั้งเดียว
+// - คำขอใหม่เข้ากลุ่มได้ถ้าตำแหน่งเริ่มยังอยู่ใน ring หรืออยู่ข้างหน้าไม่เกินขนาด ring ไม่งั้นเริ่มกลุ่มใหม่ที่ตำแหน่งนั้น
+// - ring เต็มแล้ว chunk เก่าสุดยังมีคนรอ → reader รอได้ไม่เกิน -Dcoalesce.lagMs แล้วทิ้ง chunk นั้น
+//   subscriber ที่ช้าจึงหลุดไปอ่านไฟล์เองต่อจากตำแหน่งที่ส่งถึง ไม่ถ่วงทั้งกลุ่ม
+// - chunk นับ reference (ring + subscriber ที่กำลังส่ง) คืน buffer เข้า pool เมื่อไม่มีใครใช้
+// - -Dcoalesce.enabled=true, -Dcoalesce.slots=16 (chunk ละ buffer.size), -Dcoalesce.minSize=4M (ช่วงที่สั้นกว่านี้อ่านเอง)
+// - zero-copy ใช้ page cache ร่วมกันผ่าน transferTo อยู่แล้ว ไฟล์เล็กที่ถูกขอบ่อยอยู่ใน FileCache จึงใช้เฉพาะโหมด normal
+// - ล็อกเป็น ReentrantLock ไม่ใช่ synchronized: take รอบน handler thread ซึ่งเป็น virtual thread ในโหมด virtual
+//   (wait ใน monitor ตรึง carrier thread ไว้ตลอดเวลาที่ subscriber ช้ารอ บน JDK 17-21) — ล็อก SharedRead ก่อน Group เสมอ
+final class SharedRead {
+    static final SharedRead SHARED = fromSystemProperties();
+
+    private static final AtomicInteger readerId = new AtomicInteger();
+    private static final ExecutorService readers = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "coalesce-reader-" + readerId.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final boolean enabled;
+    private final int slots;
+    private final long minSize;
+    private final long lagNanos;
+    private final BufferPool buffers = BufferPool.SHARED;
+    private final ReentrantLock lock = new ReentrantLock();          // ของ groups — ล็อกก่อน Group.lock เสมอ
+    private final Map<String, List<Group>> groups = new HashMap<>(); // guarded by lock
+
+    private final Metrics.Counter started = Metrics.counter("coalesce.groups");
+    private final Metrics.Counter joined = Metrics.counter("coalesce.joined");        // เข้ากลุ่มที่มี reader อยู่แล้ว
+    private final Metrics.Counter fallbacks = Metrics.counter("coalesce.fallbacks");  // ช้าเกิน → อ่านไฟล์เอง
+    private final Metrics.Counter diskBytes = Metrics.counter("coalesce.read.bytes"); // byte ที่ reader อ่านจากดิสก์
+    private final Metrics.Counter sentBytes = Metrics.counter("coalesce.sent.bytes"); // byte ที่ subscriber ได้จาก ring
+
+    SharedRead(boolean enabled, int slots, long minSize, long lagMs) {
+        this.enabled = enabled;
+        this.slots = Math.max(2, slots);
+        this.minSize = Math.max(0, minSize);
+        this.lagNanos = Math.max(0, lagMs) * 1_000_000L;
+    }
+
+    static SharedRead fromSystemProperties() {
+        return new SharedRead(Boolean.parseBoolean(System.getProperty("coalesce.enabled", "true")),
+                Integer.getInteger("coalesce.slots", 16),
+                Bandwidth.parseRate(System.getProperty("coalesce.minSize", "4M")),
+                Long.getLong("coalesce.lagMs", 200));
+    }
+
+    // เข้ากลุ่มที่อ่านไฟล์นี้อยู่ หรือเริ่มกลุ่มใหม่ที่ offset — คืน null ถ้าต้องอ่านไฟล์เอง
+    // entry คือข้อมูลจาก FileIndex ที่ผู้เรียกเพิ่งตรวจ (size / mtime เป็นส่วนหนึ่งของ key → ไฟล์เปลี่ยนแล้วไม่ปนกัน)
+    Subscriber join(File file, FileIndex.Entry entry, long offset, long length) {
+        if (!enabled || length < minSize) return null;
+        String key = file.getPath() + "|" + entry.size + "|" + entry.mtime;
+        lock.lock();
+        try {
+            List<Group> active = groups.computeIfAbsent(key, k -> new ArrayList<>());
+            for (Group group : active) {
+                Subscriber sub = group.join(offset, length);
+                if (sub != null) {
+                    joined.increment();
+                    return sub;
+                }
+            }
+            // ไม่มีกลุ่มที่ยังตามทัน (เช่นกลุ่มเดิมอ่านไปไกลแล้ว) → เริ่มกลุ่มใหม่ที่ offset นี้ ให้คำขอถัด ๆ ไปเข้าร่วม
+            Group group = new Group(key, file, offset);
+            Subscriber sub = group.join(offset, length);
+            active.add(group);
+            started.increment();
+            readers.execute(group::run);
+            return sub;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // buffer 1 ก้อนใน ring: ข้อมูลของไฟล์ช่วง [start, start + length)
+    private final class Chunk {
+        final ByteBuffer data; // flip แล้ว — ใช้ผ่าน duplicate เท่านั้น
+        final long start;
+        final int length;
+        int refs = 1;          // ring ถือ 1 — guarded by Group.lock
+
+        Chunk(ByteBuffer data, long start) {
+            this.data = data;
+            this.start = start;
+            this.length = data.remaining();
+        }
+
+        long end() {
+            return start + length;
+        }
+
+        void release() {
+            if (--refs == 0) buffers.give(data);
+        }
+    }
+
+    private final class Group {
+        final String key;
+        final File file;
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition changed = lock.newCondition(); // ring / สมาชิก / ตำแหน่งเปลี่ยน — reader และ take รอที่นี่
+        final ArrayDeque<Chunk> ring = new ArrayDeque<>();
+        final List<Subscriber> subscribers = new ArrayList<>();
+        long readPos;     // ตำแหน่งถัดไปที่ reader จะอ่าน (reader เปลี่ยนค่าใต้ล็อกเท่านั้น)
+        long end;         // อ่านถึงตำแหน่งนี้ (ปลายช่วงไกลสุดของ subscriber)
+        boolean finished; // reader จบแล้ว → ไม่รับสมาชิกใหม่ ส่วนที่ยังไม่ได้ต้องอ่านเอง
+        long blockedSince; // ring เต็มและ chunk เก่าสุดยังมีคนรอ ตั้งแต่เมื่อไร (0 = ไม่ได้รอ)
+
+        Group(String key, File file, long offset) {
+            this.key = key;
+            this.file = file;
+            this.readPos = offset;
+        }
+
+        Subscriber join(long offset, long length) {
+            lock.lock();
+            try {
+                long tail = ring.isEmpty() ? readPos : ring.peekFirst().start;
+                long window = (long) slots * buffers.bufferSize;
+                if (finished || offset < tail || offset > readPos + window) return null;
+                Subscriber sub = new Subscriber(this, offset, offset + length);
+                subscribers.add(sub);
+                end = Math.max(end, sub.end);
+                changed.signalAll(); // reader อาจรออยู่เพราะอ่านครบ end เดิมแล้ว
+                return sub;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void run() {
+            try (FileChannel fc = new FileInputStream(file).getChannel()) {
+                while (true) {
+                    long position;
+                    int want;
+                    lock.lock();
+                    try {
+                        if (!awaitWork()) break;
+                        position = readPos;
+                        want = (int) Math.min(buffers.bufferSize, end - readPos);
+                    } finally {
+                        lock.unlock();
+                    }
+                    // อ่านนอกล็อก — subscriber ส่งจาก chunk ที่มีอยู่แล้วได้ระหว่างนี้
+                    ByteBuffer buf = buffers.take();
+                    buf.limit(want);
+                    while (buf.hasRemaining()) {
+                        if (fc.read(buf, position + buf.position()) == -1) {
+                            buffers.give(buf);
+                            throw new EOFException("Unexpected end of file");
+                        }
+                    }
+                    buf.flip();
+                    Metrics.READ.record(want);
+                    diskBytes.add(want);
+                    List<Runnable> ready;
+                    lock.lock();
+                    try {
+                        ring.addLast(new Chunk(buf, position));
+                        readPos += want;
+                        ready = wakeUp();
+                    } finally {
+                        lock.unlock();
+                    }
+                    ready.forEach(Runnable::run);
+                }
+            } catch (IOException | RuntimeException e) {
+                System.err.println("[COALESCE] Read failed for " + file.getName() + ": " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                finish();
+            }
+        }
+
+        // รอจนมีงานอ่าน — คืน false เมื่อไม่มี subscriber เหลือ (จบกลุ่ม) — เรียกใต้ล็อก
+        private boolean awaitWork() throws InterruptedException {
+            while (true) {
+                if (subscribers.isEmpty()) return false;
+                if (readPos >= end) {
+                    changed.await(); // อ่านครบแล้ว รอคนเข้ากลุ่มเพิ่มหรือทุกคนออก
+                    continue;
+                }
+                if (ring.size() < slots) return true;
+
+                // ring เต็ม: chunk เก่าสุดไม่มีใครรอแล้ว → ทิ้งได้ทันที ไม่งั้นรอคนช้าได้ไม่เกิน lag
+                Chunk tail = ring.peekFirst();
+                long now = System.nanoTime();
+                if (!needed(tail)) {
+                    drop();
+                } else if (blockedSince == 0) {
+                    blockedSince = now;
+                } else if (now - blockedSince >= lagNanos) {
+                    drop(); // subscriber ที่ยังต้องการ chunk นี้จะหลุดไปอ่านเองเมื่อขอครั้งถัดไป
+                    List<Runnable> ready = wakeUp();
+                    if (!ready.isEmpty()) readers.execute(() -> ready.forEach(Runnable::run));
+                } else {
+                    long waitNanos = lagNanos - (now - blockedSince);
+                    changed.awaitNanos(waitNanos);
+                }
+            }
+        }
+
+        private boolean needed(Chunk chunk) {
+            for (Subscriber sub : subscribers) {
+                if (sub.position < chunk.end() && sub.position < sub.end) return true;
+            }
+            return false;
+        }
+
+        private void drop() {
+            ring.pollFirst().release();
+            blockedSince = 0;
+        }
+
+        // ปลุก subscriber ที่รอแบบ blocking และคืน callback ของฝั่ง nio ให้เรียกนอกล็อก
+        private List<Runnable> wakeUp() {
+            changed.signalAll();
+            List<Runnable> ready = new ArrayList<>();
+            for (Subscriber sub : subscribers) {
+                if (sub.onReady != null) {
+                    ready.add(sub.onReady);
+                    sub.onReady = null;
+                }
+            }
+            return ready;
+        }
+
+        // reader จบ (ไม่มี subscriber หรืออ่านไม่ได้): ออกจาก registry แล้วคืน buffer ของ ring
+        // subscriber ที่ยังเหลือ (กรณีอ่านไม่ได้) จะหลุดไปอ่านไฟล์เอง ซึ่งจะรายงาน error ของตัวเอง
+        private void finish() {
+            List<Runnable> ready;
+            SharedRead.this.lock.lock();
+            try {
+                lock.lock();
+                try {
+                    finished = true;
+                    List<Group> active = groups.get(key);
+                    if (active != null && active.remove(this) && active.isEmpty()) groups.remove(key);
+                    while (!ring.isEmpty()) {
+                        ring.pollFirst().release();
+                    }
+                    ready = wakeUp();
+                } finally {
+                    lock.unlock();
+                }
+            } finally {
+                SharedRead.this.lock.unlock();
+            }
+            ready.forEach(Runnable::run);
+        }
+
+        // ก้อนถัดไปของ sub: chunk ที่มีตำแหน่งนี้ / NOT_READY / null ถ้าหลุดจากกลุ่มแล้ว — เรียกใต้ล็อก
+        private ByteBuffer next(Subscriber sub) {
+            if (sub.lagged) return null;
+            for (Chunk chunk : ring) {
+                if (sub.position >= chunk.start && sub.position < chunk.end()) {
+                    chunk.refs++;
+                    if (sub.held != null) sub.held.release();
+                    sub.held = chunk;
+                    ByteBuffer view = chunk.data.duplicate();
+                    view.position((int) (sub.position - chunk.start));
+                    view.limit((int) (Math.min(chunk.end(), sub.end) - chunk.start));
+                    sub.position += view.remaining();
+                    sentBytes.add(view.remaining());
+                    changed.signalAll(); // reader อาจรอให้ chunk เก่าสุดมีคนรับครบ
+                    return view;
+                }
+            }
+            boolean behind = ring.isEmpty() ? sub.position < readPos : sub.position < ring.peekFirst().start;
+            if (behind || finished) {
+                sub.lagged = true;
+                fallbacks.increment();
+                System.out.println("[COALESCE] Subscriber fell behind at " + sub.position + " of " + file.getName()
+                        + " — reading the file independently");
+                leave(sub);
+                return null;
+            }
+            return NOT_READY;
+        }
+
+        private void leave(Subscriber sub) {
+            if (sub.held != null) {
+                sub.held.release();
+                sub.held = null;
+            }
+            if (subscribers.remove(sub)) {
+                long max = 0;
+                for (Subscriber other : subscribers) {
+                    max = Math.max(max, other.end);
+                }
+                end = Math.max(readPos, max);
+                changed.signalAll();
+            }
+        }
+    }
+
+    private static final ByteBuffer NOT_READY = ByteBuffer.allocate(0);
+
+    // การส่งช่วง [position, end) ของ 1 คำขอจากกลุ่ม — ใช้จาก thread เดียว (ClientHandler หรือ event loop)
+    final class Subscriber {
+        private final Group group;
+        private final long end;
+        private long position;   // ตำแหน่งถัดไปในไฟล์ที่ยังไม่ได้รับ — guarded by group.lock
+        private Chunk held;      // chunk ที่ view ล่าสุดชี้อยู่ (ถือ reference จนขอก้อนถัดไป)
+        private boolean lagged;
+        private Runnable onReady;
+
+        private Subscriber(Group group, long position, long end) {
+            this.group = group;
+            this.position = position;
+            this.end = end;
+        }
+
+        // ก้อนถัดไป (รอ reader ถ้ายังไม่ถึง) — คืน null ถ้าหลุดจากกลุ่ม ให้อ่านไฟล์เองต่อจาก position()
+        // view ที่ได้ใช้ได้จนกว่าจะเรียก take / poll / close ครั้งถัดไป
+        ByteBuffer take() throws InterruptedIOException {
+            group.lock.lock();
+            try {
+                ByteBuffer view;
+                while ((view = group.next(this)) == NOT_READY) {
+                    try {
+                        group.changed.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for shared read");
+                    }
+                }
+                return view;
+            } finally {
+                group.lock.unlock();
+            }
+        }
+
+        // แบบไม่ block สำหรับ NioServer: คืน null ถ้ายังไม่พร้อม (onReady ถูกเรียกจาก thread อื่นเมื่อพร้อม)
+        // ใช้ lagged() แยกกรณีหลุดจากกลุ่ม
+        ByteBuffer poll(Runnable onReady) {
+            group.lock.lock();
+            try {
+                ByteBuffer view = group.next(this);
+                if (view != NOT_READY) return view;
+                this.onReady = onReady;
+                return null;
+            } finally {
+                group.lock.unlock();
+            }
+        }
+
+        boolean lagged() {
+            group.lock.lock();
+            try {
+                return lagged;
+            } finally {
+                group.lock.unlock();
+            }
+        }
+
+        long position() {
+            group.lock.lock();
+            try {
+                return position;
+            } finally {
+                group.lock.unlock();
+            }
+        }
+
+        // ออกจากกลุ่ม (ส่งครบ, หลุด หรือ connection ปิด) — เรียกซ้ำได้
+        void close() {
+            group.lock.lock();
+            try {
+                onReady = null;
+                group.leave(this);
+            } finally {
+                group.lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,209 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+// ตั้งค่า socket และขนาดต่อรอบของ transferTo / transferFrom ตามเครือข่าย (ใช้ทั้ง server และ client)
+// - profile: loopback / lan / wan กำหนด SO_SNDBUF / SO_RCVBUF, ขนาดต่อรอบ (slice) และ RTT โดยประมาณ
+//   -Dtuning.profile=auto (ค่าเริ่มต้น) เลือกจากที่อยู่ของอีกฝั่ง และไม่ตั้ง buffer เอง (ปล่อยให้ kernel ปรับอัตโนมัติ)
+// - TCP_NODELAY เปิดทุก profile: คำสั่ง/header เป็น packet เล็กที่ต้องรอคำตอบ ถ้าเปิด Nagle จะชนกับ delayed ACK (~40 ms ต่อคำสั่ง)
+//   ส่วนข้อมูลไฟล์เขียนทีละก้อนใหญ่อยู่แล้ว ไม่เสียอะไร
+// - Tuner: วัด throughput ช่วงแรกของการส่ง (-Dtuning.window=2000 ms) แล้วขยาย socket buffer ให้พอกับ bandwidth-delay product
+//   และปรับ slice ให้ได้ ~20 ms ต่อรอบ — client วัด RTT จากเวลา connect (handshake)
+//   server ไม่มี TCP_INFO ให้อ่านใน Java จึงใช้ RTT ของ profile
+// - Backoff: รอแบบเพิ่มขึ้นทีละเท่าตัว (1, 2, 4, ... 64 ms) เมื่ออ่านได้ 0 byte แทน Thread.sleep(10) คงที่
+//   รวมแล้วไม่เกิน -Dtuning.stallTimeout=1000 ms (เท่ากับ 100 x 10 ms เดิม)
+final class Tuning {
+    enum Profile {
+        LOOPBACK(0, 0, 8 << 20, 50_000L),
+        LAN(1 << 20, 1 << 20, 2 << 20, 1_000_000L),
+        WAN(4 << 20, 4 << 20, 1 << 20, 50_000_000L);
+
+        final int sendBuffer;    // 0 = ใช้ค่าของ OS
+        final int receiveBuffer;
+        final long slice;        // byte ต่อการเรียก transferTo / transferFrom
+        final long rttNanos;     // RTT โดยประมาณเมื่อวัดเองไม่ได้
+
+        Profile(int sendBuffer, int receiveBuffer, long slice, long rttNanos) {
+            this.sendBuffer = sendBuffer;
+            this.receiveBuffer = receiveBuffer;
+            this.slice = slice;
+            this.rttNanos = rttNanos;
+        }
+    }
+
+    private static final Profile FIXED = fixedProfile(System.getProperty("tuning.profile", "auto")); // null = auto
+    private static final long WINDOW_NANOS = Long.getLong("tuning.window", 2000) * 1_000_000L;
+    private static final long STALL_TIMEOUT_MS = Long.getLong("tuning.stallTimeout", 1000);
+    private static final long MIN_SLICE = 64 * 1024;
+    private static final long MAX_SLICE = 8 << 20;
+    private static final int MAX_BUFFER = 16 << 20;
+
+    // RTT ของ handshake ต่อ connection ของ client (หายไปเองเมื่อ channel ไม่ถูกใช้แล้ว)
+    private static final Map<SocketChannel, Long> handshakeRtt = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private Tuning() {}
+
+    // ชื่อผิดไม่ควรทำให้ class โหลดไม่ได้ (ทุก connection จะล้ม) → เตือนแล้วใช้ auto
+    private static Profile fixedProfile(String name) {
+        if (name.equalsIgnoreCase("auto")) return null;
+        try {
+            return Profile.valueOf(name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.err.println("[TUNING] Unknown tuning.profile=" + name + ", using auto");
+            return null;
+        }
+    }
+
+    static boolean auto() {
+        return FIXED == null;
+    }
+
+    // profile ที่ตั้งไว้ หรือเลือกจากที่อยู่ของอีกฝั่งเมื่อเป็น auto
+    static Profile profileFor(SocketAddress remote) {
+        if (FIXED != null) return FIXED;
+        InetAddress address = remote instanceof InetSocketAddress ? ((InetSocketAddress) remote).getAddress() : null;
+        if (address == null) return Profile.WAN;
+        if (address.isLoopbackAddress()) return Profile.LOOPBACK;
+        if (address.isSiteLocalAddress() || address.isLinkLocalAddress()) return Profile.LAN;
+        return Profile.WAN;
+    }
+
+    // client: เปิด connection ตาม profile (ตั้ง buffer ก่อน connect เพื่อให้ window scale ตอน handshake ใหญ่พอ) และจำ RTT ของ handshake
+    static SocketChannel connect(InetSocketAddress address) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            apply(channel, profileFor(address));
+            long start = System.nanoTime();
+            channel.connect(address);
+            handshakeRtt.put(channel, System.nanoTime() - start);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    // server: ตั้งค่า connection ที่เพิ่ง accept
+    static void accepted(SocketChannel channel) throws IOException {
+        apply(channel, profileFor(channel.getRemoteAddress()));
+    }
+
+    // server: receive buffer ต้องตั้งที่ listening socket ก่อน accept จึงมีผลกับ window scale
+    static void listening(NetworkChannel server) throws IOException {
+        if (FIXED != null && FIXED.receiveBuffer > 0) server.setOption(StandardSocketOptions.SO_RCVBUF, FIXED.receiveBuffer);
+    }
+
+    private static void apply(NetworkChannel channel, Profile profile) throws IOException {
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        if (auto()) return; // auto: kernel ปรับ buffer เอง (ตั้งค่าเองจะปิดการปรับอัตโนมัติ) Tuner ขยายให้ทีหลังถ้าไม่พอ
+        if (profile.sendBuffer > 0) channel.setOption(StandardSocketOptions.SO_SNDBUF, profile.sendBuffer);
+        if (profile.receiveBuffer > 0) channel.setOption(StandardSocketOptions.SO_RCVBUF, profile.receiveBuffer);
+    }
+
+    // Tuner ของการส่ง (sending = true) หรือรับของ connection นี้
+    static Tuner tuner(SocketChannel channel, boolean sending) {
+        SocketAddress remote;
+        try {
+            remote = channel.getRemoteAddress();
+        } catch (IOException e) {
+            remote = null;
+        }
+        Profile profile = profileFor(remote);
+        Long rtt = handshakeRtt.get(channel);
+        return new Tuner(channel, profile, rtt != null ? rtt : profile.rttNanos, sending);
+    }
+
+    // วัด throughput ช่วงแรกของการส่งแล้วปรับครั้งเดียวต่อ connection — ใช้จาก thread เดียว (thread ของ client / event loop)
+    static final class Tuner {
+        private final NetworkChannel channel;
+        private final long rttNanos;
+        private final boolean sending;
+        private long slice;
+        private long start = -1;
+        private long bytes;
+        private boolean tuned;
+
+        Tuner(NetworkChannel channel, Profile profile, long rttNanos, boolean sending) {
+            this.channel = channel;
+            this.rttNanos = rttNanos;
+            this.sending = sending;
+            this.slice = profile.slice;
+        }
+
+        // byte สูงสุดต่อการเรียก transferTo / transferFrom
+        long slice() {
+            return slice;
+        }
+
+        // เริ่มการส่งครั้งใหม่ — ถ้ายังไม่ได้ปรับ จะวัดใหม่จากการส่งครั้งนี้
+        void begin() {
+            if (tuned) return;
+            start = System.nanoTime();
+            bytes = 0;
+        }
+
+        void record(long n) {
+            if (tuned) return;
+            if (start < 0) start = System.nanoTime();
+            bytes += n;
+            long elapsed = System.nanoTime() - start;
+            if (elapsed >= WINDOW_NANOS) tune(elapsed);
+        }
+
+        private void tune(long elapsed) {
+            tuned = true;
+            long bps = (long) (bytes * 1e9 / elapsed);
+            long bdp = (long) (bps * (rttNanos / 1e9));
+            slice = Math.max(MIN_SLICE, Math.min(MAX_SLICE, Long.highestOneBit(Math.max(1, bps / 50)))); // ~20 ms ต่อรอบ
+            SocketOption<Integer> option = sending ? StandardSocketOptions.SO_SNDBUF : StandardSocketOptions.SO_RCVBUF;
+            int want = (int) Math.min(MAX_BUFFER, 2 * bdp); // 2 เท่าของ BDP เผื่อ ACK ที่ยังไม่กลับมา
+            String buffer;
+            try {
+                int current = channel.getOption(option);
+                if (want > current) {
+                    channel.setOption(option, want);
+                    buffer = current + " -> " + channel.getOption(option);
+                } else {
+                    buffer = "kept " + current;
+                }
+            } catch (IOException e) {
+                buffer = "unchanged (" + e.getMessage() + ")";
+            }
+            System.out.println("[TUNE] " + Bandwidth.formatRate(bps) + ", rtt " + rttNanos / 1000 + " us -> slice "
+                    + ClientMain.formatBytes(slice) + ", " + option.name() + " " + buffer);
+        }
+    }
+
+    // รอเมื่ออ่านได้ 0 byte — ครั้งแรกสั้น แล้วเพิ่มเป็นเท่าตัวจนถึง MAX_PAUSE_MS
+    static final class Backoff {
+        private static final long MAX_PAUSE_MS = 64;
+        private long waited;
+        private long next = 1;
+
+        // รอรอบถัดไป — คืน false เมื่อรอรวมครบ stall timeout แล้ว (ถือว่า connection ค้าง)
+        boolean pause() throws InterruptedException {
+            if (waited >= STALL_TIMEOUT_MS) return false;
+            long ms = Math.min(next, STALL_TIMEOUT_MS - waited);
+            Metrics.CLIENT_SLEEP_MS.add(ms);
+            Thread.sleep(ms);
+            waited += ms;
+            next = Math.min(next * 2, MAX_PAUSE_MS);
+            return true;
+        }
+
+        // ได้ข้อมูลแล้ว → ครั้งต่อไปเริ่มรอสั้นใหม่
+        void reset() {
+            waited = 0;
+            next = 1;
+        }
+    }
+}
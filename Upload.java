@@ -0,0 +1,308 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32C;
+
+// ส่งไฟล์จาก client ขึ้น server: upload <file> <zero|normal>
+// 1. client ส่ง UPLOAD <name> <size> — server ตรวจชื่อแบบเดียวกับ DOWNLOAD (path traversal) และพื้นที่ว่าง
+//    แล้วรอช่องจาก Admission (แจ้ง QUEUED ระหว่างรอ) ก่อนตอบ READY
+// 2. client ส่งข้อมูลแบบ raw size byte ตามด้วย CHECKSUM crc32c <hex> (binary: frame CHECKSUM)
+// 3. server รับตรงจาก socket ลงไฟล์ชั่วคราว .upload-<random>-<name> ในโฟลเดอร์เดียวกับปลายทางด้วย transferFrom
+//    CRC คำนวณตามหลังบน thread แยก (Crc32c.Follower) เหมือนการโหลดแบบ zero ฝั่ง client
+// 4. CRC ตรง → force ลงดิสก์แล้ว rename แบบ atomic ทับชื่อจริง ตอบ STORED <size> <hex>
+//    ไม่ตรง / connection หลุด → ลบไฟล์ชั่วคราว ไฟล์เดิม (ถ้ามี) ไม่ถูกแตะ
+// client อื่นจึงเห็นแต่ไฟล์เดิมหรือไฟล์ใหม่ที่ครบแล้วเสมอ (FileIndex ไม่นับไฟล์ชั่วคราว)
+final class Upload {
+    static final String TEMP_PREFIX = ".upload-";
+
+    private Upload() {}
+
+    // ไฟล์ชั่วคราวของ UPLOAD ที่ยังไม่เสร็จ — ไม่แสดงใน LIST และโหลดไม่ได้
+    static boolean isTemp(String name) {
+        return name.startsWith(TEMP_PREFIX);
+    }
+
+    // ปลายทางที่ resolve แล้ว (ServerMain.resolveFile) — คืนข้อความ ERROR หรือ null ถ้ารับได้
+    static String checkTarget(File file, long size) {
+        File dir = file.getParentFile();
+        if (isTemp(file.getName()) || file.isDirectory() || dir == null || !dir.isDirectory()) {
+            return "Invalid file name";
+        }
+        if (dir.getUsableSpace() < size) {
+            return "Not enough disk space";
+        }
+        return null;
+    }
+
+    // CHECKSUM crc32c <hex> ท้ายข้อมูล — คืน Crc32c.UNKNOWN ถ้ารูปแบบไม่ถูกต้อง
+    static long parseChecksum(String line) {
+        if (line == null || !line.startsWith("CHECKSUM crc32c ")) return Crc32c.UNKNOWN;
+        try {
+            long crc = Crc32c.parseHex(line.substring(16).trim());
+            return crc >= 0 && crc <= 0xFFFFFFFFL ? crc : Crc32c.UNKNOWN;
+        } catch (NumberFormatException e) {
+            return Crc32c.UNKNOWN;
+        }
+    }
+
+    // ---------------- server ----------------
+
+    // ไฟล์ชั่วคราวของ UPLOAD 1 ครั้ง — ใช้ทั้ง ClientHandler (blocking) และ NioServer (non-blocking)
+    static final class Receiver {
+        static final long CHUNK = 1 << 20; // transferFrom ครั้งละไม่เกิน 1 MB ให้ Follower ตามได้ระหว่างรับ
+
+        final File target;
+        final long size;
+        private final Path temp;
+        private final FileChannel file;
+        private final Crc32c.Follower follower;
+        private final ByteBuffer probe = ByteBuffer.allocate(1);
+        private long position;
+        private boolean finished; // publish หรือ abort แล้ว
+
+        // สร้างไฟล์ชั่วคราวข้างปลายทาง (rename ภายใน file system เดียวกันจึงเป็น atomic) แล้วตั้งขนาดสุดท้ายไว้ก่อน
+        Receiver(File target, long size) throws IOException {
+            this.target = target;
+            this.size = size;
+            String name = TEMP_PREFIX + Long.toHexString(ThreadLocalRandom.current().nextLong()) + "-" + target.getName();
+            this.temp = Files.createFile(target.getParentFile().toPath().resolve(name));
+
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(temp.toFile(), "rw");
+                // Java ไม่มี fallocate: setLength (ftruncate) ตั้งขนาดครั้งเดียวแทนการขยายไฟล์ทุก write
+                // ส่วนพื้นที่ว่างตรวจไว้แล้วใน checkTarget
+                raf.setLength(size);
+            } catch (IOException e) {
+                if (raf != null) raf.close();
+                Files.deleteIfExists(temp);
+                throw e;
+            }
+            this.file = raf.getChannel();
+            this.follower = new Crc32c.Follower(file, 0);
+        }
+
+        boolean done() {
+            return position == size;
+        }
+
+        long received() {
+            return position;
+        }
+
+        // ข้อมูลที่อ่านมาพร้อมคำสั่งแล้ว (buffer ของ connection โหมดอ่าน) — ใช้ไม่เกินส่วนที่ยังขาด ที่เหลือคือ CHECKSUM
+        void write(ByteBuffer buf) throws IOException {
+            int n = (int) Math.min(buf.remaining(), size - position);
+            if (n == 0) return;
+            int limit = buf.limit();
+            buf.limit(buf.position() + n);
+            while (buf.hasRemaining()) {
+                position += file.write(buf, position);
+            }
+            buf.limit(limit);
+            follower.advance(position);
+        }
+
+        // รับจาก socket ลงไฟล์ตรง ๆ ไม่เกิน max byte — คืน 0 ถ้า channel แบบ non-blocking ยังไม่มีข้อมูล
+        long receive(ReadableByteChannel channel, long max) throws IOException {
+            long n = file.transferFrom(channel, position, Math.min(max, size - position));
+            if (n > 0) {
+                Metrics.TRANSFER_FROM.record(n);
+            } else {
+                // transferFrom คืน 0 ทั้งตอนยังไม่มีข้อมูลและตอน client ปิด → อ่าน 1 byte เพื่อแยกสองกรณี
+                probe.clear();
+                int read = channel.read(probe);
+                if (read == -1) throw new EOFException("Connection closed after " + position + " of " + size + " bytes");
+                if (read == 0) return 0;
+                probe.flip();
+                n = file.write(probe, position);
+            }
+            position += n;
+            follower.advance(position);
+            return n;
+        }
+
+        // รอ CRC ของข้อมูลทั้งหมด ถ้าตรงกับ expected: force แล้ว rename แบบ atomic ทับชื่อจริง — คืน CRC ที่คำนวณได้
+        // (ไม่ตรง: ไม่ publish ผู้เรียกต้อง abort)
+        synchronized long commit(long expected) throws IOException, InterruptedException {
+            long crc = follower.finish();
+            if (crc != expected || finished) return crc;
+            file.force(true); // ข้อมูลต้องถึงดิสก์ก่อนที่ชื่อจริงจะชี้มาที่ไฟล์นี้
+            file.close();
+            Files.move(temp, target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            finished = true;
+            return crc;
+        }
+
+        // ยกเลิก: ลบไฟล์ชั่วคราว — หลัง commit สำเร็จไม่มีผล
+        synchronized void abort() {
+            if (finished) return;
+            finished = true;
+            follower.cancel();
+            try { file.close(); } catch (IOException ignored) {}
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException e) {
+                System.err.println("[UPLOAD] Cannot delete " + temp + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // ---------------- client ----------------
+
+    // upload <file> <zero|normal>: ส่งไฟล์ในเครื่องขึ้น server ในชื่อเดียวกัน (ไม่รวมโฟลเดอร์)
+    static void upload(String path, String mode) {
+        if (!mode.equals("zero") && !mode.equals("normal")) {
+            System.err.println("Invalid mode. Use 'zero' or 'normal'");
+            return;
+        }
+        File localFile = new File(path);
+        if (!localFile.isFile()) {
+            System.err.println("File not found: " + path);
+            return;
+        }
+        String name = localFile.getName();
+
+        try (FileChannel source = new FileInputStream(localFile).getChannel();
+             SocketChannel channel = ClientMain.connect()) {
+            System.out.println("[UPLOAD] Connected to server");
+            long size = source.size();
+
+            try {
+                long requested = System.nanoTime();
+                requestUpload(channel, name, size);
+                readReady(channel);
+                Metrics.CLIENT_TTFB.recordMicrosSince(requested);
+                System.out.println("[UPLOAD] Server ready, sending " + ClientMain.formatBytes(size));
+                System.out.println("[UPLOAD] Client Mode: " + mode.toUpperCase());
+
+                long startTime = System.currentTimeMillis();
+                long crc = mode.equals("zero") ? sendZeroCopy(channel, source, size) : sendNormal(channel, source, size);
+
+                ByteBuffer buf = ClientMain.FRAME_BUFFER.get();
+                buf.clear();
+                Wire.putChecksum(buf, ClientMain.binaryProtocol, crc);
+                buf.flip();
+                Wire.writeFully(channel, buf);
+
+                long stored = readStored(channel);
+                long duration = System.currentTimeMillis() - startTime;
+                if (stored != crc) {
+                    throw new IOException("Server stored crc32c " + Crc32c.toHex(stored) + ", sent " + Crc32c.toHex(crc));
+                }
+
+                System.out.println("\n[UPLOAD] ✅ Completed: " + name);
+                System.out.println("[UPLOAD] Time: " + duration + " ms");
+                System.out.printf("[UPLOAD] Speed: %.2f MB/s\n", (size / 1024.0 / 1024.0) / (Math.max(1, duration) / 1000.0));
+                System.out.println("[VERIFY] ✅ crc32c " + Crc32c.toHex(crc) + "\n");
+
+            } catch (ClientMain.ServerError e) {
+                System.err.println(e.getMessage());
+            } catch (IOException | InterruptedException e) {
+                System.err.println("Error during UPLOAD: " + e.getMessage());
+            }
+
+        } catch (IOException e) {
+            System.err.println("Network error: " + e.getMessage());
+        }
+    }
+
+    // UPLOAD <name> <size>
+    private static void requestUpload(SocketChannel channel, String name, long size) throws IOException {
+        if (ClientMain.binaryProtocol) {
+            ByteBuffer buf = ClientMain.FRAME_BUFFER.get();
+            buf.clear();
+            Wire.putUpload(buf, name, size);
+            buf.flip();
+            Wire.writeFully(channel, buf);
+        } else {
+            ClientMain.writeLine(channel, "UPLOAD " + name + " " + size);
+        }
+    }
+
+    // รอ READY (ข้าม QUEUED ระหว่างรอคิว) — ERROR แทน READY: server ไม่รับ ยังไม่ได้ส่งข้อมูลไป
+    private static void readReady(SocketChannel channel) throws IOException {
+        if (ClientMain.binaryProtocol) {
+            ByteBuffer buf = ClientMain.FRAME_BUFFER.get();
+            int op = ClientMain.readFrameAfterQueue(channel, buf, ClientMain.CONSOLE);
+            if (op != Wire.OP_READY) throw ClientMain.frameError(op, buf);
+            return;
+        }
+        String response = ClientMain.readLineAfterQueue(channel, ClientMain.CONSOLE);
+        if (response != null && response.startsWith("ERROR")) {
+            throw new ClientMain.ServerError("Server error: " + response);
+        }
+        if (!"READY".equals(response)) {
+            throw new IOException("Invalid response from server: " + response);
+        }
+    }
+
+    // STORED <size> <hex> — คืน CRC32C ที่ server คำนวณได้
+    private static long readStored(SocketChannel channel) throws IOException {
+        if (ClientMain.binaryProtocol) {
+            ByteBuffer buf = ClientMain.FRAME_BUFFER.get();
+            int op = Wire.readFrame(channel, buf);
+            if (op != Wire.OP_STORED) throw ClientMain.frameError(op, buf);
+            buf.getLong();
+            return buf.getLong();
+        }
+        String response = ClientMain.readLine(channel);
+        if (response != null && response.startsWith("ERROR")) {
+            throw new ClientMain.ServerError("Server error: " + response);
+        }
+        if (response == null || !response.startsWith("STORED ")) {
+            throw new IOException("Invalid response from server: " + response);
+        }
+        return Crc32c.parseHex(response.split(" ")[2]);
+    }
+
+    // ZERO-COPY: transferTo จากไฟล์ → socket ส่วน CRC คำนวณบน thread แยก (Crc32c.Follower) จาก page cache พร้อมกัน
+    private static long sendZeroCopy(SocketChannel channel, FileChannel source, long size)
+            throws IOException, InterruptedException {
+        System.out.println("[CLIENT] Using ZERO-COPY mode (transferTo)");
+        Crc32c.Follower follower = new Crc32c.Follower(source, size); // ทั้งไฟล์อยู่บนดิสก์แล้ว
+        Tuning.Tuner tuner = Tuning.tuner(channel, true);
+        try {
+            long position = 0;
+            while (position < size) {
+                long sent = source.transferTo(position, Math.min(tuner.slice(), size - position), channel);
+                if (sent == 0) throw new IOException("File shrank during upload");
+                tuner.record(sent);
+                position += sent;
+                ClientMain.printProgress(position, size);
+            }
+            System.out.println("\n[ZERO] ✅ Sent using transferTo()");
+            return follower.finish();
+        } finally {
+            follower.cancel();
+        }
+    }
+
+    // NORMAL: อ่านไฟล์ลง buffer → อัปเดต CRC → เขียนออก socket
+    private static long sendNormal(SocketChannel channel, FileChannel source, long size) throws IOException {
+        System.out.println("[CLIENT] Using NORMAL mode (read/write)");
+        ByteBuffer buffer = BufferPool.SHARED.take(); // direct buffer ขนาดเดียวกับ downloadNormal
+        try {
+            CRC32C crc = new CRC32C();
+            long position = 0;
+            while (position < size) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), size - position)); // ส่งไม่เกินขนาดที่แจ้งไว้
+                int read = source.read(buffer, position);
+                if (read == -1) throw new IOException("File shrank during upload");
+                buffer.flip();
+                crc.update(buffer);
+                buffer.flip(); // ข้อมูลชุดเดิมที่เพิ่งคำนวณ
+                Wire.writeFully(channel, buffer);
+                position += read;
+                ClientMain.printProgress(position, size);
+            }
+            System.out.println("\n[NORMAL] ✅ Sent using read/write");
+            return crc.getValue();
+        } finally {
+            BufferPool.SHARED.give(buffer);
+        }
+    }
+}
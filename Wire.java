@@ -0,0 +1,429 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+
+// รูปแบบข้อมูลบนสาย (wire format) ที่ใช้ร่วมกันทั้ง server และ client
+//
+// โปรโตคอลแบบ binary ใช้แทนข้อความทีละบรรทัดได้ เลือกตอนเชื่อมต่อ:
+// - client ส่ง 2 byte แรกเป็น MAGIC + VERSION → server ตอบ 2 byte เดียวกันกลับ แล้วคุยกันด้วย frame
+//   (คำสั่งแบบข้อความขึ้นต้นด้วยตัวอักษร ASCII เสมอ จึงแยกกับ MAGIC = 0xB1 ได้จาก byte แรก)
+// - frame = [opcode 1 byte][ความยาว payload 4 byte][payload]
+//   field ใน payload: long = 8 byte, string = ความยาว 2 byte + UTF-8
+// - connection แบบ binary เป็น keep-alive เสมอ (เหมือนส่ง SESSION) จนกว่าจะส่ง QUIT หรือปิด connection
+// - ข้อมูลไฟล์ของ DOWNLOAD ตามหลัง frame HEADER แบบ raw เหมือนโปรโตคอลข้อความ (UPLOAD: client ส่ง raw หลัง READY,
+//   MGET: record ของ Archive ตามหลัง frame ARCHIVE)
+//
+// ทุก method เขียน/อ่านจาก ByteBuffer ที่ผู้เรียกใช้ซ้ำ ไม่สร้าง buffer ใหม่ต่อข้อความ
+final class Wire {
+    static final byte MAGIC = (byte) 0xB1;
+    static final byte VERSION = 1;
+    static final int FRAME_HEADER = 5;
+
+    // คำสั่งจาก client
+    static final int OP_LIST = 0x01;     // (ไม่มี field) = ทุกชื่อ หรือ glob, limit (int), cursor ("" = หน้าแรก)
+    static final int OP_DOWNLOAD = 0x02; // name, mode, offset, length, ifMtime (-1 = ไม่ระบุ)
+    static final int OP_QUIT = 0x03;     // (ไม่มี field)
+    static final int OP_SYNC = 0x04;     // name, blockSize (int), count (int) — ตามด้วย signature แบบ raw (DeltaSync)
+    static final int OP_STATS = 0x05;    // (ไม่มี field) — ตอบเป็น ENTRY ทีละบรรทัดของ metrics แล้ว END
+    static final int OP_UPLOAD = 0x06;   // name, size — รอ READY แล้วส่งข้อมูลแบบ raw size byte ตามด้วย CHECKSUM
+    static final int OP_CHECKSUM = 0x07; // crc32c — ท้ายข้อมูลของ UPLOAD
+    static final int OP_MGET = 0x08;     // glob — ตอบ ARCHIVE แล้วตามด้วย record ของ Archive แบบ raw
+
+    // คำตอบจาก server
+    static final int OP_ERROR = 0x40;    // message
+    static final int OP_ENTRY = 0x41;    // name — รายการของ LIST ทีละ frame
+    static final int OP_END = 0x42;      // จบ LIST
+    static final int OP_HEADER = 0x43;   // fileSize, offset, length, mtime, crc32c (-1 = ยังไม่มี) — แทน FILESIZE + RANGE + CHECKSUM + READY
+    static final int OP_FILE = 0x44;     // name, size, mtime — รายการของ LIST แบบมี glob
+    static final int OP_MORE = 0x45;     // cursor — จบหน้านี้ของ LIST แต่ยังมีหน้าถัดไป
+    static final int OP_DELTA = 0x46;    // fileSize, mtime, literalBytes, crc32c — header ของ SYNC ตามด้วยคำสั่ง COPY/DATA
+    static final int OP_QUEUED = 0x47;   // position (int) — DOWNLOAD / SYNC / UPLOAD ยังรอช่องอยู่ในคิว (ส่งได้หลายครั้งก่อน header)
+    static final int OP_READY = 0x48;    // (ไม่มี field) — UPLOAD: เริ่มส่งข้อมูลได้
+    static final int OP_STORED = 0x49;   // size, crc32c — UPLOAD: CRC ตรงและ publish ไฟล์แล้ว
+    static final int OP_ARCHIVE = 0x4A;  // count (int), bytes — MGET: จำนวนไฟล์และขนาดรวม ตามด้วย record MEMBER ... END
+
+    private Wire() {}
+
+    // ---------------- frame ----------------
+
+    // เริ่ม frame ใน buf — คืนตำแหน่งเริ่มไว้ส่งให้ end()
+    static int begin(ByteBuffer buf, int op) {
+        int start = buf.position();
+        buf.put((byte) op).putInt(0);
+        return start;
+    }
+
+    // ใส่ความยาว payload ย้อนหลังเมื่อเขียน field ครบแล้ว
+    static void end(ByteBuffer buf, int start) {
+        buf.putInt(start + 1, buf.position() - start - FRAME_HEADER);
+    }
+
+    // ขนาดทั้งหมดของ frame ที่เริ่มที่ buf[start] ถ้ามีครบใน buf[start, limit) แล้ว — คืน -1 ถ้ายังไม่ครบ
+    static int frameLength(ByteBuffer buf, int start, int limit) throws IOException {
+        if (limit - start < FRAME_HEADER) return -1;
+        int payload = buf.getInt(start + 1);
+        if (payload < 0 || payload > buf.capacity() - FRAME_HEADER) {
+            throw new IOException("Frame too large: " + payload);
+        }
+        return limit - start >= FRAME_HEADER + payload ? FRAME_HEADER + payload : -1;
+    }
+
+    // อ่าน frame ถัดไปแบบพอดี (ไม่อ่านเกิน frame เพราะข้อมูลไฟล์อาจตามมาทันที) ลง buf ที่ใช้ซ้ำ
+    // คืน opcode และ buf ชี้ที่ต้น payload — คืน -1 ถ้า channel ปิดก่อนเริ่ม frame ใหม่
+    static int readFrame(ReadableByteChannel channel, ByteBuffer buf) throws IOException {
+        buf.clear();
+        buf.limit(FRAME_HEADER);
+        if (!readFully(channel, buf, true)) return -1;
+
+        int payload = buf.getInt(1);
+        if (payload < 0 || payload > buf.capacity() - FRAME_HEADER) {
+            throw new IOException("Frame too large: " + payload);
+        }
+        buf.limit(FRAME_HEADER + payload);
+        readFully(channel, buf, false);
+
+        buf.flip();
+        int op = buf.get() & 0xFF;
+        buf.getInt();
+        return op;
+    }
+
+    // อ่าน frame ถัดไปจาก buf (โหมดอ่าน) ที่อาจมีหลาย frame ต่อกัน (client ส่งแบบ pipeline)
+    // อ่านจาก channel เพิ่มเมื่อยังไม่ครบ — คืน opcode และ buf ชี้ที่ต้น payload, คืน -1 ถ้า channel ปิด
+    static int nextFrame(ReadableByteChannel channel, ByteBuffer buf) throws IOException {
+        while (frameLength(buf, buf.position(), buf.limit()) < 0) {
+            buf.compact();
+            int bytesRead = channel.read(buf);
+            buf.flip();
+            if (bytesRead == -1) {
+                if (buf.hasRemaining()) throw new IOException("Connection closed in the middle of a frame");
+                return -1;
+            }
+        }
+        int op = buf.get() & 0xFF;
+        buf.getInt();
+        return op;
+    }
+
+    // ความยาว payload ของ frame ที่เพิ่งอ่านด้วย readFrame / nextFrame (buf ชี้ที่ต้น payload)
+    static int payloadLength(ByteBuffer buf) {
+        return buf.getInt(buf.position() - 4);
+    }
+
+    private static boolean readFully(ReadableByteChannel channel, ByteBuffer buf, boolean eofAllowed) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf) == -1) {
+                if (eofAllowed && buf.position() == 0) return false;
+                throw new IOException("Connection closed in the middle of a frame");
+            }
+        }
+        return true;
+    }
+
+    // ---------------- field ----------------
+
+    // string: ความยาว 2 byte + UTF-8 (ชื่อไฟล์ ASCII เขียนตรงโดยไม่สร้าง byte[])
+    static void putString(ByteBuffer buf, String s) {
+        int lengthPos = buf.position();
+        buf.putShort((short) 0);
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                buf.position(lengthPos);
+                buf.putShort((short) bytes.length).put(bytes);
+                return;
+            }
+            buf.put((byte) c);
+        }
+        buf.putShort(lengthPos, (short) n);
+    }
+
+    static String getString(ByteBuffer buf) {
+        int length = buf.getShort() & 0xFFFF;
+        String s = new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8);
+        buf.position(buf.position() + length);
+        return s;
+    }
+
+    // ข้อความแบบไม่มี prefix ความยาว (โปรโตคอลข้อความ)
+    static void putText(ByteBuffer buf, String s) {
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                buf.put(s.substring(i).getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            buf.put((byte) c);
+        }
+    }
+
+    // ตัวเลขฐาน 10 แบบไม่สร้าง String
+    static void putDecimal(ByteBuffer buf, long value) {
+        if (value < 0) {
+            if (value == Long.MIN_VALUE) {
+                putText(buf, Long.toString(value));
+                return;
+            }
+            buf.put((byte) '-');
+            value = -value;
+        }
+        int start = buf.position();
+        do {
+            buf.put((byte) ('0' + value % 10));
+            value /= 10;
+        } while (value > 0);
+        // กลับลำดับตัวเลขที่เขียนจากหลักหน่วย
+        for (int i = start, j = buf.position() - 1; i < j; i++, j--) {
+            byte tmp = buf.get(i);
+            buf.put(i, buf.get(j));
+            buf.put(j, tmp);
+        }
+    }
+
+    // ---------------- คำตอบของ server (ทั้งสองโปรโตคอล) ----------------
+
+    // ERROR <message>
+    static void putError(ByteBuffer buf, boolean binary, String message) {
+        if (binary) {
+            int start = begin(buf, OP_ERROR);
+            putString(buf, message);
+            end(buf, start);
+        } else {
+            putText(buf, "ERROR ");
+            putText(buf, message);
+            buf.put((byte) '\n');
+        }
+    }
+
+    // ชื่อไฟล์ 1 รายการของ LIST
+    static void putEntry(ByteBuffer buf, boolean binary, String name) {
+        if (binary) {
+            int start = begin(buf, OP_ENTRY);
+            putString(buf, name);
+            end(buf, start);
+        } else {
+            putText(buf, name);
+            buf.put((byte) '\n');
+        }
+    }
+
+    // รายการของ LIST แบบมี glob: <name> <size> <mtime>
+    static void putFile(ByteBuffer buf, boolean binary, String name, long size, long mtime) {
+        if (binary) {
+            int start = begin(buf, OP_FILE);
+            putString(buf, name);
+            buf.putLong(size).putLong(mtime);
+            end(buf, start);
+        } else {
+            putText(buf, name);
+            buf.put((byte) ' ');
+            putDecimal(buf, size);
+            buf.put((byte) ' ');
+            putDecimal(buf, mtime);
+            buf.put((byte) '\n');
+        }
+    }
+
+    // MORE <cursor> — ส่ง cursor นี้กลับมาใน LIST ครั้งถัดไปเพื่อขอหน้าต่อไป
+    static void putMore(ByteBuffer buf, boolean binary, String cursor) {
+        if (binary) {
+            int start = begin(buf, OP_MORE);
+            putString(buf, cursor);
+            end(buf, start);
+        } else {
+            putText(buf, "MORE ");
+            putText(buf, cursor);
+            buf.put((byte) '\n');
+        }
+    }
+
+    // จบ LIST
+    static void putEnd(ByteBuffer buf, boolean binary) {
+        if (binary) {
+            end(buf, begin(buf, OP_END));
+        } else {
+            putText(buf, "END\n");
+        }
+    }
+
+    // header ของ DOWNLOAD รวมเป็นก้อนเดียว (ส่งด้วย write ครั้งเดียว)
+    // ข้อความ: FILESIZE <size> [RANGE <offset> <length> <mtime>] [CHECKSUM crc32c <hex>] READY
+    // (CHECKSUM มีเฉพาะแบบ ranged และเมื่อ server คำนวณเสร็จแล้ว — client แบบเดิมจึงไม่เห็นบรรทัดที่ไม่รู้จัก)
+    static void putHeader(ByteBuffer buf, boolean binary, boolean ranged,
+                          long fileSize, long offset, long length, long mtime, long checksum) {
+        if (binary) {
+            int start = begin(buf, OP_HEADER);
+            buf.putLong(fileSize).putLong(offset).putLong(length).putLong(mtime).putLong(checksum);
+            end(buf, start);
+            return;
+        }
+        putText(buf, "FILESIZE ");
+        putDecimal(buf, fileSize);
+        buf.put((byte) '\n');
+        if (ranged) {
+            putText(buf, "RANGE ");
+            putDecimal(buf, offset);
+            buf.put((byte) ' ');
+            putDecimal(buf, length);
+            buf.put((byte) ' ');
+            putDecimal(buf, mtime);
+            buf.put((byte) '\n');
+            if (checksum != Crc32c.UNKNOWN) {
+                putText(buf, "CHECKSUM crc32c ");
+                putText(buf, Crc32c.toHex(checksum));
+                buf.put((byte) '\n');
+            }
+        }
+        putText(buf, "READY\n");
+    }
+
+    // header ของ SYNC — ข้อความ: FILESIZE <size> / DELTA <mtime> <literalBytes> / [CHECKSUM crc32c <hex>] / READY
+    static void putDeltaHeader(ByteBuffer buf, boolean binary, long fileSize, long mtime, long literalBytes, long checksum) {
+        if (binary) {
+            int start = begin(buf, OP_DELTA);
+            buf.putLong(fileSize).putLong(mtime).putLong(literalBytes).putLong(checksum);
+            end(buf, start);
+            return;
+        }
+        putText(buf, "FILESIZE ");
+        putDecimal(buf, fileSize);
+        putText(buf, "\nDELTA ");
+        putDecimal(buf, mtime);
+        buf.put((byte) ' ');
+        putDecimal(buf, literalBytes);
+        buf.put((byte) '\n');
+        if (checksum != Crc32c.UNKNOWN) {
+            putText(buf, "CHECKSUM crc32c ");
+            putText(buf, Crc32c.toHex(checksum));
+            buf.put((byte) '\n');
+        }
+        putText(buf, "READY\n");
+    }
+
+    // QUEUED <position> — ยังรอคิวอยู่ header จะตามมาเมื่อได้ช่องส่ง
+    static void putQueued(ByteBuffer buf, boolean binary, int position) {
+        if (binary) {
+            int start = begin(buf, OP_QUEUED);
+            buf.putInt(position);
+            end(buf, start);
+        } else {
+            putText(buf, "QUEUED ");
+            putDecimal(buf, position);
+            buf.put((byte) '\n');
+        }
+    }
+
+    // READY — UPLOAD: server ได้ช่องและเตรียมไฟล์ชั่วคราวแล้ว client เริ่มส่งข้อมูลได้
+    static void putReady(ByteBuffer buf, boolean binary) {
+        if (binary) {
+            end(buf, begin(buf, OP_READY));
+        } else {
+            putText(buf, "READY\n");
+        }
+    }
+
+    // STORED <size> <crc32c hex> — UPLOAD: ไฟล์ครบ CRC ตรง และอยู่ในชื่อจริงแล้ว
+    static void putStored(ByteBuffer buf, boolean binary, long size, long checksum) {
+        if (binary) {
+            int start = begin(buf, OP_STORED);
+            buf.putLong(size).putLong(checksum);
+            end(buf, start);
+        } else {
+            putText(buf, "STORED ");
+            putDecimal(buf, size);
+            buf.put((byte) ' ');
+            putText(buf, Crc32c.toHex(checksum));
+            buf.put((byte) '\n');
+        }
+    }
+
+    // ARCHIVE <count> <bytes> — MGET: record ของแต่ละไฟล์ตามมาแบบ raw จนถึง END
+    static void putArchive(ByteBuffer buf, boolean binary, int count, long bytes) {
+        if (binary) {
+            int start = begin(buf, OP_ARCHIVE);
+            buf.putInt(count).putLong(bytes);
+            end(buf, start);
+        } else {
+            putText(buf, "ARCHIVE ");
+            putDecimal(buf, count);
+            buf.put((byte) ' ');
+            putDecimal(buf, bytes);
+            buf.put((byte) '\n');
+        }
+    }
+
+    // ---------------- คำสั่งของ client (binary) ----------------
+
+    // LIST แบบมี glob และแบ่งหน้า — cursor = null สำหรับหน้าแรก
+    static void putList(ByteBuffer buf, String glob, int limit, String cursor) {
+        int start = begin(buf, OP_LIST);
+        putString(buf, glob);
+        buf.putInt(limit);
+        putString(buf, cursor == null ? "" : cursor);
+        end(buf, start);
+    }
+
+    static void putDownload(ByteBuffer buf, String name, String mode, long offset, long length, long ifMtime) {
+        int start = begin(buf, OP_DOWNLOAD);
+        putString(buf, name);
+        putString(buf, mode);
+        buf.putLong(offset).putLong(length).putLong(ifMtime);
+        end(buf, start);
+    }
+
+    static void putSync(ByteBuffer buf, String name, int blockSize, int count) {
+        int start = begin(buf, OP_SYNC);
+        putString(buf, name);
+        buf.putInt(blockSize).putInt(count);
+        end(buf, start);
+    }
+
+    static void putUpload(ByteBuffer buf, String name, long size) {
+        int start = begin(buf, OP_UPLOAD);
+        putString(buf, name);
+        buf.putLong(size);
+        end(buf, start);
+    }
+
+    static void putMget(ByteBuffer buf, String glob) {
+        int start = begin(buf, OP_MGET);
+        putString(buf, glob);
+        end(buf, start);
+    }
+
+    // CHECKSUM crc32c <hex> ท้ายข้อมูลของ UPLOAD
+    static void putChecksum(ByteBuffer buf, boolean binary, long checksum) {
+        if (binary) {
+            int start = begin(buf, OP_CHECKSUM);
+            buf.putLong(checksum);
+            end(buf, start);
+        } else {
+            putText(buf, "CHECKSUM crc32c ");
+            putText(buf, Crc32c.toHex(checksum));
+            buf.put((byte) '\n');
+        }
+    }
+
+    // client เริ่ม connection แบบ binary: ส่ง MAGIC + VERSION แล้วรอ server ตอบกลับแบบเดียวกัน
+    static void negotiate(SocketChannel channel) throws IOException {
+        ByteBuffer hello = ByteBuffer.allocate(2);
+        hello.put(MAGIC).put(VERSION).flip();
+        writeFully(channel, hello);
+
+        hello.clear();
+        readFully(channel, hello, false);
+        if (hello.get(0) != MAGIC || hello.get(1) != VERSION) {
+            throw new IOException("Server does not support binary protocol version " + VERSION);
+        }
+    }
+
+    static void writeFully(WritableByteChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// เทียบวิธีส่งไฟล์ของ server (file → socket บน loopback) แบบทั้งไฟล์ต่อ 1 operation
+// - transferTo: zero-copy (ClientHandler.zeroCopy / NioServer.zeroCopyStep)
+// - heapCopy: read/write ผ่าน heap buffer (ClientHandler.normalCopy)
+// - directCopy: read/write ผ่าน direct buffer
+// - mmapWrite: map ไฟล์ไว้ก่อนแล้ว write จาก mapping
+// - scatterGather: readv ลงหลาย direct buffer แล้ว writev
+// พารามิเตอร์: fileSize 4K..4G, bufferSize (ขนาด buffer / ช่วงต่อการเรียก), cache warm / cold
+// จำนวน thread (= จำนวน connection พร้อมกัน) กำหนดด้วย -t หรือ Sweep
+// ผล "bytes" (AuxCounters) คือ byte/วินาที, allocation rate ดูด้วย -prof gc (gc.alloc.rate.norm)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Benchmark)
+public class CopyBenchmark {
+    private static final int SCATTER_BUFFERS = 4;
+
+    @Param({"4K", "64K", "1M", "64M", "1G", "4G"})
+    public String fileSize;
+
+    @Param({"8K", "64K", "1M"})
+    public String bufferSize;
+
+    // warm = ไฟล์อยู่ใน page cache แล้ว, cold = ทิ้ง page cache ก่อนทุก operation (Linux + root เท่านั้น)
+    @Param({"warm", "cold"})
+    public String cache;
+
+    long size;
+    int buffer;
+    Path path;
+    LoopbackSink sink;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        size = TestFiles.parseSize(fileSize);
+        buffer = (int) TestFiles.parseSize(bufferSize);
+        path = TestFiles.file(size);
+        if (cold() && !TestFiles.dropPageCache()) {
+            // ผลของ cold ที่ทิ้ง cache ไม่ได้จะเท่ากับ warm → ไม่รันดีกว่ารายงานผิด
+            throw new IllegalStateException("cache=cold needs root on Linux (/proc/sys/vm/drop_caches); use -p cache=warm");
+        }
+        sink = new LoopbackSink();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        sink.close();
+    }
+
+    boolean cold() {
+        return "cold".equals(cache);
+    }
+
+    // connection + ไฟล์ + buffer ของแต่ละ thread (เหมือน ClientHandler 1 ตัว) — สร้างครั้งเดียวต่อ trial
+    @State(Scope.Thread)
+    public static class Connection {
+        SocketChannel channel;
+        FileChannel file;
+        ByteBuffer heap;
+        ByteBuffer direct;
+        ByteBuffer[] scatter;
+        ByteBuffer[] windows;
+
+        @Setup(Level.Trial)
+        public void open(CopyBenchmark bench) throws IOException {
+            channel = bench.sink.connect();
+            file = FileChannel.open(bench.path, StandardOpenOption.READ); // ของตัวเอง: scatter read ใช้ position ของ channel
+            heap = ByteBuffer.allocate(bench.buffer);
+            direct = ByteBuffer.allocateDirect(bench.buffer);
+            scatter = new ByteBuffer[SCATTER_BUFFERS];
+            for (int i = 0; i < scatter.length; i++) {
+                scatter[i] = ByteBuffer.allocateDirect(Math.max(1, bench.buffer / SCATTER_BUFFERS));
+            }
+            windows = CopyStrategies.map(file, bench.size);
+        }
+
+        // cold: ทิ้ง page cache ก่อนทุก operation (ไม่นับเวลา) — mapping ถูก unmap ก่อนแล้ว map ใหม่
+        // จึงต้อง page fault อ่านจาก disk จริง
+        @Setup(Level.Invocation)
+        public void evict(CopyBenchmark bench) throws IOException {
+            if (!bench.cold()) return;
+            CopyStrategies.unmap(windows);
+            TestFiles.dropPageCache();
+            windows = CopyStrategies.map(file, bench.size);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            CopyStrategies.unmap(windows);
+            channel.close();
+            file.close();
+        }
+    }
+
+    // byte ที่ส่ง — JMH รายงานเป็นอัตราต่อวินาทีคู่กับจำนวน operation
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Benchmark
+    public long transferTo(Connection c, Bytes out) throws IOException {
+        return out.bytes += CopyStrategies.transferTo(c.file, size, c.channel, buffer);
+    }
+
+    @Benchmark
+    public long heapCopy(Connection c, Bytes out) throws IOException {
+        return out.bytes += CopyStrategies.readWrite(c.file, size, c.channel, c.heap);
+    }
+
+    @Benchmark
+    public long directCopy(Connection c, Bytes out) throws IOException {
+        return out.bytes += CopyStrategies.readWrite(c.file, size, c.channel, c.direct);
+    }
+
+    @Benchmark
+    public long mmapWrite(Connection c, Bytes out) throws IOException {
+        return out.bytes += CopyStrategies.mmapWrite(c.windows, c.channel, buffer);
+    }
+
+    @Benchmark
+    public long scatterGather(Connection c, Bytes out) throws IOException {
+        return out.bytes += CopyStrategies.scatterGather(c.file, size, c.channel, c.scatter);
+    }
+}
@@ -0,0 +1,113 @@
+package bench;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+// วิธีส่งไฟล์ทั้งไฟล์ไปยัง socket แบบต่าง ๆ — แต่ละวิธีคืนจำนวน byte ที่ส่ง
+// buffer ทุกตัวมาจากผู้เรียก (ใช้ซ้ำต่อ thread) เพื่อให้ allocation rate ที่วัดได้เป็นของวิธีส่งจริง ๆ
+final class CopyStrategies {
+    static final long MAP_WINDOW = 1L << 30; // MappedByteBuffer ใหญ่ได้ไม่เกิน 2 GB → map ไฟล์เป็นช่วงละ 1 GB
+
+    private CopyStrategies() {}
+
+    // FileChannel.transferTo ทีละไม่เกิน chunk byte — ข้อมูลไม่ผ่าน user space (sendfile บน Linux)
+    // เท่ากับ ClientHandler.zeroCopy เมื่อ chunk ≥ ขนาดไฟล์
+    static long transferTo(FileChannel src, long size, SocketChannel dst, int chunk) throws IOException {
+        long position = 0;
+        while (position < size) {
+            position += src.transferTo(position, Math.min(chunk, size - position), dst);
+        }
+        return position;
+    }
+
+    // read ลง buffer แล้ว write — heap buffer คือ ClientHandler.normalCopy (JDK copy ลง direct buffer ชั่วคราวอีกทอด)
+    // direct buffer ไม่ต้อง copy ทอดนั้น
+    static long readWrite(FileChannel src, long size, SocketChannel dst, ByteBuffer buf) throws IOException {
+        long position = 0;
+        while (position < size) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), size - position));
+            int read = src.read(buf, position);
+            if (read == -1) throw new IOException("Unexpected end of file");
+            buf.flip();
+            while (buf.hasRemaining()) {
+                dst.write(buf);
+            }
+            position += read;
+        }
+        return position;
+    }
+
+    // เขียนจาก MappedByteBuffer ทีละไม่เกิน slice byte — ไม่มี read() แต่จ่ายด้วย page fault ตอน kernel copy ออก
+    // windows คือ mapping ของไฟล์ช่วงละ MAP_WINDOW (map ไว้ล่วงหน้าแบบ cache ของ server)
+    static long mmapWrite(ByteBuffer[] windows, SocketChannel dst, int slice) throws IOException {
+        long sent = 0;
+        for (ByteBuffer window : windows) {
+            int end = window.capacity();
+            for (int position = 0; position < end; ) {
+                window.limit(Math.min(end, position + slice)).position(position);
+                while (window.hasRemaining()) {
+                    dst.write(window);
+                }
+                sent += window.limit() - position;
+                position = window.limit();
+            }
+        }
+        return sent;
+    }
+
+    // scatter read (readv) ลงหลาย direct buffer แล้ว gather write (writev) ออกในการเรียกครั้งเดียว
+    // แบบเดียวกับที่ server ส่ง header + ข้อมูลจาก cache ด้วย write(ByteBuffer[])
+    static long scatterGather(FileChannel src, long size, SocketChannel dst, ByteBuffer[] bufs) throws IOException {
+        long position = 0;
+        src.position(0);
+        while (position < size) {
+            long want = size - position;
+            for (ByteBuffer buf : bufs) {
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), Math.max(0, want)));
+                want -= buf.limit();
+            }
+            long read = src.read(bufs);
+            if (read == -1) throw new IOException("Unexpected end of file");
+            for (ByteBuffer buf : bufs) {
+                buf.flip();
+            }
+            long written = 0;
+            while (written < read) {
+                written += dst.write(bufs);
+            }
+            position += read;
+        }
+        return position;
+    }
+
+    // map ไฟล์ทั้งไฟล์เป็นช่วง ๆ (อ่านอย่างเดียว)
+    static MappedByteBuffer[] map(FileChannel file, long size) throws IOException {
+        int count = (int) ((size + MAP_WINDOW - 1) / MAP_WINDOW);
+        MappedByteBuffer[] windows = new MappedByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            long start = i * MAP_WINDOW;
+            windows[i] = file.map(FileChannel.MapMode.READ_ONLY, start, Math.min(MAP_WINDOW, size - start));
+        }
+        return windows;
+    }
+
+    // unmap ทันที (ไม่รอ GC) — page ที่ยัง map อยู่ drop_caches ทิ้งไม่ได้ ผลของ cold จึงต้อง unmap ก่อน
+    static void unmap(ByteBuffer[] windows) {
+        try {
+            Field field = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            sun.misc.Unsafe unsafe = (sun.misc.Unsafe) field.get(null);
+            for (ByteBuffer window : windows) {
+                unsafe.invokeCleaner(window);
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot unmap file", e);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package bench;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// ต้นทุนของ -Ddownload.sync ฝั่ง client (Durability.Target) ต่อการรับ 1 ไฟล์ — เขียนลง .part แล้ว rename
+// - none: ไม่ force, end: force(true) ก่อน rename + force โฟลเดอร์, interval: force(false) ทุก syncEvery แล้วเหมือน end
+// - preallocate: setLength เป็นขนาดเต็มก่อนเขียน (เหมือน -Ddownload.preallocate=true)
+// เขียนทีละ 1 MB จาก direct buffer (ขนาดเท่า slot ของ DiskWriter ค่าเริ่มต้น) ไม่ผ่าน network → วัดเฉพาะดิสก์
+// ผล "bytes" (AuxCounters) คือ byte/วินาที — ไฟล์อยู่ที่ -Dbench.dir (ดิสก์เดียวกับ downloads/ จึงจะเทียบได้ตรง)
+//   java -jar target/benchmarks.jar DurabilityBenchmark -p fileSize=64M
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms512m", "-Xmx512m"})
+@State(Scope.Thread)
+public class DurabilityBenchmark {
+    private static final int SLOT = 1 << 20;
+
+    @Param({"1M", "64M", "256M"})
+    public String fileSize;
+
+    @Param({"none", "end", "interval"})
+    public String sync;
+
+    @Param({"8M"})
+    public String syncEvery;
+
+    @Param({"true", "false"})
+    public boolean preallocate;
+
+    long size;
+    long every;
+    Path part;
+    Path target;
+    ByteBuffer slot;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        size = TestFiles.parseSize(fileSize);
+        every = TestFiles.parseSize(syncEvery);
+        target = Files.createTempFile(TestFiles.dir(), "download-", ".bin");
+        part = Paths.get(target + ".part");
+        slot = ByteBuffer.allocateDirect(SLOT);
+        SplittableRandom random = new SplittableRandom(size);
+        while (slot.remaining() >= 8) {
+            slot.putLong(random.nextLong());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(part);
+        Files.deleteIfExists(target);
+    }
+
+    // byte ที่เขียน — JMH รายงานเป็นอัตราต่อวินาทีคู่กับจำนวน operation
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Benchmark
+    public long receive(Bytes out) throws IOException {
+        boolean interval = sync.equals("interval");
+        try (RandomAccessFile raf = new RandomAccessFile(part.toFile(), "rw")) {
+            raf.setLength(0);
+            if (preallocate) raf.setLength(size);
+            FileChannel channel = raf.getChannel();
+            long written = 0;
+            long synced = 0;
+            while (written < size) {
+                slot.clear().limit((int) Math.min(SLOT, size - written));
+                while (slot.hasRemaining()) {
+                    written += channel.write(slot);
+                }
+                if (interval && written - synced >= every) {
+                    channel.force(false);
+                    synced = written;
+                }
+            }
+            if (!sync.equals("none")) channel.force(true);
+        }
+        Files.move(part, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        if (!sync.equals("none")) {
+            try (FileChannel dir = FileChannel.open(target.getParent(), StandardOpenOption.READ)) {
+                dir.force(true);
+            }
+        }
+        return out.bytes += size;
+    }
+}
@@ -0,0 +1,67 @@
+package bench;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// ปลายทางบน loopback แทน client: รับ connection แล้วอ่านทิ้งทุกอย่าง (thread ละ 1 connection อ่านลง direct buffer)
+// benchmark จึงวัดเฉพาะฝั่งส่ง (file → socket) ไม่มีการเขียนไฟล์ของ client มาปน
+final class LoopbackSink implements Closeable {
+    private final ServerSocketChannel server;
+    private final List<SocketChannel> accepted = new CopyOnWriteArrayList<>();
+
+    LoopbackSink() throws IOException {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        Thread acceptor = new Thread(this::acceptLoop, "sink-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    // connection ใหม่ไปยัง sink (blocking เหมือน ClientHandler)
+    SocketChannel connect() throws IOException {
+        SocketChannel channel = SocketChannel.open(server.getLocalAddress());
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        return channel;
+    }
+
+    private void acceptLoop() {
+        while (server.isOpen()) {
+            try {
+                SocketChannel channel = server.accept();
+                accepted.add(channel);
+                Thread drain = new Thread(() -> drain(channel), "sink-drain");
+                drain.setDaemon(true);
+                drain.start();
+            } catch (IOException e) {
+                return; // ปิด sink แล้ว
+            }
+        }
+    }
+
+    private static void drain(SocketChannel channel) {
+        ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20);
+        try (channel) {
+            while (channel.read(buf) != -1) {
+                buf.clear();
+            }
+        } catch (IOException ignored) {
+            // ฝั่งส่งปิดไปแล้ว
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        for (SocketChannel channel : accepted) {
+            channel.close();
+        }
+    }
+}
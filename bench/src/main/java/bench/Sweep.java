@@ -0,0 +1,34 @@
+package bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// รัน CopyBenchmark ทั้งชุดซ้ำตามจำนวน connection พร้อมกัน (-Dbench.threads=1,4,16) พร้อม GC profiler
+// ผลแต่ละรอบเขียนเป็น JSON: results-<threads>t.json — อาร์กิวเมนต์อื่นส่งต่อให้ JMH (เช่น transferTo -p fileSize=1M,64M)
+public final class Sweep {
+    private Sweep() {}
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions cli = new CommandLineOptions(args);
+        for (String t : System.getProperty("bench.threads", "1,4,16").split(",")) {
+            int threads = Integer.parseInt(t.trim());
+            System.out.println("[BENCH] " + threads + " concurrent connection(s)");
+            OptionsBuilder builder = new OptionsBuilder();
+            if (cli.getIncludes().isEmpty()) builder.include(CopyBenchmark.class.getSimpleName()); // ไม่ระบุ = ทุกวิธี
+            Options options = builder
+                    .parent(cli)
+                    .threads(threads)
+                    .addProfiler(GCProfiler.class)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result("results-" + threads + "t.json")
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Locale;
+import java.util.SplittableRandom;
+
+// ไฟล์ข้อมูลสุ่ม (บีบอัดไม่ได้) สำหรับ benchmark — สร้างครั้งแรกแล้วใช้ซ้ำทุก fork
+// เก็บที่ -Dbench.dir (ค่าเริ่มต้น ${java.io.tmpdir}/filetransfer-bench) ขนาด 4G ต้องมีที่ว่าง 4 GB
+final class TestFiles {
+    private TestFiles() {}
+
+    static Path file(long size) throws IOException {
+        Path dir = dir();
+        Path path = dir.resolve("data-" + size + ".bin");
+        if (Files.exists(path) && Files.size(path) == size) return path;
+
+        // เขียนลงไฟล์ชั่วคราวแล้วค่อยเปลี่ยนชื่อ → fork อื่นไม่เห็นไฟล์ที่เขียนไม่ครบ
+        Path tmp = Files.createTempFile(dir, "data-", ".tmp");
+        SplittableRandom random = new SplittableRandom(size);
+        ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20);
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            for (long written = 0; written < size; ) {
+                buf.clear();
+                while (buf.remaining() >= 8) {
+                    buf.putLong(random.nextLong());
+                }
+                buf.flip();
+                buf.limit((int) Math.min(buf.limit(), size - written));
+                while (buf.hasRemaining()) {
+                    written += out.write(buf);
+                }
+            }
+            out.force(true); // page ที่เหลือใน cache เป็น clean → drop_caches ทิ้งได้
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return path;
+    }
+
+    // -Dbench.dir (สร้างให้ถ้ายังไม่มี)
+    static Path dir() throws IOException {
+        Path dir = Paths.get(System.getProperty("bench.dir",
+                Paths.get(System.getProperty("java.io.tmpdir"), "filetransfer-bench").toString()));
+        Files.createDirectories(dir);
+        return dir;
+    }
+
+    // "4K" / "64M" / "4G" → byte
+    static long parseSize(String text) {
+        String s = text.trim().toUpperCase(Locale.ROOT);
+        long unit = 1;
+        if (s.endsWith("K")) unit = 1L << 10;
+        else if (s.endsWith("M")) unit = 1L << 20;
+        else if (s.endsWith("G")) unit = 1L << 30;
+        if (unit != 1) s = s.substring(0, s.length() - 1);
+        return Long.parseLong(s) * unit;
+    }
+
+    // ทิ้ง page cache (clean page) ของทั้งเครื่อง — Linux และต้องเป็น root; คืน false ถ้าทำไม่ได้
+    static boolean dropPageCache() {
+        try {
+            Files.writeString(Paths.get("/proc/sys/vm/drop_caches"), "1");
+            return true;
+        } catch (IOException | SecurityException e) {
+            return false;
+        }
+    }
+}